@@ -0,0 +1,254 @@
+package bgp.dataStructures;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Class used to represent the AS path of a route.
+ *
+ * AS paths are immutable and hash-consed, there is only ever one ASPath object
+ * for a given path, shared by every route (in every router) that carries it.
+ * Paths form a trie, each path is the AS added to the front of its parent
+ * path, so prepending a hop is one lookup in the intern map rather than a copy
+ * of the whole path, and two paths are equal only if they are the same object.
+ * The first hop of a path is the most recently added AS (the next hop), the
+ * last is the 0 that marks where the route started.
+ *
+ * Routers running on the workers prepend hops, so the intern map is a
+ * concurrent one. Paths are never dropped from it once made. Every path has
+ * an id it can be fetched by (see getById()), so compact stores can keep a
+ * path as an int. Ids, like CIDR ids, are only good within one JVM, a path
+ * read from a snapshot is swapped for this JVM's path with the same hops.
+ *
+ */
+public class ASPath implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * The path with no hops, the parent of every one hop path
+	 */
+	public static final ASPath EMPTY = new ASPath(null, 0);
+
+	/**
+	 * Every path made so far, by parent id (high 32 bits) and first hop (low
+	 * 32 bits)
+	 */
+	private static final ConcurrentHashMap<Long, ASPath> internMap = new ConcurrentHashMap<Long, ASPath>();
+	private static final AtomicInteger nextId = new AtomicInteger(1);
+
+	/**
+	 * Paths by id. New paths are made, given their id, put in here and then
+	 * put in the intern map all while holding the lock, so only the path
+	 * that ends up in the intern map ever gets an id and any id handed out
+	 * can be looked up. Slots are only written holding the lock and the array
+	 * is only ever swapped for a bigger copy, so it can be read without
+	 * locking.
+	 */
+	private static final Object byIdLock = new Object();
+	private static volatile ASPath[] byId = new ASPath[1024];
+
+	static {
+		ASPath.byId[0] = ASPath.EMPTY;
+	}
+
+	private ASPath parent;
+	private int firstHop;
+	private int length;
+	private int hash;
+	private transient int id;
+
+	private ASPath(ASPath parent, int firstHop) {
+		this.parent = parent;
+		this.firstHop = firstHop;
+		if (parent == null) {
+			this.length = 0;
+			this.hash = 1;
+			this.id = 0;
+		} else {
+			this.length = parent.length + 1;
+			this.hash = parent.hash * 31 + firstHop;
+			this.id = ASPath.nextId.getAndIncrement();
+		}
+	}
+
+	/**
+	 * Fetches the path for the given hops.
+	 *
+	 * @param hops
+	 *            - the hops, next hop first
+	 * @return - the path
+	 */
+	public static ASPath valueOf(int[] hops) {
+		ASPath retPath = ASPath.EMPTY;
+		for (int counter = hops.length - 1; counter >= 0; counter--) {
+			retPath = retPath.prepend(hops[counter]);
+		}
+		return retPath;
+	}
+
+	/**
+	 * Fetches the path that is this path with the given hop added to the
+	 * front.
+	 *
+	 * @param hop
+	 *            - the AS to add
+	 * @return - the longer path
+	 */
+	public ASPath prepend(int hop) {
+		Long key = ((long) this.id << 32) | (hop & 0xffffffffL);
+		ASPath retPath = ASPath.internMap.get(key);
+		if (retPath == null) {
+			synchronized (ASPath.byIdLock) {
+				/*
+				 * another thread may have made it while we waited on the lock
+				 */
+				retPath = ASPath.internMap.get(key);
+				if (retPath == null) {
+					retPath = new ASPath(this, hop);
+					ASPath.register(retPath);
+					ASPath.internMap.put(key, retPath);
+				}
+			}
+		}
+		return retPath;
+	}
+
+	/**
+	 * Fetches a path by its id.
+	 *
+	 * @param id
+	 *            - the id
+	 * @return - the path, null if no path has the id
+	 */
+	public static ASPath getById(int id) {
+		ASPath[] currentIds = ASPath.byId;
+		if (id < 0 || id >= currentIds.length) {
+			return null;
+		}
+		return currentIds[id];
+	}
+
+	/**
+	 * Puts a new path in the id array, growing it if needed. Only called
+	 * holding byIdLock.
+	 */
+	private static void register(ASPath path) {
+		if (path.id >= ASPath.byId.length) {
+			ASPath.byId = Arrays.copyOf(ASPath.byId, Math.max(path.id + 1, ASPath.byId.length * 2));
+		}
+		ASPath.byId[path.id] = path;
+	}
+
+	/**
+	 * Fetches the path that is this path with its first hop swapped for the
+	 * given one.
+	 *
+	 * @param hop
+	 *            - the new first hop
+	 * @return - the path, this path if it has no hops
+	 */
+	public ASPath replaceFirstHop(int hop) {
+		if (this.parent == null) {
+			return this;
+		}
+		return this.parent.prepend(hop);
+	}
+
+	/**
+	 * Swaps a path read from a stream for this JVM's path with the same hops,
+	 * the parent has already been swapped by the time this is called.
+	 */
+	private Object readResolve() {
+		if (this.parent == null) {
+			return ASPath.EMPTY;
+		}
+		return this.parent.prepend(this.firstHop);
+	}
+
+	/**
+	 * Gets the first hop, the AS the route was learned from.
+	 *
+	 * @return - the first hop, 0 if the path has no hops
+	 */
+	public int getFirstHop() {
+		return this.firstHop;
+	}
+
+	/**
+	 * Gets this path's id, only good within this JVM.
+	 *
+	 * @return - the id, 0 for the empty path
+	 */
+	public int getId() {
+		return this.id;
+	}
+
+	/**
+	 * Gets the path with the first hop removed.
+	 *
+	 * @return - the parent path, null if this path has no hops
+	 */
+	public ASPath getParent() {
+		return this.parent;
+	}
+
+	public int getLength() {
+		return this.length;
+	}
+
+	/**
+	 * Predicate that tests if the given AS is one of the hops in this path.
+	 *
+	 * @param asn
+	 *            - the AS to look for
+	 * @return - true if the AS is on the path, false otherwise
+	 */
+	public boolean contains(int asn) {
+		for (ASPath tPath = this; tPath.parent != null; tPath = tPath.parent) {
+			if (tPath.firstHop == asn) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Builds an array holding the hops of this path, next hop first. The array
+	 * is a fresh copy every time, so callers are free to change it.
+	 *
+	 * @return - the hops
+	 */
+	public int[] toArray() {
+		int[] retArray = new int[this.length];
+		ASPath tPath = this;
+		for (int counter = 0; counter < this.length; counter++) {
+			retArray[counter] = tPath.firstHop;
+			tPath = tPath.parent;
+		}
+		return retArray;
+	}
+
+	/**
+	 * Dumps the hops comma separated, next hop first.
+	 */
+	public String toString() {
+		StringBuilder retString = new StringBuilder();
+		for (ASPath tPath = this; tPath.parent != null; tPath = tPath.parent) {
+			retString.append(tPath.firstHop);
+			if (tPath.parent.parent != null) {
+				retString.append(",");
+			}
+		}
+		return retString.toString();
+	}
+
+	/**
+	 * Hash value is built from the hops, so it is the same from run to run
+	 */
+	public int hashCode() {
+		return this.hash;
+	}
+}
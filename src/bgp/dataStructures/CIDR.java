@@ -1,95 +1,179 @@
 package bgp.dataStructures;
 
+import java.io.Serializable;
 import java.security.InvalidParameterException;
 import java.util.*;
 
 /**
  * Class used to represent networks, used for addressing data and routes.
- * 
+ *
+ * CIDRs are flyweights, there is only ever one CIDR object for a network,
+ * fetched through parse() or valueOf(). The address and network bits are
+ * packed into one int, networks are at most 24 bits long so the low octet of
+ * the address is always 0 and holds the network bits instead. Every CIDR also
+ * gets a dense id when it is first made, so per network data can be kept in
+ * arrays indexed by id. Ids are only good within one JVM, a CIDR read from a
+ * snapshot gets the id its network has here, so anything kept by id must not
+ * be serialized.
+ *
  */
-public class CIDR {
+public class CIDR implements Serializable {
 
-	private int netBits;
-	private byte[] address;
+	private static final long serialVersionUID = 1L;
 
 	/**
-	 * Creates a CIDR from a given input string. Address bits are taken from the
-	 * IP style part of the string. Input in the address bits that extends
+	 * Address in the high three octets, network bits in the low one
+	 */
+	private int packed;
+	private transient int id;
+
+	/**
+	 * Every CIDR made so far, by packed value and by id. Routers running on
+	 * the workers can make CIDRs, so the registry is locked when adding, the
+	 * id array is only ever swapped for a bigger copy so it can be read
+	 * without locking.
+	 */
+	private static final HashMap<Integer, CIDR> registry = new HashMap<Integer, CIDR>();
+	private static volatile CIDR[] byId = new CIDR[1024];
+	private static int nextId = 0;
+
+	private CIDR(int packed) {
+		this.packed = packed;
+	}
+
+	/**
+	 * Fetches the CIDR for a given input string. Address bits are taken from
+	 * the IP style part of the string. Input in the address bits that extends
 	 * beyond the network bits will be dropped.
-	 * 
+	 *
 	 * @param cidrString
 	 *            - string if form ZZZ.ZZZ.ZZZ.ZZZ/YY
+	 * @return - the CIDR
 	 */
-	public CIDR(String cidrString) {
-		StringTokenizer addressNetToken, addressOctetsToken;
-		String addressString, netString;
-		int tempOctet, netBitsLeft, maskSize;
-		byte mask;
+	public static CIDR parse(String cidrString) {
+		int slashPos, netBits, address, octetStart, octetEnd, tempOctet;
 
 		//make sure we have a "/" to show netbit section
-		addressNetToken = new StringTokenizer(cidrString, "/");
-		if (addressNetToken.countTokens() != 2) {
+		slashPos = cidrString.indexOf("/");
+		if (slashPos <= 0 || slashPos == cidrString.length() - 1 || cidrString.indexOf("/", slashPos + 1) != -1) {
 			throw new InvalidParameterException("No \"/\" found.");
 		}
 
-		//seperate the ZZZ.ZZZ.ZZZ.ZZZ/YY into component parts
-		addressString = addressNetToken.nextToken();
-		netString = addressNetToken.nextToken();
-
 		//parse the size of the network part, if too large or small, yell a lot
-		this.netBits = Integer.parseInt(netString);
-		if (this.netBits < 1 || this.netBits > 24) {
+		netBits = Integer.parseInt(cidrString.substring(slashPos + 1));
+		if (netBits < 1 || netBits > 24) {
 			throw new InvalidParameterException("Net bits outside of range: " + netBits);
 		}
 
-		//count the number of octets, make sure we have 4
-		addressOctetsToken = new StringTokenizer(addressString, ".");
-		if (addressOctetsToken.countTokens() != 4) {
-			throw new InvalidParameterException("Incorrect number of octets");
-		}
-
-		//build the address array
-		this.address = new byte[4];
-		netBitsLeft = this.netBits;
+		//build the address, make sure we have 4 octets
+		address = 0;
+		octetStart = 0;
 		for (int counter = 0; counter < 4; counter++) {
-			tempOctet = Integer.parseInt(addressOctetsToken.nextToken());
+			octetEnd = cidrString.indexOf(".", octetStart);
+			if (counter == 3) {
+				if (octetEnd != -1 && octetEnd < slashPos) {
+					throw new InvalidParameterException("Incorrect number of octets");
+				}
+				octetEnd = slashPos;
+			} else if (octetEnd == -1 || octetEnd > slashPos) {
+				throw new InvalidParameterException("Incorrect number of octets");
+			}
+
+			tempOctet = Integer.parseInt(cidrString.substring(octetStart, octetEnd));
 			if (tempOctet < 0 || tempOctet > 255) {
 				throw new InvalidParameterException("Octet outside of range: " + tempOctet);
 			}
+			address = (address << 8) | tempOctet;
+			octetStart = octetEnd + 1;
+		}
 
-			//strip out address bits not inside the network size
-			maskSize = Math.min(netBitsLeft, 8);
-			netBitsLeft -= maskSize;
-			if (maskSize == 0) {
-				this.address[counter] = (byte) 0;
-			} else {
-				mask = (byte) 128;
-				mask = (byte) (mask >> (maskSize - 1));
-				this.address[counter] = (byte) (((byte) tempOctet) & mask);
+		return CIDR.valueOf(address, netBits);
+	}
+
+	/**
+	 * Fetches the CIDR for a packed address and network bits, address bits
+	 * past the network bits are dropped.
+	 *
+	 * @param address
+	 *            - the address, first octet in the high bits
+	 * @param netBits
+	 *            - the network bits, 1 to 24
+	 * @return - the CIDR
+	 */
+	public static CIDR valueOf(int address, int netBits) {
+		if (netBits < 1 || netBits > 24) {
+			throw new InvalidParameterException("Net bits outside of range: " + netBits);
+		}
+		return CIDR.valueOf((address & (-1 << (32 - netBits))) | netBits);
+	}
+
+	/**
+	 * Fetches the CIDR for a packed value, as given by getPacked().
+	 *
+	 * @param packed
+	 *            - the packed address and network bits
+	 * @return - the CIDR
+	 */
+	public static CIDR valueOf(int packed) {
+		synchronized (CIDR.registry) {
+			CIDR retCIDR = CIDR.registry.get(packed);
+			if (retCIDR == null) {
+				retCIDR = new CIDR(packed);
+				retCIDR.id = CIDR.nextId;
+				CIDR.nextId++;
+				if (retCIDR.id == CIDR.byId.length) {
+					CIDR.byId = Arrays.copyOf(CIDR.byId, CIDR.byId.length * 2);
+				}
+				CIDR.byId[retCIDR.id] = retCIDR;
+				CIDR.registry.put(packed, retCIDR);
 			}
+			return retCIDR;
 		}
 	}
 
 	/**
-	 * Dumps a string in the same form the constructor expects.
+	 * Fetches a CIDR by its id.
+	 *
+	 * @param id
+	 *            - the id
+	 * @return - the CIDR, null if no CIDR has the id
 	 */
-	public String toString() {
-		String retString = "";
-		int tempInt;
+	public static CIDR getById(int id) {
+		CIDR[] currentIds = CIDR.byId;
+		if (id < 0 || id >= currentIds.length) {
+			return null;
+		}
+		return currentIds[id];
+	}
 
-		//construct the address bits
-		for (int counter = 0; counter < 4; counter++) {
-			tempInt = this.address[counter];
-			//damn you signed ints...
-			if (tempInt < 0) {
-				tempInt += 256;
-			}
-			retString += tempInt + ".";
+	/**
+	 * Gets the number of CIDRs made so far, every id is below this.
+	 *
+	 * @return - the CIDR count
+	 */
+	public static int getCount() {
+		synchronized (CIDR.registry) {
+			return CIDR.nextId;
 		}
-		//trim the last "." and add the "/"
-		retString = retString.substring(0, retString.length() - 1) + "/";
-		retString += netBits;
-		return retString;
+	}
+
+	/**
+	 * Swaps a CIDR read from a stream for this JVM's CIDR of the same network.
+	 */
+	private Object readResolve() {
+		return CIDR.valueOf(this.packed);
+	}
+
+	/**
+	 * Dumps a string in the same form parse() expects.
+	 */
+	public String toString() {
+		StringBuilder retString = new StringBuilder(18);
+		retString.append(this.packed >>> 24).append('.');
+		retString.append((this.packed >>> 16) & 0xff).append('.');
+		retString.append((this.packed >>> 8) & 0xff).append(".0/");
+		retString.append(this.packed & 0xff);
+		return retString.toString();
 	}
 
 	/**
@@ -103,65 +187,74 @@ public class CIDR {
 
 	/**
 	 * Tests if two CIDRs are equal.
-	 * 
+	 *
 	 * @param rhs
 	 *            - the other CIDR
 	 * @return - true if the two CIDRs have the same number of network bits and
 	 *         the addresses match
 	 */
 	public boolean equals(CIDR rhs) {
-		boolean returnFlag = true;
-
-		for (int counter = 0; counter < this.address.length && returnFlag; counter++) {
-			returnFlag = (this.address[counter] == rhs.address[counter]);
-		}
-
-		return returnFlag && (this.netBits == rhs.netBits);
+		return this.packed == rhs.packed;
 	}
 
 	/**
 	 * Predicate that tests if the given CIDR is contained in this CIDR.
-	 * 
+	 *
 	 * @param subCIDR
 	 *            - the potential subnet
 	 * @return - true if the subCIDR is not a less specific network and all
 	 *         address bits match (only network bits are stored/checked)
 	 */
 	public boolean contains(CIDR subCIDR) {
-		int netBitsLeft, occtetCounter, tempBits;
-		byte ander;
+		int netBits = this.getNetBits();
 
 		//don't even check if the subCIDR has fewer network bits
-		if (subCIDR.netBits < this.netBits) {
+		if (subCIDR.getNetBits() < netBits) {
 			return false;
 		}
 
-		netBitsLeft = this.netBits;
-		occtetCounter = 0;
-		while (netBitsLeft > 0) {
-			ander = (byte) 128;
-
-			//look at either the next 8 bits or however many bits are left....
-			tempBits = Math.min(netBitsLeft, 8);
-			netBitsLeft -= tempBits;
+		int mask = -1 << (32 - netBits);
+		return (this.packed & mask) == (subCIDR.packed & mask);
+	}
 
-			//get our bitmask
-			ander = (byte) (ander >> (tempBits - 1));
+	/**
+	 * Gets the address and network bits packed into one int, the address in
+	 * the high three octets and the network bits in the low one.
+	 *
+	 * @return - the packed value
+	 */
+	public int getPacked() {
+		return this.packed;
+	}
 
-			if ((this.address[occtetCounter] & ander) != (subCIDR.address[occtetCounter] & ander)) {
-				return false;
-			}
+	/**
+	 * Gets the address as an int, first octet in the high bits. Bits past the
+	 * network bits are always 0.
+	 *
+	 * @return - the address as an int
+	 */
+	public int getPackedAddress() {
+		return this.packed & 0xffffff00;
+	}
 
-			occtetCounter++;
-		}
+	public int getNetBits() {
+		return this.packed & 0xff;
+	}
 
-		return true;
+	/**
+	 * Gets this CIDR's dense id, only good within this JVM.
+	 *
+	 * @return - the id
+	 */
+	public int getId() {
+		return this.id;
 	}
 
 	/**
-	 * Hash value is simply the hash of the string that represents this CIDR
+	 * Hash value mixes the packed value, so it is the same from run to run
 	 */
 	public int hashCode() {
-		return this.toString().hashCode();
+		int hash = this.packed * 0x9e3779b9;
+		return hash ^ (hash >>> 16);
 	}
 }
@@ -0,0 +1,106 @@
+package bgp.dataStructures;
+
+import java.io.*;
+import java.security.InvalidParameterException;
+import java.util.*;
+
+/**
+ * Checks that CIDRs survive a trip through their string form and through
+ * Java serialization (as done by snapshots) as the same flyweight, with the
+ * same packed value and id, and that parse() turns away bad strings. Run it
+ * by hand, it prints what broke and exits non zero on the first failure.
+ *
+ * Usage: CIDRTest
+ *
+ */
+public class CIDRTest {
+
+	private static final String[] BAD_STRINGS = { "10.0.0.0", "10.0.0.0/", "/8", "10.0.0.0/0", "10.0.0.0/25",
+			"10.0.0/8", "10.0.0.0.0/8", "10.0.0.256/8", "10.0.0.0/8/8" };
+
+	public static void main(String argv[]) {
+		Random rng = new Random(42);
+		List<CIDR> networks = new ArrayList<CIDR>();
+
+		for (int counter = 0; counter < 10000; counter++) {
+			int address = rng.nextInt();
+			int netBits = 1 + rng.nextInt(24);
+			CIDR network = CIDR.valueOf(address, netBits);
+			networks.add(network);
+
+			/*
+			 * address bits past the network bits are dropped
+			 */
+			if (network.getNetBits() != netBits
+					|| network.getPackedAddress() != (address & (-1 << (32 - netBits)))) {
+				CIDRTest.fail("bad packing of " + address + "/" + netBits + ": " + network);
+			}
+
+			CIDR parsed = CIDR.parse(network.toString());
+			if (parsed != network) {
+				CIDRTest.fail("string round trip made a new object: " + network);
+			}
+			String longString = (address >>> 24) + "." + ((address >>> 16) & 0xff) + "."
+					+ ((address >>> 8) & 0xff) + "." + (address & 0xff) + "/" + netBits;
+			if (CIDR.parse(longString) != network) {
+				CIDRTest.fail("parse did not drop host bits: " + longString + " vs " + network);
+			}
+			if (CIDR.valueOf(network.getPacked()) != network) {
+				CIDRTest.fail("packed round trip made a new object: " + network);
+			}
+			if (CIDR.getById(network.getId()) != network) {
+				CIDRTest.fail("id " + network.getId() + " does not fetch " + network);
+			}
+		}
+
+		for (String tString : CIDRTest.BAD_STRINGS) {
+			try {
+				CIDR.parse(tString);
+				CIDRTest.fail("parsed bad string: " + tString);
+			} catch (InvalidParameterException e) {
+				/*
+				 * expected
+				 */
+			}
+		}
+
+		List<CIDR> readNetworks = CIDRTest.serialRoundTrip(networks);
+		for (int counter = 0; counter < networks.size(); counter++) {
+			CIDR network = networks.get(counter);
+			CIDR readNetwork = readNetworks.get(counter);
+			if (readNetwork != network || readNetwork.getId() != network.getId()) {
+				CIDRTest.fail("serial round trip made a new object: " + network);
+			}
+		}
+
+		System.out.println("CIDRs ok: " + networks.size() + " networks, " + CIDR.getCount() + " ids");
+	}
+
+	/**
+	 * Writes a list out with Java serialization and reads it back.
+	 *
+	 * @param networks
+	 *            - the list to write
+	 * @return - the list as read back
+	 */
+	@SuppressWarnings("unchecked")
+	private static List<CIDR> serialRoundTrip(List<CIDR> networks) {
+		try {
+			ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+			ObjectOutputStream outStream = new ObjectOutputStream(byteStream);
+			outStream.writeObject(networks);
+			outStream.close();
+			ObjectInputStream inStream = new ObjectInputStream(new ByteArrayInputStream(byteStream.toByteArray()));
+			return (List<CIDR>) inStream.readObject();
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.exit(-2);
+			return null;
+		}
+	}
+
+	private static void fail(String message) {
+		System.err.println("FAILED: " + message);
+		System.exit(-2);
+	}
+}
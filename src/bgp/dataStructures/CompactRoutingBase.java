@@ -0,0 +1,622 @@
+package bgp.dataStructures;
+
+import java.io.*;
+import java.security.InvalidParameterException;
+import java.util.*;
+
+import sim.util.UndoLog;
+
+/**
+ * Routing base that keeps no Route objects at all, every route is packed into
+ * a single long and only decoded back into a Route when it is fetched (by the
+ * ranker, export or a table dump). The high 32 bits of a record are the id of
+ * the route's interned path (see ASPath.getId()), then 4 bits of origin and
+ * 28 bits of attribute id. Attribute ids index a small table of (local pref,
+ * src id) pairs kept by each RIB, there are only ever about as many of these
+ * as the router has peers.
+ *
+ * Routes to a network are kept in a pair of arrays of peers and records sorted
+ * by peer, so a route costs about 12 bytes. The networks are indexed by CIDR
+ * id (see CIDR.getId()). Without multiple routes every route sits under peer
+ * 0. Networks that have been touched count as seen (see RoutingBase) even
+ * once all their routes are withdrawn, and routes are listed in the same
+ * address order as a TrieRoutingBase lists them.
+ *
+ * Path and CIDR ids are only good within one JVM, so when written to a stream
+ * the RIB is written as its serial string and built again from it when read.
+ *
+ */
+public class CompactRoutingBase implements RoutingBase, Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * boolean flag controlling if this RIB allows for multiple routes to the
+	 * same CIDR, if true then every BGP peer can have a route to a CIDR
+	 */
+	private boolean multipleRoutes;
+
+	/**
+	 * boolean flag controlling if the RIB will consider routes with different
+	 * Intransitive attributes different
+	 */
+	private boolean sensitiveToIntransitives;
+
+	/**
+	 * Networks by the id of their CIDR, null for networks never touched
+	 */
+	private transient NetworkEntries[] networks;
+
+	/**
+	 * The attribute table, localPrefs[n] and srcIds[n] are the attributes with
+	 * id n, attrIndex finds the id of a pair (local pref in the high 32 bits,
+	 * src id in the low). Attributes are never taken out, so rolling back
+	 * leaves them alone.
+	 */
+	private transient int[] localPrefs;
+	private transient int[] srcIds;
+	private transient int attrCount;
+	private transient HashMap<Long, Integer> attrIndex;
+
+	/**
+	 * Every peer a route has been installed or withdrawn for, see
+	 * fetchRoutesForAS()
+	 */
+	private transient HashSet<Integer> seenPeers;
+
+	/**
+	 * If set every change to the RIB is journaled here so it can be rolled
+	 * back, null otherwise
+	 */
+	private transient UndoLog undoLog = null;
+
+	private static final int ORIGIN_SHIFT = 28;
+	private static final int MAX_ORIGIN = 0xf;
+	private static final int ATTR_MASK = 0x0fffffff;
+
+	/**
+	 * A network, along with the routes to it.
+	 */
+	private static class NetworkEntries {
+
+		private CIDR network;
+
+		/**
+		 * Set once an install or a peer withdraw has touched this network
+		 */
+		private boolean seen;
+
+		/**
+		 * The routes, peers[n] is the peer of records[n], sorted by peer, only
+		 * the first size are in use
+		 */
+		private int[] peers;
+		private long[] records;
+		private int size;
+
+		public NetworkEntries(CIDR network) {
+			this.network = network;
+			this.seen = false;
+			this.peers = null;
+			this.records = null;
+			this.size = 0;
+		}
+
+		public int indexOf(int peer) {
+			if (this.size == 0) {
+				return -1;
+			}
+			return Arrays.binarySearch(this.peers, 0, this.size, peer);
+		}
+
+		public void put(int peer, long record) {
+			int index = this.indexOf(peer);
+			if (index >= 0) {
+				this.records[index] = record;
+				return;
+			}
+
+			index = -index - 1;
+			if (this.peers == null) {
+				this.peers = new int[2];
+				this.records = new long[2];
+			} else if (this.size == this.peers.length) {
+				this.peers = Arrays.copyOf(this.peers, this.size * 2);
+				this.records = Arrays.copyOf(this.records, this.size * 2);
+			}
+			System.arraycopy(this.peers, index, this.peers, index + 1, this.size - index);
+			System.arraycopy(this.records, index, this.records, index + 1, this.size - index);
+			this.peers[index] = peer;
+			this.records[index] = record;
+			this.size++;
+		}
+
+		public void remove(int peer) {
+			int index = this.indexOf(peer);
+			if (index < 0) {
+				return;
+			}
+
+			System.arraycopy(this.peers, index + 1, this.peers, index, this.size - index - 1);
+			System.arraycopy(this.records, index + 1, this.records, index, this.size - index - 1);
+			this.size--;
+		}
+	}
+
+	/**
+	 * Constructor that builds an empty CompactRoutingBase.
+	 *
+	 * @param multipleRoutes
+	 *            - flags if we will accept a route to each CIDR from each BGP
+	 *            or just one route per CIDR
+	 * @param sensitiveToIntransitives
+	 *            - flags if we should report route change based on
+	 *            in-transitive attributes (adj-in RIB and loc RIB)
+	 */
+	public CompactRoutingBase(boolean multipleRoutes, boolean sensitiveToIntransitives) {
+		this.multipleRoutes = multipleRoutes;
+		this.sensitiveToIntransitives = sensitiveToIntransitives;
+		this.setupTables();
+	}
+
+	/**
+	 * Builds a CompactRoutingBase from the serial string of any routing base,
+	 * this is also how the other routing bases are turned into one.
+	 *
+	 * @param serialString
+	 *            - the routing base's serial string
+	 */
+	public CompactRoutingBase(String serialString) {
+		this.loadSerialString(serialString);
+	}
+
+	/**
+	 * Builds empty network, attribute and peer tables.
+	 */
+	private void setupTables() {
+		this.networks = new NetworkEntries[Math.max(CIDR.getCount(), 16)];
+		this.localPrefs = new int[4];
+		this.srcIds = new int[4];
+		this.attrCount = 0;
+		this.attrIndex = new HashMap<Long, Integer>();
+		this.seenPeers = new HashSet<Integer>();
+	}
+
+	/**
+	 * Fills this RIB from a serial string, in the same way the
+	 * TrieRoutingBase does.
+	 *
+	 * @param serialString
+	 *            - the routing base's serial string
+	 */
+	private void loadSerialString(String serialString) {
+		String[] bigTokens = serialString.split("%", -1);
+		this.multipleRoutes = (Integer.parseInt(bigTokens[0]) == 1);
+		this.sensitiveToIntransitives = (Integer.parseInt(bigTokens[1]) == 1);
+		this.setupTables();
+
+		/*
+		 * the routes, keyed by CIDR:peer or just CIDR
+		 */
+		StringTokenizer table = new StringTokenizer(bigTokens[2], "@");
+		while (table.hasMoreTokens()) {
+			StringTokenizer entry = new StringTokenizer(table.nextToken(), "#");
+			String key = entry.nextToken();
+			int peer = 0;
+			if (this.multipleRoutes) {
+				peer = Integer.parseInt(key.substring(key.indexOf(":") + 1));
+				key = key.substring(0, key.indexOf(":"));
+			}
+			this.findNetwork(CIDR.parse(key), true).put(peer, this.encode(new Route(entry.nextToken())));
+		}
+
+		/*
+		 * the networks and peers we've seen, the peers listed under each
+		 * network are those of the routes we already have
+		 */
+		if (bigTokens.length > 3) {
+			table = new StringTokenizer(bigTokens[3], "@");
+			while (table.hasMoreTokens()) {
+				StringTokenizer entry = new StringTokenizer(table.nextToken(), "#");
+				this.findNetwork(CIDR.parse(entry.nextToken()), true).seen = true;
+			}
+		}
+		if (bigTokens.length > 4) {
+			table = new StringTokenizer(bigTokens[4], "@");
+			while (table.hasMoreTokens()) {
+				StringTokenizer entry = new StringTokenizer(table.nextToken(), "#");
+				this.seenPeers.add(Integer.parseInt(entry.nextToken()));
+			}
+		}
+	}
+
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		out.defaultWriteObject();
+		out.writeObject(this.serialString());
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		this.loadSerialString((String) in.readObject());
+	}
+
+	public String serialString() {
+		StringBuilder retString = new StringBuilder();
+		List<NetworkEntries> nets = this.listNetworks();
+
+		if (this.multipleRoutes) {
+			retString.append("1%");
+		} else {
+			retString.append("0%");
+		}
+		if (this.sensitiveToIntransitives) {
+			retString.append("1%");
+		} else {
+			retString.append("0%");
+		}
+
+		for (NetworkEntries tNet : nets) {
+			for (int counter = 0; counter < tNet.size; counter++) {
+				retString.append(tNet.network.toString());
+				if (this.multipleRoutes) {
+					retString.append(":" + tNet.peers[counter]);
+				}
+				retString.append("#" + this.decode(tNet.network, tNet.records[counter]).serialString() + "@");
+			}
+		}
+		retString.append("%");
+
+		for (NetworkEntries tNet : nets) {
+			if (tNet.seen) {
+				retString.append(tNet.network.toString() + "#");
+				for (int counter = 0; counter < tNet.size; counter++) {
+					retString.append(tNet.peers[counter] + "$");
+				}
+				retString.append("@");
+			}
+		}
+		retString.append("%");
+
+		for (int tPeer : this.seenPeers) {
+			retString.append(tPeer + "#");
+			for (NetworkEntries tNet : nets) {
+				if (tNet.indexOf(tPeer) >= 0) {
+					retString.append(tNet.network.toString() + "$");
+				}
+			}
+			retString.append("@");
+		}
+
+		return retString.toString();
+	}
+
+	public void setUndoLog(UndoLog undoLog) {
+		this.undoLog = undoLog;
+	}
+
+	public List<Route> fetchWholeTable() {
+		List<Route> fullList = new LinkedList<Route>();
+
+		for (NetworkEntries tNet : this.listNetworks()) {
+			for (int counter = 0; counter < tNet.size; counter++) {
+				fullList.add(this.decode(tNet.network, tNet.records[counter]));
+			}
+		}
+
+		return fullList;
+	}
+
+	public boolean installRoute(Route inRoute) {
+		return this.installRoute(inRoute, inRoute.getSrcId());
+	}
+
+	public boolean installRoute(Route inRoute, int asn) {
+		NetworkEntries net = this.findNetwork(inRoute.getNlri(), true);
+		int peer = this.peerKey(asn);
+		int index = net.indexOf(peer);
+		long record = this.encode(inRoute);
+		boolean replaceFlag;
+
+		if (index < 0) {
+			replaceFlag = true;
+		} else if (this.sensitiveToIntransitives) {
+			replaceFlag = net.records[index] != record;
+		} else {
+			/*
+			 * path and origin are the transitive attributes
+			 */
+			replaceFlag = (net.records[index] >>> CompactRoutingBase.ORIGIN_SHIFT) != (record >>> CompactRoutingBase.ORIGIN_SHIFT);
+		}
+
+		this.journalEntry(net, peer);
+		net.put(peer, record);
+		this.markSeen(net);
+		this.markSeen(asn);
+		return replaceFlag;
+	}
+
+	public boolean withdrawRoute(CIDR network, int srcId) {
+		NetworkEntries net = this.findNetwork(network, true);
+
+		this.markSeen(net);
+		this.markSeen(srcId);
+		return this.withdrawRouteInternal(net, this.peerKey(srcId));
+	}
+
+	public boolean withdrawRoute(CIDR network) {
+		if (this.multipleRoutes) {
+			throw new NullPointerException("Withdrew a network without a peer in a multi route RIB.");
+		}
+
+		NetworkEntries net = this.findNetwork(network, false);
+		if (net == null) {
+			return false;
+		}
+		return this.withdrawRouteInternal(net, 0);
+	}
+
+	/**
+	 * Internal function to withdraw the route a peer has to a network.
+	 *
+	 * @param net
+	 *            - the network's entries
+	 * @param peer
+	 *            - the peer key from peerKey()
+	 * @return - true if the route existed prior to withdrawl, false otherwise
+	 */
+	private boolean withdrawRouteInternal(NetworkEntries net, int peer) {
+		if (net.indexOf(peer) < 0) {
+			return false;
+		}
+
+		this.journalEntry(net, peer);
+		net.remove(peer);
+		return true;
+	}
+
+	public List<Route> fetchRoutesForNLRI(CIDR nlri) {
+		NetworkEntries net = this.findNetwork(nlri, false);
+
+		if (this.multipleRoutes && (net == null || !net.seen)) {
+			return null;
+		}
+
+		List<Route> returnList = new LinkedList<Route>();
+		if (net != null) {
+			for (int counter = 0; counter < net.size; counter++) {
+				returnList.add(this.decode(nlri, net.records[counter]));
+			}
+		}
+		return returnList;
+	}
+
+	public List<Route> fetchRoutesForAS(int asn) {
+		//if we don't support multiple routes this makes no sense really, throw an exception
+		if (!this.multipleRoutes) {
+			throw new NullPointerException("Attempted to fetch all routes for an AS in a non-multi route table");
+		}
+
+		if (!this.seenPeers.contains(asn)) {
+			return null;
+		}
+
+		List<Route> returnList = new LinkedList<Route>();
+		for (NetworkEntries tNet : this.listNetworks()) {
+			int index = tNet.indexOf(asn);
+			if (index >= 0) {
+				returnList.add(this.decode(tNet.network, tNet.records[index]));
+			}
+		}
+		return returnList;
+	}
+
+	public Route fetchRoute(CIDR network, int asn) {
+		NetworkEntries net = this.findNetwork(network, false);
+
+		if (net == null) {
+			return null;
+		}
+		int index = net.indexOf(this.peerKey(asn));
+		if (index < 0) {
+			return null;
+		}
+		return this.decode(network, net.records[index]);
+	}
+
+	public Route fetchRoute(CIDR network) {
+		if (this.multipleRoutes) {
+			throw new NullPointerException("Fetched a route without a peer in a multi route RIB.");
+		}
+
+		return this.fetchRoute(network, 0);
+	}
+
+	public String dumpTable() {
+		StringBuilder returnString = new StringBuilder();
+
+		for (Route tRoute : this.fetchWholeTable()) {
+			returnString.append(tRoute + "\n");
+		}
+
+		return returnString.toString();
+	}
+
+	/**
+	 * Packs a route into a record, adding its local pref and src id to the
+	 * attribute table if they aren't there yet.
+	 *
+	 * @param inRoute
+	 *            - the route
+	 * @return - the record
+	 */
+	private long encode(Route inRoute) {
+		if (inRoute.getOrigin() < 0 || inRoute.getOrigin() > CompactRoutingBase.MAX_ORIGIN) {
+			throw new InvalidParameterException("Origin outside of range: " + inRoute.getOrigin());
+		}
+
+		Long attrKey = ((long) inRoute.getLocalPref() << 32) | (inRoute.getSrcId() & 0xffffffffL);
+		Integer attrId = this.attrIndex.get(attrKey);
+		if (attrId == null) {
+			if (this.attrCount > CompactRoutingBase.ATTR_MASK) {
+				throw new IllegalStateException("Attribute table full");
+			}
+			if (this.attrCount == this.localPrefs.length) {
+				this.localPrefs = Arrays.copyOf(this.localPrefs, this.attrCount * 2);
+				this.srcIds = Arrays.copyOf(this.srcIds, this.attrCount * 2);
+			}
+			attrId = this.attrCount;
+			this.localPrefs[attrId] = inRoute.getLocalPref();
+			this.srcIds[attrId] = inRoute.getSrcId();
+			this.attrCount++;
+			this.attrIndex.put(attrKey, attrId);
+		}
+
+		return ((long) inRoute.getPath().getId() << 32) | ((long) inRoute.getOrigin() << CompactRoutingBase.ORIGIN_SHIFT)
+				| attrId;
+	}
+
+	/**
+	 * Builds a route back out of a record.
+	 *
+	 * @param nlri
+	 *            - the network the route is for
+	 * @param record
+	 *            - the record
+	 * @return - a new route
+	 */
+	private Route decode(CIDR nlri, long record) {
+		int attrId = (int) record & CompactRoutingBase.ATTR_MASK;
+		Route retRoute = new Route(nlri, (int) (record >>> CompactRoutingBase.ORIGIN_SHIFT)
+				& CompactRoutingBase.MAX_ORIGIN, ASPath.getById((int) (record >>> 32)));
+		retRoute.setLocalPref(this.localPrefs[attrId]);
+		retRoute.setSrcId(this.srcIds[attrId]);
+		return retRoute;
+	}
+
+	/**
+	 * Gets the key routes from a given peer are stored under.
+	 *
+	 * @param srcId
+	 *            - the bgp peer ID of the route, if multiple routes are not
+	 *            supported this param will be ignored
+	 * @return - the peer, or 0 if multiple routes are not supported
+	 */
+	private int peerKey(int srcId) {
+		if (this.multipleRoutes) {
+			return srcId;
+		}
+		return 0;
+	}
+
+	/**
+	 * Finds a network's entries.
+	 *
+	 * @param network
+	 *            - the network
+	 * @param create
+	 *            - true if the entries should be made if they aren't there
+	 * @return - the network's entries, or null if they aren't there and create
+	 *         is false
+	 */
+	private NetworkEntries findNetwork(CIDR network, boolean create) {
+		int id = network.getId();
+		if (id < this.networks.length && this.networks[id] != null) {
+			return this.networks[id];
+		}
+		if (!create) {
+			return null;
+		}
+
+		if (id >= this.networks.length) {
+			this.networks = Arrays.copyOf(this.networks, Math.max(id + 1, CIDR.getCount()));
+		}
+		this.networks[id] = new NetworkEntries(network);
+		return this.networks[id];
+	}
+
+	/**
+	 * Lists every network that is seen or holds routes, in address order
+	 * (shorter networks first when addresses tie), the order a
+	 * TrieRoutingBase walks its networks in.
+	 *
+	 * @return - the networks
+	 */
+	private List<NetworkEntries> listNetworks() {
+		List<NetworkEntries> nets = new ArrayList<NetworkEntries>();
+
+		for (NetworkEntries tNet : this.networks) {
+			if (tNet != null && (tNet.seen || tNet.size > 0)) {
+				nets.add(tNet);
+			}
+		}
+
+		/*
+		 * addresses are masked and the network bits sit in the low octet, so
+		 * unsigned packed order is address order
+		 */
+		Collections.sort(nets, new Comparator<NetworkEntries>() {
+			public int compare(NetworkEntries lhs, NetworkEntries rhs) {
+				int lhsKey = lhs.network.getPacked() ^ Integer.MIN_VALUE;
+				int rhsKey = rhs.network.getPacked() ^ Integer.MIN_VALUE;
+				if (lhsKey < rhsKey) {
+					return -1;
+				} else if (lhsKey > rhsKey) {
+					return 1;
+				}
+				return 0;
+			}
+		});
+
+		return nets;
+	}
+
+	/**
+	 * Journals the record a peer has for a network, if we're journaling.
+	 */
+	private void journalEntry(final NetworkEntries net, final int peer) {
+		if (this.undoLog != null) {
+			int index = net.indexOf(peer);
+			final boolean hadRecord = (index >= 0);
+			final long oldRecord = hadRecord ? net.records[index] : 0;
+			this.undoLog.record(new UndoLog.Entry() {
+				public void undo() {
+					if (hadRecord) {
+						net.put(peer, oldRecord);
+					} else {
+						net.remove(peer);
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Marks a network as seen, journaling it if we're journaling.
+	 */
+	private void markSeen(final NetworkEntries net) {
+		if (net.seen) {
+			return;
+		}
+		if (this.undoLog != null) {
+			this.undoLog.record(new UndoLog.Entry() {
+				public void undo() {
+					net.seen = false;
+				}
+			});
+		}
+		net.seen = true;
+	}
+
+	/**
+	 * Marks a peer as seen, journaling it if we're journaling.
+	 */
+	private void markSeen(int peer) {
+		if (this.seenPeers.contains(peer)) {
+			return;
+		}
+		if (this.undoLog != null) {
+			this.undoLog.recordSetChange(this.seenPeers, peer);
+		}
+		this.seenPeers.add(peer);
+	}
+}
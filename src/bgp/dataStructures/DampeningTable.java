@@ -1,8 +1,11 @@
 package bgp.dataStructures;
 
+import java.io.Serializable;
 import java.util.*;
 
-public class DampeningTable {
+public class DampeningTable implements Serializable {
+
+	private static final long serialVersionUID = 1L;
 
 	private int cut = -1;
 	private int reuse = -1;
@@ -0,0 +1,541 @@
+package bgp.dataStructures;
+
+import java.io.Serializable;
+import java.util.*;
+
+import sim.util.UndoLog;
+
+/**
+ * Routing base that keeps its routes in a hash map keyed by longs built
+ * from the route's packed NLRI and BGP peer, with hash set indexes by NLRI
+ * and by peer. This is the default routing base.
+ * 
+ */
+public class HashRoutingBase implements RoutingBase, Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * boolean flag controlling if this RIB allows for multiple routes to the
+	 * same CIDR, if true then every BGP peer can have a route to a CIDR
+	 */
+	private boolean multipleRoutes;
+
+	/**
+	 * boolean flag controlling if the RIB will consider routes with different
+	 * Intransitive attributes different, this will control when changes are
+	 * Propagated to other RIBs or sent to other routers in Updates
+	 */
+	private boolean sensitiveToIntransitives;
+
+	/**
+	 * Stores routes with a key that varies depending on if multipleRoutes are
+	 * supported If multiple routes are supported the key is: the BGP peer ID
+	 * in the high int and the route's packed NLRI (see CIDR.getPacked()) in
+	 * the low one If multiple routes are not supported the key is: the
+	 * route's packed NLRI
+	 */
+	private HashMap<Long, Route> routeTable;
+
+	private HashMap<CIDR, HashSet<Integer>> nlriIndex;
+	private HashMap<Integer, HashSet<CIDR>> asIndex;
+
+	/**
+	 * If set every change to the table and indexes is journaled here so it can
+	 * be rolled back, null otherwise
+	 */
+	private transient UndoLog undoLog = null;
+	
+	/**
+	 * Constructor that builds an empty RoutingBase.
+	 * 
+	 * @param multipleRoutes
+	 *            - flags if we will accept a route to each CIDR from each BGP
+	 *            or just one route per CIDR
+	 * @param sensitiveToIntransitives
+	 *            - flags if we should report route change based on
+	 *            in-transitive attributes (adj-in RIB and loc RIB)
+	 */
+	public HashRoutingBase(boolean multipleRoutes, boolean sensitiveToIntransitives) {
+		this.multipleRoutes = multipleRoutes;
+		this.sensitiveToIntransitives = sensitiveToIntransitives;
+		this.routeTable = new HashMap<Long, Route>();
+		this.nlriIndex = new HashMap<CIDR, HashSet<Integer>>();
+		this.asIndex = new HashMap<Integer, HashSet<CIDR>>();
+	}
+	
+	public HashRoutingBase(String serialString){
+		StringTokenizer bigTokens = new StringTokenizer(serialString, "%");
+		String poll, subPoll, subsubPoll;
+		CIDR netKey;
+		int asKey;
+
+		this.routeTable = new HashMap<Long, Route>();
+		this.nlriIndex = new HashMap<CIDR, HashSet<Integer>>();
+		this.asIndex = new HashMap<Integer, HashSet<CIDR>>();
+		
+		poll = bigTokens.nextToken();
+		this.multipleRoutes = (Integer.parseInt(poll) == 1);
+		poll = bigTokens.nextToken();
+		this.sensitiveToIntransitives = (Integer.parseInt(poll) == 1);
+		
+		poll = bigTokens.nextToken();
+		StringTokenizer table = new StringTokenizer(poll, "@");
+		while(table.hasMoreTokens()){
+			subPoll = table.nextToken();
+			if(subPoll.length() > 0){
+				StringTokenizer entry = new StringTokenizer(subPoll, "#");
+				this.routeTable.put(this.parseRouteKey(entry.nextToken()), new Route(entry.nextToken()));
+			}
+		}
+		
+		poll = bigTokens.nextToken();
+		table = new StringTokenizer(poll, "@");
+		while(table.hasMoreTokens()){
+			subPoll = table.nextToken();
+			if(subPoll.length() > 0){
+				StringTokenizer entry = new StringTokenizer(subPoll, "#");
+				netKey = CIDR.parse(entry.nextToken());
+				this.nlriIndex.put(netKey, new HashSet<Integer>());
+				if(entry.hasMoreTokens()){
+					subsubPoll = entry.nextToken();
+					entry = new StringTokenizer(subsubPoll, "$");
+					while(entry.hasMoreTokens()){
+						String gogo = entry.nextToken();
+						if(gogo.length() > 0){
+							this.nlriIndex.get(netKey).add(Integer.parseInt(gogo));
+						}
+					}
+				}
+			}
+		}
+		
+		poll = bigTokens.nextToken();
+		table = new StringTokenizer(poll, "@");
+		while(table.hasMoreTokens()){
+			subPoll = table.nextToken();
+			if(subPoll.length() > 0){
+				StringTokenizer entry = new StringTokenizer(subPoll, "#");
+				asKey = Integer.parseInt(entry.nextToken());
+				this.asIndex.put(asKey, new HashSet<CIDR>());
+				if(entry.hasMoreTokens()){
+					subsubPoll = entry.nextToken();
+					entry = new StringTokenizer(subsubPoll, "$");
+					while(entry.hasMoreTokens()){
+						String gogo = entry.nextToken();
+						if(gogo.length() > 0){
+							this.asIndex.get(asKey).add(CIDR.parse(gogo));
+						}
+					}
+				}
+			}
+		}
+	}
+	
+	public String serialString(){
+		StringBuilder retString = new StringBuilder();
+		if(this.multipleRoutes){
+			retString.append("1%");
+		}
+		else{
+			retString.append("0%");
+		}
+		
+		if(this.sensitiveToIntransitives){
+			retString.append("1%");
+		}
+		else{
+			retString.append("0%");
+		}
+		
+		for(Long key: this.routeTable.keySet()){
+			retString.append(this.routeKeyString(key) + "#" + this.routeTable.get(key).serialString() + "@"); 
+		}
+		retString.append("%");
+		
+		for(CIDR key: this.nlriIndex.keySet()){
+			retString.append(key + "#");
+			for(int val: this.nlriIndex.get(key)){
+				retString.append(val + "$");
+			}
+			retString.append("@");
+		}
+		
+		retString.append("%");
+		
+		for(int key: this.asIndex.keySet()){
+			retString.append(key + "#");
+			for(CIDR val: this.asIndex.get(key)){
+				retString.append(val.toString() + "$");
+			}
+			retString.append("@");
+		}
+		
+		return retString.toString();
+	}
+
+	/**
+	 * Starts journaling every change made to this RIB to the given log, or
+	 * stops journaling if null is given.
+	 * 
+	 * @param undoLog
+	 *            - the log to record changes to
+	 */
+	public void setUndoLog(UndoLog undoLog) {
+		this.undoLog = undoLog;
+	}
+
+	/**
+	 * Creates a list containing a copy of every route stored in this RIB. Order
+	 * is not specified.
+	 * 
+	 * @return - a list with a copy of all routes in this RoutingBase
+	 */
+	public List<Route> fetchWholeTable() {
+		List<Route> fullList = new LinkedList<Route>();
+
+		for (Long tKey : this.routeTable.keySet()) {
+			fullList.add(this.routeTable.get(tKey).copy());
+		}
+
+		return fullList;
+	}
+
+	/**
+	 * Places the given route into the routing base, replacing any previous
+	 * route. This will report updates differently depending on the
+	 * sensitiveToIntransitive flag. See this flag for more details. This will
+	 * replace any previous route stored for the given network.
+	 * 
+	 * @param inRoute
+	 *            - the new route to be installed
+	 * @return - true if no route previously existed or if a route is changed at
+	 *         a sensitivity lvl set by RIB vars, false otherwise
+	 */
+	public boolean installRoute(Route inRoute) {
+		Long routeKey;
+		boolean replaceFlag;
+
+		routeKey = this.generateRouteKey(inRoute.getNlri(), inRoute.getSrcId());
+		replaceFlag = this.routeTable.containsKey(routeKey)
+				&& !(this.routeTable.get(routeKey).equalsTransitiveAttr(inRoute)) && !this.sensitiveToIntransitives
+				|| this.routeTable.containsKey(routeKey) && !(this.routeTable.get(routeKey).equals(inRoute))
+				&& this.sensitiveToIntransitives || !this.routeTable.containsKey(routeKey);
+		this.journalMap(this.routeTable, routeKey);
+		this.routeTable.put(routeKey, inRoute);
+		if (!this.nlriIndex.containsKey(inRoute.getNlri())) {
+			this.journalMap(this.nlriIndex, inRoute.getNlri());
+			this.nlriIndex.put(inRoute.getNlri(), new HashSet<Integer>());
+		}
+		if (!this.asIndex.containsKey(inRoute.getSrcId())) {
+			this.journalMap(this.asIndex, inRoute.getSrcId());
+			this.asIndex.put(inRoute.getSrcId(), new HashSet<CIDR>());
+		}
+		this.journalSet(this.nlriIndex.get(inRoute.getNlri()), inRoute.getSrcId());
+		this.nlriIndex.get(inRoute.getNlri()).add(inRoute.getSrcId());
+		this.journalSet(this.asIndex.get(inRoute.getSrcId()), inRoute.getNlri());
+		this.asIndex.get(inRoute.getSrcId()).add(inRoute.getNlri());
+		return replaceFlag;
+	}
+
+	public boolean installRoute(Route inRoute, int asn) {
+		Long routeKey = this.generateRouteKey(inRoute.getNlri(), asn);
+		boolean replaceFlag;
+		
+		replaceFlag = this.routeTable.containsKey(routeKey)
+				&& !(this.routeTable.get(routeKey).equalsTransitiveAttr(inRoute)) && !this.sensitiveToIntransitives
+				|| this.routeTable.containsKey(routeKey) && !(this.routeTable.get(routeKey).equals(inRoute))
+				&& this.sensitiveToIntransitives || !this.routeTable.containsKey(routeKey);
+		this.journalMap(this.routeTable, routeKey);
+		this.routeTable.put(routeKey, inRoute);
+		if (!this.nlriIndex.containsKey(inRoute.getNlri())) {
+			this.journalMap(this.nlriIndex, inRoute.getNlri());
+			this.nlriIndex.put(inRoute.getNlri(), new HashSet<Integer>());
+		}
+		if (!this.asIndex.containsKey(inRoute.getSrcId())) {
+			this.journalMap(this.asIndex, asn);
+			this.asIndex.put(asn, new HashSet<CIDR>());
+		}
+		this.journalSet(this.nlriIndex.get(inRoute.getNlri()), inRoute.getSrcId());
+		this.nlriIndex.get(inRoute.getNlri()).add(inRoute.getSrcId());
+		this.journalSet(this.asIndex.get(asn), inRoute.getNlri());
+		this.asIndex.get(asn).add(inRoute.getNlri());
+		return replaceFlag;
+	}
+
+	/**
+	 * Withdraws the route to a given network. This works if the routing base
+	 * supports multiple routes, if multiple routes are not supported this call
+	 * is equivilent to a call to withdrawRoute(CIDR).
+	 * 
+	 * @param network
+	 *            - the network to withdraw
+	 * @param srcId
+	 *            - the BGP peer that reported this route to us
+	 * @return - true if the network existed in the routing base prior to
+	 *         withdrawl, false otherwise
+	 */
+	public boolean withdrawRoute(CIDR network, int srcId) {
+		Long routeKey;
+
+		routeKey = this.generateRouteKey(network, srcId);
+		if (!this.nlriIndex.containsKey(network)) {
+			this.journalMap(this.nlriIndex, network);
+			this.nlriIndex.put(network, new HashSet<Integer>());
+		}
+		if (!this.asIndex.containsKey(srcId)) {
+			this.journalMap(this.asIndex, srcId);
+			this.asIndex.put(srcId, new HashSet<CIDR>());
+		}
+		this.journalSet(this.nlriIndex.get(network), srcId);
+		this.nlriIndex.get(network).remove(srcId);
+		this.journalSet(this.asIndex.get(srcId), network);
+		this.asIndex.get(srcId).remove(network);
+		return this.withdrawRouteInternal(routeKey);
+	}
+
+	/**
+	 * Withdraws the route to a given network. This only works if the routing
+	 * base does not support multiple routes, otherwise the withdrawRoute(CIDR,
+	 * int) function must be called.
+	 * 
+	 * @param network
+	 *            - the network to withdraw
+	 * @return - true if the network existed in the routing base prior to
+	 *         withdrawl, false otherwise
+	 */
+	public boolean withdrawRoute(CIDR network) {
+		Long routeKey;
+
+		routeKey = this.generateRouteKey(network);
+		return this.withdrawRouteInternal(routeKey);
+	}
+
+	/**
+	 * Internal function to withdraw a route that matches the given indexing
+	 * key.
+	 * 
+	 * @param routeKey
+	 *            - key generated from the call to generateRouteKey with the
+	 *            correct args
+	 * @return - true if the network existed in the routing base prior to
+	 *         withdrawl, false otherwise
+	 */
+	private boolean withdrawRouteInternal(Long routeKey) {
+		boolean inTable;
+
+		inTable = this.routeTable.containsKey(routeKey);
+		if (inTable) {
+			this.journalMap(this.routeTable, routeKey);
+			this.routeTable.remove(routeKey);
+		}
+		return inTable;
+	}
+
+	/**
+	 * Journals the current mapping of a key, if we're journaling.
+	 */
+	private <K, V> void journalMap(HashMap<K, V> map, K key) {
+		if (this.undoLog != null) {
+			this.undoLog.recordMapChange(map, key);
+		}
+	}
+
+	/**
+	 * Journals if an element is in an index set, if we're journaling.
+	 */
+	private <E> void journalSet(HashSet<E> set, E element) {
+		if (this.undoLog != null) {
+			this.undoLog.recordSetChange(set, element);
+		}
+	}
+
+	/**
+	 * Fetches a list of all routes that EXACTLY match this nlri. This function
+	 * does not return routes that are subsets of the given route, nor does it
+	 * return any routes whose nlri contains the given nlri.
+	 * 
+	 * @param nlri
+	 *            - the network we want routes for
+	 * @return - a list of routes that reach the given nlri, if no routes match
+	 *         an empty list is returned
+	 */
+	public List<Route> fetchRoutesForNLRI(CIDR nlri) {
+		List<Route> returnList;
+		Long key;
+
+		// create an empty list, if nothing else return it
+		returnList = new LinkedList<Route>();
+
+		// step through looking for all matching indexes that are the same NLRI
+		if (this.multipleRoutes) {
+			HashSet<Integer> indexInt = this.nlriIndex.get(nlri);
+			
+			if(indexInt == null){
+				return null;
+			}
+			
+			for (Integer tAS : indexInt) {
+				key = this.generateRouteKey(nlri, tAS);
+				returnList.add(this.routeTable.get(key));
+			}
+		} else {
+			// if we don't support multiple routes then there is only one,
+			// assuming there is one
+			key = this.generateRouteKey(nlri);
+			if (this.routeTable.containsKey(key)) {
+				returnList.add(this.routeTable.get(key));
+			}
+		}
+
+		return returnList;
+	}
+
+	/**
+	 * Fetch all routes in a multi-supported routing table that are from/for a
+	 * given ASN.
+	 * 
+	 * @param asn
+	 *            - the ASN of the AS whose routes we're interested in
+	 * @return - a list of all routes the are linked to the given ASN
+	 */
+	public List<Route> fetchRoutesForAS(int asn) {
+		List<Route> returnList;
+
+		//if we don't support multiple routes this makes no sense really, throw an exception
+		if (!this.multipleRoutes) {
+			throw new NullPointerException("Attempted to fetch all routes for an AS in a non-multi route table");
+		}
+
+		returnList = new LinkedList<Route>();
+		HashSet<CIDR> indexNet = this.asIndex.get(asn);
+		
+		if(indexNet == null){
+			return null;
+		}
+		
+		Long key;
+		for (CIDR tNet : indexNet) {
+			key = this.generateRouteKey(tNet, asn);
+			returnList.add(this.routeTable.get(key));
+		}
+
+		return returnList;
+	}
+
+	/**
+	 * Fetches the route a given network, that we index by ASN. This is only
+	 * usable if the RIB that this is being called on allows multiple routes.
+	 * 
+	 * @param network
+	 *            - the network we want the route for
+	 * @param asn
+	 *            - the AS that it is indexed by in multiple route support
+	 * @return - the route indexed by the given CIDR/AS pair if we have one,
+	 *         NULL otherwise
+	 */
+	public Route fetchRoute(CIDR network, int asn) {
+		Long routeKey;
+
+		routeKey = this.generateRouteKey(network, asn);
+		return this.routeTable.get(routeKey);
+	}
+
+	/**
+	 * Fetches the route to a given network. This is only usable if the RIB does
+	 * NOT allow multiple route support.
+	 * 
+	 * @param network
+	 *            - the network we want the route for
+	 * @return - the route indexed by the given CIDR if we have one, NULL
+	 *         otherwise
+	 */
+	public Route fetchRoute(CIDR network) {
+		Long routeKey;
+
+		routeKey = this.generateRouteKey(network);
+		return this.routeTable.get(routeKey);
+	}
+
+	/**
+	 * Generates correct indexing key for a given network and route source.
+	 * Code that is indexing into the routing base should NOT generate this
+	 * key itself, instead it should call this fucntion or
+	 * generateRouteKey(CIDR) in order to build this key.
+	 * 
+	 * @param network
+	 *            - the network we want to index to
+	 * @param srcId
+	 *            - the bgp peer ID of the route, if multiple routes are not
+	 *            supported this param will be ignored
+	 * @return - srcId and the packed CIDR if multiple routes are supported,
+	 *         the packed CIDR if they are not
+	 */
+	private Long generateRouteKey(CIDR network, int srcId) {
+		if (this.multipleRoutes) {
+			return ((long) srcId << 32) | (network.getPacked() & 0xffffffffL);
+		} else {
+			return network.getPacked() & 0xffffffffL;
+		}
+	}
+
+	/**
+	 * Generates correct indexing key for a given network Code that is
+	 * indexing into the routing base should NOT generate this key itself,
+	 * instead it should call this function or generateRouteKey(CIDR, int).
+	 * This function only functions if multiple routes are not supported by this
+	 * Routing Base, an exception will be thrown if this is called and multiple
+	 * routes are supported.
+	 * 
+	 * @param network
+	 *            - the network we want to index to
+	 * @return - the packed CIDR
+	 */
+	private Long generateRouteKey(CIDR network) {
+		if (this.multipleRoutes) {
+			throw new NullPointerException("Used non-multiple route key generator in a multi route RIB.");
+		}
+
+		return network.getPacked() & 0xffffffffL;
+	}
+
+	/**
+	 * Turns a route key into the CIDR:srcId (or just CIDR) string the serial
+	 * string holds it as.
+	 */
+	private String routeKeyString(long routeKey) {
+		String cidrString = CIDR.valueOf((int) routeKey).toString();
+		if (this.multipleRoutes) {
+			return cidrString + ":" + (int) (routeKey >>> 32);
+		}
+		return cidrString;
+	}
+
+	/**
+	 * Turns the string of a route key in a serial string back into a route
+	 * key.
+	 */
+	private Long parseRouteKey(String keyString) {
+		if (this.multipleRoutes) {
+			return this.generateRouteKey(CIDR.parse(keyString.substring(0, keyString.indexOf(":"))), Integer
+					.parseInt(keyString.substring(keyString.indexOf(":") + 1)));
+		}
+		return this.generateRouteKey(CIDR.parse(keyString));
+	}
+
+	/**
+	 * Dumps a status update for this routing base. This status update simply
+	 * dumps logging strings for all routes in the routing base.
+	 * 
+	 * @return - a LONG multiline string showing all routes in the RIB
+	 */
+	public String dumpTable() {
+		String returnString = "";
+
+		for (Long tKey : this.routeTable.keySet()) {
+			returnString += this.routeTable.get(tKey) + "\n";
+		}
+
+		return returnString;
+	}
+}
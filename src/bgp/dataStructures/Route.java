@@ -1,5 +1,6 @@
 package bgp.dataStructures;
 
+import java.io.Serializable;
 import java.util.*;
 import bgp.messages.Constants;
 
@@ -13,7 +14,9 @@ import bgp.messages.Constants;
  * attributes (possibly arbitrarily) during import and export specifications.
  * 
  */
-public class Route {
+public class Route implements Serializable {
+
+	private static final long serialVersionUID = 1L;
 
 	/**
 	 * The destination network this route is for.
@@ -27,10 +30,11 @@ public class Route {
 	private int origin;
 
 	/**
-	 * Comma delimited string of AS numbers the route passes through. This is
-	 * NOT a list of routers/IP addresses/etc
+	 * The AS numbers the route passes through. This is NOT a list of
+	 * routers/IP addresses/etc. Paths are interned (see ASPath) and shared
+	 * between routes, never changed in place.
 	 */
-	private int[] asPath;
+	private ASPath asPath;
 
 	/**
 	 * LOCAL_PREF attribute of the route. This attribute is non-transitive, and
@@ -75,50 +79,47 @@ public class Route {
 		this.localPref = 0;
 		this.srcId = -1;
 
-		/*
-		 * Build the path safely
-		 */
-		this.asPath = new int[cpyPath.length];
-		for (int counter = 0; counter < cpyPath.length; counter++) {
-			this.asPath[counter] = cpyPath[counter];
-		}
-
+		this.asPath = ASPath.valueOf(cpyPath);
 	}
 
-	public Route(CIDR nlri, int origin) {
+	/**
+	 * Construct a Route object with the given interned path.
+	 * 
+	 * @param nlri -
+	 *            the network this route reaches
+	 * @param origin -
+	 *            where this route was learned from
+	 * @param asPath -
+	 *            the path of ASes in this route
+	 */
+	public Route(CIDR nlri, int origin, ASPath asPath) {
 		this.nlri = nlri;
 		this.origin = origin;
 		this.localPref = 0;
 		this.srcId = -1;
-		this.asPath = new int[1];
-		this.asPath[0] = 0;
+		this.asPath = asPath;
 	}
 
-	public Route(CIDR nlri, int origin, int path[], int reservePathSpace) {
+	public Route(CIDR nlri, int origin) {
 		this.nlri = nlri;
 		this.origin = origin;
 		this.localPref = 0;
 		this.srcId = -1;
-		this.asPath = new int[path.length + reservePathSpace];
-		for(int counter = 0; counter < path.length; counter++){
-			this.asPath[counter + reservePathSpace] = path[counter];
-		}
+		this.asPath = ASPath.EMPTY.prepend(0);
 	}
 
 	public Route(String serialString) {
 		StringTokenizer serialTokens = new StringTokenizer(serialString, "$");
 		
-		this.nlri = new CIDR(serialTokens.nextToken());
+		this.nlri = CIDR.parse(serialTokens.nextToken());
 		this.origin = Integer.parseInt(serialTokens.nextToken());
 
 		StringTokenizer pathTokens = new StringTokenizer(serialTokens.nextToken(), ",");
-		this.asPath = new int[pathTokens.countTokens()];
-		for(int counter = 0; counter < this.asPath.length; counter++){
-			this.asPath[counter] = Integer.parseInt(pathTokens.nextToken());
-		}
-		if (this.asPath.equals("null")) {
-			this.asPath = null;
+		int[] hops = new int[pathTokens.countTokens()];
+		for(int counter = 0; counter < hops.length; counter++){
+			hops[counter] = Integer.parseInt(pathTokens.nextToken());
 		}
+		this.asPath = ASPath.valueOf(hops);
 
 		this.localPref = Integer.parseInt(serialTokens.nextToken());
 		this.srcId = Integer.parseInt(serialTokens.nextToken());
@@ -132,14 +133,7 @@ public class Route {
 		String returnString = this.nlri.toString() + "\n";
 
 		returnString += "\tOrigin is: " + Constants.originToString(this.origin) + "\n";
-		returnString += "\tPath is: ";
-		for(int counter = 0; counter < this.asPath.length; counter++){
-			returnString += "" + this.asPath[counter];
-			if(counter < this.asPath.length -1){
-				returnString += ",";
-			}
-		}
-		returnString += "\n";
+		returnString += "\tPath is: " + this.asPath.toString() + "\n";
 		returnString += "\tLocal pref is: " + this.localPref + "\n";
 		returnString += "\tSource ID: " + this.srcId;
 
@@ -157,19 +151,10 @@ public class Route {
 	 *         hop, false otherwise
 	 */
 	public boolean equalsTransitiveAttr(Route rhs) {
-		if ((!this.nlri.equals(rhs.nlri)) || this.origin != rhs.origin || this.asPath.length != rhs.asPath.length) {
-			return false;
-		}
-
-		boolean pathEqual = true;
-		for (int counter = 0; counter < this.asPath.length; counter++) {
-			if (this.asPath[counter] != rhs.asPath[counter]) {
-				pathEqual = false;
-				break;
-			}
-		}
-
-		return pathEqual;
+		/*
+		 * paths are interned, so equal paths are the same object
+		 */
+		return this.nlri.equals(rhs.nlri) && this.origin == rhs.origin && this.asPath == rhs.asPath;
 	}
 
 	/**
@@ -193,7 +178,8 @@ public class Route {
 
 	/**
 	 * Creates a deep copy of this Route object. This copies all attributes,
-	 * including those not set at construction time.
+	 * including those not set at construction time, the (immutable) path is
+	 * shared.
 	 * 
 	 * @return a new route object with the same attributes as the current
 	 */
@@ -224,14 +210,7 @@ public class Route {
 		retString.append("$");
 		retString.append(this.origin);
 		retString.append("$");
-		
-		for(int counter = 0; counter < this.asPath.length; counter++){
-			retString.append("" + this.asPath[counter]);
-			if(counter < this.asPath.length - 1){
-				retString.append(",");
-			}
-		}
-		
+		retString.append(this.asPath.toString());
 		retString.append("$");
 		retString.append(this.localPref);
 		retString.append("$");
@@ -251,16 +230,36 @@ public class Route {
 		return srcId;
 	}
 
+	/**
+	 * Swaps the next hop of the path for the given AS.
+	 * 
+	 * @param addedHop -
+	 *            the new next hop
+	 */
 	public void extendPath(int addedHop) {
-		this.asPath[0] = addedHop;
+		this.asPath = this.asPath.replaceFirstHop(addedHop);
 	}
 
+	/**
+	 * Builds an array of the AS path, next hop first, changing it does not
+	 * change the route.
+	 * 
+	 * @return - a copy of the path
+	 */
 	public int[] getAsPath() {
-		return asPath;
+		return this.asPath.toArray();
+	}
+
+	public ASPath getPath() {
+		return this.asPath;
+	}
+
+	public int getPathLength() {
+		return this.asPath.getLength();
 	}
 
 	public int getNextHop() {
-		return this.asPath[0];
+		return this.asPath.getFirstHop();
 	}
 
 	public CIDR getNlri() {
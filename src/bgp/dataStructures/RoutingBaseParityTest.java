@@ -0,0 +1,222 @@
+package bgp.dataStructures;
+
+import java.io.*;
+import java.util.*;
+
+import sim.util.UndoLog;
+
+/**
+ * Runs the same random installs, withdraws, lookups and undo log rollbacks
+ * against a HashRoutingBase, a TrieRoutingBase and a CompactRoutingBase, set
+ * up the three ways BGPDaemon uses them (adj-in, loc and adj-out RIB), and
+ * checks every answer matches the hash routing base's. At the end of each
+ * run the tables are rebuilt from their serial strings and put through Java
+ * serialization (as done by snapshots) and checked again. Run it by hand, it
+ * prints what broke and exits non zero on the first failure.
+ *
+ * Usage: RoutingBaseParityTest
+ *
+ */
+public class RoutingBaseParityTest {
+
+	private static final String[] RIB_NAMES = { "adj-in", "loc", "adj-out" };
+	private static final boolean[] MULTIPLE_ROUTES = { true, false, true };
+	private static final boolean[] SENSITIVE = { true, true, false };
+
+	private static final int[] PEERS = { -5, 3, 7, 100, 2000000000, -2000000000 };
+	private static final int OP_COUNT = 50000;
+
+	private List<CIDR> networks;
+	private Random rng;
+
+	private RoutingBaseParityTest() {
+		this.rng = new Random(42);
+		this.networks = new ArrayList<CIDR>();
+		for (int counter = 0; counter < 300; counter++) {
+			this.networks.add(CIDR.valueOf(this.rng.nextInt(), 1 + this.rng.nextInt(24)));
+		}
+	}
+
+	public static void main(String argv[]) {
+		RoutingBaseParityTest theTest = new RoutingBaseParityTest();
+		for (int counter = 0; counter < RoutingBaseParityTest.RIB_NAMES.length; counter++) {
+			theTest.runRib(counter);
+		}
+	}
+
+	/**
+	 * Runs random operations against the three routing bases set up as one of
+	 * the RIBs.
+	 *
+	 * @param rib
+	 *            - index of the RIB in RIB_NAMES
+	 */
+	private void runRib(int rib) {
+		String ribName = RoutingBaseParityTest.RIB_NAMES[rib];
+		boolean multi = RoutingBaseParityTest.MULTIPLE_ROUTES[rib];
+		boolean sensitive = RoutingBaseParityTest.SENSITIVE[rib];
+		boolean adjOut = !sensitive;
+
+		RoutingBase[] bases = new RoutingBase[3];
+		bases[0] = new HashRoutingBase(multi, sensitive);
+		bases[1] = new TrieRoutingBase(multi, sensitive);
+		bases[2] = new CompactRoutingBase(multi, sensitive);
+		UndoLog[] undoLogs = new UndoLog[bases.length];
+		long[] marks = new long[bases.length];
+		for (int counter = 0; counter < bases.length; counter++) {
+			undoLogs[counter] = new UndoLog();
+			bases[counter].setUndoLog(undoLogs[counter]);
+		}
+
+		String[] answers = new String[bases.length];
+		for (int op = 0; op < RoutingBaseParityTest.OP_COUNT; op++) {
+			CIDR network = this.networks.get(this.rng.nextInt(this.networks.size()));
+			int peer = RoutingBaseParityTest.PEERS[this.rng.nextInt(RoutingBaseParityTest.PEERS.length)];
+			int opType = this.rng.nextInt(10);
+
+			/*
+			 * draw everything random up front so each base sees the same op
+			 */
+			Route newRoute = null;
+			boolean takeMark = false;
+			boolean rollBack = false;
+			if (opType < 3) {
+				newRoute = new Route(network, this.rng.nextInt(3), new int[] { this.rng.nextInt(4), 5 });
+				newRoute.setSrcId(peer);
+				newRoute.setLocalPref(this.rng.nextInt(2));
+			} else if (opType == 8) {
+				takeMark = this.rng.nextInt(50) == 0;
+			} else if (opType == 9) {
+				rollBack = this.rng.nextInt(20) == 0 && marks[0] > 0;
+			}
+
+			for (int counter = 0; counter < bases.length; counter++) {
+				RoutingBase base = bases[counter];
+				if (opType < 3) {
+					if (adjOut) {
+						answers[counter] = "" + base.installRoute(newRoute, peer);
+					} else {
+						answers[counter] = "" + base.installRoute(newRoute);
+					}
+				} else if (opType < 5) {
+					if (multi) {
+						answers[counter] = "" + base.withdrawRoute(network, peer);
+					} else {
+						answers[counter] = "" + base.withdrawRoute(network);
+					}
+				} else if (opType < 6) {
+					/*
+					 * the adj-out RIB is keyed by the peer sent to, not the
+					 * route's source, so only look up by network in the others
+					 */
+					if (adjOut) {
+						answers[counter] = "";
+					} else {
+						answers[counter] = RoutingBaseParityTest.dumpRoutes(base.fetchRoutesForNLRI(network));
+					}
+				} else if (opType < 7) {
+					answers[counter] = multi ? RoutingBaseParityTest.dumpRoutes(base.fetchRoutesForAS(peer)) : "";
+				} else if (opType < 8) {
+					if (multi) {
+						answers[counter] = RoutingBaseParityTest.dumpRoute(base.fetchRoute(network, peer));
+					} else {
+						answers[counter] = RoutingBaseParityTest.dumpRoute(base.fetchRoute(network));
+					}
+				} else if (opType < 9) {
+					answers[counter] = RoutingBaseParityTest.dumpRoutes(base.fetchWholeTable());
+					if (takeMark) {
+						marks[counter] = undoLogs[counter].getMark();
+					}
+				} else {
+					if (rollBack) {
+						undoLogs[counter].rollBack(marks[counter]);
+						marks[counter] = undoLogs[counter].getMark();
+					}
+					answers[counter] = "";
+				}
+			}
+
+			for (int counter = 1; counter < bases.length; counter++) {
+				if (!answers[counter].equals(answers[0])) {
+					RoutingBaseParityTest.fail(ribName + " op " + op + " type " + opType + " "
+							+ bases[counter].getClass().getSimpleName() + " answered\n" + answers[counter]
+							+ "\nhash answered\n" + answers[0]);
+				}
+			}
+		}
+
+		/*
+		 * the trie and compact bases dump in network order, the hash one in
+		 * whatever order its maps hold, so it is only compared once rebuilt
+		 */
+		String trieString = bases[1].serialString();
+		if (!bases[2].serialString().equals(trieString)) {
+			RoutingBaseParityTest.fail(ribName + " compact serial string differs from trie");
+		}
+		if (!new TrieRoutingBase(bases[0].serialString()).serialString().equals(trieString)) {
+			RoutingBaseParityTest.fail(ribName + " hash serial string rebuilds to a different trie");
+		}
+		if (!new CompactRoutingBase(trieString).serialString().equals(trieString)) {
+			RoutingBaseParityTest.fail(ribName + " compact rebuilt from serial string differs");
+		}
+		for (int counter = 0; counter < bases.length; counter++) {
+			RoutingBase readBase = RoutingBaseParityTest.serialRoundTrip(bases[counter]);
+			if (!new TrieRoutingBase(readBase.serialString()).serialString().equals(trieString)) {
+				RoutingBaseParityTest.fail(ribName + " " + bases[counter].getClass().getSimpleName()
+						+ " changed in a serial round trip");
+			}
+		}
+
+		System.out.println(ribName + " RIBs ok: " + RoutingBaseParityTest.OP_COUNT + " ops, "
+				+ bases[0].fetchWholeTable().size() + " routes left");
+	}
+
+	/**
+	 * Dumps a list of routes in an order that doesn't depend on the store.
+	 */
+	private static String dumpRoutes(List<Route> routeList) {
+		if (routeList == null) {
+			return "null";
+		}
+		List<String> routeStrings = new ArrayList<String>();
+		for (Route tRoute : routeList) {
+			routeStrings.add(RoutingBaseParityTest.dumpRoute(tRoute));
+		}
+		Collections.sort(routeStrings);
+		return routeStrings.toString();
+	}
+
+	private static String dumpRoute(Route inRoute) {
+		if (inRoute == null) {
+			return "null";
+		}
+		return inRoute.serialString();
+	}
+
+	/**
+	 * Writes a routing base out with Java serialization and reads it back.
+	 *
+	 * @param base
+	 *            - the routing base to write
+	 * @return - the routing base as read back
+	 */
+	private static RoutingBase serialRoundTrip(RoutingBase base) {
+		try {
+			ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+			ObjectOutputStream outStream = new ObjectOutputStream(byteStream);
+			outStream.writeObject(base);
+			outStream.close();
+			ObjectInputStream inStream = new ObjectInputStream(new ByteArrayInputStream(byteStream.toByteArray()));
+			return (RoutingBase) inStream.readObject();
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.exit(-2);
+			return null;
+		}
+	}
+
+	private static void fail(String message) {
+		System.err.println("FAILED: " + message);
+		System.exit(-2);
+	}
+}
@@ -0,0 +1,612 @@
+package bgp.dataStructures;
+
+import java.io.Serializable;
+import java.util.*;
+
+import sim.util.UndoLog;
+
+/**
+ * Routing base that keeps its routes in a compressed binary trie of networks,
+ * keyed by the packed address and network bits of each route's NLRI. Every
+ * node holds the routes to its network in small arrays of (peer, route)
+ * entries sorted by peer, so installs, withdraws and fetches never build or
+ * hash a key string. Without multiple routes every route sits under peer 0.
+ * Nodes are also indexed by CIDR id (see CIDR.getId()), so most lookups don't
+ * walk the trie at all.
+ *
+ * The trie only ever grows, a node whose routes have all been withdrawn is
+ * kept around, and still counts as seen (see RoutingBase). Nodes that only
+ * exist to split the trie are never seen. Rolling back only ever undoes
+ * entries and seen flags, never the shape of the trie.
+ *
+ */
+public class TrieRoutingBase implements RoutingBase, Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * boolean flag controlling if this RIB allows for multiple routes to the
+	 * same CIDR, if true then every BGP peer can have a route to a CIDR
+	 */
+	private boolean multipleRoutes;
+
+	/**
+	 * boolean flag controlling if the RIB will consider routes with different
+	 * Intransitive attributes different
+	 */
+	private boolean sensitiveToIntransitives;
+
+	/**
+	 * Node for the zero length network, it never holds routes
+	 */
+	private TrieNode root;
+
+	/**
+	 * Nodes by the id of their network's CIDR, null where we haven't looked a
+	 * network up yet. Ids are only good within one JVM, so this isn't kept in
+	 * snapshots and fills in again as networks are looked up.
+	 */
+	private transient TrieNode[] nodeIndex = null;
+
+	/**
+	 * Every peer a route has been installed or withdrawn for, see
+	 * fetchRoutesForAS()
+	 */
+	private HashSet<Integer> seenPeers;
+
+	/**
+	 * If set every change to the trie is journaled here so it can be rolled
+	 * back, null otherwise
+	 */
+	private transient UndoLog undoLog = null;
+
+	/**
+	 * A network in the trie, along with the routes to it.
+	 */
+	private static class TrieNode implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		private int address;
+		private int netBits;
+
+		/**
+		 * Set once an install or a peer withdraw has touched this network
+		 */
+		private boolean seen;
+
+		private TrieNode[] children;
+
+		/**
+		 * The routes, peers[n] is the peer of routes[n], sorted by peer, only
+		 * the first size are in use
+		 */
+		private int[] peers;
+		private Route[] routes;
+		private int size;
+
+		public TrieNode(int address, int netBits) {
+			this.address = address;
+			this.netBits = netBits;
+			this.seen = false;
+			this.children = new TrieNode[2];
+			this.peers = null;
+			this.routes = null;
+			this.size = 0;
+		}
+
+		private int indexOf(int peer) {
+			if (this.size == 0) {
+				return -1;
+			}
+			return Arrays.binarySearch(this.peers, 0, this.size, peer);
+		}
+
+		public Route get(int peer) {
+			int index = this.indexOf(peer);
+			if (index < 0) {
+				return null;
+			}
+			return this.routes[index];
+		}
+
+		public void put(int peer, Route route) {
+			int index = this.indexOf(peer);
+			if (index >= 0) {
+				this.routes[index] = route;
+				return;
+			}
+
+			index = -index - 1;
+			if (this.peers == null) {
+				this.peers = new int[2];
+				this.routes = new Route[2];
+			} else if (this.size == this.peers.length) {
+				this.peers = Arrays.copyOf(this.peers, this.size * 2);
+				this.routes = Arrays.copyOf(this.routes, this.size * 2);
+			}
+			System.arraycopy(this.peers, index, this.peers, index + 1, this.size - index);
+			System.arraycopy(this.routes, index, this.routes, index + 1, this.size - index);
+			this.peers[index] = peer;
+			this.routes[index] = route;
+			this.size++;
+		}
+
+		public void remove(int peer) {
+			int index = this.indexOf(peer);
+			if (index < 0) {
+				return;
+			}
+
+			System.arraycopy(this.peers, index + 1, this.peers, index, this.size - index - 1);
+			System.arraycopy(this.routes, index + 1, this.routes, index, this.size - index - 1);
+			this.size--;
+			this.routes[this.size] = null;
+		}
+	}
+
+	/**
+	 * Constructor that builds an empty TrieRoutingBase.
+	 *
+	 * @param multipleRoutes
+	 *            - flags if we will accept a route to each CIDR from each BGP
+	 *            or just one route per CIDR
+	 * @param sensitiveToIntransitives
+	 *            - flags if we should report route change based on
+	 *            in-transitive attributes (adj-in RIB and loc RIB)
+	 */
+	public TrieRoutingBase(boolean multipleRoutes, boolean sensitiveToIntransitives) {
+		this.multipleRoutes = multipleRoutes;
+		this.sensitiveToIntransitives = sensitiveToIntransitives;
+		this.root = new TrieNode(0, 0);
+		this.seenPeers = new HashSet<Integer>();
+	}
+
+	/**
+	 * Builds a TrieRoutingBase from the serial string of any routing base, this
+	 * is also how a HashRoutingBase is turned into one. Unlike the hash
+	 * routing base this copes with empty sections.
+	 *
+	 * @param serialString
+	 *            - the routing base's serial string
+	 */
+	public TrieRoutingBase(String serialString) {
+		String[] bigTokens = serialString.split("%", -1);
+		this.multipleRoutes = (Integer.parseInt(bigTokens[0]) == 1);
+		this.sensitiveToIntransitives = (Integer.parseInt(bigTokens[1]) == 1);
+		this.root = new TrieNode(0, 0);
+		this.seenPeers = new HashSet<Integer>();
+
+		/*
+		 * the routes, keyed by CIDR:peer or just CIDR
+		 */
+		StringTokenizer table = new StringTokenizer(bigTokens[2], "@");
+		while (table.hasMoreTokens()) {
+			StringTokenizer entry = new StringTokenizer(table.nextToken(), "#");
+			String key = entry.nextToken();
+			int peer = 0;
+			if (this.multipleRoutes) {
+				peer = Integer.parseInt(key.substring(key.indexOf(":") + 1));
+				key = key.substring(0, key.indexOf(":"));
+			}
+			this.findNode(CIDR.parse(key), true).put(peer, new Route(entry.nextToken()));
+		}
+
+		/*
+		 * the networks and peers we've seen, the peers listed under each
+		 * network are those of the routes we already have
+		 */
+		if (bigTokens.length > 3) {
+			table = new StringTokenizer(bigTokens[3], "@");
+			while (table.hasMoreTokens()) {
+				StringTokenizer entry = new StringTokenizer(table.nextToken(), "#");
+				this.findNode(CIDR.parse(entry.nextToken()), true).seen = true;
+			}
+		}
+		if (bigTokens.length > 4) {
+			table = new StringTokenizer(bigTokens[4], "@");
+			while (table.hasMoreTokens()) {
+				StringTokenizer entry = new StringTokenizer(table.nextToken(), "#");
+				this.seenPeers.add(Integer.parseInt(entry.nextToken()));
+			}
+		}
+	}
+
+	public String serialString() {
+		StringBuilder retString = new StringBuilder();
+		List<TrieNode> nodes = this.listNodes();
+
+		if (this.multipleRoutes) {
+			retString.append("1%");
+		} else {
+			retString.append("0%");
+		}
+		if (this.sensitiveToIntransitives) {
+			retString.append("1%");
+		} else {
+			retString.append("0%");
+		}
+
+		for (TrieNode tNode : nodes) {
+			for (int counter = 0; counter < tNode.size; counter++) {
+				retString.append(TrieRoutingBase.cidrString(tNode));
+				if (this.multipleRoutes) {
+					retString.append(":" + tNode.peers[counter]);
+				}
+				retString.append("#" + tNode.routes[counter].serialString() + "@");
+			}
+		}
+		retString.append("%");
+
+		for (TrieNode tNode : nodes) {
+			if (tNode.seen) {
+				retString.append(TrieRoutingBase.cidrString(tNode) + "#");
+				for (int counter = 0; counter < tNode.size; counter++) {
+					retString.append(tNode.peers[counter] + "$");
+				}
+				retString.append("@");
+			}
+		}
+		retString.append("%");
+
+		for (int tPeer : this.seenPeers) {
+			retString.append(tPeer + "#");
+			for (TrieNode tNode : nodes) {
+				if (tNode.get(tPeer) != null) {
+					retString.append(TrieRoutingBase.cidrString(tNode) + "$");
+				}
+			}
+			retString.append("@");
+		}
+
+		return retString.toString();
+	}
+
+	public void setUndoLog(UndoLog undoLog) {
+		this.undoLog = undoLog;
+	}
+
+	public List<Route> fetchWholeTable() {
+		List<Route> fullList = new LinkedList<Route>();
+
+		for (TrieNode tNode : this.listNodes()) {
+			for (int counter = 0; counter < tNode.size; counter++) {
+				fullList.add(tNode.routes[counter].copy());
+			}
+		}
+
+		return fullList;
+	}
+
+	public boolean installRoute(Route inRoute) {
+		return this.installRoute(inRoute, inRoute.getSrcId());
+	}
+
+	public boolean installRoute(Route inRoute, int asn) {
+		TrieNode node = this.findNode(inRoute.getNlri(), true);
+		int peer = this.peerKey(asn);
+		Route oldRoute = node.get(peer);
+		boolean replaceFlag;
+
+		if (oldRoute == null) {
+			replaceFlag = true;
+		} else if (this.sensitiveToIntransitives) {
+			replaceFlag = !oldRoute.equals(inRoute);
+		} else {
+			replaceFlag = !oldRoute.equalsTransitiveAttr(inRoute);
+		}
+
+		this.journalEntry(node, peer);
+		node.put(peer, inRoute);
+		this.markSeen(node);
+		this.markSeen(asn);
+		return replaceFlag;
+	}
+
+	public boolean withdrawRoute(CIDR network, int srcId) {
+		TrieNode node = this.findNode(network, true);
+
+		this.markSeen(node);
+		this.markSeen(srcId);
+		return this.withdrawRouteInternal(node, this.peerKey(srcId));
+	}
+
+	public boolean withdrawRoute(CIDR network) {
+		if (this.multipleRoutes) {
+			throw new NullPointerException("Withdrew a network without a peer in a multi route RIB.");
+		}
+
+		TrieNode node = this.findNode(network, false);
+		if (node == null) {
+			return false;
+		}
+		return this.withdrawRouteInternal(node, 0);
+	}
+
+	/**
+	 * Internal function to withdraw the route a peer has in a node.
+	 *
+	 * @param node
+	 *            - the network's node
+	 * @param peer
+	 *            - the peer key from peerKey()
+	 * @return - true if the route existed prior to withdrawl, false otherwise
+	 */
+	private boolean withdrawRouteInternal(TrieNode node, int peer) {
+		if (node.get(peer) == null) {
+			return false;
+		}
+
+		this.journalEntry(node, peer);
+		node.remove(peer);
+		return true;
+	}
+
+	public List<Route> fetchRoutesForNLRI(CIDR nlri) {
+		TrieNode node = this.findNode(nlri, false);
+
+		if (this.multipleRoutes && (node == null || !node.seen)) {
+			return null;
+		}
+
+		List<Route> returnList = new LinkedList<Route>();
+		if (node != null) {
+			for (int counter = 0; counter < node.size; counter++) {
+				returnList.add(node.routes[counter]);
+			}
+		}
+		return returnList;
+	}
+
+	public List<Route> fetchRoutesForAS(int asn) {
+		//if we don't support multiple routes this makes no sense really, throw an exception
+		if (!this.multipleRoutes) {
+			throw new NullPointerException("Attempted to fetch all routes for an AS in a non-multi route table");
+		}
+
+		if (!this.seenPeers.contains(asn)) {
+			return null;
+		}
+
+		List<Route> returnList = new LinkedList<Route>();
+		for (TrieNode tNode : this.listNodes()) {
+			Route tRoute = tNode.get(asn);
+			if (tRoute != null) {
+				returnList.add(tRoute);
+			}
+		}
+		return returnList;
+	}
+
+	public Route fetchRoute(CIDR network, int asn) {
+		TrieNode node = this.findNode(network, false);
+
+		if (node == null) {
+			return null;
+		}
+		return node.get(this.peerKey(asn));
+	}
+
+	public Route fetchRoute(CIDR network) {
+		if (this.multipleRoutes) {
+			throw new NullPointerException("Fetched a route without a peer in a multi route RIB.");
+		}
+
+		return this.fetchRoute(network, 0);
+	}
+
+	public String dumpTable() {
+		StringBuilder returnString = new StringBuilder();
+
+		for (TrieNode tNode : this.listNodes()) {
+			for (int counter = 0; counter < tNode.size; counter++) {
+				returnString.append(tNode.routes[counter] + "\n");
+			}
+		}
+
+		return returnString.toString();
+	}
+
+	/**
+	 * Gets the key routes from a given peer are stored under in a node.
+	 *
+	 * @param srcId
+	 *            - the bgp peer ID of the route, if multiple routes are not
+	 *            supported this param will be ignored
+	 * @return - the peer, or 0 if multiple routes are not supported
+	 */
+	private int peerKey(int srcId) {
+		if (this.multipleRoutes) {
+			return srcId;
+		}
+		return 0;
+	}
+
+	/**
+	 * Finds a network's node, from the node index if we can, otherwise by
+	 * walking the trie. A node that is put in is not marked as seen.
+	 *
+	 * @param network
+	 *            - the network
+	 * @param create
+	 *            - true if the node should be put in if it isn't there
+	 * @return - the network's node, or null if it isn't there and create is
+	 *         false
+	 */
+	private TrieNode findNode(CIDR network, boolean create) {
+		int id = network.getId();
+		if (this.nodeIndex != null && id < this.nodeIndex.length && this.nodeIndex[id] != null) {
+			return this.nodeIndex[id];
+		}
+
+		/*
+		 * nodes are never taken out, so once indexed a node stays right
+		 */
+		TrieNode node = this.walkTrie(network, create);
+		if (node != null) {
+			if (this.nodeIndex == null || id >= this.nodeIndex.length) {
+				int newSize = Math.max(id + 1, CIDR.getCount());
+				if (this.nodeIndex == null) {
+					this.nodeIndex = new TrieNode[newSize];
+				} else {
+					this.nodeIndex = Arrays.copyOf(this.nodeIndex, newSize);
+				}
+			}
+			this.nodeIndex[id] = node;
+		}
+		return node;
+	}
+
+	/**
+	 * Walks down the trie to a network's node, splitting an edge or adding a
+	 * leaf to put it in if asked to.
+	 *
+	 * @param network
+	 *            - the network
+	 * @param create
+	 *            - true if the node should be put in if it isn't there
+	 * @return - the network's node, or null if it isn't there and create is
+	 *         false
+	 */
+	private TrieNode walkTrie(CIDR network, boolean create) {
+		int address = network.getPackedAddress();
+		int netBits = network.getNetBits();
+		TrieNode parent = this.root;
+
+		/*
+		 * parent's network always holds ours, so we're done once it is as long
+		 * as ours
+		 */
+		while (parent.netBits < netBits) {
+			int side = TrieRoutingBase.bitAt(address, parent.netBits);
+			TrieNode child = parent.children[side];
+			if (child == null) {
+				if (!create) {
+					return null;
+				}
+				child = new TrieNode(address, netBits);
+				parent.children[side] = child;
+				return child;
+			}
+
+			int common = Math.min(Integer.numberOfLeadingZeros(address ^ child.address), Math.min(child.netBits,
+					netBits));
+			if (common == child.netBits) {
+				parent = child;
+				continue;
+			}
+			if (!create) {
+				return null;
+			}
+
+			/*
+			 * the child's network and ours part ways (or ours ends) part way
+			 * down the edge, split it there
+			 */
+			TrieNode split = new TrieNode(TrieRoutingBase.maskAddress(address, common), common);
+			split.children[TrieRoutingBase.bitAt(child.address, common)] = child;
+			parent.children[side] = split;
+			if (common == netBits) {
+				return split;
+			}
+			TrieNode leaf = new TrieNode(address, netBits);
+			split.children[TrieRoutingBase.bitAt(address, common)] = leaf;
+			return leaf;
+		}
+
+		return parent;
+	}
+
+	/**
+	 * Lists every node that is seen or holds routes, in address order.
+	 *
+	 * @return - the nodes
+	 */
+	private List<TrieNode> listNodes() {
+		List<TrieNode> nodes = new ArrayList<TrieNode>();
+		LinkedList<TrieNode> stack = new LinkedList<TrieNode>();
+
+		stack.push(this.root);
+		while (!stack.isEmpty()) {
+			TrieNode tNode = stack.pop();
+			if (tNode.seen || tNode.size > 0) {
+				nodes.add(tNode);
+			}
+			for (int side = 1; side >= 0; side--) {
+				if (tNode.children[side] != null) {
+					stack.push(tNode.children[side]);
+				}
+			}
+		}
+
+		return nodes;
+	}
+
+	/**
+	 * Journals the route a peer has in a node, if we're journaling.
+	 */
+	private void journalEntry(final TrieNode node, final int peer) {
+		if (this.undoLog != null) {
+			final Route oldRoute = node.get(peer);
+			this.undoLog.record(new UndoLog.Entry() {
+				public void undo() {
+					if (oldRoute == null) {
+						node.remove(peer);
+					} else {
+						node.put(peer, oldRoute);
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Marks a node as seen, journaling it if we're journaling.
+	 */
+	private void markSeen(final TrieNode node) {
+		if (node.seen) {
+			return;
+		}
+		if (this.undoLog != null) {
+			this.undoLog.record(new UndoLog.Entry() {
+				public void undo() {
+					node.seen = false;
+				}
+			});
+		}
+		node.seen = true;
+	}
+
+	/**
+	 * Marks a peer as seen, journaling it if we're journaling.
+	 */
+	private void markSeen(int peer) {
+		if (this.seenPeers.contains(peer)) {
+			return;
+		}
+		if (this.undoLog != null) {
+			this.undoLog.recordSetChange(this.seenPeers, peer);
+		}
+		this.seenPeers.add(peer);
+	}
+
+	private static int bitAt(int address, int position) {
+		return (address >>> (31 - position)) & 1;
+	}
+
+	private static int maskAddress(int address, int netBits) {
+		if (netBits == 0) {
+			return 0;
+		}
+		return address & (-1 << (32 - netBits));
+	}
+
+	/**
+	 * Builds the CIDR string of a node's network, in the form CIDR's
+	 * constructor expects.
+	 */
+	private static String cidrString(TrieNode node) {
+		return (node.address >>> 24) + "." + ((node.address >>> 16) & 0xff) + "." + ((node.address >>> 8) & 0xff)
+				+ "." + (node.address & 0xff) + "/" + node.netBits;
+	}
+}
@@ -1,5 +1,6 @@
 package bgp.engine;
 
+import java.io.Serializable;
 import java.util.*;
 
 import bgp.dataStructures.*;
@@ -7,8 +8,13 @@ import bgp.messages.*;
 import bgp.messages.Error;
 import sim.agents.Router;
 import sim.logging.*;
+import sim.network.dataObjects.TCPPacket;
+import sim.util.TimerWheel;
+import sim.util.UndoLog;
 
-public class BGPDaemon {
+public class BGPDaemon implements Serializable {
+
+	private static final long serialVersionUID = 1L;
 
 	/**
 	 * The adj-in RIB, which holds all routes that are advertised to us POST
@@ -132,9 +138,10 @@ public class BGPDaemon {
 
 	/**
 	 * Small set used to ensure that we don't mark a route as dirty twice, this
-	 * is used for MRAI code
+	 * is used for MRAI code, keys are the peer's ASN in the high int and the
+	 * packed network (see CIDR.getPacked()) in the low one
 	 */
-	private HashSet<String> dirtyRoutes;
+	private HashSet<Long> dirtyRoutes;
 
 	/**
 	 * List used to store routes that need to be advertised in the future
@@ -142,7 +149,7 @@ public class BGPDaemon {
 	 * the head being the first to expire, this stops a user from having to step
 	 * through the whole list
 	 */
-	private Queue<String> mraiPendingRoutes;
+	private LinkedList<Long> mraiPendingRoutes;
 
 	private boolean rfdFlag;
 
@@ -155,17 +162,68 @@ public class BGPDaemon {
 	 */
 	private HashMap<Integer, Integer> reconnectMap;
 
+	/**
+	 * If set no keep alives are sent, instead each peer's keep alives are
+	 * modeled on our end (see resolveKeepAlive())
+	 */
+	private boolean analyticKeepAlives;
+
+	/**
+	 * When the next modeled keep alive from a peer gets to us, if the link
+	 * delivers it, and the retransmit interval of a modeled keep alive that
+	 * didn't make it (missing if none is stuck). Only kept with analytic keep
+	 * alives.
+	 */
+	private HashMap<Integer, Integer> keepAliveDueMap;
+	private HashMap<Integer, Integer> keepAliveRetransMap;
+
+	/**
+	 * Index of the keep alive, halt and reconnect timers by deadline, so timer
+	 * checks only look at the timers that actually expired. The maps above
+	 * stay the real record, this is rebuilt from them when needed. Null if we
+	 * just scan the maps. Not kept in snapshots, it is rebuilt on resume.
+	 */
+	private transient TimerWheel peerTimers;
+
 	/**
 	 * The logger for this sim run.
 	 */
 	private SimLogger logger;
 
+	/**
+	 * If set, changes to the RIBs, message queue, MRAI state, peer maps and
+	 * timers are journaled here so they can be rolled back, null otherwise.
+	 * Changing the keep alive mode and fast forwarding are only done by the
+	 * driver between windows, when nothing can be rolled back, so they are not
+	 * journaled.
+	 */
+	private transient UndoLog undoLog;
+
+	/**
+	 * The few scalar fields of the daemon that aren't journaled, used along
+	 * with a mark in the undo log to roll a daemon back.
+	 */
+	public static class Checkpoint {
+		private int wallTime;
+		private int advWindowExp;
+		private int dampenCheckTimer;
+	}
+
 	/**
 	 * The length of time we wait before attempting to reconnect to a peer
 	 * automatically
 	 */
 	private static final int RECONNECT = 60000;
 
+	/**
+	 * Timer kinds in the peer timer wheel
+	 */
+	private static final int TIMER_KEEPALIVE = 0;
+	private static final int TIMER_HALT = 1;
+	private static final int TIMER_RECONNECT = 2;
+	private static final int TIMER_KEEPALIVE_DUE = 3;
+	private static final int TIMER_KINDS = 4;
+
 	private static final int RFDCHECK = 5000;
 
 	/**
@@ -210,9 +268,9 @@ public class BGPDaemon {
 						logger);
 
 		// setup our RIBs correctly
-		this.adjInRIB = new RoutingBase(true, true);
-		this.localRIB = new RoutingBase(false, true);
-		this.adjOutRIB = new RoutingBase(true, false);
+		this.adjInRIB = new HashRoutingBase(true, true);
+		this.localRIB = new HashRoutingBase(false, true);
+		this.adjOutRIB = new HashRoutingBase(true, false);
 
 		// fetch & process starting updates from route reflector
 		igpUpdates = localRouteGen.createIGPUpdateList();
@@ -249,11 +307,11 @@ public class BGPDaemon {
 		}
 
 		poll = topTokens.nextToken();
-		this.adjInRIB = new RoutingBase(poll);
+		this.adjInRIB = new HashRoutingBase(poll);
 		poll = topTokens.nextToken();
-		this.localRIB = new RoutingBase(poll);
+		this.localRIB = new HashRoutingBase(poll);
 		poll = topTokens.nextToken();
-		this.adjOutRIB = new RoutingBase(poll);
+		this.adjOutRIB = new HashRoutingBase(poll);
 	}
 
 	/**
@@ -276,6 +334,8 @@ public class BGPDaemon {
 			List<String> exportStrings, List<String> rfdStrings, Router theRouter, SimLogger theLogger) {
 		// setup logger, rng, remember our home router & ASN
 		this.logger = theLogger;
+		this.undoLog = null;
+		this.peerTimers = null;
 		this.rand = new Random(myASN + BGPDaemon.RANDOFFSET);
 		this.router = theRouter;
 		this.myASN = myASN;
@@ -286,12 +346,15 @@ public class BGPDaemon {
 		this.asConTimeMap = new HashMap<Integer, Integer>();
 		this.reconnectMap = new HashMap<Integer, Integer>();
 		this.pendingPeers = new HashSet<Integer>();
+		this.analyticKeepAlives = false;
+		this.keepAliveDueMap = new HashMap<Integer, Integer>();
+		this.keepAliveRetransMap = new HashMap<Integer, Integer>();
 
 		// setup timing vars
 		this.lastSeenMap = new HashMap<Integer, Integer>();
 		this.keepAliveMap = new HashMap<Integer, Integer>();
-		this.dirtyRoutes = new HashSet<String>();
-		this.mraiPendingRoutes = new LinkedList<String>();
+		this.dirtyRoutes = new HashSet<Long>();
+		this.mraiPendingRoutes = new LinkedList<Long>();
 		this.wallTime = 0;
 		this.keepaliveTimer = keepAlive;
 		this.haltTimer = haltTimer;
@@ -318,6 +381,307 @@ public class BGPDaemon {
 		}
 	}
 
+	/**
+	 * Starts journaling changes to the given log so the daemon can be rolled
+	 * back with checkpoint()/restore().
+	 * 
+	 * @param undoLog
+	 *            - the log to record changes to
+	 */
+	public void setUndoLog(UndoLog undoLog) {
+		this.undoLog = undoLog;
+		this.adjInRIB.setUndoLog(undoLog);
+		this.localRIB.setUndoLog(undoLog);
+		this.adjOutRIB.setUndoLog(undoLog);
+	}
+
+	/**
+	 * Moves the RIBs into prefix tries (see TrieRoutingBase), by way of their
+	 * serial strings. RIBs that are already tries are left alone.
+	 */
+	public void useTrieRIBs() {
+		if (!(this.adjInRIB instanceof TrieRoutingBase)) {
+			this.adjInRIB = new TrieRoutingBase(this.adjInRIB.serialString());
+		}
+		if (!(this.localRIB instanceof TrieRoutingBase)) {
+			this.localRIB = new TrieRoutingBase(this.localRIB.serialString());
+		}
+		if (!(this.adjOutRIB instanceof TrieRoutingBase)) {
+			this.adjOutRIB = new TrieRoutingBase(this.adjOutRIB.serialString());
+		}
+		this.adjInRIB.setUndoLog(this.undoLog);
+		this.localRIB.setUndoLog(this.undoLog);
+		this.adjOutRIB.setUndoLog(this.undoLog);
+	}
+
+	/**
+	 * Moves the RIBs into compact storage (see CompactRoutingBase), by way of
+	 * their serial strings. RIBs that are already compact are left alone.
+	 */
+	public void useCompactRIBs() {
+		if (!(this.adjInRIB instanceof CompactRoutingBase)) {
+			this.adjInRIB = new CompactRoutingBase(this.adjInRIB.serialString());
+		}
+		if (!(this.localRIB instanceof CompactRoutingBase)) {
+			this.localRIB = new CompactRoutingBase(this.localRIB.serialString());
+		}
+		if (!(this.adjOutRIB instanceof CompactRoutingBase)) {
+			this.adjOutRIB = new CompactRoutingBase(this.adjOutRIB.serialString());
+		}
+		this.adjInRIB.setUndoLog(this.undoLog);
+		this.localRIB.setUndoLog(this.undoLog);
+		this.adjOutRIB.setUndoLog(this.undoLog);
+	}
+
+	/**
+	 * Switches timer checks from scanning every peer's timers to a timer wheel
+	 * that only hands back the timers that expired.
+	 */
+	public void useTimerWheel() {
+		this.rebuildTimerWheel();
+	}
+
+	/**
+	 * Builds the timer wheel from scratch out of the timer maps.
+	 */
+	private void rebuildTimerWheel() {
+		this.peerTimers = new TimerWheel(this.wallTime, BGPDaemon.TIMER_KINDS);
+		if (!this.analyticKeepAlives) {
+			for (Map.Entry<Integer, Integer> tEntry : this.keepAliveMap.entrySet()) {
+				this.peerTimers.schedule(BGPDaemon.TIMER_KEEPALIVE, tEntry.getKey(), tEntry.getValue()
+						+ this.keepaliveTimer);
+			}
+		}
+		for (Map.Entry<Integer, Integer> tEntry : this.keepAliveDueMap.entrySet()) {
+			this.peerTimers.schedule(BGPDaemon.TIMER_KEEPALIVE_DUE, tEntry.getKey(), tEntry.getValue());
+		}
+		for (Map.Entry<Integer, Integer> tEntry : this.lastSeenMap.entrySet()) {
+			this.peerTimers.schedule(BGPDaemon.TIMER_HALT, tEntry.getKey(), tEntry.getValue() + this.haltTimer);
+		}
+		for (Map.Entry<Integer, Integer> tEntry : this.reconnectMap.entrySet()) {
+			this.peerTimers.schedule(BGPDaemon.TIMER_RECONNECT, tEntry.getKey(), tEntry.getValue());
+		}
+	}
+
+	/**
+	 * Sets a peer's entry in one of the timer maps, keeping the timer wheel
+	 * in step if we have one.
+	 * 
+	 * @param timerMap
+	 *            - keepAliveMap, lastSeenMap, reconnectMap or keepAliveDueMap
+	 * @param kind
+	 *            - the matching TIMER_ constant
+	 * @param asn
+	 *            - the peer
+	 * @param time
+	 *            - the value stored in the map
+	 */
+	private void putTimer(HashMap<Integer, Integer> timerMap, int kind, int asn, int time) {
+		this.journalTimer(timerMap, kind, asn);
+		timerMap.put(asn, time);
+		this.syncTimer(kind, asn, time);
+	}
+
+	private void removeTimer(HashMap<Integer, Integer> timerMap, int kind, int asn) {
+		this.journalTimer(timerMap, kind, asn);
+		timerMap.remove(asn);
+		this.syncTimer(kind, asn, null);
+	}
+
+	/**
+	 * Brings a peer's timer in the timer wheel (if we have one) in step with
+	 * its timer map entry.
+	 * 
+	 * @param kind
+	 *            - the TIMER_ constant
+	 * @param asn
+	 *            - the peer
+	 * @param time
+	 *            - the value in the timer map, null if the peer has none
+	 */
+	private void syncTimer(int kind, int asn, Integer time) {
+		if (this.peerTimers == null || (kind == BGPDaemon.TIMER_KEEPALIVE && this.analyticKeepAlives)) {
+			return;
+		}
+
+		if (time == null) {
+			this.peerTimers.cancel(kind, asn);
+			return;
+		}
+		int deadline = time;
+		if (kind == BGPDaemon.TIMER_KEEPALIVE) {
+			deadline += this.keepaliveTimer;
+		} else if (kind == BGPDaemon.TIMER_HALT) {
+			deadline += this.haltTimer;
+		}
+		this.peerTimers.schedule(kind, asn, deadline);
+	}
+
+	/**
+	 * Journals a peer's timer map entry before it changes, the undo puts back
+	 * both the entry and the matching timer in the wheel.
+	 */
+	private void journalTimer(final HashMap<Integer, Integer> timerMap, final int kind, final int asn) {
+		if (this.undoLog == null) {
+			return;
+		}
+
+		final Integer oldTime = timerMap.get(asn);
+		this.undoLog.record(new UndoLog.Entry() {
+			public void undo() {
+				if (oldTime == null) {
+					timerMap.remove(asn);
+				} else {
+					timerMap.put(asn, oldTime);
+				}
+				BGPDaemon.this.syncTimer(kind, asn, oldTime);
+			}
+		});
+	}
+
+	/**
+	 * Journals a peer's entry in one of the peer maps (or the pending peer
+	 * set) before it changes.
+	 */
+	private void journalPeer(HashMap<Integer, Integer> peerMap, int asn) {
+		if (this.undoLog != null) {
+			this.undoLog.recordMapChange(peerMap, asn);
+		}
+	}
+
+	private void journalPendingPeer(int asn) {
+		if (this.undoLog != null) {
+			this.undoLog.recordSetChange(this.pendingPeers, asn);
+		}
+	}
+
+	/**
+	 * Journals a timer the wheel just handed back as expired, the undo puts it
+	 * back in the wheel. The wheel's clock never moves back, a timer put back
+	 * before it is kept as due until the next timer check reaches it.
+	 */
+	private void journalExpired(TimerWheel.Timer expired) {
+		final int kind = expired.getKind();
+		final int asn = expired.getKey();
+		final int deadline = expired.getDeadline();
+		this.undoLog.record(new UndoLog.Entry() {
+			public void undo() {
+				BGPDaemon.this.peerTimers.schedule(kind, asn, deadline);
+			}
+		});
+	}
+
+	/**
+	 * Turns analytic keep alives on or off. With them on we never send keep
+	 * alives, and each peer's keep alives are modeled on our end instead,
+	 * starting a keep alive timer after we last heard from them. Turning them
+	 * off drops the model, our own keep alives start going out again.
+	 * 
+	 * @param analytic
+	 *            - true to model keep alives instead of sending them
+	 */
+	public void setAnalyticKeepAlives(boolean analytic) {
+		if (analytic == this.analyticKeepAlives) {
+			return;
+		}
+
+		this.analyticKeepAlives = analytic;
+		this.keepAliveDueMap.clear();
+		this.keepAliveRetransMap.clear();
+		if (analytic) {
+			for (Map.Entry<Integer, Integer> tEntry : this.lastSeenMap.entrySet()) {
+				this.keepAliveDueMap.put(tEntry.getKey(), tEntry.getValue()
+						+ this.router.getPeerKeepalive(tEntry.getKey()));
+			}
+		}
+		if (this.peerTimers != null) {
+			this.rebuildTimerWheel();
+		}
+	}
+
+	/**
+	 * Works out what the keep alives a peer would have sent us since the last
+	 * one we looked at did. Each is sent a keep alive timer after the last
+	 * and gets through if the link delivers it right then. One that doesn't
+	 * is retransmitted like a TCP packet is, with the retransmit interval
+	 * doubling each time, and holds up the ones behind it. So a lossy link
+	 * kills a session as often as it would with real keep alives on it, while
+	 * no messages are ever sent.
+	 * 
+	 * @param asn
+	 *            - the peer
+	 */
+	private void resolveKeepAlive(int asn) {
+		int dueTime = this.keepAliveDueMap.get(asn);
+		int retransInterval = 0;
+		if (this.keepAliveRetransMap.containsKey(asn)) {
+			retransInterval = this.keepAliveRetransMap.get(asn);
+		}
+
+		while (dueTime <= this.wallTime) {
+			if (this.router.keepAliveWorks(asn)) {
+				if (this.lastSeenMap.containsKey(asn) && this.lastSeenMap.get(asn) < dueTime) {
+					this.putTimer(this.lastSeenMap, BGPDaemon.TIMER_HALT, asn, dueTime);
+				}
+				retransInterval = 0;
+				dueTime += this.router.getPeerKeepalive(asn);
+			} else {
+				if (retransInterval == 0) {
+					retransInterval = TCPPacket.TCPSTARTRETRANS;
+				}
+				dueTime += retransInterval;
+				retransInterval *= 2;
+			}
+		}
+
+		this.putTimer(this.keepAliveDueMap, BGPDaemon.TIMER_KEEPALIVE_DUE, asn, dueTime);
+		this.journalPeer(this.keepAliveRetransMap, asn);
+		if (retransInterval == 0) {
+			this.keepAliveRetransMap.remove(asn);
+		} else {
+			this.keepAliveRetransMap.put(asn, retransInterval);
+		}
+	}
+
+	/**
+	 * Predicate to test if route flap dampening is turned on, the dampening
+	 * state can't be rolled back.
+	 * 
+	 * @return - true if this daemon runs RFD
+	 */
+	public boolean usesDampening() {
+		return this.rfdFlag;
+	}
+
+	/**
+	 * Copies the daemon state that isn't journaled. Restoring this after
+	 * rolling the undo log back to the mark taken at the same time puts the
+	 * daemon back exactly where it was. Only a few ints are copied, so this is
+	 * cheap enough to do before every event.
+	 * 
+	 * @return - the copied state
+	 */
+	public Checkpoint checkpoint() {
+		Checkpoint retCheckpoint = new Checkpoint();
+		retCheckpoint.wallTime = this.wallTime;
+		retCheckpoint.advWindowExp = this.advWindowExp;
+		retCheckpoint.dampenCheckTimer = this.dampenCheckTimer;
+		return retCheckpoint;
+	}
+
+	/**
+	 * Puts back state copied by checkpoint(), the undo log must already have
+	 * been rolled back to the matching mark.
+	 * 
+	 * @param savedState
+	 *            - the state to restore
+	 */
+	public void restore(Checkpoint savedState) {
+		this.wallTime = savedState.wallTime;
+		this.advWindowExp = savedState.advWindowExp;
+		this.dampenCheckTimer = savedState.dampenCheckTimer;
+	}
+
 	public String serialString() {
 		StringBuilder retString = new StringBuilder();
 
@@ -536,9 +900,9 @@ public class BGPDaemon {
 		}
 
 		/*
-		 * build key string
+		 * build key
 		 */
-		String mraiKey = dstASN + ":" + nlri.toString();
+		Long mraiKey = ((long) dstASN << 32) | (nlri.getPacked() & 0xffffffffL);
 
 		/*
 		 * Check if it is not already pending readv, we manually do this instead
@@ -546,6 +910,10 @@ public class BGPDaemon {
 		 * add it to the mraiPendingRoutes queue
 		 */
 		if (!this.dirtyRoutes.contains(mraiKey)) {
+			if (this.undoLog != null) {
+				this.undoLog.recordSetChange(this.dirtyRoutes, mraiKey);
+				this.undoLog.recordAppend(this.mraiPendingRoutes);
+			}
 			this.dirtyRoutes.add(mraiKey);
 			this.mraiPendingRoutes.add(mraiKey);
 		}
@@ -601,7 +969,7 @@ public class BGPDaemon {
 		 * since we sent an update we don't need to send a keepalive, update the
 		 * last time we talked to a node
 		 */
-		this.keepAliveMap.put(dstASN, this.wallTime);
+		this.putTimer(this.keepAliveMap, BGPDaemon.TIMER_KEEPALIVE, dstASN, this.wallTime);
 	}
 
 	/**
@@ -653,6 +1021,14 @@ public class BGPDaemon {
 			/*
 			 * Figure out an internal id for this peer
 			 */
+			if (this.undoLog != null) {
+				final Random oldRand = UndoLog.copyRandom(this.rand);
+				this.undoLog.record(new UndoLog.Entry() {
+					public void undo() {
+						BGPDaemon.this.rand = oldRand;
+					}
+				});
+			}
 			while (newPeerId == 0) {
 				newPeerId = this.rand.nextInt();
 				for (Integer tASN : this.asToPeerMap.keySet()) {
@@ -662,6 +1038,7 @@ public class BGPDaemon {
 					}
 				}
 			}
+			this.journalPeer(this.asToPeerMap, foriegnASN);
 			this.asToPeerMap.put(foriegnASN, newPeerId);
 
 			/*
@@ -669,12 +1046,17 @@ public class BGPDaemon {
 			 * since we'll be sending messages right away which will do that for
 			 * us
 			 */
-			this.lastSeenMap.put(foriegnASN, this.wallTime);
+			this.putTimer(this.lastSeenMap, BGPDaemon.TIMER_HALT, foriegnASN, this.wallTime);
+			if (this.analyticKeepAlives) {
+				this.putTimer(this.keepAliveDueMap, BGPDaemon.TIMER_KEEPALIVE_DUE, foriegnASN, this.wallTime
+						+ this.router.getPeerKeepalive(foriegnASN));
+			}
 
 			/*
 			 * Send export table dump and remove from pending
 			 */
 			this.runExportDump(foriegnASN);
+			this.journalPendingPeer(foriegnASN);
 			this.pendingPeers.remove(foriegnASN);
 		} else {
 			/*
@@ -682,7 +1064,9 @@ public class BGPDaemon {
 			 * handshake), we need to wait till the other half is ready to
 			 * connect
 			 */
+			this.journalPendingPeer(foriegnASN);
 			this.pendingPeers.add(foriegnASN);
+			this.journalPeer(this.asConTimeMap, foriegnASN);
 			this.asConTimeMap.put(foriegnASN, this.wallTime);
 		}
 	}
@@ -761,17 +1145,25 @@ public class BGPDaemon {
 		}
 
 		// remove all refs in timer maps and peer map
+		this.journalPeer(this.asToPeerMap, asn);
 		this.asToPeerMap.remove(asn);
+		this.journalPeer(this.asConTimeMap, asn);
 		this.asConTimeMap.remove(asn);
-		this.keepAliveMap.remove(asn);
-		this.lastSeenMap.remove(asn);
+		this.removeTimer(this.keepAliveMap, BGPDaemon.TIMER_KEEPALIVE, asn);
+		this.removeTimer(this.lastSeenMap, BGPDaemon.TIMER_HALT, asn);
+		if (this.keepAliveDueMap.containsKey(asn)) {
+			this.removeTimer(this.keepAliveDueMap, BGPDaemon.TIMER_KEEPALIVE_DUE, asn);
+			this.journalPeer(this.keepAliveRetransMap, asn);
+			this.keepAliveRetransMap.remove(asn);
+		}
+		this.journalPendingPeer(asn);
 		this.pendingPeers.remove(asn);
 
 		// start up a reconnect timer for the defined interval
 		if (addJitter) {
-			this.reconnectMap.put(asn, this.wallTime + BGPDaemon.RECONNECT + 1000);
+			this.putTimer(this.reconnectMap, BGPDaemon.TIMER_RECONNECT, asn, this.wallTime + BGPDaemon.RECONNECT + 1000);
 		} else {
-			this.reconnectMap.put(asn, this.wallTime + BGPDaemon.RECONNECT);
+			this.putTimer(this.reconnectMap, BGPDaemon.TIMER_RECONNECT, asn, this.wallTime + BGPDaemon.RECONNECT);
 		}
 
 		/*
@@ -795,10 +1187,24 @@ public class BGPDaemon {
 	 */
 	public void addMessageToQueue(BGPMessage inMessage) {
 		if (this.lastSeenMap.containsKey(inMessage.getSrcASN())) {
-			this.lastSeenMap.put(inMessage.getSrcASN(), this.wallTime);
+			this.putTimer(this.lastSeenMap, BGPDaemon.TIMER_HALT, inMessage.getSrcASN(), this.wallTime);
+
+			/*
+			 * the peer just sent us something, so its next keep alive is a
+			 * whole keep alive timer away
+			 */
+			if (this.analyticKeepAlives) {
+				this.putTimer(this.keepAliveDueMap, BGPDaemon.TIMER_KEEPALIVE_DUE, inMessage.getSrcASN(),
+						this.wallTime + this.router.getPeerKeepalive(inMessage.getSrcASN()));
+				this.journalPeer(this.keepAliveRetransMap, inMessage.getSrcASN());
+				this.keepAliveRetransMap.remove(inMessage.getSrcASN());
+			}
 		}
 
 		if (inMessage.getMessageType() != Constants.BGP_KEEPALIVE) {
+			if (this.undoLog != null) {
+				this.undoLog.recordAdd(this.messageQueue, inMessage);
+			}
 			this.messageQueue.offer(inMessage);
 		}
 	}
@@ -822,6 +1228,9 @@ public class BGPDaemon {
 
 		while (!this.messageQueue.isEmpty() && !ranUpdate) {
 			pollMessage = this.messageQueue.poll();
+			if (this.undoLog != null) {
+				this.undoLog.recordRemove(this.messageQueue, pollMessage);
+			}
 
 			/*
 			 * There are a collection of sanity checks and actions we do for any
@@ -908,7 +1317,7 @@ public class BGPDaemon {
 					 * Remove from reconnect map if it's in there
 					 */
 					if (this.reconnectMap.containsKey(connMessage.getSrcASN())) {
-						this.reconnectMap.remove(connMessage.getSrcASN());
+						this.removeTimer(this.reconnectMap, BGPDaemon.TIMER_RECONNECT, connMessage.getSrcASN());
 						this.router.clearTCPStack(connMessage.getSrcASN());
 					}
 
@@ -973,25 +1382,67 @@ public class BGPDaemon {
 	//FIXME need to check dampening table too
 	public boolean runTimerCheck() {
 		Error errorMessage;
-		HashSet<Integer> removeSet = new HashSet<Integer>();
 		boolean didUpdate = false;
 
 		/*
 		 * Vars used for mrai interactions
 		 */
-		String mraiKeyString;
+		Long mraiKey;
 		int mraiAS;
 		CIDR mraiCIDR;
 		Route mraiRoute;
 
 		/*
-		 * send any keepalives we need to send
+		 * If we have a timer wheel it tells us exactly which timers expired,
+		 * otherwise we scan every peer below
 		 */
-		for (int tASN : this.keepAliveMap.keySet()) {
-			if ((this.wallTime - this.keepAliveMap.get(tASN)) >= this.keepaliveTimer) {
-				this.router.sendMessage(tASN, new KeepAlive(this.myASN, this.wallTime));
-				this.keepAliveMap.put(tASN, this.wallTime);
+		List<Integer> keepAliveList = new LinkedList<Integer>();
+		List<Integer> haltList = new LinkedList<Integer>();
+		List<Integer> reconnectList = new LinkedList<Integer>();
+		List<Integer> keepAliveDueList = new LinkedList<Integer>();
+		if (this.peerTimers != null) {
+			for (TimerWheel.Timer tTimer : this.peerTimers.expire(this.wallTime)) {
+				if (this.undoLog != null) {
+					this.journalExpired(tTimer);
+				}
+				if (tTimer.getKind() == BGPDaemon.TIMER_KEEPALIVE) {
+					keepAliveList.add(tTimer.getKey());
+				} else if (tTimer.getKind() == BGPDaemon.TIMER_KEEPALIVE_DUE) {
+					keepAliveDueList.add(tTimer.getKey());
+				} else if (tTimer.getKind() == BGPDaemon.TIMER_HALT) {
+					haltList.add(tTimer.getKey());
+				} else {
+					reconnectList.add(tTimer.getKey());
+				}
+			}
+		} else if (this.analyticKeepAlives) {
+			for (int tASN : this.keepAliveDueMap.keySet()) {
+				if (this.keepAliveDueMap.get(tASN) <= this.wallTime) {
+					keepAliveDueList.add(tASN);
+				}
 			}
+		} else {
+			for (int tASN : this.keepAliveMap.keySet()) {
+				if ((this.wallTime - this.keepAliveMap.get(tASN)) >= this.keepaliveTimer) {
+					keepAliveList.add(tASN);
+				}
+			}
+		}
+
+		/*
+		 * catch up on the keep alives our peers would have sent us, before
+		 * their halt timers are looked at
+		 */
+		for (int tASN : keepAliveDueList) {
+			this.resolveKeepAlive(tASN);
+		}
+
+		/*
+		 * send any keepalives we need to send
+		 */
+		for (int tASN : keepAliveList) {
+			this.router.sendMessage(tASN, new KeepAlive(this.myASN, this.wallTime));
+			this.putTimer(this.keepAliveMap, BGPDaemon.TIMER_KEEPALIVE, tASN, this.wallTime);
 		}
 
 		/*
@@ -1011,14 +1462,18 @@ public class BGPDaemon {
 				/*
 				 * Grab the next route, and take it out of the dirty set
 				 */
-				mraiKeyString = this.mraiPendingRoutes.poll();
-				this.dirtyRoutes.remove(mraiKeyString);
+				mraiKey = this.mraiPendingRoutes.poll();
+				if (this.undoLog != null) {
+					this.undoLog.recordPoll(this.mraiPendingRoutes, mraiKey);
+					this.undoLog.recordSetChange(this.dirtyRoutes, mraiKey);
+				}
+				this.dirtyRoutes.remove(mraiKey);
 
 				/*
 				 * Decompose the key
 				 */
-				mraiAS = Integer.parseInt(mraiKeyString.substring(0, mraiKeyString.indexOf(":")));
-				mraiCIDR = new CIDR(mraiKeyString.substring(mraiKeyString.indexOf(":") + 1));
+				mraiAS = (int) (mraiKey >>> 32);
+				mraiCIDR = CIDR.valueOf(mraiKey.intValue());
 
 				/*
 				 * If we're not currently connected then don't send the update
@@ -1045,8 +1500,32 @@ public class BGPDaemon {
 		 * check for peers who have timed out, we only get to clear one since
 		 * that's all we can process, we'll clear the others in following turns
 		 */
-		for (int tASN : this.lastSeenMap.keySet()) {
-			if ((this.wallTime - this.lastSeenMap.get(tASN)) >= this.haltTimer) {
+		if (this.peerTimers == null) {
+			for (int tASN : this.lastSeenMap.keySet()) {
+				if ((this.wallTime - this.lastSeenMap.get(tASN)) >= this.haltTimer) {
+					haltList.add(tASN);
+				}
+			}
+		}
+		boolean haltHandled = false;
+		for (int tASN : haltList) {
+			if (haltHandled) {
+				/*
+				 * The wheel already handed these back, put them in again so
+				 * they are seen on the next check
+				 */
+				if (this.peerTimers != null && this.lastSeenMap.containsKey(tASN)) {
+					this.putTimer(this.lastSeenMap, BGPDaemon.TIMER_HALT, tASN, this.lastSeenMap.get(tASN));
+				}
+				continue;
+			}
+
+			/*
+			 * a modeled keep alive may have just brought the peer back in
+			 * time, its halt timer has already been moved on if so
+			 */
+			if (this.lastSeenMap.containsKey(tASN)
+					&& (this.wallTime - this.lastSeenMap.get(tASN)) >= this.haltTimer) {
 				// send notification
 				this.router.clearTCPStack(tASN);
 				errorMessage = new Error(this.myASN, this.wallTime, LoggingMessages.ROUTER_TIMEOUT);
@@ -1059,7 +1538,7 @@ public class BGPDaemon {
 
 				// we now wait for the peer that timed out to re-connect to us
 				didUpdate = false;
-				break;
+				haltHandled = true;
 			}
 		}
 
@@ -1067,45 +1546,65 @@ public class BGPDaemon {
 		 * Lastly check if we need to try and reconnect to anyone if so do so
 		 * and note who to remove from the reconnect set
 		 */
-		for (int tASN : this.reconnectMap.keySet()) {
-			if (this.reconnectMap.get(tASN) == this.wallTime) {
-				this.logger.logMessage(LoggingMessages.RECONNECT + tASN + LoggingMessages.AT + this.myASN, false);
-				this.connectBGPPeer(tASN);
-				removeSet.add(tASN);
+		if (this.peerTimers == null) {
+			for (int tASN : this.reconnectMap.keySet()) {
+				/*
+				 * same as the wheel, a reconnect passed over (by a fast forward
+				 * or a roll back) still fires
+				 */
+				if (this.reconnectMap.get(tASN) <= this.wallTime) {
+					reconnectList.add(tASN);
+				}
 			}
 		}
+		for (int tASN : reconnectList) {
+			this.logger.logMessage(LoggingMessages.RECONNECT + tASN + LoggingMessages.AT + this.myASN, false);
+			this.connectBGPPeer(tASN);
+		}
 		/*
 		 * Remove anyone we've reconnected to from the reconnect map
 		 */
-		for (int tASN : removeSet) {
-			this.reconnectMap.remove(tASN);
+		for (int tASN : reconnectList) {
+			this.removeTimer(this.reconnectMap, BGPDaemon.TIMER_RECONNECT, tASN);
 		}
 
 		return didUpdate;
 	}
 
 	/**
-	 * Gets when the next timer expires. This can be one of four timers right
-	 * now, keep alive, halt, auto-reconnection, or mrai advertisement.
+	 * Gets when the next timer expires. This can be one of five timers right
+	 * now, keep alive (or a modeled keep alive from a peer), halt,
+	 * auto-reconnection, or mrai advertisement.
 	 * 
 	 * @return - the simulator time of the next expiring event
 	 */
 	public int getNextTimerExp() {
 		int mostRecent = Integer.MAX_VALUE;
 
-		for (int tTime : this.keepAliveMap.values()) {
-			if ((tTime + this.keepaliveTimer) < mostRecent) {
-				mostRecent = tTime + this.keepaliveTimer;
+		if (this.peerTimers != null) {
+			mostRecent = this.peerTimers.getNextExpiration();
+		} else {
+			if (!this.analyticKeepAlives) {
+				for (int tTime : this.keepAliveMap.values()) {
+					if ((tTime + this.keepaliveTimer) < mostRecent) {
+						mostRecent = tTime + this.keepaliveTimer;
+					}
+				}
 			}
-		}
-		for (int tTime : this.lastSeenMap.values()) {
-			if ((tTime + this.haltTimer) < mostRecent) {
-				mostRecent = tTime + this.haltTimer;
+			for (int tTime : this.keepAliveDueMap.values()) {
+				if (tTime < mostRecent) {
+					mostRecent = tTime;
+				}
 			}
-		}
-		for (int tTime : this.reconnectMap.values()) {
-			if (tTime < mostRecent) {
-				mostRecent = tTime;
+			for (int tTime : this.lastSeenMap.values()) {
+				if ((tTime + this.haltTimer) < mostRecent) {
+					mostRecent = tTime + this.haltTimer;
+				}
+			}
+			for (int tTime : this.reconnectMap.values()) {
+				if (tTime < mostRecent) {
+					mostRecent = tTime;
+				}
 			}
 		}
 		if (this.advWindowExp < mostRecent) {
@@ -1120,6 +1619,202 @@ public class BGPDaemon {
 		return mostRecent;
 	}
 
+	/**
+	 * Predicate to test if all this daemon has going on is its periodic
+	 * timers: no messages waiting, no peers part way through connecting or
+	 * waiting to reconnect, no routes held back by MRAI and no RFD. The
+	 * advertisement window must also be in step with the router's pending
+	 * timer check, so from here on timer checks land on every advertisement
+	 * window and every keep alive, and nothing else.
+	 *
+	 * @param timerTime
+	 *            - the time of the router's pending timer check
+	 * @return - true if the daemon's timers can be fast forwarded
+	 */
+	public boolean isQuiescent(int timerTime) {
+		return this.messageQueue.isEmpty() && this.pendingPeers.isEmpty() && this.reconnectMap.isEmpty()
+				&& this.mraiPendingRoutes.isEmpty() && this.dirtyRoutes.isEmpty() && !this.rfdFlag && this.mrai > 0
+				&& this.keepaliveTimer > 0 && this.advWindowExp >= timerTime
+				&& this.advWindowExp <= timerTime + this.mrai && this.getNextTimerExp() == timerTime;
+	}
+
+	/**
+	 * Moves the advertisement window past every timer check before the end
+	 * time, as those checks would have with nothing to send.
+	 *
+	 * @param endTime
+	 *            - the time to fast forward to
+	 * @return - the time of the last window that was passed, -1 if none were
+	 */
+	public int fastForwardAdvWindow(int endTime) {
+		if (this.advWindowExp >= endTime) {
+			return -1;
+		}
+
+		int windowCount = (endTime - this.advWindowExp - 1) / this.mrai + 1;
+		int lastWindow = this.advWindowExp + (windowCount - 1) * this.mrai;
+		this.advWindowExp += windowCount * this.mrai;
+		return lastWindow;
+	}
+
+	/**
+	 * Moves a peer's keep alive timer past every keep alive that would have
+	 * been sent to it before the end time. Nothing is sent, the router deals
+	 * with the messages.
+	 *
+	 * @param asn
+	 *            - the peer
+	 * @param endTime
+	 *            - the time to fast forward to
+	 * @return - the number of keep alives that would have been sent
+	 */
+	public int fastForwardKeepAlive(int asn, int endTime) {
+		int lastSent = this.keepAliveMap.get(asn);
+		if (lastSent + this.keepaliveTimer >= endTime) {
+			return 0;
+		}
+
+		int sendCount = (endTime - lastSent - 1) / this.keepaliveTimer;
+		this.keepAliveMap.put(asn, lastSent + sendCount * this.keepaliveTimer);
+		return sendCount;
+	}
+
+	/**
+	 * Notes the last keep alive that would have arrived from a peer while
+	 * fast forwarding, as addMessageToQueue() would have.
+	 *
+	 * @param asn
+	 *            - the peer
+	 * @param arrivalTime
+	 *            - when the keep alive arrived
+	 */
+	public void fastForwardLastSeen(int asn, int arrivalTime) {
+		if (this.lastSeenMap.containsKey(asn)) {
+			this.lastSeenMap.put(asn, arrivalTime);
+		}
+	}
+
+	/**
+	 * Resolves every modeled keep alive due from our peers before the end
+	 * time, as the timer checks would have. Only called if every link in to
+	 * us delivers every message, so each of them gets through.
+	 *
+	 * @param endTime
+	 *            - the time to fast forward to
+	 * @return - the time of the last keep alive resolved, -1 if none were
+	 */
+	public int fastForwardKeepAliveDue(int endTime) {
+		int lastResolved = -1;
+		for (Map.Entry<Integer, Integer> tEntry : this.keepAliveDueMap.entrySet()) {
+			int dueTime = tEntry.getValue();
+			if (dueTime >= endTime) {
+				continue;
+			}
+
+			int peerKeepalive = this.router.getPeerKeepalive(tEntry.getKey());
+			int dueCount = (endTime - dueTime - 1) / peerKeepalive + 1;
+			int lastDue = dueTime + (dueCount - 1) * peerKeepalive;
+			if (this.lastSeenMap.containsKey(tEntry.getKey()) && this.lastSeenMap.get(tEntry.getKey()) < lastDue) {
+				this.lastSeenMap.put(tEntry.getKey(), lastDue);
+			}
+			tEntry.setValue(lastDue + peerKeepalive);
+			this.keepAliveRetransMap.remove(tEntry.getKey());
+			lastResolved = Math.max(lastResolved, lastDue);
+		}
+		return lastResolved;
+	}
+
+	/**
+	 * Wraps up a fast forward, setting the wall time to the last event the
+	 * router would have seen and bringing the timer wheel (if we have one)
+	 * back in step with the timer maps.
+	 *
+	 * @param currentWallTime
+	 *            - the time of the router's last event
+	 */
+	public void finishFastForward(int currentWallTime) {
+		this.wallTime = currentWallTime;
+		if (this.peerTimers != null) {
+			this.rebuildTimerWheel();
+		}
+	}
+
+	/**
+	 * Gets the peers we send keep alives to.
+	 *
+	 * @return - the peer ASNs, do NOT modify this
+	 */
+	public Set<Integer> getKeepAlivePeers() {
+		return this.keepAliveMap.keySet();
+	}
+
+	/**
+	 * Gets the last time we sent anything to a peer.
+	 *
+	 * @param asn
+	 *            - the peer
+	 * @return - the time, or -1 if we don't send the peer keep alives
+	 */
+	public int getLastKeepAlive(int asn) {
+		if (!this.keepAliveMap.containsKey(asn)) {
+			return -1;
+		}
+		return this.keepAliveMap.get(asn);
+	}
+
+	/**
+	 * Gets the last time we heard anything from a peer.
+	 *
+	 * @param asn
+	 *            - the peer
+	 * @return - the time, or -1 if we don't run a halt timer for the peer
+	 */
+	public int getLastSeen(int asn) {
+		if (!this.lastSeenMap.containsKey(asn)) {
+			return -1;
+		}
+		return this.lastSeenMap.get(asn);
+	}
+
+	/**
+	 * Gets when the next modeled keep alive from a peer is due.
+	 *
+	 * @param asn
+	 *            - the peer
+	 * @return - the time, or -1 if none is
+	 */
+	public int getKeepAliveDue(int asn) {
+		if (!this.keepAliveDueMap.containsKey(asn)) {
+			return -1;
+		}
+		return this.keepAliveDueMap.get(asn);
+	}
+
+	public boolean isAnalyticKeepAlives() {
+		return this.analyticKeepAlives;
+	}
+
+	/**
+	 * Gets the peers we run halt timers for.
+	 *
+	 * @return - the peer ASNs, do NOT modify this
+	 */
+	public Set<Integer> getHaltPeers() {
+		return this.lastSeenMap.keySet();
+	}
+
+	public int getKeepaliveTimer() {
+		return this.keepaliveTimer;
+	}
+
+	public int getHaltTimer() {
+		return this.haltTimer;
+	}
+
+	public int getMRAI() {
+		return this.mrai;
+	}
+
 	/**
 	 * Predicate testing if we will carry traffic for a given as to a given
 	 * network This is testing if we will allow the traffic based on policy
@@ -1172,7 +1867,7 @@ public class BGPDaemon {
 
 		fullList = this.localRIB.fetchWholeTable();
 		for (Route tRoute : fullList) {
-			this.logger.logMessage(tRoute.getAsPath().length + LoggingMessages.TO + tRoute.getNlri().toString(), false);
+			this.logger.logMessage(tRoute.getPathLength() + LoggingMessages.TO + tRoute.getNlri().toString(), false);
 		}
 
 		this.logger.logMessage(LoggingMessages.DISTANCE_DUMP_STOP, false);
@@ -1,5 +1,6 @@
 package bgp.engine;
 
+import java.io.Serializable;
 import java.util.*;
 
 import bgp.dataStructures.CIDR;
@@ -9,7 +10,9 @@ import bgp.dataStructures.Route;
  * Class that manages export specifications for a BGP Daemon.
  * 
  */
-public class BGPExportSpec {
+public class BGPExportSpec implements Serializable {
+
+	private static final long serialVersionUID = 1L;
 
 	/**
 	 * The ASN of the network I live in
@@ -69,7 +72,7 @@ public class BGPExportSpec {
 			if (first.equals("whitelist")) {
 				second = cmdToken.nextToken().toLowerCase();
 				if (second.equals("network")) {
-					this.whitleListNetworks.add(new CIDR(cmdToken.nextToken()));
+					this.whitleListNetworks.add(CIDR.parse(cmdToken.nextToken()));
 				} else if (second.equals("as")) {
 					this.whiteListHosts.add(Integer.parseInt(cmdToken.nextToken()));
 				} else {
@@ -103,8 +106,7 @@ public class BGPExportSpec {
 
 		// this strips out srcId, and local pref, since those are
 		// non-transitive
-		Route outRoute = new Route(inRoute.getNlri(), inRoute.getOrigin(), inRoute.getAsPath(), 1);
-		outRoute.extendPath(this.myASN);
+		Route outRoute = new Route(inRoute.getNlri(), inRoute.getOrigin(), inRoute.getPath().prepend(this.myASN));
 		outRoute.setSrcId(this.myASN);
 		
 		for (int tASN : asnSet) {
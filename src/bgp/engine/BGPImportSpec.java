@@ -1,5 +1,6 @@
 package bgp.engine;
 
+import java.io.Serializable;
 import java.util.*;
 
 import bgp.messages.Constants;
@@ -9,7 +10,9 @@ import bgp.dataStructures.Route;
  * Class used to handle import specifications.
  * 
  */
-public class BGPImportSpec {
+public class BGPImportSpec implements Serializable {
+
+	private static final long serialVersionUID = 1L;
 
 	/**
 	 * The ASN the hosting BGP Daemon lives in.
@@ -106,14 +109,6 @@ public class BGPImportSpec {
 	 * @return - true if the route loops back on ourself, false otherwise
 	 */
 	private boolean isLoop(Route inRoute) {
-		int path[] = inRoute.getAsPath();
-
-		for (int counter = 0; counter < path.length; counter++) {
-			if (path[counter] == this.myASNumber) {
-				return true;
-			}
-		}
-
-		return false;
+		return inRoute.getPath().contains(this.myASNumber);
 	}
 }
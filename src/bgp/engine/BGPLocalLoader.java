@@ -1,5 +1,6 @@
 package bgp.engine;
 
+import java.io.Serializable;
 import java.util.*;
 
 import bgp.messages.*;
@@ -8,7 +9,9 @@ import bgp.dataStructures.*;
 /**
  * Using this guy as a temp bootstrapper to load routes local to the BGP peer.
  */
-public class BGPLocalLoader {
+public class BGPLocalLoader implements Serializable {
+
+	private static final long serialVersionUID = 1L;
 
 	private List<CIDR> localNetworks;
 
@@ -22,7 +25,7 @@ public class BGPLocalLoader {
 		this.localNetworks = new ArrayList<CIDR>(localNetworks.size());
 
 		for (String tempString : localNetworks) {
-			this.localNetworks.add(new CIDR(tempString));
+			this.localNetworks.add(CIDR.parse(tempString));
 		}
 	}
 
@@ -1,5 +1,6 @@
 package bgp.engine;
 
+import java.io.Serializable;
 import java.util.*;
 import bgp.dataStructures.Route;
 
@@ -9,7 +10,9 @@ import bgp.dataStructures.Route;
  * a static method, but one never knows (maybe logging?).
  *
  */
-public class BGPRanker {
+public class BGPRanker implements Serializable {
+
+	private static final long serialVersionUID = 1L;
 
 	public BGPRanker(){
 		//does nothing
@@ -75,14 +78,14 @@ public class BGPRanker {
 			 * but we currently don't do that, if we change that this is going
 			 * to BREAK MASSIVELY and we'll need to handle that
 			 */			
-			if(tempRoute.getAsPath().length < bestValue){
+			if(tempRoute.getPathLength() < bestValue){
 				best = tempRoute;
-				bestValue = tempRoute.getAsPath().length;
+				bestValue = tempRoute.getPathLength();
 				bestTie = false;
 				tieList.clear();
 				tieList.add(tempRoute);
 			}
-			else if(tempRoute.getAsPath().length == bestValue){
+			else if(tempRoute.getPathLength() == bestValue){
 				bestTie = true;
 				tieList.add(tempRoute);
 			}
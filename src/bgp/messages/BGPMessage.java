@@ -1,10 +1,14 @@
 package bgp.messages;
 
+import java.io.Serializable;
+
 /**
  * Abstract class that wraps all BGP Messages.
  * 
  */
-public abstract class BGPMessage implements Comparable<BGPMessage>{
+public abstract class BGPMessage implements Comparable<BGPMessage>, Serializable {
+
+	private static final long serialVersionUID = 1L;
 
 	/**
 	 * field that IDs what the message type is
@@ -7,6 +7,8 @@ import java.security.InvalidParameterException;
  */
 public class Connect extends BGPMessage {
 
+	private static final long serialVersionUID = 1L;
+
 	/**
 	 * Stores which part of the three way handshake we're on.
 	 */
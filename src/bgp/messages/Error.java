@@ -7,6 +7,8 @@ package bgp.messages;
  */
 public class Error extends BGPMessage {
 
+	private static final long serialVersionUID = 1L;
+
 	/**
 	 * The error reason that we will log
 	 */
@@ -8,6 +8,8 @@ package bgp.messages;
  */
 public class KeepAlive extends BGPMessage {
 
+	private static final long serialVersionUID = 1L;
+
 	/**
 	 * Lawl, easy constructor is easy....
 	 * 
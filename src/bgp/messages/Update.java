@@ -14,6 +14,8 @@ import bgp.dataStructures.Route;
  *
  */
 public class Update extends BGPMessage{
+
+	private static final long serialVersionUID = 1L;
 	
 	/**
 	 * Currently the AS number of the router that is the src of the Update,
@@ -121,4 +123,23 @@ public class Update extends BGPMessage{
 	public void clearAdvertised(){
 		this.advertised = null;
 	}
+	
+	/**
+	 * Creates a copy of this update that can be processed (and so changed) by
+	 * a router without touching this one.  Used when the same update might
+	 * have to be delivered more then once.
+	 * 
+	 * @return - a new update with the same source, time stamp, withdraws and
+	 * a copy of the advertised route
+	 */
+	public Update copy(){
+		Update retUpdate = new Update(this.getSrcASN(), this.getTimeStamp());
+		retUpdate.srcId = this.srcId;
+		retUpdate.withdraws.addAll(this.withdraws);
+		if(this.advertised != null){
+			retUpdate.advertised = this.advertised.copy();
+		}
+		
+		return retUpdate;
+	}
 }
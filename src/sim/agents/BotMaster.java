@@ -8,16 +8,24 @@ import sim.event.*;
 import sim.engine.SimDriver;
 import sim.util.*;
 
-public abstract class BotMaster implements SimAgent {
+public abstract class BotMaster implements SimAgent, Serializable {
+
+	private static final long serialVersionUID = 1L;
 
 	protected HashMap<Integer, Integer> capMap;
 
 	protected TrafficAccountant trafficMgmt;
 
-	protected SimDriver theDriver;
+	protected transient SimDriver theDriver;
 
 	protected ConfigFileHelper configs;
 
+	/**
+	 * If the initial setup has been run, a run resumed from a snapshot hands
+	 * us a driver again but must not run it twice
+	 */
+	private boolean setupDone;
+
 	public static final String BOTCOUNT = "bot count";
 	public static final String BOTSPEED = "bot speed";
 	public static final String STARTTIME = "start time";
@@ -28,13 +36,17 @@ public abstract class BotMaster implements SimAgent {
 		this.capMap = this.buildCaps(asMap, Integer.parseInt(this.configs.getValue(BotMaster.BOTCOUNT)));
 		this.trafficMgmt = trafficMgmt;
 		this.theDriver = null;
+		this.setupDone = false;
 	}
 
 	public void setSimDriver(SimDriver theDriver) {
 		if (this.theDriver == null) {
 			this.theDriver = theDriver;
 		}
-		this.runInitialSetup();
+		if (!this.setupDone) {
+			this.setupDone = true;
+			this.runInitialSetup();
+		}
 	}
 
 	public abstract void giveEvent(SimEvent theEvent);
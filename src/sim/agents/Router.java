@@ -5,6 +5,7 @@ import java.io.*;
 
 import bgp.messages.BGPMessage;
 import bgp.messages.Constants;
+import bgp.messages.KeepAlive;
 import bgp.messages.Update;
 import bgp.engine.BGPDaemon;
 import bgp.engine.BGPLocalLoader;
@@ -12,10 +13,13 @@ import bgp.dataStructures.*;
 import sim.logging.LoggingMessages;
 import sim.logging.SimLogger;
 import sim.network.dataObjects.AS;
+import sim.network.dataObjects.NetworkWeights;
 import sim.network.dataObjects.TCPPacket;
 
 import sim.engine.SimDriver;
+import sim.engine.TimeWarpLane;
 import sim.event.*;
+import sim.util.UndoLog;
 
 /**
  * This class represents a border router. Currently each AS only has one, this
@@ -26,7 +30,9 @@ import sim.event.*;
  * Accountant.
  * 
  */
-public class Router implements SimAgent {
+public class Router implements SimAgent, Serializable {
+
+	private static final long serialVersionUID = 1L;
 
 	/**
 	 * The BGP daemon that handles routing and forwarding decisions.
@@ -55,15 +61,79 @@ public class Router implements SimAgent {
 	 */
 	private int asn;
 
+	/**
+	 * Dense index handed out by the driver for packing our events, -1 if we
+	 * don't have one
+	 */
+	private int simIndex;
+
 	private int cpuWindow;
 
+	/**
+	 * The time of the event we are currently handling. This is our own view of
+	 * the clock, when windows of time run in parallel it can be ahead of the
+	 * driver's current time.
+	 */
+	private int localTime;
+
+	/**
+	 * Journal of changes made by this router's events, only set when running
+	 * optimistically (see enableRollback()), null otherwise. Not kept in
+	 * snapshots, the driver turns it back on when resuming.
+	 */
+	private transient UndoLog undoLog;
+
+	/**
+	 * Count of packets we have sent, used to order packets in the TCP stacks
+	 */
+	private long packetCount;
+
+	/**
+	 * Random number gen for the rolls deciding if messages sent to us get
+	 * through. Every roll for a message to us is made while running our events,
+	 * so each router drawing from its own seeded stream keeps the rolls the
+	 * same no matter which threads run which routers.
+	 */
+	private Random dropRand;
+
+	/**
+	 * Set once the drop rolls' random number gen has been journaled since the
+	 * last checkpoint, it only needs to be saved before the first roll.
+	 */
+	private transient boolean dropRandJournaled;
+
+	/**
+	 * Offset for the seed of the drop rolls, keeps them apart from the
+	 * daemon's peer id stream.
+	 */
+	private static final int DROPRANDOFFSET = 1 << 24;
+
+	/**
+	 * Saved router state from before an event was handled, rolled back to
+	 * when the event turns out to have been run too early.
+	 */
+	public static class Checkpoint {
+		private int cpuWindow;
+		private int localTime;
+		private boolean cpuScheduled;
+		private long logMark;
+		private BGPDaemon.Checkpoint daemonState;
+
+		/**
+		 * Gets the sim time of the router when this checkpoint was taken.
+		 * 
+		 * @return - the router's local time
+		 */
+		public int getTime() {
+			return this.localTime;
+		}
+	}
+
 	private double bgpProcessTime;
 
 	private double packetProcessTime;
 
-	private HashMap<CIDR, Integer> netToASMappings = null;
-
-	private HashMap<Integer, Integer> asWeights = null;
+	private NetworkWeights netWeights = null;
 
 	private boolean cpuScheduled;
 
@@ -72,7 +142,7 @@ public class Router implements SimAgent {
 	 */
 	private TrafficAccountant trafficAcct;
 
-	private SimDriver theDriver;
+	private transient SimDriver theDriver;
 
 	/**
 	 * The logger used for this simulation.
@@ -87,6 +157,11 @@ public class Router implements SimAgent {
 	private static final String CONF_KEEPALIVE = "keep";
 	private static final String CONF_MRAI = "mrai";
 
+	/**
+	 * Longest we ever wait between timer checks, in ms
+	 */
+	private static final int MAX_TIMER_WAIT = 5000;
+
 	/**
 	 * Creates a new router with settings given in the given config file.
 	 * 
@@ -98,7 +173,7 @@ public class Router implements SimAgent {
 	 */
 	@SuppressWarnings("unchecked")
 	public Router(String configFile, SimLogger logger, double netProcessTime, double bgpProcTime,
-			HashMap<CIDR, Integer> netMap, HashMap<Integer, Integer> asWeights) throws IOException {
+			NetworkWeights netWeights) throws IOException {
 
 		HashMap<String, Object> configMap = this.parseRouterConfig(configFile);
 
@@ -117,12 +192,12 @@ public class Router implements SimAgent {
 		 * set this to null for now, we'll need it, but we need to be created
 		 * for it to be created
 		 */
-		this.finalSetup(netProcessTime, bgpProcTime, logger, netMap, asWeights);
+		this.finalSetup(netProcessTime, bgpProcTime, logger, netWeights);
 	}
 
 	@SuppressWarnings("unchecked")
 	public Router(String configFile, SimLogger logger, String serialString, double netProcessTime, double bgpProcTime,
-			HashMap<CIDR, Integer> netMap, HashMap<Integer, Integer> asWeights) throws IOException {
+			NetworkWeights netWeights) throws IOException {
 
 		/*
 		 * Parse the config file
@@ -143,7 +218,7 @@ public class Router implements SimAgent {
 		 * set this to null for now, we'll need it, but we need to be created
 		 * for it to be created
 		 */
-		this.finalSetup(netProcessTime, bgpProcTime, logger, netMap, asWeights);
+		this.finalSetup(netProcessTime, bgpProcTime, logger, netWeights);
 	}
 
 	//TODO at some point this should be replaced with a config file parser
@@ -273,8 +348,7 @@ public class Router implements SimAgent {
 		return retMap;
 	}
 
-	private void finalSetup(double netProcTime, double bgpProcTime, SimLogger logger, HashMap<CIDR, Integer> netMap,
-			HashMap<Integer, Integer> weightMap) {
+	private void finalSetup(double netProcTime, double bgpProcTime, SimLogger logger, NetworkWeights netWeights) {
 		this.connectionStack = new HashMap<Integer, List<TCPPacket>>();
 		this.connectionMap = new HashMap<Integer, Router>();
 		this.logger = logger;
@@ -283,9 +357,14 @@ public class Router implements SimAgent {
 		this.packetProcessTime = netProcTime;
 		this.bgpProcessTime = bgpProcTime;
 		this.cpuWindow = 0;
+		this.localTime = 0;
+		this.undoLog = null;
+		this.packetCount = 0;
+		this.dropRand = new Random(this.asn + Router.DROPRANDOFFSET);
+		this.dropRandJournaled = false;
+		this.simIndex = -1;
 		this.cpuScheduled = false;
-		this.netToASMappings = netMap;
-		this.asWeights = weightMap;
+		this.netWeights = netWeights;
 	}
 
 	public String serialString() {
@@ -312,11 +391,55 @@ public class Router implements SimAgent {
 		}
 	}
 
+	public void setSimIndex(int simIndex) {
+		this.simIndex = simIndex;
+	}
+
+	public int getSimIndex() {
+		return this.simIndex;
+	}
+
+	public int getASN() {
+		return this.asn;
+	}
+
+	/**
+	 * Rough guess at how long the next ROUTERCPUFREE event will take to run,
+	 * in no particular unit, only useful to compare routers. Handling an
+	 * update means exporting it to every peer, so the cost grows with the
+	 * number of peers, and a deep message queue costs more to poll and tends
+	 * to hold stale messages that get skipped along the way, so it grows with
+	 * the log of the queue depth.
+	 * 
+	 * @return - the estimated cost, 0 if there is nothing queued
+	 */
+	public int getEstimatedCost() {
+		int queueDepth = this.bgpDaemon.getMessageQueueSize();
+		if (queueDepth == 0) {
+			return 0;
+		}
+		return (this.connectionMap.size() + 1) * (32 - Integer.numberOfLeadingZeros(queueDepth));
+	}
+
+	/**
+	 * Gets the number of messages waiting in the BGP daemon's queue.
+	 * 
+	 * @return - the queue depth
+	 */
+	public int getMessageQueueSize() {
+		return this.bgpDaemon.getMessageQueueSize();
+	}
+
 	public void giveEvent(SimEvent theEvent) {
 		/*
-		 * no matter the event, update the time
+		 * no matter the event, update the time, unless it is a TCP send, those
+		 * are run on behalf of the receiving router (who might be running in
+		 * parallel with us), the receiver updates his own time on delivery
 		 */
-		this.bgpDaemon.updateWallTime(theEvent.getTime());
+		if (theEvent.getType() != SimEvent.TCPSEND) {
+			this.localTime = theEvent.getTime();
+			this.bgpDaemon.updateWallTime(this.localTime);
+		}
 
 		if (theEvent.getType() == SimEvent.TIMEREXPIRE) {
 			/*
@@ -331,7 +454,7 @@ public class Router implements SimAgent {
 			 * longer then 5 secs and no more then min cpu time
 			 */
 			int nextUpdate = this.bgpDaemon.getNextTimerExp();
-			nextUpdate = Math.min(nextUpdate, theEvent.getTime() + 5000);
+			nextUpdate = Math.min(nextUpdate, theEvent.getTime() + Router.MAX_TIMER_WAIT);
 			/*
 			 * FIXME this got hard coded over to one...not sure if that is
 			 * right...in fact it isn't...this should instead of being 1, but
@@ -345,7 +468,7 @@ public class Router implements SimAgent {
 			 * targeted by DoS routers will do this, so again, fairly small)
 			 */
 			nextUpdate = Math.max(nextUpdate, theEvent.getTime() + 1);
-			this.theDriver.postEvent(new SimEvent(SimEvent.TIMEREXPIRE, nextUpdate, this));
+			this.theDriver.postRouterEvent(SimEvent.TIMEREXPIRE, nextUpdate, this);
 		} else if (theEvent.getType() == SimEvent.ROUTERCPUFREE) {
 
 			/*
@@ -372,13 +495,12 @@ public class Router implements SimAgent {
 				if (touchedNets.size() > 0) {
 					int netCount = 0;
 					for (CIDR tempNet : touchedNets) {
-						Integer tASN = this.netToASMappings.get(tempNet);
-						if (tASN == null) {
+						int netWeight = this.netWeights.getWeight(tempNet);
+						if (netWeight == NetworkWeights.UNBOUND) {
 							System.err.println("got a network not bound to an AS, this should NEVER happen.");
 							System.exit(-2);
 						}
-						Integer netWeight = this.asWeights.get(tASN);
-						if (netWeight == null) {
+						if (netWeight == NetworkWeights.NO_WEIGHT) {
 							netCount += 1;
 						} else {
 							netCount += netWeight;
@@ -402,9 +524,9 @@ public class Router implements SimAgent {
 					if (timeSpent < this.packetProcessTime) {
 						timeSpent = this.packetProcessTime;
 					}
-					this.cpuWindow = this.theDriver.getCurrentTime() + (int) Math.round(timeSpent);
+					this.cpuWindow = this.localTime + (int) Math.round(timeSpent);
 				} else {
-					this.cpuWindow = this.theDriver.getCurrentTime() + 1;
+					this.cpuWindow = this.localTime + 1;
 				}
 			}
 			/*
@@ -417,7 +539,7 @@ public class Router implements SimAgent {
 			 * notification into the queue
 			 */
 			if (this.bgpDaemon.getMessageQueueSize() > 0) {
-				this.theDriver.postEvent(new SimEvent(SimEvent.ROUTERCPUFREE, this.cpuWindow, this));
+				this.theDriver.postRouterEvent(SimEvent.ROUTERCPUFREE, this.cpuWindow, this);
 				this.cpuScheduled = true;
 			} else {
 				this.cpuScheduled = false;
@@ -432,7 +554,105 @@ public class Router implements SimAgent {
 
 	public void notifyRouteChange() {
 		if (this.trafficAcct != null) {
-			this.trafficAcct.informRouteChange();
+			/*
+			 * If we're running speculatively the lane holds on to this till
+			 * the work is committed
+			 */
+			TimeWarpLane myLane = TimeWarpLane.getRunningLane();
+			if (myLane != null) {
+				myLane.holdRouteChange();
+			} else {
+				this.trafficAcct.informRouteChange();
+			}
+		}
+	}
+
+	/**
+	 * Has the daemon keep its RIBs in prefix tries instead of string keyed
+	 * hash maps.
+	 */
+	public void useTrieRIBs() {
+		this.bgpDaemon.useTrieRIBs();
+	}
+
+	/**
+	 * Has the daemon keep its RIBs packed into longs instead of holding Route
+	 * objects.
+	 */
+	public void useCompactRIBs() {
+		this.bgpDaemon.useCompactRIBs();
+	}
+
+	/**
+	 * Has the daemon keep its peer timers in a timer wheel instead of scanning
+	 * them on every timer check.
+	 */
+	public void useTimerWheel() {
+		this.bgpDaemon.useTimerWheel();
+	}
+
+	/**
+	 * Turns on journaling of every change our events make, so the router can
+	 * be rolled back to a checkpoint. This can't be done if the daemon runs
+	 * route flap dampening.
+	 * 
+	 * @return - true if rollback is now enabled, false if it is not supported
+	 */
+	public boolean enableRollback() {
+		if (this.bgpDaemon.usesDampening()) {
+			return false;
+		}
+
+		this.undoLog = new UndoLog();
+		this.bgpDaemon.setUndoLog(this.undoLog);
+		return true;
+	}
+
+	/**
+	 * Saves the state of the router and its daemon, enableRollback() must have
+	 * been called.
+	 * 
+	 * @return - a checkpoint that can be handed to restore()
+	 */
+	public Checkpoint checkpoint() {
+		Checkpoint retCheckpoint = new Checkpoint();
+		retCheckpoint.cpuWindow = this.cpuWindow;
+		retCheckpoint.localTime = this.localTime;
+		retCheckpoint.cpuScheduled = this.cpuScheduled;
+		retCheckpoint.logMark = this.undoLog.getMark();
+		retCheckpoint.daemonState = this.bgpDaemon.checkpoint();
+		this.dropRandJournaled = false;
+		return retCheckpoint;
+	}
+
+	/**
+	 * Rolls the router back to a checkpoint, undoing everything done since it
+	 * was taken. Checkpoints taken after this one are no longer valid.
+	 * 
+	 * @param savedState
+	 *            - the checkpoint to go back to
+	 */
+	public void restore(Checkpoint savedState) {
+		this.undoLog.rollBack(savedState.logMark);
+		this.bgpDaemon.restore(savedState.daemonState);
+		this.cpuWindow = savedState.cpuWindow;
+		this.localTime = savedState.localTime;
+		this.cpuScheduled = savedState.cpuScheduled;
+		this.dropRandJournaled = false;
+	}
+
+	/**
+	 * Throws away the journal from before a checkpoint, we can no longer roll
+	 * back past it.
+	 * 
+	 * @param oldestKept
+	 *            - the oldest checkpoint still needed, null if none are
+	 */
+	public void discardHistory(Checkpoint oldestKept) {
+		if (oldestKept == null) {
+			this.undoLog.discardTo(this.undoLog.getMark());
+		} else {
+			this.undoLog.discardTo(oldestKept.logMark);
 		}
 	}
 
@@ -442,8 +662,20 @@ public class Router implements SimAgent {
 	 * 
 	 * @param inMsg
 	 *            - the bgp message to add to the queue
+	 * @param arrivalTime
+	 *            - the time the message shows up at our door
 	 */
-	public void postMessage(BGPMessage inMsg) {
+	public void postMessage(BGPMessage inMsg, int arrivalTime) {
+		/*
+		 * Updates get changed as we process them, if we can be rolled back the
+		 * same update might be handed to us again, so work on a copy
+		 */
+		if (this.undoLog != null && inMsg.getMessageType() == Constants.BGP_UPDATE) {
+			inMsg = ((Update) inMsg).copy();
+		}
+
+		this.localTime = arrivalTime;
+		this.bgpDaemon.updateWallTime(arrivalTime);
 		this.bgpDaemon.addMessageToQueue(inMsg);
 		String ipStr = "0.0.0.0/0";
 		if (inMsg.getMessageType() == Constants.BGP_UPDATE) {
@@ -452,13 +684,12 @@ public class Router implements SimAgent {
 				ipStr = tUpdate.getAdvertised().getNlri().toString();
 			}
 		}
-		this.logger.logMessage(this.theDriver.getCurrentTime() + LoggingMessages.MESSAGE_ARRIVE
+		this.logger.logMessage(arrivalTime + LoggingMessages.MESSAGE_ARRIVE
 				+ inMsg.getMessageType() + LoggingMessages.TO + this.asn + LoggingMessages.FROM + inMsg.getSrcASN()
 				+ LoggingMessages.ON + ipStr, inMsg.getMessageType() == Constants.BGP_KEEPALIVE);
 
 		if (!this.cpuScheduled && inMsg.getMessageType() != Constants.BGP_KEEPALIVE) {
-			this.theDriver.postEvent(new SimEvent(SimEvent.ROUTERCPUFREE, Math.max(this.theDriver.getCurrentTime(),
-					this.cpuWindow), this));
+			this.theDriver.postRouterEvent(SimEvent.ROUTERCPUFREE, Math.max(arrivalTime, this.cpuWindow), this);
 			this.cpuScheduled = true;
 		}
 	}
@@ -466,31 +697,42 @@ public class Router implements SimAgent {
 	/**
 	 * Attempts to send messages that are in the "TCP" stack to their
 	 * destinations. This does a lot of the things TCP does, it ensures in order
-	 * delivery and handles retransmission.
+	 * delivery and handles retransmission. This runs on behalf of the
+	 * receiver, so the only state of ours it may touch is the stack itself,
+	 * which we lock since we might be adding to it at the same time.
 	 * 
-	 * @param currentTime
-	 *            - the current simulation wall time
+	 * @param tcpEvent
+	 *            - the send event, holds the packet and the stack it is in
 	 */
 	private void runTCP(TCPEvent tcpEvent) {
 		List<TCPPacket> tStack = tcpEvent.getTcpQueue();
 		TCPPacket tPacket = tcpEvent.getPacket();
-		if (tPacket.sendResult(this.trafficAcct.routerMessageWorks(this.asn, tPacket.getDst()))) {
-			while (tStack.size() > 0) {
-				tPacket = tStack.remove(0);
+		Router receiver = this.connectionMap.get(tPacket.getDst());
+		if (receiver.undoLog != null) {
+			Router.journalSendAttempt(receiver.undoLog, tPacket);
+		}
+		if (tPacket.sendResult(receiver.rollDelivery(this.asn))) {
+			synchronized (tStack) {
+				while (tStack.size() > 0) {
+					tPacket = tStack.remove(0);
+					if (receiver.undoLog != null) {
+						Router.journalRemoval(receiver.undoLog, tStack, tPacket);
+					}
 
-				if (tPacket.getArrived()) {
-					this.connectionMap.get(tPacket.getDst()).postMessage(tPacket.getMessage());
-				} else {
-					/*
-					 * Since we have to deliver messages in order, we put the
-					 * message back and stop delivering
-					 */
-					tStack.add(0, tPacket);
-					break;
+					if (tPacket.getArrived()) {
+						receiver.postMessage(tPacket.getMessage(), tcpEvent.getTime());
+					} else {
+						/*
+						 * Since we have to deliver messages in order, we put the
+						 * message back and stop delivering
+						 */
+						tStack.add(0, tPacket);
+						break;
+					}
 				}
 			}
 		} else {
-			this.theDriver.postEvent(new TCPEvent(tPacket.getTransTime(), this, tPacket, tStack));
+			this.theDriver.postEvent(new TCPEvent(tPacket.getTransTime(), this, receiver, tPacket, tStack));
 		}
 	}
 
@@ -504,14 +746,34 @@ public class Router implements SimAgent {
 	 */
 	public void sendMessage(int dstASN, BGPMessage msg) {
 		/*
-		 * Create this packet, the line card should try to fire this off next
-		 * sim tick, hence the plus one underneath
+		 * Routers run by another rank get the message through the driver,
+		 * the other rank puts it in the TCP stack at its end
 		 */
-		TCPPacket tempPacket = new TCPPacket(msg, this.theDriver.getCurrentTime() + 1, dstASN);
-		this.connectionStack.get(dstASN).add(tempPacket);
-		this.theDriver.postEvent(new TCPEvent(tempPacket.getTransTime(), this, tempPacket, this.connectionStack
-				.get(dstASN)));
-		this.logger.logMessage(this.theDriver.getCurrentTime() + LoggingMessages.MESSAGE_GEN + msg.getMessageType()
+		if (this.theDriver.isRemoteRouter(dstASN)) {
+			this.theDriver.sendRemote(this.asn, dstASN, msg, this.localTime + this.theDriver.getLinkLatency());
+			this.logger.logMessage(this.localTime + LoggingMessages.MESSAGE_GEN + msg.getMessageType()
+					+ LoggingMessages.TO + dstASN + LoggingMessages.FROM + this.asn, true);
+			return;
+		}
+
+		/*
+		 * Create this packet, the line card should try to fire this off once
+		 * the link latency has passed (one sim tick unless configured
+		 * otherwise), the parallel windows count on this gap
+		 */
+		List<TCPPacket> tStack = this.connectionStack.get(dstASN);
+		TCPPacket tempPacket = new TCPPacket(msg, this.localTime + this.theDriver.getLinkLatency(), dstASN);
+		this.packetCount++;
+		tempPacket.setSequence(this.packetCount);
+		synchronized (tStack) {
+			if (this.undoLog != null) {
+				Router.journalAppend(this.undoLog, tStack, tempPacket);
+			}
+			tStack.add(tempPacket);
+		}
+		this.theDriver.postEvent(new TCPEvent(tempPacket.getTransTime(), this, this.connectionMap.get(dstASN),
+				tempPacket, tStack));
+		this.logger.logMessage(this.localTime + LoggingMessages.MESSAGE_GEN + msg.getMessageType()
 				+ LoggingMessages.TO + dstASN + LoggingMessages.FROM + this.asn, true);
 	}
 
@@ -536,11 +798,54 @@ public class Router implements SimAgent {
 			this.connectionStack.put(asn, new LinkedList<TCPPacket>());
 			router.connectionMap.put(this.asn, this);
 			router.connectionStack.put(this.asn, new LinkedList<TCPPacket>());
-			this.bgpDaemon.updateWallTime(this.theDriver.getCurrentTime());
+			this.localTime = this.theDriver.getCurrentTime();
+			this.bgpDaemon.updateWallTime(this.localTime);
 			this.bgpDaemon.connectBGPPeer(asn);
 		}
 	}
 
+	/**
+	 * Adds a message sent by this router's real copy on another rank to the
+	 * "TCP" stack, this router is only a stand in for it on this rank. From
+	 * here on the message is handled just like one sent on this rank.
+	 * 
+	 * @param dstASN
+	 *            - the destination router, run by this rank
+	 * @param msg
+	 *            - the BGPMessage that was sent
+	 * @param transTime
+	 *            - the time the sending rank gave the packet
+	 */
+	public void sendFromRemote(int dstASN, BGPMessage msg, int transTime) {
+		List<TCPPacket> tStack = this.connectionStack.get(dstASN);
+		TCPPacket tempPacket = new TCPPacket(msg, transTime, dstASN);
+		this.packetCount++;
+		tempPacket.setSequence(this.packetCount);
+		synchronized (tStack) {
+			tStack.add(tempPacket);
+		}
+		this.theDriver.postEvent(new TCPEvent(transTime, this, this.connectionMap.get(dstASN), tempPacket, tStack));
+	}
+
+	/**
+	 * Hooks up the connection to a router run by another rank when that router
+	 * starts up. Both ends are set up like connectToRouter() does, but no
+	 * connect messages are sent, the other rank does that.
+	 * 
+	 * @param asn
+	 *            - the AS the other router is located in
+	 * @param remoteRouter
+	 *            - this rank's stand in for the other router
+	 */
+	public void connectFromRemote(int asn, Router remoteRouter) {
+		if (!this.isInitiallyConnected(asn)) {
+			this.connectionMap.put(asn, remoteRouter);
+			this.connectionStack.put(asn, new LinkedList<TCPPacket>());
+			remoteRouter.connectionMap.put(this.asn, this);
+			remoteRouter.connectionStack.put(this.asn, new LinkedList<TCPPacket>());
+		}
+	}
+
 	public void connectWithoutConnecting(int asn, Router router) {
 		this.connectionMap.put(asn, router);
 		this.connectionStack.put(asn, new LinkedList<TCPPacket>());
@@ -568,7 +873,331 @@ public class Router implements SimAgent {
 	 *            with
 	 */
 	public void clearTCPStack(int asn) {
-		this.connectionStack.get(asn).clear();
+		List<TCPPacket> tStack = this.connectionStack.get(asn);
+		synchronized (tStack) {
+			if (this.undoLog != null) {
+				for (TCPPacket tPacket : tStack) {
+					Router.journalRemoval(this.undoLog, tStack, tPacket);
+				}
+			}
+			tStack.clear();
+		}
+	}
+
+	/**
+	 * Predicate to test if all this router has going on is its periodic
+	 * timers, so it can be fast forwarded. On top of the daemon being quiet
+	 * (see BGPDaemon.isQuiescent()) the cpu must be idle, the only message we
+	 * may have in flight to a peer is the last keep alive we sent it, and
+	 * every link we send keep alives on must be sure to deliver them. None of
+	 * our halt timers may expire before the end time, or even be the next
+	 * timer, given the keep alives our peers send us in the mean time. With
+	 * analytic keep alives nothing may be in flight at all, and it is the
+	 * links in to us that must be sure to deliver.
+	 *
+	 * @param timerTime
+	 *            - the time of our pending timer check
+	 * @param endTime
+	 *            - the time to fast forward to
+	 * @return - true if we can be fast forwarded
+	 */
+	public boolean isQuiescent(int timerTime, int endTime) {
+		if (this.cpuScheduled || this.bgpDaemon.getMRAI() > Router.MAX_TIMER_WAIT
+				|| !this.bgpDaemon.isQuiescent(timerTime)) {
+			return false;
+		}
+
+		int haltTimer = this.bgpDaemon.getHaltTimer();
+		int mrai = this.bgpDaemon.getMRAI();
+		if (this.bgpDaemon.isAnalyticKeepAlives()) {
+			if (this.countInFlight() > 0) {
+				return false;
+			}
+
+			/*
+			 * modeled keep alives land on their due times, so the halt timer
+			 * only has to cover the time till the first one
+			 */
+			for (int tASN : this.bgpDaemon.getHaltPeers()) {
+				int dueTime = this.bgpDaemon.getKeepAliveDue(tASN);
+				if (dueTime < 0 || !this.connectionMap.containsKey(tASN)
+						|| this.trafficAcct.getMessageChance(tASN, this.asn) < 1.0
+						|| this.getPeerKeepalive(tASN) + mrai >= haltTimer
+						|| this.bgpDaemon.getLastSeen(tASN) + haltTimer <= Math.min(endTime, dueTime) + mrai) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		int linkLatency = this.theDriver.getLinkLatency();
+		for (int tASN : this.connectionStack.keySet()) {
+			if (this.connectionStack.get(tASN).size() > 0 && this.bgpDaemon.getLastKeepAlive(tASN) < 0) {
+				return false;
+			}
+		}
+		for (int tASN : this.bgpDaemon.getKeepAlivePeers()) {
+			List<TCPPacket> tStack = this.connectionStack.get(tASN);
+			if (tStack == null || tStack.size() > 1 || this.bgpDaemon.getKeepaliveTimer() <= linkLatency
+					|| this.trafficAcct.getMessageChance(this.asn, tASN) < 1.0) {
+				return false;
+			}
+			if (tStack.size() == 1) {
+				TCPPacket tPacket = tStack.get(0);
+				if (tPacket.getMessage().getMessageType() != Constants.BGP_KEEPALIVE || tPacket.getArrived()
+						|| tPacket.getTransTime() != this.bgpDaemon.getLastKeepAlive(tASN) + linkLatency) {
+					return false;
+				}
+			}
+		}
+
+		/*
+		 * Once a peer's keep alives are coming in every keep alive timer our
+		 * halt timer for it is always more then an advertisement window
+		 * away, so it never fires or sets when the next timer check is. Till
+		 * the first one shows up the last time we heard from them has to
+		 * cover it.
+		 */
+		for (int tASN : this.bgpDaemon.getHaltPeers()) {
+			int firstArrival = endTime;
+			Router sender = this.connectionMap.get(tASN);
+			int peerSent = -1;
+			if (sender != null) {
+				peerSent = sender.bgpDaemon.getLastKeepAlive(this.asn);
+			}
+			if (peerSent >= 0) {
+				int peerKeepalive = sender.bgpDaemon.getKeepaliveTimer();
+				if (peerKeepalive + mrai >= haltTimer) {
+					return false;
+				}
+				List<TCPPacket> peerStack = sender.connectionStack.get(this.asn);
+				if (peerStack != null && peerStack.size() > 0) {
+					firstArrival = Math.min(firstArrival, peerSent + linkLatency);
+				} else {
+					firstArrival = Math.min(firstArrival, peerSent + peerKeepalive + linkLatency);
+				}
+			}
+			if (this.bgpDaemon.getLastSeen(tASN) + haltTimer <= firstArrival + mrai) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Rolls if a keep alive from a peer would get through to us right now,
+	 * used by analytic keep alives in place of sending one.
+	 *
+	 * @param asn
+	 *            - the peer
+	 * @return - true if the keep alive is delivered
+	 */
+	public boolean keepAliveWorks(int asn) {
+		return this.rollDelivery(asn);
+	}
+
+	/**
+	 * Rolls if a message from a peer gets through to us, drawing from our own
+	 * random number gen and journaling it first if we can be rolled back.
+	 *
+	 * @param srcASN
+	 *            - the peer sending the message
+	 * @return - true if the message is delivered
+	 */
+	private boolean rollDelivery(int srcASN) {
+		if (this.undoLog != null && !this.dropRandJournaled) {
+			final Random oldRand = UndoLog.copyRandom(this.dropRand);
+			this.undoLog.record(new UndoLog.Entry() {
+				public void undo() {
+					Router.this.dropRand = oldRand;
+				}
+			});
+			this.dropRandJournaled = true;
+		}
+		return this.trafficAcct.routerMessageWorks(srcASN, this.asn, this.dropRand);
+	}
+
+	/**
+	 * Gets the keep alive timer a peer runs, the cadence its keep alives
+	 * reach us at.
+	 *
+	 * @param asn
+	 *            - the peer
+	 * @return - the peer's keep alive timer
+	 */
+	public int getPeerKeepalive(int asn) {
+		return this.connectionMap.get(asn).bgpDaemon.getKeepaliveTimer();
+	}
+
+	/**
+	 * Turns analytic keep alives on or off, see
+	 * BGPDaemon.setAnalyticKeepAlives().
+	 *
+	 * @param analytic
+	 *            - true to model keep alives instead of sending them
+	 */
+	public void setAnalyticKeepAlives(boolean analytic) {
+		this.bgpDaemon.setAnalyticKeepAlives(analytic);
+	}
+
+	/**
+	 * Counts the messages we have in flight, over all our "TCP" stacks.
+	 *
+	 * @return - the number of packets in our stacks
+	 */
+	public int countInFlight() {
+		int inFlight = 0;
+		for (List<TCPPacket> tStack : this.connectionStack.values()) {
+			inFlight += tStack.size();
+		}
+		return inFlight;
+	}
+
+	/**
+	 * Fast forwards this router over a quiet stretch, isQuiescent() must hold
+	 * for every router first. Every timer check before the end time is run
+	 * analytically: the advertisement window and keep alive timers are moved
+	 * on, and the keep alives that would have been sent are counted and, if
+	 * they would have arrived before the end time, noted as heard from us by
+	 * the peer. The last keep alive to a peer that would still be in flight at
+	 * the end time is put in the "TCP" stack and posted like any other. Keep
+	 * alives are only logged if the log is verbose, so nothing is logged here.
+	 * With analytic keep alives nothing is sent, the keep alives due from our
+	 * peers are resolved instead. finishFastForward() must be called once
+	 * every router is done.
+	 *
+	 * @param endTime
+	 *            - the time to fast forward to, all timer checks and keep
+	 *            alives before it are run
+	 */
+	public void fastForward(int endTime) {
+		int linkLatency = this.theDriver.getLinkLatency();
+		int keepaliveTimer = this.bgpDaemon.getKeepaliveTimer();
+		int lastEvent = Math.max(this.localTime, this.bgpDaemon.fastForwardAdvWindow(endTime));
+		List<TCPPacket> inFlight = new ArrayList<TCPPacket>();
+
+		if (this.bgpDaemon.isAnalyticKeepAlives()) {
+			lastEvent = Math.max(lastEvent, this.bgpDaemon.fastForwardKeepAliveDue(endTime));
+			this.localTime = lastEvent;
+			return;
+		}
+
+		for (int tASN : this.bgpDaemon.getKeepAlivePeers()) {
+			List<TCPPacket> tStack = this.connectionStack.get(tASN);
+			int lastArrival = -1;
+
+			/*
+			 * the keep alive already in flight lands if it is due before the
+			 * end time
+			 */
+			if (tStack.size() > 0 && tStack.get(0).getTransTime() < endTime) {
+				lastArrival = tStack.get(0).getTransTime();
+				tStack.clear();
+			}
+
+			int sendCount = this.bgpDaemon.fastForwardKeepAlive(tASN, endTime);
+			if (sendCount > 0) {
+				int lastSent = this.bgpDaemon.getLastKeepAlive(tASN);
+				lastEvent = Math.max(lastEvent, lastSent);
+				if (lastSent + linkLatency < endTime) {
+					lastArrival = lastSent + linkLatency;
+					this.packetCount += sendCount;
+				} else {
+					if (sendCount > 1) {
+						lastArrival = lastSent - keepaliveTimer + linkLatency;
+					}
+					this.packetCount += sendCount - 1;
+					TCPPacket tPacket = new TCPPacket(new KeepAlive(this.asn, lastSent), lastSent + linkLatency, tASN);
+					tStack.add(tPacket);
+					inFlight.add(tPacket);
+				}
+			}
+
+			if (lastArrival >= 0) {
+				Router receiver = this.connectionMap.get(tASN);
+				receiver.localTime = Math.max(receiver.localTime, lastArrival);
+				receiver.bgpDaemon.fastForwardLastSeen(this.asn, lastArrival);
+			}
+		}
+
+		/*
+		 * the keep alives still in flight were the last ones we sent, so
+		 * they get the last sequence numbers, in send order
+		 */
+		Collections.sort(inFlight, new Comparator<TCPPacket>() {
+			public int compare(TCPPacket lhs, TCPPacket rhs) {
+				return lhs.getTransTime() - rhs.getTransTime();
+			}
+		});
+		for (TCPPacket tPacket : inFlight) {
+			this.packetCount++;
+			tPacket.setSequence(this.packetCount);
+			this.theDriver.postEvent(new TCPEvent(tPacket.getTransTime(), this, this.connectionMap.get(tPacket
+					.getDst()), tPacket, this.connectionStack.get(tPacket.getDst())));
+		}
+
+		this.localTime = Math.max(this.localTime, lastEvent);
+	}
+
+	/**
+	 * Wraps up a fast forward once every router has been fast forwarded,
+	 * posting our next timer check.
+	 */
+	public void finishFastForward() {
+		this.bgpDaemon.finishFastForward(this.localTime);
+		this.theDriver.postRouterEvent(SimEvent.TIMEREXPIRE, this.bgpDaemon.getNextTimerExp(), this);
+	}
+
+	/*
+	 * Journal helpers for the TCP stacks. A stack is shared by the sending and
+	 * receiving router, who can be rolled back independently, and in any order.
+	 * To make that work packets are always put back in sequence order, and a
+	 * packet whose send was rolled back is cancelled so the receiver never
+	 * puts it back.
+	 */
+
+	private static void journalAppend(UndoLog log, final List<TCPPacket> stack, final TCPPacket packet) {
+		log.record(new UndoLog.Entry() {
+			public void undo() {
+				synchronized (stack) {
+					packet.cancel();
+					stack.remove(packet);
+				}
+			}
+		});
+	}
+
+	private static void journalRemoval(UndoLog log, final List<TCPPacket> stack, final TCPPacket packet) {
+		log.record(new UndoLog.Entry() {
+			public void undo() {
+				synchronized (stack) {
+					if (packet.isCancelled()) {
+						return;
+					}
+
+					int pos = 0;
+					for (TCPPacket tPacket : stack) {
+						if (tPacket.getSequence() > packet.getSequence()) {
+							break;
+						}
+						pos++;
+					}
+					stack.add(pos, packet);
+				}
+			}
+		});
+	}
+
+	private static void journalSendAttempt(UndoLog log, final TCPPacket packet) {
+		final int oldTime = packet.getTransTime();
+		final int oldInterval = packet.getRetransInterval();
+		final boolean oldArrived = packet.getArrived();
+		log.record(new UndoLog.Entry() {
+			public void undo() {
+				packet.restoreState(oldTime, oldInterval, oldArrived);
+			}
+		});
 	}
 
 	/**
@@ -624,7 +1253,12 @@ public class Router implements SimAgent {
 	}
 
 	public void notifySessionFail(int rhs, int time) {
-		this.theDriver.notifyBotSessionFailHack(this.asn, rhs, time);
+		TimeWarpLane myLane = TimeWarpLane.getRunningLane();
+		if (myLane != null) {
+			myLane.holdSessionFail(rhs, time);
+		} else {
+			this.theDriver.notifyBotSessionFailHack(this.asn, rhs, time);
+		}
 	}
 
 	public long getMemoryLoad() {
@@ -649,9 +1283,9 @@ public class Router implements SimAgent {
 		 */
 		//XXX make not a constant hard coded here?
 		for (Route tRoute : inRibDump) {
-			Integer weight = this.asWeights.get(this.netToASMappings.get(tRoute.getNlri()));
-			if (weight != null) {
-				memLoad += weight.longValue() * 440;
+			int weight = this.netWeights.getWeight(tRoute.getNlri());
+			if (weight >= 0) {
+				memLoad += (long) weight * 440;
 			}
 		}
 
@@ -1,18 +1,33 @@
 package sim.agents;
 
+import java.io.Serializable;
 import java.util.*;
 
+import bgp.dataStructures.CIDR;
 import bgp.dataStructures.Route;
 
 import sim.engine.SimDriver;
 import sim.event.*;
+import sim.logging.TraceRecorder;
 import sim.network.dataObjects.*;
 
 /**
  * Manages all traffic comings and goings.
  * 
  */
-public class TrafficAccountant implements SimAgent {
+public class TrafficAccountant implements SimAgent, Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Answers route lookups in place of the routers, used to replay a trace.
+	 */
+	public interface RouteLookup {
+
+		public int lookupNextHop(int asn, CIDR destNetwork);
+
+		public boolean lookupAccept(int asn, CIDR destNetwork, int srcASN);
+	}
 
 	/**
 	 * List of current attack flows that are active.
@@ -52,15 +67,10 @@ public class TrafficAccountant implements SimAgent {
 	 */
 	private HashSet<Link> killedLinks;
 
-	/**
-	 * Random number gen used for coin flip
-	 */
-	private Random rng;
-
 	/**
 	 * Sim framework we get and give events from and to.
 	 */
-	private SimDriver theDriver;
+	private transient SimDriver theDriver;
 
 	/**
 	 * Boolean flag for it we're currently scheduled to re-run flows because of
@@ -74,6 +84,17 @@ public class TrafficAccountant implements SimAgent {
 	 */
 	private int attackSize;
 
+	/**
+	 * Records the answers to our route lookups, null if no trace is kept
+	 */
+	private transient TraceRecorder traceRecorder;
+
+	/**
+	 * Answers our route lookups instead of the routers, null to ask the
+	 * routers
+	 */
+	private transient RouteLookup routeLookup;
+
 	/**
 	 * Number of bits in "line speed" lookup. (64 Bytes)
 	 */
@@ -109,7 +130,6 @@ public class TrafficAccountant implements SimAgent {
 		 * Objects needed for traffic dynamics
 		 */
 		this.attackSize = attackSize;
-		this.rng = new Random();
 
 		/*
 		 * Event objects
@@ -127,6 +147,29 @@ public class TrafficAccountant implements SimAgent {
 		}
 
 		this.killedLinks = new HashSet<Link>();
+		this.traceRecorder = null;
+		this.routeLookup = null;
+	}
+
+	/**
+	 * Makes us record the answer to every route lookup into a trace.
+	 * 
+	 * @param traceRecorder
+	 *            - the trace
+	 */
+	public void setTraceRecorder(TraceRecorder traceRecorder) {
+		this.traceRecorder = traceRecorder;
+	}
+
+	/**
+	 * Makes us take the answer to every route lookup from the given lookup
+	 * instead of the routers.
+	 * 
+	 * @param routeLookup
+	 *            - the lookup
+	 */
+	public void setRouteLookup(RouteLookup routeLookup) {
+		this.routeLookup = routeLookup;
 	}
 
 	public void setSimDriver(SimDriver inDriver) {
@@ -143,9 +186,12 @@ public class TrafficAccountant implements SimAgent {
 	 *            - the source router
 	 * @param destASN
 	 *            - the destination router
+	 * @param roller
+	 *            - the random number gen to flip the coin with, the
+	 *            destination router's own
 	 * @return - true if the message gets through, false if it does not
 	 */
-	public boolean routerMessageWorks(int srcASN, int destASN) {
+	public boolean routerMessageWorks(int srcASN, int destASN, Random roller) {
 		double roll;
 		double chance = -1.0;
 
@@ -172,7 +218,7 @@ public class TrafficAccountant implements SimAgent {
 		/*
 		 * weighted coin flip
 		 */
-		roll = this.rng.nextDouble();
+		roll = roller.nextDouble();
 		if (roll < chance) {
 			return true;
 		}
@@ -180,6 +226,24 @@ public class TrafficAccountant implements SimAgent {
 		return false;
 	}
 
+	/**
+	 * Fetches the chance a BGP message between two routers gets through given
+	 * the current traffic.
+	 * 
+	 * @param srcASN
+	 *            - the source router
+	 * @param destASN
+	 *            - the destination router
+	 * @return - the chance, 1.0 if no flow touches the link
+	 */
+	public double getMessageChance(int srcASN, int destASN) {
+		Double chance = this.messageChance.get(srcASN).get(destASN);
+		if (chance == null || chance < 0.0) {
+			return 1.0;
+		}
+		return chance;
+	}
+
 	public void giveEvent(SimEvent inEvent) {
 		/*
 		 * The attack flow event indicates that traffic flows have changed, the
@@ -253,7 +317,7 @@ public class TrafficAccountant implements SimAgent {
 	 * change
 	 * 
 	 */
-	public void informRouteChange() {
+	public synchronized void informRouteChange() {
 		/*
 		 * Check if we've already scheduled a refresh, if we have not then do
 		 * so, schedule it for now + epsilon (1 ms in this case), that way we
@@ -301,7 +365,6 @@ public class TrafficAccountant implements SimAgent {
 		int currentPacketCount = currentFlow.getSize() / this.attackSize;
 		int avilResource;
 		int nextHop;
-		Route tempRoute;
 		Link nextLink;
 
 		/*
@@ -314,11 +377,10 @@ public class TrafficAccountant implements SimAgent {
 			 * network is currently un-reachable by us therefore the traffic is
 			 * simply dropped here, otherwise get the next hop
 			 */
-			tempRoute = this.routerMap.get(currentAS).getRoute(currentFlow.getDstNetwork());
-			if (tempRoute == null) {
+			nextHop = this.lookupNextHop(currentAS, currentFlow.getDstNetwork());
+			if (nextHop == -1) {
 				break;
 			}
-			nextHop = tempRoute.getNextHop();
 			nextLink = this.asMap.get(currentAS).getLinkToNeighbor(nextHop);
 
 			/*
@@ -374,7 +436,7 @@ public class TrafficAccountant implements SimAgent {
 			 * the data, resources are still consumed as policies are applied
 			 * after the bandwidth and lookup rate is expended
 			 */
-			if (!this.routerMap.get(nextHop).acceptTraffic(currentFlow.getDstNetwork(), currentAS)) {
+			if (!this.lookupAccept(nextHop, currentFlow.getDstNetwork(), currentAS)) {
 				break;
 			}
 
@@ -386,6 +448,56 @@ public class TrafficAccountant implements SimAgent {
 		}
 	}
 
+	/**
+	 * Asks a router (or the route lookup) for its next hop toward a network.
+	 * 
+	 * @param asn
+	 *            - the router
+	 * @param destNetwork
+	 *            - the destination network
+	 * @return - the next hop, -1 if the router has no route
+	 */
+	private int lookupNextHop(int asn, CIDR destNetwork) {
+		if (this.routeLookup != null) {
+			return this.routeLookup.lookupNextHop(asn, destNetwork);
+		}
+
+		Route tempRoute = this.routerMap.get(asn).getRoute(destNetwork);
+		int retHop = -1;
+		if (tempRoute != null) {
+			retHop = tempRoute.getNextHop();
+		}
+
+		if (this.traceRecorder != null) {
+			this.traceRecorder.recordRoute(asn, destNetwork, retHop);
+		}
+		return retHop;
+	}
+
+	/**
+	 * Asks a router (or the route lookup) if it lets traffic from a neighbor
+	 * through toward a network.
+	 * 
+	 * @param asn
+	 *            - the router
+	 * @param destNetwork
+	 *            - the destination network
+	 * @param srcASN
+	 *            - the neighbor the traffic comes from
+	 * @return - true if the traffic is let through
+	 */
+	private boolean lookupAccept(int asn, CIDR destNetwork, int srcASN) {
+		if (this.routeLookup != null) {
+			return this.routeLookup.lookupAccept(asn, destNetwork, srcASN);
+		}
+
+		boolean retAccept = this.routerMap.get(asn).acceptTraffic(destNetwork, srcASN);
+		if (this.traceRecorder != null) {
+			this.traceRecorder.recordAccept(asn, destNetwork, srcASN, retAccept);
+		}
+		return retAccept;
+	}
+
 	/**
 	 * Computes the chance a BGP message will make it to its destination given
 	 * the current load on outgoing and incoming resources.
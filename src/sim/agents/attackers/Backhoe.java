@@ -13,6 +13,8 @@ import sim.network.dataObjects.*;
 
 public class Backhoe extends VelvetHammer {
 
+	private static final long serialVersionUID = 1L;
+
 	private List<Link> currentAttack;
 	private int restartDelay;
 	private int cycleCount;
@@ -10,6 +10,8 @@ import sim.network.dataObjects.*;
 
 public class Slammer extends BotMaster {
 
+	private static final long serialVersionUID = 1L;
+
 	private HashMap<Integer, AS> asMap;
 
 	public Slammer(HashMap<Integer, AS> asMap, TrafficAccountant trafficMgmt, String configFile) throws IOException {
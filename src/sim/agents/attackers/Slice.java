@@ -1,6 +1,10 @@
 package sim.agents.attackers;
 
-public class Slice implements Comparable<Slice> {
+import java.io.Serializable;
+
+public class Slice implements Comparable<Slice>, Serializable {
+
+	private static final long serialVersionUID = 1L;
 
 	private int start;
 	private int end;
@@ -1,6 +1,10 @@
 package sim.agents.attackers;
 
-public class SlicingQueue {
+import java.io.Serializable;
+
+public class SlicingQueue implements Serializable {
+
+	private static final long serialVersionUID = 1L;
 
 	private Slice mySlices;
 
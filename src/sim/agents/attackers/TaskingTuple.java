@@ -1,5 +1,6 @@
 package sim.agents.attackers;
 
+import java.io.Serializable;
 import java.util.*;
 
 /**
@@ -8,7 +9,9 @@ import java.util.*;
  * bot code to return values cleanly.
  * 
  */
-public class TaskingTuple {
+public class TaskingTuple implements Serializable {
+
+	private static final long serialVersionUID = 1L;
 
 	private int attackDest;
 	private long maxAttackVolume;
@@ -12,6 +12,8 @@ import sim.network.dataObjects.*;
 
 public class VelvetHammer extends BotMaster {
 
+	private static final long serialVersionUID = 1L;
+
 	protected HashMap<Integer, AS> asMap;
 	protected HashMap<Integer, Router> routerMap;
 	protected HashMap<Link, Double> loadMap;
@@ -87,7 +87,9 @@ public class ASConfigGenerator {
 	/**
 	 * Actually generates and builds the AS config file for a given AS. This
 	 * will result in a file being written to the path that is returned by a
-	 * call to getConfigFileName for the given AS.
+	 * call to getConfigFileName for the given AS. The file is written under a
+	 * temp name and then renamed into place, the ranks of a split sim all
+	 * write the same files and must never read a half written one.
 	 * 
 	 * @param incAS
 	 *            - the ASN of the AS we want a config file for
@@ -107,7 +109,8 @@ public class ASConfigGenerator {
 		 * Figure out the file name, open up the file we're writing to
 		 */
 		String fileName = this.getConfigFileName(incAS);
-		PrintStream outStream = new PrintStream(new FileOutputStream(fileName));
+		File tempFile = File.createTempFile("as" + incAS.getASNumber() + "_", ".tmp", new File(ASConfigGenerator.IOSDIR));
+		PrintStream outStream = new PrintStream(new FileOutputStream(tempFile));
 
 		/*
 		 * Figure out if we're using the large config or small config, do some
@@ -182,6 +185,10 @@ public class ASConfigGenerator {
 		outStream.println("import stop");
 
 		outStream.close();
+		if (!tempFile.renameTo(new File(fileName))) {
+			tempFile.delete();
+			throw new IOException("could not move config file into place: " + fileName);
+		}
 		return fileName;
 	}
 
@@ -0,0 +1,262 @@
+package sim.engine;
+
+/**
+ * Tunes epoch execution while the sim runs. Two decisions are made.
+ *
+ * Whether to run an epoch inline on the driver thread: handing tasks to the
+ * pool and waiting on the wall has a fixed cost, and most epochs are only one
+ * or two tasks wide, so it is often cheaper for the driver to just run them.
+ * We keep a running average of the cost of a task (timed from inline epochs)
+ * and of the hand off overhead (the part of a pooled epoch's wall time not
+ * explained by its tasks), and run an epoch inline if its tasks would take
+ * less time one after the other then spread over the workers plus the
+ * overhead. Every so often an epoch that would be inlined is pooled anyway so
+ * the overhead estimate doesn't go stale.
+ *
+ * How many workers are active: every so many epochs the task throughput of
+ * pooled epochs (tasks per ns of wall time) is compared with the last
+ * period's, and the active count keeps moving in the same direction while
+ * throughput holds up, otherwise it turns around. It is never raised past
+ * the average width of the pooled epochs, there is no point in having more
+ * workers then tasks. Only the semaphore pool can park workers, with other
+ * pools only the inline decision is made.
+ *
+ * Every active count change is logged to the console. Only ever touched by
+ * the driver thread.
+ *
+ */
+public class AdaptiveController {
+
+	/**
+	 * Number of epochs between active worker decisions.
+	 */
+	private static final int PERIOD = 1000;
+
+	/**
+	 * Pool every this many epochs that would be run inline.
+	 */
+	private static final int PROBE_EVERY = 32;
+
+	/**
+	 * Weight of a new sample in the running averages.
+	 */
+	private static final double ALPHA = 0.05;
+
+	/**
+	 * How much throughput may drop before we turn around.
+	 */
+	private static final double TOLERANCE = 0.97;
+
+	/**
+	 * Largest epoch width considered when working out the inline threshold
+	 * for the log.
+	 */
+	private static final int MAX_THRESHOLD = 256;
+
+	private SimWorkerPool resizablePool;
+
+	private int workerCount;
+	private int activeWorkers;
+
+	/**
+	 * Running averages, in ns, negative till the first sample.
+	 */
+	private double taskCost;
+	private double handOffCost;
+
+	private int inlineSkips;
+
+	/**
+	 * Stats for the current period.
+	 */
+	private int periodEpochs;
+	private long periodPooledEpochs;
+	private long periodPooledTasks;
+	private long periodWallNanos;
+
+	private double lastThroughput;
+	private int direction;
+
+	/**
+	 * Totals, reported when the sim finishes.
+	 */
+	private long inlineEpochs;
+	private long pooledEpochs;
+
+	/**
+	 * Builds a controller for the given pool.
+	 *
+	 * @param workerPool
+	 *            - the driver's pool, active workers are only tuned if it is a
+	 *            semaphore pool
+	 * @param workerCount
+	 *            - the number of worker threads in the pool
+	 */
+	public AdaptiveController(WorkerPool workerPool, int workerCount) {
+		this.resizablePool = null;
+		if (workerPool instanceof SimWorkerPool) {
+			this.resizablePool = (SimWorkerPool) workerPool;
+		}
+		this.workerCount = workerCount;
+		this.activeWorkers = workerCount;
+		this.taskCost = -1.0;
+		this.handOffCost = -1.0;
+		this.inlineSkips = 0;
+		this.periodEpochs = 0;
+		this.periodPooledEpochs = 0;
+		this.periodPooledTasks = 0;
+		this.periodWallNanos = 0;
+		this.lastThroughput = -1.0;
+		this.direction = -1;
+		this.inlineEpochs = 0;
+		this.pooledEpochs = 0;
+	}
+
+	/**
+	 * Decides if an epoch should be run on the driver thread.
+	 *
+	 * @param taskCount
+	 *            - the number of tasks in the epoch
+	 * @return - true if the driver should run the tasks itself
+	 */
+	public boolean runInline(int taskCount) {
+		if (taskCount < 2) {
+			return true;
+		}
+		if (this.taskCost < 0.0 || this.handOffCost < 0.0) {
+			return this.taskCost < 0.0;
+		}
+
+		if (this.inlineWins(taskCount)) {
+			this.inlineSkips++;
+			if (this.inlineSkips < AdaptiveController.PROBE_EVERY) {
+				return true;
+			}
+		}
+		this.inlineSkips = 0;
+		return false;
+	}
+
+	/**
+	 * Checks the cost model, inline wins if the tasks run back to back take
+	 * less time then the hand off plus the tasks spread over the workers.
+	 */
+	private boolean inlineWins(int taskCount) {
+		int lanes = Math.min(taskCount, this.activeWorkers);
+		return taskCount * this.taskCost < this.handOffCost + taskCount * this.taskCost / lanes;
+	}
+
+	/**
+	 * Reports an epoch the driver ran itself.
+	 *
+	 * @param taskCount
+	 *            - the number of tasks run
+	 * @param wallNanos
+	 *            - how long they took
+	 */
+	public void inlineDone(int taskCount, long wallNanos) {
+		if (taskCount > 0) {
+			this.taskCost = AdaptiveController.blend(this.taskCost, (double) wallNanos / (double) taskCount);
+		}
+		this.inlineEpochs++;
+		this.endEpoch();
+	}
+
+	/**
+	 * Reports an epoch run by the pool.
+	 *
+	 * @param taskCount
+	 *            - the number of tasks run
+	 * @param wallNanos
+	 *            - time from the first hand off to the wall opening
+	 */
+	public void pooledDone(int taskCount, long wallNanos) {
+		if (this.taskCost >= 0.0) {
+			int lanes = Math.min(taskCount, this.activeWorkers);
+			double overhead = Math.max(0.0, wallNanos - taskCount * this.taskCost / lanes);
+			this.handOffCost = AdaptiveController.blend(this.handOffCost, overhead);
+		}
+		this.pooledEpochs++;
+		this.periodPooledEpochs++;
+		this.periodPooledTasks += taskCount;
+		this.periodWallNanos += wallNanos;
+		this.endEpoch();
+	}
+
+	private static double blend(double average, double sample) {
+		if (average < 0.0) {
+			return sample;
+		}
+		return average + AdaptiveController.ALPHA * (sample - average);
+	}
+
+	/**
+	 * Counts an epoch, moving the active worker count at the end of each
+	 * period.
+	 */
+	private void endEpoch() {
+		this.periodEpochs++;
+		if (this.periodEpochs < AdaptiveController.PERIOD) {
+			return;
+		}
+
+		if (this.resizablePool != null && this.periodPooledEpochs > 0 && this.periodWallNanos > 0) {
+			double throughput = (double) this.periodPooledTasks / (double) this.periodWallNanos;
+			double avgWidth = (double) this.periodPooledTasks / (double) this.periodPooledEpochs;
+			if (this.lastThroughput >= 0.0 && throughput < this.lastThroughput * AdaptiveController.TOLERANCE) {
+				this.direction = -this.direction;
+			}
+			this.lastThroughput = throughput;
+
+			int ceiling = Math.max(1, Math.min(this.workerCount, (int) Math.ceil(avgWidth)));
+			int newActive = Math.max(1, Math.min(ceiling, this.activeWorkers + this.direction));
+			if (newActive == this.activeWorkers && this.activeWorkers + this.direction != newActive) {
+				this.direction = -this.direction;
+			}
+
+			if (newActive != this.activeWorkers) {
+				System.out.println("adaptive epochs: avg width " + avgWidth + " avg wall "
+						+ ((double) this.periodWallNanos / (double) this.periodPooledEpochs / 1000.0)
+						+ " us, inline threshold " + this.getInlineThreshold() + " tasks, active workers "
+						+ this.activeWorkers + " -> " + newActive);
+				this.activeWorkers = newActive;
+				this.resizablePool.setActiveWorkers(newActive);
+			}
+		}
+
+		this.periodEpochs = 0;
+		this.periodPooledEpochs = 0;
+		this.periodPooledTasks = 0;
+		this.periodWallNanos = 0;
+	}
+
+	/**
+	 * Works out the widest epoch that is run inline under the current
+	 * estimates.
+	 *
+	 * @return - the threshold, 1 if no estimates exist yet
+	 */
+	public int getInlineThreshold() {
+		if (this.taskCost < 0.0 || this.handOffCost < 0.0) {
+			return 1;
+		}
+
+		int retThreshold = 1;
+		while (retThreshold < AdaptiveController.MAX_THRESHOLD && this.inlineWins(retThreshold + 1)) {
+			retThreshold++;
+		}
+		return retThreshold;
+	}
+
+	/**
+	 * Builds the stats line printed when the sim is done.
+	 *
+	 * @return - the stats
+	 */
+	public String getReport() {
+		return "adaptive epochs: " + this.inlineEpochs + " inline, " + this.pooledEpochs
+				+ " pooled, inline threshold " + this.getInlineThreshold() + " tasks, task cost "
+				+ (this.taskCost / 1000.0) + " us, hand off " + (this.handOffCost / 1000.0) + " us, active workers "
+				+ this.activeWorkers + " of " + this.workerCount;
+	}
+}
@@ -0,0 +1,159 @@
+package sim.engine;
+
+import java.util.*;
+
+import sim.network.dataObjects.AS;
+
+/**
+ * Splits the AS graph into one part per worker, so each router has a home
+ * worker. Neighbouring ASes talk to each other all the time (their TCP stacks
+ * and message queues are touched from both ends), so we want them on the same
+ * worker, but we also want the expected load of the parts to be about even.
+ *
+ * This is a linear deterministic greedy streaming partition: ASes are visited
+ * breadth first, starting from the heaviest AS not placed yet and moving to
+ * heavier neighbours first, and each is put in the part holding the most of
+ * its neighbours, scaled down by how full that part is. Parts that are over
+ * capacity are only used if every part is.
+ *
+ */
+public class AffinityPartitioner {
+
+	/**
+	 * How far over an even split a part may go, as a fraction.
+	 */
+	private static final double SLACK = 0.05;
+
+	/**
+	 * Orders ASes by load, heaviest first, ties by ASN so the result doesn't
+	 * depend on hash order.
+	 */
+	private static class LoadComparator implements Comparator<AS> {
+
+		private Map<Integer, Long> loadMap;
+
+		private LoadComparator(Map<Integer, Long> loadMap) {
+			this.loadMap = loadMap;
+		}
+
+		public int compare(AS lhs, AS rhs) {
+			int loadCompare = this.loadMap.get(rhs.getASNumber()).compareTo(this.loadMap.get(lhs.getASNumber()));
+			if (loadCompare != 0) {
+				return loadCompare;
+			}
+			return lhs.getASNumber().compareTo(rhs.getASNumber());
+		}
+	}
+
+	/**
+	 * Assigns every AS in the load map a part.
+	 *
+	 * @param asMap
+	 *            - the AS graph, by ASN
+	 * @param loadMap
+	 *            - the expected load of every AS to place, by ASN, ASes not
+	 *            in here (or not in the AS graph) are ignored
+	 * @param partCount
+	 *            - the number of parts
+	 * @return - the part (0 to partCount - 1) of each AS, by ASN
+	 */
+	public static Map<Integer, Integer> partition(Map<Integer, AS> asMap, Map<Integer, Long> loadMap, int partCount) {
+		Map<Integer, Integer> retMap = new HashMap<Integer, Integer>();
+		long[] partLoads = new long[partCount];
+		int[] neighborCounts = new int[partCount];
+		LoadComparator loadCompare = new LoadComparator(loadMap);
+
+		long totalLoad = 0;
+		List<AS> rootOrder = new ArrayList<AS>();
+		for (int tASN : loadMap.keySet()) {
+			if (asMap.containsKey(tASN)) {
+				totalLoad += loadMap.get(tASN);
+				rootOrder.add(asMap.get(tASN));
+			}
+		}
+		Collections.sort(rootOrder, loadCompare);
+		double capacity = Math.max(1.0, (double) totalLoad / (double) partCount * (1.0 + AffinityPartitioner.SLACK));
+
+		for (AS rootAS : rootOrder) {
+			if (retMap.containsKey(rootAS.getASNumber())) {
+				continue;
+			}
+
+			LinkedList<AS> bfsQueue = new LinkedList<AS>();
+			bfsQueue.add(rootAS);
+			retMap.put(rootAS.getASNumber(), -1);
+			while (!bfsQueue.isEmpty()) {
+				AS tAS = bfsQueue.poll();
+				long tLoad = loadMap.get(tAS.getASNumber());
+
+				/*
+				 * Count our neighbours already placed in each part, and queue
+				 * up the ones that aren't seen yet, heaviest first
+				 */
+				Arrays.fill(neighborCounts, 0);
+				List<AS> newNeighbors = new ArrayList<AS>();
+				for (AS tNeighbor : tAS.getAllNeighbors()) {
+					if (!loadMap.containsKey(tNeighbor.getASNumber())) {
+						continue;
+					}
+					Integer neighborPart = retMap.get(tNeighbor.getASNumber());
+					if (neighborPart == null) {
+						newNeighbors.add(tNeighbor);
+						retMap.put(tNeighbor.getASNumber(), -1);
+					} else if (neighborPart >= 0) {
+						neighborCounts[neighborPart]++;
+					}
+				}
+				Collections.sort(newNeighbors, loadCompare);
+				bfsQueue.addAll(newNeighbors);
+
+				retMap.put(tAS.getASNumber(), AffinityPartitioner.pickPart(partLoads, neighborCounts, tLoad, capacity));
+				partLoads[retMap.get(tAS.getASNumber())] += tLoad;
+			}
+		}
+
+		return retMap;
+	}
+
+	/**
+	 * Picks the part for one AS.
+	 *
+	 * @param partLoads
+	 *            - the load placed in each part so far
+	 * @param neighborCounts
+	 *            - the number of the AS's neighbours in each part
+	 * @param load
+	 *            - the AS's own load
+	 * @param capacity
+	 *            - the load a part should stay under
+	 * @return - the part
+	 */
+	private static int pickPart(long[] partLoads, int[] neighborCounts, long load, double capacity) {
+		int bestPart = -1;
+		double bestScore = -1.0;
+		int lightestPart = 0;
+		for (int counter = 0; counter < partLoads.length; counter++) {
+			if (partLoads[counter] < partLoads[lightestPart]) {
+				lightestPart = counter;
+			}
+			if (partLoads[counter] + load > capacity) {
+				continue;
+			}
+
+			/*
+			 * Every part that fits scores at least a little so empty parts
+			 * still fill up, ties go to the lighter part
+			 */
+			double score = (neighborCounts[counter] + 1) * (1.0 - (double) partLoads[counter] / capacity);
+			if (score > bestScore || (score == bestScore && partLoads[counter] < partLoads[bestPart])) {
+				bestScore = score;
+				bestPart = counter;
+			}
+		}
+
+		if (bestPart == -1) {
+			return lightestPart;
+		}
+		return bestPart;
+	}
+}
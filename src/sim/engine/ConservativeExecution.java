@@ -0,0 +1,101 @@
+package sim.engine;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import sim.agents.SimAgent;
+import sim.event.SimEvent;
+import sim.util.ConfigFileHelper;
+
+/**
+ * Runs the sim in conservative windows. A router can't affect another router
+ * sooner then the link latency after it does something, so every router event
+ * in [t, t + lookahead) can be run without waiting on any other router. Each
+ * router's events in the window are bundled into a lane that runs in order on
+ * one worker, the lanes run in parallel.
+ *
+ * Note that a router resetting a session clears its TCP stack, in a window
+ * wider then 1 ms the receiver may pull packets off that stack before the
+ * clear instead of after it. Those packets are from the old session, and are
+ * thrown away by the receiving daemon.
+ *
+ */
+public class ConservativeExecution extends WindowExecution {
+
+	/**
+	 * Width of a window in ms, never larger then the link latency
+	 */
+	private int lookahead;
+
+	/**
+	 * Reads the lookahead out of the config file, it defaults to the link
+	 * latency. A lookahead larger then the latency would let a message land
+	 * inside the window it was sent in, so it is cut down to the latency.
+	 *
+	 * @param theDriver
+	 *            - the driver of the run
+	 * @param simConfig
+	 *            - the sim config file
+	 */
+	public ConservativeExecution(SimDriver theDriver, ConfigFileHelper simConfig) {
+		super(theDriver, false);
+		int linkLatency = theDriver.getLinkLatency();
+		this.lookahead = linkLatency;
+		String lookStr = simConfig.getValue(SimDriver.LOOKAHEAD);
+		if (lookStr != null && !lookStr.equals(SimDriver.LOOKAHEAD_AUTO)) {
+			this.lookahead = SimDriver.parseConfigInt(SimDriver.LOOKAHEAD, lookStr);
+			if (this.lookahead > linkLatency) {
+				System.err.println("lookahead window of " + this.lookahead + " ms is larger then the link latency, using "
+						+ linkLatency + " ms");
+				this.lookahead = linkLatency;
+			}
+		}
+	}
+
+	public void runSim() {
+		SimEvent currentEvent;
+		HashMap<SimAgent, EventLane> laneMap = new HashMap<SimAgent, EventLane>();
+		List<SimEvent> windowList = new ArrayList<SimEvent>();
+
+		while ((currentEvent = this.nextWindowStart()) != null) {
+			int endTime = this.gatherWindow(currentEvent, this.lookahead, windowList);
+			laneMap.clear();
+			for (SimEvent tEvent : windowList) {
+				EventLane tLane = laneMap.get(tEvent.getAffinity());
+				if (tLane == null) {
+					laneMap.put(tEvent.getAffinity(), new EventLane(tEvent));
+				} else {
+					tLane.addEvent(tEvent);
+				}
+			}
+
+			/*
+			 * Open the window, hand out the lanes and wait for them all
+			 */
+			this.windowEnd = endTime;
+			long windowStart = this.metrics.epochStarting();
+			for (EventLane tLane : laneMap.values()) {
+				this.workerPool.addTask(tLane);
+			}
+			this.workerPool.blockOnEpoch(this.eventQueue);
+			this.metrics.epochEnded(windowStart, laneMap.size(), this.theDriver.getCurrentTime());
+			this.windowEnd = Integer.MIN_VALUE;
+
+			this.windowCount++;
+			this.windowLanes += laneMap.size();
+			for (EventLane tLane : laneMap.values()) {
+				this.windowEvents += tLane.getDispatchCount();
+			}
+		}
+	}
+
+	public String getReport() {
+		if (this.windowCount == 0) {
+			return null;
+		}
+		return "conservative windows: " + this.windowCount + " (lookahead " + this.lookahead + " ms) avg lanes: "
+				+ ((double) this.windowLanes / (double) this.windowCount) + " avg events: "
+				+ ((double) this.windowEvents / (double) this.windowCount);
+	}
+}
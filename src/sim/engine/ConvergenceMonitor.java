@@ -0,0 +1,203 @@
+package sim.engine;
+
+import java.io.Serializable;
+import java.util.*;
+
+import bgp.messages.Constants;
+import sim.agents.BotMaster;
+import sim.event.SimEvent;
+import sim.event.TCPEvent;
+
+/**
+ * Watches a run for convergence, and decides when it can be cut short. Three
+ * things are tracked off the events the driver takes from the queue:
+ *
+ * BGP updates: every TCP send carrying an update, along with the last time
+ * each AS had one arrive.
+ *
+ * RIB changes: routers tell the traffic accountant whenever their routes
+ * change, which it turns into at most one ROUTECHANGE event per ms, so each
+ * of those is at least one RIB change somewhere in the network.
+ *
+ * Disturbances: anything that can knock the network out of a steady state,
+ * which is attack flow and link up/down events and any event for the bot
+ * master or the driver (router boot up). These are noted when they are
+ * posted, not when they run, so a link the bot master has scheduled to come
+ * back up later keeps the run going till then.
+ *
+ * Once no update and no RIB change has been seen for the quiet time, and the
+ * quiet time has also passed since the last disturbance (including any still
+ * waiting in the queue), the network is taken as converged and the run can
+ * stop. Nothing is stopped before the earliest stop time.
+ *
+ * Only ever touched by the driver thread, disturbances are only ever posted by
+ * the driver thread (the bot master and traffic accountant never run on the
+ * workers).
+ *
+ */
+public class ConvergenceMonitor implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private int quietTime;
+
+	private int earliestStop;
+
+	/**
+	 * Last time each thing was seen, -1 if never
+	 */
+	private int lastUpdate;
+	private int lastRibChange;
+	private int lastDisturbance;
+
+	/**
+	 * Last update arrival time, by the receiving ASN
+	 */
+	private HashMap<Integer, Integer> lastArrival;
+
+	private long updateCount;
+	private long ribChangeCount;
+
+	/**
+	 * Sim time the monitor stopped the run at, -1 if it didn't
+	 */
+	private int stoppedAt;
+
+	/**
+	 * Builds a monitor.
+	 *
+	 * @param quietTime
+	 *            - ms without updates, RIB changes or disturbances before the
+	 *            run is stopped
+	 * @param earliestStop
+	 *            - the run is never stopped before this sim time
+	 */
+	public ConvergenceMonitor(int quietTime, int earliestStop) {
+		this.quietTime = quietTime;
+		this.earliestStop = earliestStop;
+		this.lastUpdate = -1;
+		this.lastRibChange = -1;
+		this.lastDisturbance = -1;
+		this.lastArrival = new HashMap<Integer, Integer>();
+		this.updateCount = 0;
+		this.ribChangeCount = 0;
+		this.stoppedAt = -1;
+	}
+
+	/**
+	 * Looks at an event as it is posted, noting disturbances.
+	 *
+	 * @param inEvent
+	 *            - the posted event
+	 */
+	public void eventPosted(SimEvent inEvent) {
+		if (inEvent.getType() == SimEvent.ATTACKFLOW || inEvent.getType() == SimEvent.LINKUPDOWN
+				|| inEvent.getAffinity() instanceof BotMaster || inEvent.getAffinity() instanceof SimDriver) {
+			this.lastDisturbance = Math.max(this.lastDisturbance, inEvent.getTime());
+		}
+	}
+
+	/**
+	 * Looks at an event as it is taken off the event queue, noting updates
+	 * and RIB changes.
+	 *
+	 * @param inEvent
+	 *            - the event
+	 */
+	public void eventTaken(SimEvent inEvent) {
+		if (inEvent.getType() == SimEvent.TCPSEND) {
+			TCPEvent tcpEvent = (TCPEvent) inEvent;
+			if (tcpEvent.getPacket().getMessage().getMessageType() == Constants.BGP_UPDATE) {
+				this.lastUpdate = inEvent.getTime();
+				this.lastArrival.put(tcpEvent.getPacket().getDst(), inEvent.getTime());
+				this.updateCount++;
+			}
+		} else if (inEvent.getType() == SimEvent.ROUTECHANGE) {
+			this.lastRibChange = inEvent.getTime();
+			this.ribChangeCount++;
+		}
+	}
+
+	/**
+	 * Checks if the network has been quiet long enough to stop, remembering
+	 * the time if so.
+	 *
+	 * @param currentTime
+	 *            - the current sim time
+	 * @return - true if the run should stop
+	 */
+	public boolean isConverged(int currentTime) {
+		if (!this.isQuiet(currentTime)) {
+			return false;
+		}
+		this.markStopped(currentTime);
+		return true;
+	}
+
+	/**
+	 * Checks if what this monitor has seen has been quiet long enough to
+	 * stop, without remembering anything. Used when the call to stop is made
+	 * together with other monitors (see RankTransport).
+	 *
+	 * @param currentTime
+	 *            - the current sim time
+	 * @return - true if this monitor would stop the run
+	 */
+	public boolean isQuiet(int currentTime) {
+		if (currentTime < this.earliestStop) {
+			return false;
+		}
+
+		int lastActivity = Math.max(this.lastDisturbance, Math.max(this.lastUpdate, this.lastRibChange));
+		return currentTime - lastActivity >= this.quietTime;
+	}
+
+	/**
+	 * Gets the earliest sim time this monitor could stop the run at, given
+	 * what it has seen so far.
+	 *
+	 * @return - the time the run would be quiet long enough to stop
+	 */
+	public int getQuietAt() {
+		int lastActivity = Math.max(this.lastDisturbance, Math.max(this.lastUpdate, this.lastRibChange));
+		return Math.max(this.earliestStop, lastActivity + this.quietTime);
+	}
+
+	/**
+	 * Notes that the run was stopped, for the report.
+	 *
+	 * @param currentTime
+	 *            - the sim time the run stopped at
+	 */
+	public void markStopped(int currentTime) {
+		this.stoppedAt = currentTime;
+	}
+
+	/**
+	 * Builds the convergence stats line printed when the sim is done. The
+	 * per AS numbers are how long after the last disturbance each AS got its
+	 * last update, for the ASes that got one after it.
+	 *
+	 * @return - the stats
+	 */
+	public String getReport() {
+		int settledCount = 0;
+		long settleSum = 0;
+		int settleMax = 0;
+		for (int tArrival : this.lastArrival.values()) {
+			if (tArrival >= this.lastDisturbance) {
+				int settleTime = tArrival - this.lastDisturbance;
+				settledCount++;
+				settleSum += settleTime;
+				settleMax = Math.max(settleMax, settleTime);
+			}
+		}
+
+		return "convergence: " + (this.stoppedAt >= 0 ? "stopped early at " + this.stoppedAt : "ran to the end")
+				+ " updates: " + this.updateCount + " rib changes: " + this.ribChangeCount + " last disturbance: "
+				+ this.lastDisturbance + " last update: " + this.lastUpdate + " last rib change: "
+				+ this.lastRibChange + " ases updated after last disturbance: " + settledCount + " avg settle: "
+				+ (settledCount > 0 ? (double) settleSum / (double) settledCount : 0.0) + " ms max settle: "
+				+ settleMax + " ms";
+	}
+}
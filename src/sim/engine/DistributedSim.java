@@ -0,0 +1,210 @@
+package sim.engine;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+
+import sim.logging.SimLogger;
+import sim.util.ConfigFileHelper;
+
+/**
+ * Runs a sim split over several processes (ranks) on one box, so topologies
+ * too big for the RIBs of one JVM can still be run. The ASes are split over
+ * the ranks with the affinity partitioner, keeping neighbours together, and
+ * every rank only runs (and only holds the RIBs of) its own routers. Routers
+ * run by other ranks are stand ins that never boot, messages to them are sent
+ * over loopback sockets in batches and the ranks keep their clocks in step
+ * with conservative windows the width of the link latency (see
+ * RankTransport).
+ *
+ * Only the BGP side of the sim is split, bots and the traffic accountant need
+ * every router's RIB, so the bot type must be NULL. Ranks run in epoch mode,
+ * any worker pool and event queue can be used. Convergence monitoring works
+ * across the ranks, the run stops once every rank has been quiet. Traces and
+ * timelines are not kept, telemetry (if on) is served on the following ports,
+ * one per rank.
+ *
+ * Every rank logs to the sim's log file name with RANK_SUFFIX and its rank
+ * added, holding the messages its own routers send and get, the usual log
+ * analysis is not run on these. If no serial file was used every rank dumps
+ * its own routers, which the launcher joins into a normal serial file.
+ *
+ * Usage: DistributedSim (sim config file) [(rank)]
+ *
+ * Given a rank only that rank is run, otherwise one process is started per
+ * rank (as many as the rank count param asks for) with the same class path
+ * and JVM args, and waited on.
+ *
+ */
+public class DistributedSim {
+
+	public static final String RANK_SUFFIX = "_rank";
+
+	/**
+	 * How often the launcher checks on the ranks, in ms
+	 */
+	private static final int POLL_WAIT = 200;
+
+	public static void main(String argv[]) {
+		if (argv.length < 1 || argv.length > 2) {
+			System.err.println("Invalid usage!\nDistributedSim <sim config file path> [<rank>]");
+			System.exit(-1);
+		}
+
+		ConfigFileHelper configFile = SimDriver.loadSimConfig(argv[0]);
+		int rankCount = configFile.getIntegerValue(SimDriver.RANK_COUNT);
+		if (rankCount < 2) {
+			System.err.println("rank count must be at least 2 to split a sim");
+			System.exit(-1);
+		}
+
+		if (argv.length == 1) {
+			DistributedSim.launchRanks(argv[0], configFile, rankCount);
+		} else {
+			DistributedSim.runRank(configFile, Integer.parseInt(argv[1]), rankCount);
+		}
+		System.out.println("ALL DONE");
+	}
+
+	/**
+	 * Starts one process per rank and waits for all of them, then joins their
+	 * serial dumps. If any rank fails the others are killed, they would wait on
+	 * it forever, and we exit with its exit code.
+	 *
+	 * @param confString
+	 *            - path to the sim config file
+	 * @param configFile
+	 *            - the loaded sim config
+	 * @param rankCount
+	 *            - the number of ranks
+	 */
+	private static void launchRanks(String confString, ConfigFileHelper configFile, int rankCount) {
+		List<Process> rankProcs = new ArrayList<Process>();
+		String javaBin = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+
+		try {
+			for (int counter = 0; counter < rankCount; counter++) {
+				List<String> command = new ArrayList<String>();
+				command.add(javaBin);
+				command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+				command.add("-cp");
+				command.add(System.getProperty("java.class.path"));
+				command.add(DistributedSim.class.getName());
+				command.add(confString);
+				command.add("" + counter);
+
+				ProcessBuilder rankBuilder = new ProcessBuilder(command);
+				rankBuilder.inheritIO();
+				rankProcs.add(rankBuilder.start());
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			for (Process tProc : rankProcs) {
+				tProc.destroy();
+			}
+			System.exit(-3);
+		}
+
+		int runningCount = rankCount;
+		while (runningCount > 0) {
+			try {
+				Thread.sleep(DistributedSim.POLL_WAIT);
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+				System.exit(-3);
+			}
+
+			runningCount = 0;
+			for (int counter = 0; counter < rankCount; counter++) {
+				Process tProc = rankProcs.get(counter);
+				if (tProc.isAlive()) {
+					runningCount++;
+				} else if (tProc.exitValue() != 0) {
+					System.err.println("rank " + counter + " failed with exit code " + tProc.exitValue());
+					for (Process otherProc : rankProcs) {
+						otherProc.destroy();
+					}
+					System.exit(tProc.exitValue());
+				}
+			}
+		}
+
+		if (configFile.getValue(SimDriver.SERIAL_FILE).equalsIgnoreCase("null")) {
+			DistributedSim.joinSerialDumps(configFile.getValue(SimDriver.LOG_FILE), rankCount);
+		}
+	}
+
+	/**
+	 * Joins the serial dump of every rank into one serial file, the session
+	 * list from the first rank and the routers from all of them.
+	 *
+	 * @param logName
+	 *            - the sim's log file name
+	 * @param rankCount
+	 *            - the number of ranks
+	 */
+	private static void joinSerialDumps(String logName, int rankCount) {
+		try {
+			BufferedWriter outBuff = new BufferedWriter(new FileWriter(SimLogger.DIR + logName + ".serial"));
+			for (int counter = 0; counter < rankCount; counter++) {
+				BufferedReader inBuff = new BufferedReader(new FileReader(SimLogger.DIR + logName
+						+ DistributedSim.RANK_SUFFIX + counter + ".serial"));
+				String poll = inBuff.readLine();
+				if (counter == 0) {
+					outBuff.write(poll);
+				}
+				while ((poll = inBuff.readLine()) != null) {
+					outBuff.write("\n");
+					outBuff.write(poll);
+				}
+				inBuff.close();
+			}
+			outBuff.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Builds and runs one rank.
+	 *
+	 * @param configFile
+	 *            - the sim config
+	 * @param rank
+	 *            - the rank to run
+	 * @param rankCount
+	 *            - the number of ranks
+	 */
+	private static void runRank(ConfigFileHelper configFile, int rank, int rankCount) {
+		if (rank < 0 || rank >= rankCount) {
+			System.err.println("invalid rank: " + rank);
+			System.exit(-1);
+		}
+
+		String logName = configFile.getValue(SimDriver.LOG_FILE) + DistributedSim.RANK_SUFFIX + rank;
+		Map<String, String> overrides = new HashMap<String, String>();
+		overrides.put(SimDriver.LOG_FILE, logName);
+		overrides.put(SimDriver.TRACE_FILE, null);
+		overrides.put(SimDriver.TIMELINE_FILE, null);
+		if (configFile.getValue(SimDriver.TELEMETRY_PORT) != null) {
+			overrides.put(SimDriver.TELEMETRY_PORT, ""
+					+ (configFile.getIntegerValue(SimDriver.TELEMETRY_PORT) + rank));
+		}
+		ConfigFileHelper rankConfig = configFile.deriveConfig(overrides);
+
+		SimAssembly theFactory = SimDriver.buildAssembly(rankConfig, logName, rank, rankCount);
+		SimDriver theDriver = new SimDriver(theFactory, rankConfig.getIntegerValue(SimDriver.SIM_TIME), rankConfig
+				.getIntegerValue(SimDriver.WORKER_COUNT), rankConfig);
+		theFactory.purgeSerialState();
+		System.gc();
+
+		System.out.println("rank " + rank + ": done w/ pre-sim, starting sim");
+		long runTime = System.currentTimeMillis();
+		theDriver.runSim();
+		theDriver.finishRun(System.currentTimeMillis() - runTime);
+
+		if (!theFactory.getUsedSerialString()) {
+			theDriver.doSerialDump(logName);
+		}
+	}
+}
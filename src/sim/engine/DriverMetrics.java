@@ -0,0 +1,231 @@
+package sim.engine;
+
+import java.io.IOException;
+import java.util.HashMap;
+
+import sim.agents.Router;
+import sim.logging.TimelineRecorder;
+import sim.util.ConfigFileHelper;
+
+/**
+ * The driver's side of the live telemetry and the timeline. Counts the events
+ * taken off the queue, times every epoch (or window) and the serial stretch
+ * before it, and takes telemetry samples between epochs. Both are optional,
+ * with neither on every call returns straight away. Only ever touched by the
+ * driver thread.
+ *
+ */
+public class DriverMetrics {
+
+	/**
+	 * Live metrics served on localhost, null if not asked for
+	 */
+	private SimTelemetry telemetry;
+
+	/**
+	 * Chrome trace of epochs and worker tasks, null if not asked for, with
+	 * the driver's own span buffer
+	 */
+	private TimelineRecorder timeline;
+	private TimelineRecorder.SpanBuffer driverSpans;
+
+	/**
+	 * When the last epoch ended and how many events the driver ran itself
+	 * since then, for the timeline
+	 */
+	private long lastWallNanos;
+	private int serialEvents;
+
+	/**
+	 * Starts the telemetry and the timeline named in the config file.
+	 *
+	 * @param simConfig
+	 *            - the sim config file
+	 * @param maxTime
+	 *            - the end time of the sim
+	 * @param workerPool
+	 *            - the driver's pool
+	 */
+	public DriverMetrics(ConfigFileHelper simConfig, int maxTime, WorkerPool workerPool) {
+		this.lastWallNanos = System.nanoTime();
+		this.serialEvents = 0;
+		this.startTelemetry(simConfig.getValue(SimDriver.TELEMETRY_PORT), maxTime, workerPool);
+		this.startTimeline(simConfig.getValue(SimDriver.TIMELINE_FILE), workerPool);
+	}
+
+	/**
+	 * Starts serving live metrics on the port named in the config file,
+	 * nothing is served if no port is given.
+	 *
+	 * @param portStr
+	 *            - the value of the telemetry port config param, can be null
+	 * @param maxTime
+	 *            - the end time of the sim
+	 * @param workerPool
+	 *            - the driver's pool
+	 */
+	private void startTelemetry(String portStr, int maxTime, WorkerPool workerPool) {
+		this.telemetry = null;
+		if (portStr == null) {
+			return;
+		}
+
+		try {
+			this.telemetry = new SimTelemetry(SimDriver.parseConfigInt(SimDriver.TELEMETRY_PORT, portStr), maxTime,
+					workerPool);
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.exit(-1);
+		}
+	}
+
+	/**
+	 * Opens the timeline named in the config file and gives the driver and
+	 * the workers their rows, nothing is recorded if no file is given. Only
+	 * the semaphore pool records worker spans.
+	 *
+	 * @param timelineFile
+	 *            - the value of the timeline file config param, can be null
+	 * @param workerPool
+	 *            - the driver's pool
+	 */
+	private void startTimeline(String timelineFile, WorkerPool workerPool) {
+		this.timeline = null;
+		this.driverSpans = null;
+		if (timelineFile == null) {
+			return;
+		}
+
+		try {
+			this.timeline = new TimelineRecorder(timelineFile);
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.exit(-1);
+		}
+		this.driverSpans = this.timeline.newBuffer(0, "driver");
+		if (workerPool instanceof SimWorkerPool) {
+			((SimWorkerPool) workerPool).enableTimeline(this.timeline);
+		} else {
+			System.err.println("timeline only records worker tasks with the semaphore worker pool");
+		}
+	}
+
+	/**
+	 * Counts an event taken off the event queue (or committed by an optimistic
+	 * window).
+	 *
+	 * @param type
+	 *            - the event's type
+	 */
+	public void countEvent(int type) {
+		if (this.telemetry != null) {
+			this.telemetry.countEvent(type);
+		}
+	}
+
+	/**
+	 * Counts an event the driver thread ran itself.
+	 */
+	public void countSerial() {
+		this.serialEvents++;
+	}
+
+	/**
+	 * Notes the start of an epoch or window, closing the serial section
+	 * before it in the timeline.
+	 *
+	 * @return - the start time in ns, 0 if neither telemetry nor a timeline
+	 *         is kept
+	 */
+	public long epochStarting() {
+		if (this.telemetry == null && this.timeline == null) {
+			return 0;
+		}
+
+		long nowNanos = System.nanoTime();
+		if (this.timeline != null) {
+			this.driverSpans.addSerial(this.lastWallNanos, nowNanos, this.serialEvents);
+		}
+		this.serialEvents = 0;
+		return nowNanos;
+	}
+
+	/**
+	 * Notes the end of an epoch or window in the telemetry and the timeline.
+	 *
+	 * @param startNanos
+	 *            - what epochStarting() returned
+	 * @param width
+	 *            - the number of tasks handed out
+	 * @param simTime
+	 *            - the sim time of the epoch
+	 */
+	public void epochEnded(long startNanos, int width, int simTime) {
+		if (this.telemetry == null && this.timeline == null) {
+			return;
+		}
+
+		long nowNanos = System.nanoTime();
+		if (this.telemetry != null) {
+			this.telemetry.countEpoch(width, nowNanos - startNanos);
+		}
+		if (this.timeline != null) {
+			this.driverSpans.addEpoch(startNanos, nowNanos, width, simTime);
+			this.lastWallNanos = nowNanos;
+		}
+	}
+
+	/**
+	 * Takes a telemetry sample if one is due. Only called between epochs, the
+	 * daemon queues can't be read while workers are running.
+	 *
+	 * @param simTime
+	 *            - the driver's clock
+	 * @param queueSize
+	 *            - the number of events in the event queue
+	 * @param routerMap
+	 *            - every router, by ASN
+	 */
+	public void sample(int simTime, int queueSize, HashMap<Integer, Router> routerMap) {
+		if (this.telemetry != null && this.telemetry.wantsSample()) {
+			long daemonQueueDepth = 0;
+			for (Router tRouter : routerMap.values()) {
+				daemonQueueDepth += tRouter.getMessageQueueSize();
+			}
+			this.telemetry.takeSample(simTime, queueSize, daemonQueueDepth);
+		}
+	}
+
+	/**
+	 * Gets the sim rate measured by the telemetry.
+	 *
+	 * @return - sim ms per wall ms, negative or 0 if there is no measure yet
+	 */
+	public double getSimRate() {
+		if (this.telemetry == null) {
+			return 0.0;
+		}
+		return this.telemetry.getSimRate();
+	}
+
+	/**
+	 * Writes out and closes the timeline and stops the telemetry, called once
+	 * the sim is done but before the worker pool is closed.
+	 *
+	 * @param workerPool
+	 *            - the driver's pool
+	 */
+	public void close(WorkerPool workerPool) {
+		if (this.timeline != null) {
+			this.driverSpans.flush();
+			if (workerPool instanceof SimWorkerPool) {
+				((SimWorkerPool) workerPool).flushTimeline();
+			}
+			System.out.println("timeline spans: " + this.timeline.getSpanCount());
+			this.timeline.close();
+		}
+		if (this.telemetry != null) {
+			this.telemetry.close();
+		}
+	}
+}
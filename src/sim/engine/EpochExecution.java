@@ -0,0 +1,265 @@
+package sim.engine;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import sim.event.EventQueue;
+import sim.event.SimEvent;
+import sim.event.WorkerTask;
+import sim.util.ConfigFileHelper;
+
+/**
+ * Runs the sim one time step at a time, all ROUTERCPUFREE events at the same
+ * time are run in parallel, everything else is run by the driver thread.
+ * Every epoch ends at the worker pool's wall, so events posted by the workers
+ * are in the queue before the next one starts.
+ *
+ */
+public class EpochExecution implements ExecutionMode {
+
+	private SimDriver theDriver;
+
+	private EventQueue eventQueue;
+	private WorkerPool workerPool;
+	private DriverMetrics metrics;
+
+	/**
+	 * Orders and times the tasks of an epoch, null if tasks go straight to
+	 * the worker pool
+	 */
+	private EpochScheduler epochScheduler;
+
+	/**
+	 * Runs small epochs inline and tunes the active worker count, null if
+	 * adaptive epochs are off
+	 */
+	private AdaptiveController adaptiveController;
+
+	/**
+	 * Events handed to the workers this epoch, recycled into the primitive
+	 * queue once the epoch is done
+	 */
+	private List<SimEvent> epochTasks;
+
+	/**
+	 * Tasks handed out so far this epoch, and when the first one was (only
+	 * kept while telemetry or a timeline is on)
+	 */
+	private int epochWidth;
+	private long epochStartNanos;
+
+	/**
+	 * Builds the epoch scheduler if the config file asks for cost ordered
+	 * tasks, epoch metrics or adaptive epochs, along with the adaptive
+	 * controller for the last.
+	 *
+	 * @param theDriver
+	 *            - the driver of the run
+	 * @param simConfig
+	 *            - the sim config file
+	 * @param workerCount
+	 *            - the number of worker threads
+	 */
+	public EpochExecution(SimDriver theDriver, ConfigFileHelper simConfig, int workerCount) {
+		this.theDriver = theDriver;
+		this.eventQueue = theDriver.getEventQueue();
+		this.workerPool = theDriver.getWorkerPool();
+		this.metrics = theDriver.getMetrics();
+		this.epochTasks = new ArrayList<SimEvent>();
+		this.epochWidth = 0;
+		this.epochStartNanos = 0;
+
+		boolean costOrder = false;
+		String orderStr = simConfig.getValue(SimDriver.TASK_ORDER);
+		if (orderStr != null && orderStr.equals(SimDriver.TASK_ORDER_COST)) {
+			costOrder = true;
+		} else if (orderStr != null && !orderStr.equals(SimDriver.TASK_ORDER_FIFO)) {
+			System.err.println("invalid task order: " + orderStr);
+			System.exit(-1);
+		}
+
+		boolean timeEpochs = simConfig.getBooleanValue(SimDriver.EPOCH_METRICS);
+		this.adaptiveController = null;
+		if (simConfig.getBooleanValue(SimDriver.ADAPTIVE_EPOCHS)) {
+			this.adaptiveController = new AdaptiveController(this.workerPool, workerCount);
+		}
+		this.epochScheduler = null;
+		if (costOrder || timeEpochs || this.adaptiveController != null) {
+			this.epochScheduler = new EpochScheduler(costOrder, timeEpochs, workerCount, this.adaptiveController);
+		}
+	}
+
+	public void runSim() {
+		this.runEpochs(Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Runs epochs until the max time or the given end time.
+	 *
+	 * @param endTime
+	 *            - events at or after this time are left in the queue,
+	 *            Integer.MAX_VALUE to run till the max time
+	 */
+	void runEpochs(int endTime) {
+		SimEvent currentEvent;
+		boolean workersRunning = false;
+		int phaseType = -1;
+
+		while (this.theDriver.getCurrentTime() < this.theDriver.getMaxTime()) {
+			if (!workersRunning && !this.theDriver.betweenEpochs()) {
+				break;
+			}
+			currentEvent = this.eventQueue.peek();
+
+			/*
+			 * If workers are running and the next event can't join the epoch
+			 * (or there is no visible next event) wait for the epoch to finish,
+			 * this merges in everything posted by the workers
+			 */
+			if (workersRunning
+					&& (currentEvent == null || currentEvent.getTime() > this.theDriver.getCurrentTime() || !this
+							.joinsEpoch(currentEvent, phaseType))) {
+				this.finishEpoch();
+				workersRunning = false;
+				continue;
+			}
+
+			if (currentEvent == null) {
+				if (endTime == Integer.MAX_VALUE) {
+					System.err.println("out of events at time: " + this.theDriver.getCurrentTime());
+				}
+				break;
+			}
+			if (currentEvent.getTime() >= endTime) {
+				break;
+			}
+
+			if (this.theDriver.getCurrentTime() > currentEvent.getTime()) {
+				System.err.println("wtf: " + this.theDriver.getCurrentTime() + " " + currentEvent.getTime()
+						+ " type " + currentEvent.getType());
+				System.exit(-2);
+			}
+
+			currentEvent = this.eventQueue.poll();
+			this.theDriver.noteEvent(currentEvent);
+			if (!workersRunning) {
+				this.theDriver.advanceClock(currentEvent.getTime());
+
+				if (this.runsOnWorkers(currentEvent)) {
+					phaseType = currentEvent.getType();
+					this.addEpochTask(currentEvent);
+					workersRunning = true;
+				} else {
+					this.theDriver.dispatchSerial(currentEvent);
+				}
+			} else {
+				this.addEpochTask(currentEvent);
+			}
+		}
+
+		if (workersRunning) {
+			this.finishEpoch();
+		}
+	}
+
+	/**
+	 * Predicate to test if an event starts an epoch on the workers instead of
+	 * being run by the driver thread.
+	 *
+	 * @param inEvent
+	 *            - the next event
+	 * @return - true if the event is run by a worker
+	 */
+	protected boolean runsOnWorkers(SimEvent inEvent) {
+		return inEvent.getType() == SimEvent.ROUTERCPUFREE;
+	}
+
+	/**
+	 * Predicate to test if an event at the time of the running epoch can join
+	 * it.
+	 *
+	 * @param inEvent
+	 *            - the next event, at the time of the epoch
+	 * @param phaseType
+	 *            - the type of the event that started the epoch
+	 * @return - true if the event is handed to the workers with the epoch
+	 */
+	protected boolean joinsEpoch(SimEvent inEvent, int phaseType) {
+		return true;
+	}
+
+	private void addEpochTask(SimEvent readyEvent) {
+		this.handOutEvent(readyEvent);
+		this.epochTasks.add(readyEvent);
+	}
+
+	/**
+	 * Hands an event of the epoch to the workers.
+	 *
+	 * @param readyEvent
+	 *            - the event
+	 */
+	protected void handOutEvent(SimEvent readyEvent) {
+		this.handOutTask(readyEvent);
+	}
+
+	/**
+	 * Gives a task to the epoch scheduler if there is one, otherwise straight
+	 * to the worker pool.
+	 *
+	 * @param readyTask
+	 *            - the task
+	 */
+	protected void handOutTask(WorkerTask readyTask) {
+		if (this.epochWidth == 0) {
+			this.epochStartNanos = this.metrics.epochStarting();
+		}
+		this.epochWidth++;
+		if (this.epochScheduler != null) {
+			this.epochScheduler.addTask(readyTask);
+		} else {
+			this.workerPool.addTask(readyTask);
+		}
+	}
+
+	/**
+	 * Waits on the epoch wall, then hands the epoch's events back to the
+	 * primitive queue for reuse, nobody holds on to them once they are done.
+	 */
+	protected void finishEpoch() {
+		if (this.epochScheduler != null) {
+			this.epochScheduler.runEpoch(this.workerPool, this.eventQueue);
+		} else {
+			this.workerPool.blockOnEpoch(this.eventQueue);
+		}
+		this.metrics.epochEnded(this.epochStartNanos, this.epochWidth, this.theDriver.getCurrentTime());
+		this.epochWidth = 0;
+		for (SimEvent tEvent : this.epochTasks) {
+			this.theDriver.recycleEvent(tEvent);
+		}
+		this.epochTasks.clear();
+	}
+
+	/**
+	 * Posted events go to the posting worker's buffer, or straight into the
+	 * queue.
+	 */
+	public void postEvent(SimEvent inEvent) {
+		this.theDriver.queueEvent(inEvent);
+	}
+
+	public boolean isWindowOpen() {
+		return false;
+	}
+
+	public String getReport() {
+		String retReport = null;
+		if (this.epochScheduler != null) {
+			retReport = this.epochScheduler.getReport();
+		}
+		if (this.adaptiveController != null) {
+			retReport = (retReport == null ? "" : retReport + "\n") + this.adaptiveController.getReport();
+		}
+		return retReport;
+	}
+}
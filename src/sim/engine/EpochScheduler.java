@@ -0,0 +1,260 @@
+package sim.engine;
+
+import java.util.*;
+
+import sim.agents.Router;
+import sim.agents.SimAgent;
+import sim.event.EventQueue;
+import sim.event.WorkerTask;
+
+/**
+ * Sits between the driver and the worker pool in epoch mode. Instead of
+ * handing tasks to the pool as they come off the event queue it holds on to
+ * them till the epoch wall, and then hands them out most expensive first
+ * (longest queue first), using Router.getEstimatedCost(). A handful of busy
+ * tier 1 routers take far longer then everybody else, if they are handed out
+ * last every other worker sits idle at the wall while they finish, handed out
+ * first the cheap tasks fill in around them.
+ *
+ * It can also time every task of an epoch and compare the epoch's makespan
+ * (hand out to last task done) against the ideal, which is the larger of a
+ * perfect split of the work over the workers and the longest single task. The
+ * start time of the longest task is tracked as well, to see if the stragglers
+ * really do start first.
+ *
+ * With an AdaptiveController the controller is asked first if the epoch
+ * should just be run on the driver thread, and is told how long each epoch
+ * took.
+ *
+ * Only ever touched by the driver thread, except for the TimedTask wrappers
+ * which are run by the workers.
+ *
+ */
+public class EpochScheduler {
+
+	/**
+	 * Wraps a task to record when it ran, the times are only read by the
+	 * driver after the epoch wall.
+	 */
+	private static class TimedTask implements WorkerTask {
+
+		private WorkerTask task;
+		private long startNanos;
+		private long endNanos;
+
+		private TimedTask(WorkerTask task) {
+			this.task = task;
+		}
+
+		public int getType() {
+			return this.task.getType();
+		}
+
+		public SimAgent getAffinity() {
+			return this.task.getAffinity();
+		}
+
+		public void dispatch() {
+			this.startNanos = System.nanoTime();
+			this.task.dispatch();
+			this.endNanos = System.nanoTime();
+		}
+	}
+
+	/**
+	 * Puts the most expensive task first, ties keep the order they were added
+	 * in since the sort is stable.
+	 */
+	private static class CostComparator implements Comparator<WorkerTask> {
+
+		private Map<WorkerTask, Integer> costMap;
+
+		private CostComparator(Map<WorkerTask, Integer> costMap) {
+			this.costMap = costMap;
+		}
+
+		public int compare(WorkerTask lhs, WorkerTask rhs) {
+			return this.costMap.get(rhs).compareTo(this.costMap.get(lhs));
+		}
+	}
+
+	private boolean costOrder;
+
+	private boolean timeEpochs;
+
+	private int workerCount;
+
+	/**
+	 * Picks inline epochs and tunes the pool, null if epochs always go to the
+	 * pool.
+	 */
+	private AdaptiveController controller;
+
+	/**
+	 * Tasks added this epoch, in the order they were added.
+	 */
+	private ArrayList<WorkerTask> heldTasks;
+
+	/**
+	 * Cost of each held task, taken when the epoch is handed out.
+	 */
+	private Map<WorkerTask, Integer> costMap;
+
+	private CostComparator costCompare;
+
+	/**
+	 * Epoch stats, only kept if epochs are timed, only epochs with more then
+	 * one task count.
+	 */
+	private long epochCount;
+	private long taskCount;
+	private long makespanNanos;
+	private long idealNanos;
+	private long longestFirstCount;
+	private double longestStartShare;
+
+	/**
+	 * Builds a scheduler.
+	 *
+	 * @param costOrder
+	 *            - if true tasks are handed out most expensive first, otherwise
+	 *            in the order they were added
+	 * @param timeEpochs
+	 *            - if true every task is timed and the makespan stats are kept
+	 * @param workerCount
+	 *            - the number of workers in the pool, used for the ideal
+	 *            makespan
+	 * @param controller
+	 *            - the adaptive controller, or null to always use the pool
+	 */
+	public EpochScheduler(boolean costOrder, boolean timeEpochs, int workerCount, AdaptiveController controller) {
+		this.costOrder = costOrder;
+		this.timeEpochs = timeEpochs;
+		this.workerCount = workerCount;
+		this.controller = controller;
+		this.heldTasks = new ArrayList<WorkerTask>();
+		this.costMap = new IdentityHashMap<WorkerTask, Integer>();
+		this.costCompare = new CostComparator(this.costMap);
+		this.epochCount = 0;
+		this.taskCount = 0;
+		this.makespanNanos = 0;
+		this.idealNanos = 0;
+		this.longestFirstCount = 0;
+		this.longestStartShare = 0.0;
+	}
+
+	public void addTask(WorkerTask readyTask) {
+		this.heldTasks.add(readyTask);
+	}
+
+	/**
+	 * Hands every task held this epoch to the worker pool and waits on the
+	 * epoch wall, or runs them all on the calling thread if the controller
+	 * says so. Anything posted by inline tasks goes straight into the queue.
+	 *
+	 * @param workerPool
+	 *            - the pool to run the tasks on
+	 * @param mergeQueue
+	 *            - the driver's event queue, handed to the pool
+	 */
+	public void runEpoch(WorkerPool workerPool, EventQueue mergeQueue) {
+		int epochSize = this.heldTasks.size();
+		if (this.controller != null && this.controller.runInline(epochSize)) {
+			long inlineStart = System.nanoTime();
+			for (WorkerTask tTask : this.heldTasks) {
+				tTask.dispatch();
+			}
+			this.controller.inlineDone(epochSize, System.nanoTime() - inlineStart);
+			this.heldTasks.clear();
+			return;
+		}
+
+		if (this.costOrder && this.heldTasks.size() > 1) {
+			for (WorkerTask tTask : this.heldTasks) {
+				int cost = 0;
+				if (tTask.getAffinity() instanceof Router) {
+					cost = ((Router) tTask.getAffinity()).getEstimatedCost();
+				}
+				this.costMap.put(tTask, cost);
+			}
+			Collections.sort(this.heldTasks, this.costCompare);
+			this.costMap.clear();
+		}
+
+		long epochStart = System.nanoTime();
+		if (!this.timeEpochs || epochSize < 2) {
+			for (WorkerTask tTask : this.heldTasks) {
+				workerPool.addTask(tTask);
+			}
+			workerPool.blockOnEpoch(mergeQueue);
+		} else {
+			List<TimedTask> timedList = new ArrayList<TimedTask>(epochSize);
+			for (WorkerTask tTask : this.heldTasks) {
+				TimedTask tTimed = new TimedTask(tTask);
+				timedList.add(tTimed);
+				workerPool.addTask(tTimed);
+			}
+			workerPool.blockOnEpoch(mergeQueue);
+			this.recordEpoch(timedList, epochStart);
+		}
+		this.heldTasks.clear();
+
+		if (this.controller != null) {
+			this.controller.pooledDone(epochSize, System.nanoTime() - epochStart);
+		}
+	}
+
+	/**
+	 * Adds a finished epoch to the stats.
+	 *
+	 * @param timedList
+	 *            - the epoch's tasks, in the order they were handed out
+	 * @param epochStart
+	 *            - when the first task was handed out
+	 */
+	private void recordEpoch(List<TimedTask> timedList, long epochStart) {
+		long workSum = 0;
+		long lastEnd = epochStart;
+		int longestPos = 0;
+		long longestRun = -1;
+		for (int counter = 0; counter < timedList.size(); counter++) {
+			TimedTask tTask = timedList.get(counter);
+			long runTime = tTask.endNanos - tTask.startNanos;
+			workSum += runTime;
+			lastEnd = Math.max(lastEnd, tTask.endNanos);
+			if (runTime > longestRun) {
+				longestRun = runTime;
+				longestPos = counter;
+			}
+		}
+
+		long makespan = lastEnd - epochStart;
+		this.epochCount++;
+		this.taskCount += timedList.size();
+		this.makespanNanos += makespan;
+		this.idealNanos += Math.max(longestRun, workSum / this.workerCount);
+		if (longestPos < this.workerCount) {
+			this.longestFirstCount++;
+		}
+		if (makespan > 0) {
+			this.longestStartShare += (double) (timedList.get(longestPos).startNanos - epochStart) / (double) makespan;
+		}
+	}
+
+	/**
+	 * Builds the epoch stats line printed when the sim is done.
+	 *
+	 * @return - the stats, or null if no epochs were timed
+	 */
+	public String getReport() {
+		if (this.epochCount == 0) {
+			return null;
+		}
+
+		return "timed epochs: " + this.epochCount + " (" + (this.costOrder ? "cost" : "fifo") + " order) avg tasks: "
+				+ ((double) this.taskCount / (double) this.epochCount) + " makespan/ideal: "
+				+ ((double) this.makespanNanos / (double) this.idealNanos) + " longest task handed out first: "
+				+ ((double) this.longestFirstCount / (double) this.epochCount) + " avg longest task start: "
+				+ (this.longestStartShare / (double) this.epochCount) + " of makespan";
+	}
+}
@@ -0,0 +1,107 @@
+package sim.engine;
+
+import java.util.PriorityQueue;
+
+import sim.agents.SimAgent;
+import sim.event.SimEvent;
+import sim.event.WorkerTask;
+
+/**
+ * A batch of events that all belong to the same agent, handed to the worker
+ * pool as a single task. The events are dispatched one after the other in
+ * normal event order, so the agent never sees two of its events at once and
+ * always sees them in time order, but different lanes can run in parallel.
+ * Events the agent posts for itself while the lane is running can be added to
+ * the lane if they still fall inside the current window.
+ *
+ */
+public class EventLane implements WorkerTask {
+
+	/**
+	 * The agent every event in this lane is bound to.
+	 */
+	private SimAgent agent;
+
+	/**
+	 * Type of the first event, only used to tag the lane in worker traces.
+	 */
+	private int type;
+
+	/**
+	 * Events left to dispatch, in normal event order.
+	 */
+	private PriorityQueue<SimEvent> pending;
+
+	/**
+	 * Number of events this lane has dispatched, used for window stats.
+	 */
+	private int dispatchCount;
+
+	/**
+	 * The lane being run by the calling thread, null if the thread isn't
+	 * running a lane.
+	 */
+	private static final ThreadLocal<EventLane> runningLane = new ThreadLocal<EventLane>();
+
+	/**
+	 * Builds a lane around the first event for an agent.
+	 *
+	 * @param firstEvent
+	 *            - the earliest event in the window for the agent
+	 */
+	public EventLane(SimEvent firstEvent) {
+		this.agent = firstEvent.getAffinity();
+		this.type = firstEvent.getType();
+		this.pending = new PriorityQueue<SimEvent>();
+		this.pending.add(firstEvent);
+		this.dispatchCount = 0;
+	}
+
+	/**
+	 * Adds another event for the same agent to the lane.
+	 *
+	 * @param inEvent
+	 *            - the event, its affinity must be this lane's agent
+	 */
+	public void addEvent(SimEvent inEvent) {
+		this.pending.add(inEvent);
+	}
+
+	public int getType() {
+		return this.type;
+	}
+
+	public SimAgent getAffinity() {
+		return this.agent;
+	}
+
+	public int getDispatchCount() {
+		return this.dispatchCount;
+	}
+
+	/**
+	 * Runs every event in the lane, including any the agent adds to it while we
+	 * are running.
+	 */
+	public void dispatch() {
+		EventLane.runningLane.set(this);
+		try {
+			SimEvent tEvent;
+			while ((tEvent = this.pending.poll()) != null) {
+				tEvent.dispatch();
+				this.dispatchCount++;
+			}
+		} finally {
+			EventLane.runningLane.set(null);
+		}
+	}
+
+	/**
+	 * Gets the lane being run on the calling thread.
+	 *
+	 * @return - the running lane, or null if the thread is not inside a lane
+	 */
+	public static EventLane getRunningLane() {
+		return EventLane.runningLane.get();
+	}
+}
@@ -0,0 +1,46 @@
+package sim.engine;
+
+import sim.event.SimEvent;
+
+/**
+ * Interface for the ways the driver can run the sim's events in parallel
+ * (epochs, conservative or optimistic windows, ...). The driver keeps the
+ * clock, the event queue and the worker pool, a mode decides which events are
+ * handed to the workers together and what happens to the events they post.
+ * Only the driver thread calls runSim() and getReport(), postEvent() and
+ * isWindowOpen() are called from any thread.
+ *
+ */
+public interface ExecutionMode {
+
+	/**
+	 * Runs the sim until the driver's max time, or until it runs out of
+	 * events.
+	 */
+	public void runSim();
+
+	/**
+	 * Takes an event posted to the driver. The mode either holds on to it
+	 * (i.e. in the lane of the router that posted it) or hands it back to the
+	 * driver with SimDriver.queueEvent().
+	 *
+	 * @param inEvent
+	 *            - the posted event
+	 */
+	public void postEvent(SimEvent inEvent);
+
+	/**
+	 * Predicate that tests if a window is being run by the workers, the events
+	 * posted then have to stay event objects so lanes can hold them.
+	 *
+	 * @return - true while a window is open
+	 */
+	public boolean isWindowOpen();
+
+	/**
+	 * Gets the stats of the run, printed to the console once the sim is done.
+	 *
+	 * @return - the report, or null if the mode has nothing to say
+	 */
+	public String getReport();
+}
@@ -0,0 +1,70 @@
+package sim.engine;
+
+import java.util.HashMap;
+
+import sim.agents.Router;
+import sim.agents.SimAgent;
+import sim.event.SimEvent;
+import sim.util.ConfigFileHelper;
+
+/**
+ * Epochs where router TCPSEND and TIMEREXPIRE events are run in parallel as
+ * well as ROUTERCPUFREE events. Each event type at a time step is then its
+ * own epoch, so every TCPSEND at time X is still done before any TIMEREXPIRE
+ * at X starts, and the events of a phase are bundled into one lane per router
+ * so a router never has two events running at once (all the TCPSENDs a router
+ * receives at X run in order on one worker).
+ *
+ */
+public class GroupedEpochExecution extends EpochExecution {
+
+	/**
+	 * Lanes of the TCPSEND or TIMEREXPIRE phase being built, by router
+	 */
+	private HashMap<SimAgent, EventLane> epochLanes;
+
+	public GroupedEpochExecution(SimDriver theDriver, ConfigFileHelper simConfig, int workerCount) {
+		super(theDriver, simConfig, workerCount);
+		this.epochLanes = new HashMap<SimAgent, EventLane>();
+	}
+
+	protected boolean runsOnWorkers(SimEvent inEvent) {
+		if (super.runsOnWorkers(inEvent)) {
+			return true;
+		}
+		return inEvent.getAffinity() instanceof Router
+				&& (inEvent.getType() == SimEvent.TCPSEND || inEvent.getType() == SimEvent.TIMEREXPIRE);
+	}
+
+	/**
+	 * Only events of the same type that run on the workers join a phase.
+	 */
+	protected boolean joinsEpoch(SimEvent inEvent, int phaseType) {
+		return inEvent.getType() == phaseType && this.runsOnWorkers(inEvent);
+	}
+
+	protected void handOutEvent(SimEvent readyEvent) {
+		if (readyEvent.getType() == SimEvent.ROUTERCPUFREE) {
+			super.handOutEvent(readyEvent);
+			return;
+		}
+
+		EventLane tLane = this.epochLanes.get(readyEvent.getAffinity());
+		if (tLane == null) {
+			this.epochLanes.put(readyEvent.getAffinity(), new EventLane(readyEvent));
+		} else {
+			tLane.addEvent(readyEvent);
+		}
+	}
+
+	/**
+	 * Hands out the lanes built for this phase before waiting on the wall.
+	 */
+	protected void finishEpoch() {
+		for (EventLane tLane : this.epochLanes.values()) {
+			this.handOutTask(tLane);
+		}
+		this.epochLanes.clear();
+		super.finishEpoch();
+	}
+}
@@ -0,0 +1,297 @@
+package sim.engine;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import sim.agents.Router;
+import sim.agents.SimAgent;
+import sim.event.SimEvent;
+import sim.util.ConfigFileHelper;
+
+/**
+ * Runs the sim in optimistic (Time Warp) windows. Every router event in
+ * [t, t + window) is handed to a lane per router and all of the lanes are run
+ * in parallel without waiting on each other, even though a router can hear
+ * from another router well inside the window. Messages between routers that
+ * land inside the window are delivered by the driver after each round of
+ * lanes, if the receiver already ran past the message's time it is rolled back
+ * and runs again in the next round, and whatever it sent that was undone is
+ * cancelled at the receivers in turn. After each round everything earlier then
+ * the earliest event anybody still has to run (the GVT) can't be rolled back
+ * anymore and is committed. The window is done when no lane has anything left
+ * to run. Each round pushes the earliest possible rollback at least a link
+ * latency forward, so the number of rounds is bounded by window / latency.
+ *
+ * Router events are noted (traced, counted and shown to the convergence
+ * monitor) as they are committed rather then as they come off the event
+ * queue, so messages passed straight between lanes and events a lane posts
+ * for itself are noted too, and rolled back work only once.
+ *
+ */
+public class OptimisticExecution extends WindowExecution {
+
+	/**
+	 * Default window, about one BGP processing delay
+	 */
+	private static final int DEFAULT_OPT_WINDOW = 100;
+
+	/**
+	 * Width of a window in ms
+	 */
+	private int optimisticWindow;
+
+	/**
+	 * Round and rollback stats, reported when the sim finishes
+	 */
+	private long windowRounds;
+	private long windowRollbacks;
+
+	/**
+	 * Reads the window width out of the config file and turns on the undo
+	 * journals every router needs to be rolled back, exits with the config
+	 * error code if any router can't support it.
+	 *
+	 * @param theDriver
+	 *            - the driver of the run
+	 * @param simConfig
+	 *            - the sim config file
+	 */
+	public OptimisticExecution(SimDriver theDriver, ConfigFileHelper simConfig) {
+		super(theDriver, true);
+		this.windowRounds = 0;
+		this.windowRollbacks = 0;
+		this.optimisticWindow = OptimisticExecution.DEFAULT_OPT_WINDOW;
+		if (simConfig.getValue(SimDriver.OPT_WINDOW) != null) {
+			this.optimisticWindow = SimDriver.parseConfigInt(SimDriver.OPT_WINDOW, simConfig
+					.getValue(SimDriver.OPT_WINDOW));
+		}
+
+		for (Router tRouter : theDriver.getRouterMap().values()) {
+			if (!tRouter.enableRollback()) {
+				System.err.println("optimistic execution mode does not support route flap dampening");
+				System.exit(-1);
+			}
+		}
+	}
+
+	public void runSim() {
+		SimEvent currentEvent;
+		/*
+		 * Lanes are kept in the order their routers first show up in the
+		 * window, routers hash by identity and cross router messages are
+		 * handed out lane by lane, so any other order could change which of
+		 * two messages with the same time a router runs first
+		 */
+		LinkedHashMap<SimAgent, TimeWarpLane> laneMap = new LinkedHashMap<SimAgent, TimeWarpLane>();
+		List<SimEvent> windowList = new ArrayList<SimEvent>();
+		List<TimeWarpLane> runList = new ArrayList<TimeWarpLane>();
+
+		/*
+		 * Where every cross router message was delivered to, and messages that
+		 * were cancelled before they were delivered
+		 */
+		Map<SimEvent, TimeWarpLane> deliveredMap = new IdentityHashMap<SimEvent, TimeWarpLane>();
+		Set<SimEvent> annulledSet = Collections.newSetFromMap(new IdentityHashMap<SimEvent, Boolean>());
+
+		while ((currentEvent = this.nextWindowStart()) != null) {
+			int endTime = this.gatherWindow(currentEvent, this.optimisticWindow, windowList);
+			this.windowEnd = endTime;
+			laneMap.clear();
+			deliveredMap.clear();
+			annulledSet.clear();
+			for (SimEvent tEvent : windowList) {
+				this.getWarpLane(laneMap, tEvent.getAffinity()).addInput(tEvent);
+			}
+
+			runList.clear();
+			runList.addAll(laneMap.values());
+			while (runList.size() > 0) {
+				this.windowRounds++;
+				long roundStart = this.metrics.epochStarting();
+				for (TimeWarpLane tLane : runList) {
+					this.workerPool.addTask(tLane);
+				}
+				this.workerPool.blockOnEpoch(this.eventQueue);
+				this.metrics.epochEnded(roundStart, runList.size(), this.theDriver.getCurrentTime());
+
+				/*
+				 * Deliver everything sent between routers this round, rolling
+				 * back receivers as needed
+				 */
+				List<SimEvent> crossList = new LinkedList<SimEvent>();
+				for (TimeWarpLane tLane : runList) {
+					crossList.addAll(tLane.takeNewCrossEvents());
+				}
+				for (SimEvent tEvent : crossList) {
+					if (annulledSet.remove(tEvent)) {
+						continue;
+					}
+					TimeWarpLane target = this.getWarpLane(laneMap, tEvent.getAffinity());
+					target.addInput(tEvent);
+					deliveredMap.put(tEvent, target);
+					this.chaseAntiMessages(target, deliveredMap, annulledSet);
+				}
+
+				/*
+				 * Commit everything nobody can roll back anymore, then find
+				 * who has work left
+				 */
+				int gvt = endTime;
+				for (TimeWarpLane tLane : laneMap.values()) {
+					gvt = Math.min(gvt, tLane.getNextTime());
+				}
+
+				/*
+				 * Committed work is past rolling back, so what it posts keeps
+				 * its own time instead of being pushed to the end of the
+				 * window, and the clock reads the time of the event being
+				 * committed (see SimDriver.setCommitClock()). Events are
+				 * committed in time order across all the lanes, so held log
+				 * lines and notifications come out in the order they happened.
+				 */
+				int windowStart = this.theDriver.getCurrentTime();
+				this.windowEnd = Integer.MIN_VALUE;
+				this.commitInOrder(laneMap.values(), gvt);
+				this.theDriver.setCommitClock(windowStart);
+				this.windowEnd = endTime;
+
+				runList.clear();
+				for (TimeWarpLane tLane : laneMap.values()) {
+					if (tLane.hasPending()) {
+						runList.add(tLane);
+					}
+				}
+			}
+			this.windowEnd = Integer.MIN_VALUE;
+
+			this.windowCount++;
+			this.windowLanes += laneMap.size();
+			for (TimeWarpLane tLane : laneMap.values()) {
+				this.windowEvents += tLane.getDispatchCount();
+				this.windowRollbacks += tLane.getRollbackCount();
+			}
+		}
+	}
+
+	/**
+	 * Everything a router posts while its lane runs is held by the lane until
+	 * it is committed, the convergence monitor sees it then.
+	 */
+	public void postEvent(SimEvent inEvent) {
+		TimeWarpLane warpLane = TimeWarpLane.getRunningLane();
+		if (warpLane != null) {
+			warpLane.postEvent(inEvent);
+			return;
+		}
+		super.postEvent(inEvent);
+	}
+
+	/**
+	 * Commits every event earlier then the GVT in every lane, oldest first
+	 * across all the lanes, ties going to the lower ASN.
+	 *
+	 * @param lanes
+	 *            - the lanes of the window
+	 * @param gvt
+	 *            - global virtual time, the earliest time any router could
+	 *            still roll back to
+	 */
+	private void commitInOrder(Collection<TimeWarpLane> lanes, final int gvt) {
+		PriorityQueue<TimeWarpLane> commitQueue = new PriorityQueue<TimeWarpLane>(Math.max(1, lanes.size()),
+				new Comparator<TimeWarpLane>() {
+					public int compare(TimeWarpLane lhs, TimeWarpLane rhs) {
+						int lhsTime = lhs.getNextCommitTime(gvt);
+						int rhsTime = rhs.getNextCommitTime(gvt);
+						if (lhsTime != rhsTime) {
+							return lhsTime < rhsTime ? -1 : 1;
+						}
+						return lhs.getRouter().getASN() - rhs.getRouter().getASN();
+					}
+				});
+
+		for (TimeWarpLane tLane : lanes) {
+			if (tLane.getNextCommitTime(gvt) != Integer.MAX_VALUE) {
+				commitQueue.add(tLane);
+			}
+		}
+		while (!commitQueue.isEmpty()) {
+			TimeWarpLane tLane = commitQueue.poll();
+			tLane.commitNext();
+			if (tLane.getNextCommitTime(gvt) != Integer.MAX_VALUE) {
+				commitQueue.add(tLane);
+			}
+		}
+		for (TimeWarpLane tLane : lanes) {
+			tLane.finishCommit();
+		}
+	}
+
+	/**
+	 * Gets the lane for a router in the current window, building it if the
+	 * router doesn't have one yet.
+	 *
+	 * @param laneMap
+	 *            - the lanes of the window
+	 * @param agent
+	 *            - the router
+	 * @return - the router's lane
+	 */
+	private TimeWarpLane getWarpLane(Map<SimAgent, TimeWarpLane> laneMap, SimAgent agent) {
+		TimeWarpLane retLane = laneMap.get(agent);
+		if (retLane == null) {
+			retLane = new TimeWarpLane((Router) agent, this.theDriver, this.theDriver.getLogger(), this.windowEnd);
+			laneMap.put(agent, retLane);
+		}
+		return retLane;
+	}
+
+	/**
+	 * Cancels every message undone by a rollback, and every message undone by
+	 * the rollbacks that causes, and so on.
+	 *
+	 * @param startLane
+	 *            - the lane that just rolled back
+	 * @param deliveredMap
+	 *            - where each delivered message went, cancelled messages are
+	 *            removed
+	 * @param annulledSet
+	 *            - messages cancelled before they were delivered are added
+	 *            here
+	 */
+	private void chaseAntiMessages(TimeWarpLane startLane, Map<SimEvent, TimeWarpLane> deliveredMap,
+			Set<SimEvent> annulledSet) {
+		LinkedList<TimeWarpLane> workList = new LinkedList<TimeWarpLane>();
+		workList.add(startLane);
+		while (workList.size() > 0) {
+			TimeWarpLane tLane = workList.poll();
+			for (SimEvent tAnti : tLane.takeAntiMessages()) {
+				TimeWarpLane target = deliveredMap.remove(tAnti);
+				if (target == null) {
+					annulledSet.add(tAnti);
+				} else {
+					target.cancelInput(tAnti);
+					workList.add(target);
+				}
+			}
+		}
+	}
+
+	public String getReport() {
+		if (this.windowCount == 0) {
+			return null;
+		}
+		return "optimistic windows: " + this.windowCount + " (width " + this.optimisticWindow + " ms) avg lanes: "
+				+ ((double) this.windowLanes / (double) this.windowCount) + " avg rounds: "
+				+ ((double) this.windowRounds / (double) this.windowCount) + " events run: " + this.windowEvents
+				+ " rolled back: " + this.windowRollbacks;
+	}
+}
@@ -0,0 +1,383 @@
+package sim.engine;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import sim.agents.Router;
+import sim.agents.SimAgent;
+import sim.event.EventQueue;
+import sim.event.SimEvent;
+import sim.event.WorkerTask;
+import sim.network.dataObjects.AS;
+
+/**
+ * Worker pool that gives every router a home worker. In the other pools any
+ * worker can pick up any router, so a router's daemon state, its TCP stacks
+ * and the state of the neighbours it talks to move between cores' caches
+ * every epoch. Here the AS graph is split into one part per worker (see
+ * AffinityPartitioner) so a router and most of its neighbours are always run
+ * by the same thread. Each worker has its own task deque, it runs tasks off
+ * the front of its own deque and only once that is empty does it steal from
+ * the back of the others. The number of tasks each router hands us is
+ * counted, and every so many epochs the graph is split again using those
+ * counts as the load, so the parts follow where the work actually is.
+ *
+ * Like the stealing pool, tasks are collected during the epoch and only
+ * handed to the workers at the wall.
+ *
+ */
+public class PartitionedWorkerPool implements WorkerPool {
+
+	/**
+	 * Where a router lives, and the work it has given us since the last
+	 * split.
+	 */
+	private static class Home {
+		private int worker;
+		private long taskCount;
+
+		private Home(int worker) {
+			this.worker = worker;
+			this.taskCount = 0;
+		}
+	}
+
+	private class PartitionWorker implements Runnable {
+
+		private int workerId;
+
+		/**
+		 * Tasks homed on this worker, the owner polls the front, thieves the
+		 * back.
+		 */
+		private ConcurrentLinkedDeque<WorkerTask> taskDeque;
+
+		/**
+		 * Released once per epoch by the driver.
+		 */
+		private Semaphore wakeUp;
+
+		private PostBuffer postBuffer;
+
+		/**
+		 * Tasks run by this worker, only read by the driver after the wall.
+		 */
+		private long homeRuns;
+		private long stolenRuns;
+
+		private PartitionWorker(int workerId) {
+			this.workerId = workerId;
+			this.taskDeque = new ConcurrentLinkedDeque<WorkerTask>();
+			this.wakeUp = new Semaphore(0);
+			this.postBuffer = new PostBuffer();
+			this.homeRuns = 0;
+			this.stolenRuns = 0;
+		}
+
+		public void run() {
+			PartitionedWorkerPool.this.localWorker.set(this);
+			try {
+				while (true) {
+					this.wakeUp.acquire();
+
+					/*
+					 * Run our own tasks, then help out the others, till there
+					 * is nothing left anywhere
+					 */
+					while (true) {
+						WorkerTask currentJob = this.taskDeque.pollFirst();
+						if (currentJob != null) {
+							this.homeRuns++;
+						} else {
+							currentJob = this.steal();
+							if (currentJob == null) {
+								break;
+							}
+							this.stolenRuns++;
+						}
+
+						currentJob.dispatch();
+						if (PartitionedWorkerPool.this.remainingTasks.decrementAndGet() == 0) {
+							PartitionedWorkerPool.this.epochDone.release();
+						}
+					}
+				}
+			} catch (InterruptedException e) {
+				System.out.println("thread exiting...");
+				return;
+			}
+		}
+
+		/**
+		 * Takes a task off the back of another worker's deque, starting with
+		 * the next worker along.
+		 *
+		 * @return - a task, or null if every deque is empty
+		 */
+		private WorkerTask steal() {
+			PartitionWorker[] allWorkers = PartitionedWorkerPool.this.workers;
+			for (int counter = 1; counter < allWorkers.length; counter++) {
+				WorkerTask retTask = allWorkers[(this.workerId + counter) % allWorkers.length].taskDeque.pollLast();
+				if (retTask != null) {
+					return retTask;
+				}
+			}
+			return null;
+		}
+	}
+
+	private PartitionWorker[] workers;
+
+	private List<Thread> theThreads;
+
+	/**
+	 * Tasks added this epoch, only touched by the driver thread.
+	 */
+	private ArrayList<WorkerTask> batch;
+
+	/**
+	 * Tasks of the running epoch that aren't done yet.
+	 */
+	private AtomicInteger remainingTasks;
+
+	/**
+	 * Released by the worker that finishes the last task of an epoch.
+	 */
+	private Semaphore epochDone;
+
+	private ThreadLocal<PartitionWorker> localWorker;
+
+	/**
+	 * Home of each router, anything without a home is spread round robin.
+	 */
+	private Map<SimAgent, Home> homeMap;
+	private int nextSpread;
+
+	/**
+	 * The AS graph and routers, kept to split the graph again.
+	 */
+	private Map<Integer, AS> asMap;
+	private Map<Integer, Router> routerMap;
+
+	/**
+	 * Number of epochs between splits, and the number since the last one.
+	 */
+	private int rebalanceInterval;
+	private int epochsSinceSplit;
+
+	/**
+	 * Split stats, reported when the sim finishes.
+	 */
+	private long splitCount;
+	private long movedRouters;
+
+	/**
+	 * Creates a partitioned pool, no router has a home till partition() is
+	 * called.
+	 *
+	 * @param workerCount
+	 *            - the number of worker threads that will be executing tasks in
+	 *            parallel
+	 * @param rebalanceInterval
+	 *            - the number of epochs between splits of the AS graph
+	 */
+	public PartitionedWorkerPool(int workerCount, int rebalanceInterval) {
+		this.batch = new ArrayList<WorkerTask>();
+		this.remainingTasks = new AtomicInteger(0);
+		this.epochDone = new Semaphore(0);
+		this.localWorker = new ThreadLocal<PartitionWorker>();
+		this.homeMap = new IdentityHashMap<SimAgent, Home>();
+		this.nextSpread = 0;
+		this.rebalanceInterval = rebalanceInterval;
+		this.epochsSinceSplit = 0;
+		this.splitCount = 0;
+		this.movedRouters = 0;
+
+		this.workers = new PartitionWorker[workerCount];
+		this.theThreads = new LinkedList<Thread>();
+		for (int counter = 0; counter < workerCount; counter++) {
+			this.workers[counter] = new PartitionWorker(counter);
+			Thread tempThread = new Thread(this.workers[counter]);
+			this.theThreads.add(tempThread);
+			tempThread.start();
+		}
+	}
+
+	/**
+	 * Gives every router a home worker, using the AS degree as the expected
+	 * load since nothing has run yet.
+	 *
+	 * @param routerMap
+	 *            - the routers, by ASN
+	 * @param asMap
+	 *            - the AS graph, by ASN
+	 */
+	public void partition(Map<Integer, Router> routerMap, Map<Integer, AS> asMap) {
+		this.routerMap = routerMap;
+		this.asMap = asMap;
+
+		Map<Integer, Long> loadMap = new HashMap<Integer, Long>();
+		for (int tASN : routerMap.keySet()) {
+			AS tAS = asMap.get(tASN);
+			loadMap.put(tASN, (long) (tAS == null ? 1 : tAS.getDegree() + 1));
+		}
+		this.applySplit(AffinityPartitioner.partition(asMap, loadMap, this.workers.length));
+	}
+
+	/**
+	 * Splits the AS graph again, weighing each router by the tasks it handed
+	 * us since the last split, plus its degree so idle routers still carry
+	 * some weight.
+	 */
+	private void rebalance() {
+		Map<Integer, Long> loadMap = new HashMap<Integer, Long>();
+		for (int tASN : this.routerMap.keySet()) {
+			AS tAS = this.asMap.get(tASN);
+			long load = (tAS == null ? 1 : tAS.getDegree() + 1);
+			Home tHome = this.homeMap.get(this.routerMap.get(tASN));
+			if (tHome != null) {
+				load += tHome.taskCount;
+			}
+			loadMap.put(tASN, load);
+		}
+		this.applySplit(AffinityPartitioner.partition(this.asMap, loadMap, this.workers.length));
+		this.splitCount++;
+	}
+
+	/**
+	 * Moves routers to their new homes and resets their task counts.
+	 *
+	 * @param partMap
+	 *            - the worker of each AS, by ASN
+	 */
+	private void applySplit(Map<Integer, Integer> partMap) {
+		for (int tASN : partMap.keySet()) {
+			Router tRouter = this.routerMap.get(tASN);
+			if (tRouter == null) {
+				continue;
+			}
+
+			Home tHome = this.homeMap.get(tRouter);
+			if (tHome == null) {
+				this.homeMap.put(tRouter, new Home(partMap.get(tASN)));
+			} else {
+				if (tHome.worker != partMap.get(tASN)) {
+					tHome.worker = partMap.get(tASN);
+					this.movedRouters++;
+				}
+				tHome.taskCount = 0;
+			}
+		}
+	}
+
+	public void addTask(WorkerTask readyTask) {
+		this.batch.add(readyTask);
+	}
+
+	public boolean bufferEvent(SimEvent inEvent) {
+		PartitionWorker myWorker = this.localWorker.get();
+		if (myWorker == null) {
+			return false;
+		}
+
+		myWorker.postBuffer.add(inEvent);
+		return true;
+	}
+
+	public boolean bufferEncoded(long key) {
+		PartitionWorker myWorker = this.localWorker.get();
+		if (myWorker == null) {
+			return false;
+		}
+
+		myWorker.postBuffer.addEncoded(key);
+		return true;
+	}
+
+	/**
+	 * Pushes every task added this epoch onto its router's home deque, wakes
+	 * the workers and waits for them, then merges everything they posted into
+	 * the given queue. A single task is just run on the driver thread.
+	 *
+	 * @param mergeQueue
+	 *            - the driver's event queue
+	 */
+	public void blockOnEpoch(EventQueue mergeQueue) {
+		int taskCount = this.batch.size();
+		if (taskCount == 1) {
+			this.homeOf(this.batch.get(0)).taskCount++;
+			this.batch.get(0).dispatch();
+		} else if (taskCount > 1) {
+			this.remainingTasks.set(taskCount);
+			for (WorkerTask tTask : this.batch) {
+				Home tHome = this.homeOf(tTask);
+				tHome.taskCount++;
+				this.workers[tHome.worker].taskDeque.addLast(tTask);
+			}
+			for (PartitionWorker tWorker : this.workers) {
+				tWorker.wakeUp.release();
+			}
+
+			try {
+				this.epochDone.acquire();
+			} catch (InterruptedException e) {
+				/*
+				 * If we are interrupted (should never happen) we should yell a
+				 * lot and exit with the threading error exit code (-3).
+				 */
+				e.printStackTrace();
+				System.exit(-3);
+			}
+
+			for (PartitionWorker tWorker : this.workers) {
+				tWorker.postBuffer.drainTo(mergeQueue);
+			}
+		}
+		this.batch.clear();
+
+		this.epochsSinceSplit++;
+		if (this.routerMap != null && this.epochsSinceSplit >= this.rebalanceInterval) {
+			this.rebalance();
+			this.epochsSinceSplit = 0;
+		}
+	}
+
+	/**
+	 * Finds the home of a task's agent, agents without one are given one
+	 * round robin.
+	 */
+	private Home homeOf(WorkerTask task) {
+		Home retHome = this.homeMap.get(task.getAffinity());
+		if (retHome == null) {
+			retHome = new Home(this.nextSpread);
+			this.nextSpread = (this.nextSpread + 1) % this.workers.length;
+			this.homeMap.put(task.getAffinity(), retHome);
+		}
+		return retHome;
+	}
+
+	/**
+	 * Builds the stats line printed when the sim is done.
+	 *
+	 * @return - the stats
+	 */
+	public String getReport() {
+		long homeRuns = 0;
+		long stolenRuns = 0;
+		for (PartitionWorker tWorker : this.workers) {
+			homeRuns += tWorker.homeRuns;
+			stolenRuns += tWorker.stolenRuns;
+		}
+
+		return "partitioned pool: " + (homeRuns + stolenRuns) + " tasks on workers, stolen: "
+				+ ((double) stolenRuns / (double) Math.max(1, homeRuns + stolenRuns)) + " rebalances: "
+				+ this.splitCount + " routers moved: " + this.movedRouters;
+	}
+
+	public void closePool() {
+		for (Thread tThread : this.theThreads) {
+			tThread.interrupt();
+		}
+	}
+}
@@ -0,0 +1,68 @@
+package sim.engine;
+
+import java.util.*;
+
+import sim.event.EventQueue;
+import sim.event.PrimitiveEventQueue;
+import sim.event.SimEvent;
+
+/**
+ * Holds the events one worker posted during an epoch until the driver merges
+ * them at the epoch wall. Router timer and cpu events can be held as packed
+ * keys when the driver is using the primitive event queue, so posting them
+ * builds no objects at all. Only ever touched by one thread at a time.
+ *
+ */
+public class PostBuffer {
+
+	private List<SimEvent> events;
+
+	private long[] keys;
+	private int keyCount;
+
+	public PostBuffer() {
+		this.events = new ArrayList<SimEvent>();
+		this.keys = new long[64];
+		this.keyCount = 0;
+	}
+
+	public void add(SimEvent inEvent) {
+		this.events.add(inEvent);
+	}
+
+	/**
+	 * Stores a packed event.
+	 *
+	 * @param key
+	 *            - a key from PrimitiveEventQueue.encode()
+	 */
+	public void addEncoded(long key) {
+		if (this.keyCount == this.keys.length) {
+			this.keys = Arrays.copyOf(this.keys, this.keys.length * 2);
+		}
+		this.keys[this.keyCount++] = key;
+	}
+
+	/**
+	 * Moves everything held into the given queue and empties the buffer.
+	 * Packed events can only have been posted if the queue is a primitive
+	 * queue.
+	 *
+	 * @param mergeQueue
+	 *            - the driver's event queue
+	 */
+	public void drainTo(EventQueue mergeQueue) {
+		for (SimEvent tEvent : this.events) {
+			mergeQueue.add(tEvent);
+		}
+		this.events.clear();
+
+		if (this.keyCount > 0) {
+			PrimitiveEventQueue keyQueue = (PrimitiveEventQueue) mergeQueue;
+			for (int counter = 0; counter < this.keyCount; counter++) {
+				keyQueue.addEncoded(this.keys[counter]);
+			}
+			this.keyCount = 0;
+		}
+	}
+}
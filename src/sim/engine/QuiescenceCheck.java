@@ -0,0 +1,210 @@
+package sim.engine;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import bgp.messages.Constants;
+import sim.agents.Router;
+import sim.event.EventQueue;
+import sim.event.SimEvent;
+import sim.event.TCPEvent;
+import sim.network.dataObjects.TCPPacket;
+import sim.util.ConfigFileHelper;
+
+/**
+ * Fast forwards the network over stretches where all it has going on is
+ * periodic BGP timers, checked once per quiescence check interval of sim
+ * time. Only checked by the driver thread between epochs, in epoch mode.
+ *
+ */
+public class QuiescenceCheck {
+
+	private SimDriver theDriver;
+
+	/**
+	 * The run's snapshots, a fast forward never jumps past the next one
+	 */
+	private SnapshotSchedule snapshots;
+
+	/**
+	 * Sim time between checks for a quiet network (-1 if never checked), the
+	 * sim time the next check is due at, and how many fast forwards skipped
+	 * how much sim time
+	 */
+	private int quiescenceInterval;
+	private int nextQuiescenceCheck;
+	private int fastForwardCount;
+	private long fastForwardSkipped;
+
+	/**
+	 * Reads the quiescence check interval from the config file, the network
+	 * is never fast forwarded if it isn't given. Exits with the config error
+	 * code outside of epoch mode, windows hold events in lanes the check
+	 * can't see. Keep alives that are fast forwarded over aren't logged, so
+	 * nothing is fast forwarded if the log is verbose.
+	 *
+	 * @param theDriver
+	 *            - the driver of the run
+	 * @param simConfig
+	 *            - the sim config file
+	 * @param snapshots
+	 *            - the run's snapshots
+	 * @param epochMode
+	 *            - true if the run is in epoch mode
+	 */
+	public QuiescenceCheck(SimDriver theDriver, ConfigFileHelper simConfig, SnapshotSchedule snapshots,
+			boolean epochMode) {
+		this.theDriver = theDriver;
+		this.snapshots = snapshots;
+		this.quiescenceInterval = -1;
+		this.nextQuiescenceCheck = Integer.MAX_VALUE;
+		this.fastForwardCount = 0;
+		this.fastForwardSkipped = 0;
+		if (simConfig.getValue(SimDriver.QUIESCENCE_INTERVAL) == null) {
+			return;
+		}
+
+		this.quiescenceInterval = SimDriver.parseConfigInt(SimDriver.QUIESCENCE_INTERVAL, simConfig
+				.getValue(SimDriver.QUIESCENCE_INTERVAL));
+		if (!epochMode) {
+			System.err.println("quiescence fast forward only runs in epoch mode");
+			System.exit(-1);
+		}
+		if (theDriver.getLogger().isVerbose()) {
+			System.err.println("keep alives are logged, quiescence fast forward is off");
+			this.quiescenceInterval = -1;
+			return;
+		}
+		this.nextQuiescenceCheck = this.quiescenceInterval;
+	}
+
+	/**
+	 * Predicate that tests if the network is ever fast forwarded.
+	 *
+	 * @return - true if quiescence checks are run
+	 */
+	public boolean isOn() {
+		return this.quiescenceInterval > 0;
+	}
+
+	/**
+	 * Fast forwards the network if all it has going on is periodic BGP
+	 * timers. The network is quiet when no update (or anything but a keep
+	 * alive) is in flight, no router has a cpu task queued and every router's
+	 * daemon is only running its advertisement window and keep alives (see
+	 * Router.isQuiescent()). The sim then jumps straight to the next event
+	 * that matters, anything that isn't a router timer check or keep alive
+	 * (attack flows, link up/down, router boots, bot events, ...), every
+	 * router's timer state is moved on analytically and its next timer check
+	 * and any keep alive still in flight are posted again. Halt timers and
+	 * keep alives carry on just as if every check had run, only the skipped
+	 * events themselves never show up in traces, telemetry or timelines.
+	 *
+	 * The jump never goes past the max time, the time the convergence monitor
+	 * could stop the run at or the next snapshot, so those happen as they
+	 * would have. Like a snapshot this empties and refills the event queue,
+	 * which can change the order of events that tie on time and type.
+	 */
+	public void checkQuiescence() {
+		int currentTime = this.theDriver.getCurrentTime();
+		if (this.quiescenceInterval < 0 || currentTime < this.nextQuiescenceCheck) {
+			return;
+		}
+		this.nextQuiescenceCheck = currentTime + this.quiescenceInterval;
+
+		EventQueue eventQueue = this.theDriver.getEventQueue();
+		HashMap<Integer, Router> routerMap = this.theDriver.getRouterMap();
+		List<SimEvent> queuedEvents = new ArrayList<SimEvent>(eventQueue.size());
+		SimEvent tEvent;
+		while ((tEvent = eventQueue.poll()) != null) {
+			queuedEvents.add(tEvent);
+		}
+
+		int endTime = this.theDriver.getMaxTime();
+		ConvergenceMonitor convergenceMonitor = this.theDriver.getConvergenceMonitor();
+		if (convergenceMonitor != null) {
+			endTime = Math.min(endTime, convergenceMonitor.getQuietAt());
+		}
+		endTime = Math.min(endTime, this.snapshots.getNextSnapshot());
+
+		/*
+		 * Sort the queue into timer checks, keep alives and the events that
+		 * matter, anything else going on means the network isn't quiet
+		 */
+		HashMap<Router, Integer> timerTimes = new HashMap<Router, Integer>();
+		List<TCPEvent> keepAlives = new ArrayList<TCPEvent>();
+		List<SimEvent> keptEvents = new ArrayList<SimEvent>();
+		boolean quiet = true;
+		for (SimEvent queuedEvent : queuedEvents) {
+			if (queuedEvent.getType() == SimEvent.TIMEREXPIRE && queuedEvent.getAffinity() instanceof Router) {
+				if (timerTimes.put((Router) queuedEvent.getAffinity(), queuedEvent.getTime()) != null) {
+					quiet = false;
+				}
+			} else if (queuedEvent.getType() == SimEvent.TCPSEND
+					&& ((TCPEvent) queuedEvent).getPacket().getMessage().getMessageType() == Constants.BGP_KEEPALIVE) {
+				keepAlives.add((TCPEvent) queuedEvent);
+			} else if (queuedEvent.getType() == SimEvent.TCPSEND || queuedEvent.getType() == SimEvent.ROUTERCPUFREE) {
+				quiet = false;
+			} else {
+				keptEvents.add(queuedEvent);
+				endTime = Math.min(endTime, queuedEvent.getTime());
+			}
+		}
+
+		/*
+		 * Every router needs its one timer check, and every keep alive in
+		 * flight needs the one event that delivers it
+		 */
+		quiet = quiet && timerTimes.size() == routerMap.size() && endTime > currentTime;
+		int inFlight = 0;
+		for (Router tRouter : routerMap.values()) {
+			if (!quiet) {
+				break;
+			}
+			quiet = timerTimes.containsKey(tRouter) && tRouter.isQuiescent(timerTimes.get(tRouter), endTime);
+			inFlight += tRouter.countInFlight();
+		}
+		for (TCPEvent keepAlive : keepAlives) {
+			List<TCPPacket> tStack = keepAlive.getTcpQueue();
+			quiet = quiet && tStack.size() == 1 && tStack.get(0) == keepAlive.getPacket();
+		}
+		quiet = quiet && inFlight == keepAlives.size();
+
+		if (!quiet) {
+			for (SimEvent queuedEvent : queuedEvents) {
+				eventQueue.add(queuedEvent);
+			}
+			return;
+		}
+
+		for (Router tRouter : routerMap.values()) {
+			tRouter.fastForward(endTime);
+		}
+		for (SimEvent keptEvent : keptEvents) {
+			eventQueue.add(keptEvent);
+		}
+		for (TCPEvent keepAlive : keepAlives) {
+			if (keepAlive.getTcpQueue().size() > 0 && keepAlive.getTcpQueue().get(0) == keepAlive.getPacket()) {
+				eventQueue.add(keepAlive);
+			}
+		}
+		for (SimEvent timerEvent : queuedEvents) {
+			if (timerEvent.getType() == SimEvent.TIMEREXPIRE && timerEvent.getAffinity() instanceof Router) {
+				this.theDriver.recycleEvent(timerEvent);
+			}
+		}
+		for (Router tRouter : routerMap.values()) {
+			tRouter.finishFastForward();
+		}
+
+		this.fastForwardCount++;
+		this.fastForwardSkipped += endTime - currentTime;
+		this.nextQuiescenceCheck = endTime + this.quiescenceInterval;
+	}
+
+	public String getReport() {
+		return "quiescence fast forward: " + this.fastForwardCount + " jumps, " + this.fastForwardSkipped
+				+ " ms skipped";
+	}
+}
@@ -0,0 +1,140 @@
+package sim.engine;
+
+import java.io.IOException;
+
+import bgp.messages.BGPMessage;
+import sim.event.SimEvent;
+import sim.util.ConfigFileHelper;
+
+/**
+ * Runs one rank of a sim split over several processes. Every rank runs the
+ * events of the same window, [T, T + link latency) where T is the earliest
+ * event any rank has, in epochs as usual, then swaps the messages for each
+ * other's routers and works out the next T (see RankTransport).
+ *
+ */
+public class RankExecution implements ExecutionMode {
+
+	private static final int DEFAULT_RANK_PORT = 9700;
+
+	private SimDriver theDriver;
+
+	/**
+	 * Runs the events of each window
+	 */
+	private EpochExecution epochs;
+
+	/**
+	 * The link to the other ranks
+	 */
+	private RankTransport rankTransport;
+
+	/**
+	 * Connects to the other ranks on the loopback ports named in the config
+	 * file, exits with the config error code if that can't be done.
+	 *
+	 * @param theDriver
+	 *            - the driver of the run
+	 * @param simConfig
+	 *            - the sim config file
+	 * @param epochs
+	 *            - runs the events of each window
+	 * @param rank
+	 *            - our rank
+	 */
+	public RankExecution(SimDriver theDriver, ConfigFileHelper simConfig, EpochExecution epochs, int rank) {
+		this.theDriver = theDriver;
+		this.epochs = epochs;
+
+		int basePort = RankExecution.DEFAULT_RANK_PORT;
+		if (simConfig.getValue(SimDriver.RANK_PORT) != null) {
+			basePort = SimDriver.parseConfigInt(SimDriver.RANK_PORT, simConfig.getValue(SimDriver.RANK_PORT));
+		}
+		try {
+			this.rankTransport = new RankTransport(theDriver, rank, simConfig.getIntegerValue(SimDriver.RANK_COUNT),
+					basePort);
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.exit(-1);
+		}
+	}
+
+	public void runSim() {
+		int windowEnd = 0;
+		int windowStart;
+		while ((windowStart = this.nextRankWindow(windowEnd)) < this.theDriver.getMaxTime()) {
+			windowEnd = windowStart + this.theDriver.getLinkLatency();
+			this.epochs.runEpochs(windowEnd);
+		}
+		this.rankTransport.close();
+	}
+
+	/**
+	 * Ends the current window and finds the start of the next one. The run is
+	 * stopped once every rank's convergence monitor has been quiet since the
+	 * end of the window, all ranks see the same answer so they stop together.
+	 *
+	 * @param windowEnd
+	 *            - the end of the window just run, every event before it is
+	 *            done on every rank
+	 * @return - the start of the next window, or the max time if the run is
+	 *         over
+	 */
+	private int nextRankWindow(int windowEnd) {
+		this.theDriver.sampleMetrics();
+		SimEvent nextEvent = this.theDriver.getEventQueue().peek();
+		int localNext = (nextEvent == null ? Integer.MAX_VALUE : nextEvent.getTime());
+		ConvergenceMonitor convergenceMonitor = this.theDriver.getConvergenceMonitor();
+		boolean localQuiet = convergenceMonitor != null && convergenceMonitor.isQuiet(windowEnd);
+
+		int windowStart = Integer.MAX_VALUE;
+		try {
+			windowStart = this.rankTransport.exchange(localNext, localQuiet);
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.exit(-3);
+		}
+
+		if (this.rankTransport.isAllQuiet()) {
+			System.out.println("network converged, stopping at: " + windowEnd);
+			convergenceMonitor.markStopped(windowEnd);
+			this.theDriver.stopAt(windowEnd);
+		}
+		return Math.min(windowStart, this.theDriver.getMaxTime());
+	}
+
+	/**
+	 * Sends a message to a router run by another rank, it goes out at the end
+	 * of the window.
+	 *
+	 * @param dstRank
+	 *            - the rank running the destination router
+	 * @param srcASN
+	 *            - the sending router
+	 * @param dstASN
+	 *            - the destination router
+	 * @param msg
+	 *            - the message
+	 * @param transTime
+	 *            - the time the packet is first sent
+	 */
+	public void sendRemote(int dstRank, int srcASN, int dstASN, BGPMessage msg, int transTime) {
+		this.rankTransport.queueMessage(dstRank, transTime, srcASN, dstASN, msg);
+	}
+
+	public void postEvent(SimEvent inEvent) {
+		this.epochs.postEvent(inEvent);
+	}
+
+	public boolean isWindowOpen() {
+		return this.epochs.isWindowOpen();
+	}
+
+	public String getReport() {
+		String epochReport = this.epochs.getReport();
+		if (epochReport == null) {
+			return this.rankTransport.getReport();
+		}
+		return epochReport + "\n" + this.rankTransport.getReport();
+	}
+}
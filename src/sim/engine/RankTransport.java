@@ -0,0 +1,387 @@
+package sim.engine;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import bgp.dataStructures.CIDR;
+import bgp.dataStructures.Route;
+import bgp.messages.*;
+import bgp.messages.Error;
+
+/**
+ * Carries BGP messages between the processes (ranks) of a sim split over
+ * several, and keeps their clocks in step. Every rank has a loopback socket to
+ * every other rank: rank r listens on the base port + r, connects to every
+ * lower rank and takes connections from every higher one.
+ *
+ * Time is kept in step with conservative windows. A message can't reach
+ * another router sooner then the link latency after it is sent, so once
+ * every rank agrees on the earliest event anybody still has (T), each can run
+ * all of its events before T + latency without hearing from the others.
+ * Messages for routers on other ranks are batched up during the window, and
+ * at its end each rank sends every other rank one frame: the batch for that
+ * rank, the time of its own next event (counting the messages it just sent)
+ * and if its convergence monitor would stop the run. The next T is the
+ * earliest next event over every frame, so no message is ever in flight when
+ * it is worked out.
+ *
+ * Frames are read by one thread per peer into a queue, so a rank writing a
+ * big batch never waits on its peer writing one back. Only the driver thread
+ * sends, messages are queued from the workers too, under the transport's lock.
+ *
+ */
+public class RankTransport {
+
+	/**
+	 * How long to keep trying to reach a lower rank that isn't listening yet
+	 */
+	private static final int CONNECT_TRIES = 600;
+	private static final int CONNECT_WAIT = 100;
+
+	private SimDriver theDriver;
+
+	private int rank;
+
+	private int rankCount;
+
+	/**
+	 * Connection to every other rank, null at our own rank
+	 */
+	private Socket[] sockets;
+	private DataOutputStream[] outStreams;
+	private BlockingQueue<byte[]>[] inFrames;
+
+	/**
+	 * Messages waiting to go to every other rank, and how many
+	 */
+	private ByteArrayOutputStream[] batchBytes;
+	private DataOutputStream[] batchStreams;
+	private int[] batchCounts;
+
+	/**
+	 * Earliest arrival time of anything sent this window
+	 */
+	private int minSent;
+
+	private boolean allQuiet;
+
+	/**
+	 * Set once we close our sockets, so the readers know to go quietly
+	 */
+	private volatile boolean closing;
+
+	/**
+	 * Stats, reported when the sim finishes
+	 */
+	private long windowCount;
+	private long sentCount;
+	private long receivedCount;
+
+	/**
+	 * Connects to every other rank, returns once all of them are connected.
+	 *
+	 * @param theDriver
+	 *            - the driver messages from other ranks are handed to
+	 * @param rank
+	 *            - our rank
+	 * @param rankCount
+	 *            - the number of ranks
+	 * @param basePort
+	 *            - the port rank 0 listens on
+	 * @throws IOException
+	 *             - if a connection can't be made
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public RankTransport(SimDriver theDriver, int rank, int rankCount, int basePort) throws IOException {
+		this.theDriver = theDriver;
+		this.rank = rank;
+		this.rankCount = rankCount;
+		this.sockets = new Socket[rankCount];
+		this.outStreams = new DataOutputStream[rankCount];
+		this.inFrames = new BlockingQueue[rankCount];
+		this.batchBytes = new ByteArrayOutputStream[rankCount];
+		this.batchStreams = new DataOutputStream[rankCount];
+		this.batchCounts = new int[rankCount];
+		this.minSent = Integer.MAX_VALUE;
+		this.allQuiet = false;
+		this.closing = false;
+		this.windowCount = 0;
+		this.sentCount = 0;
+		this.receivedCount = 0;
+
+		ServerSocket listenSocket = new ServerSocket(basePort + rank, rankCount, InetAddress.getLoopbackAddress());
+		for (int counter = 0; counter < rank; counter++) {
+			Socket tSocket = RankTransport.connectTo(basePort + counter);
+			new DataOutputStream(tSocket.getOutputStream()).writeInt(rank);
+			this.addPeer(counter, tSocket);
+		}
+		for (int counter = rank + 1; counter < rankCount; counter++) {
+			Socket tSocket = listenSocket.accept();
+			this.addPeer(new DataInputStream(tSocket.getInputStream()).readInt(), tSocket);
+		}
+		listenSocket.close();
+		System.out.println("rank " + rank + " connected to " + (rankCount - 1) + " other ranks");
+	}
+
+	private static Socket connectTo(int port) throws IOException {
+		for (int counter = 0; counter < RankTransport.CONNECT_TRIES; counter++) {
+			try {
+				return new Socket(InetAddress.getLoopbackAddress(), port);
+			} catch (ConnectException e) {
+				try {
+					Thread.sleep(RankTransport.CONNECT_WAIT);
+				} catch (InterruptedException e2) {
+					throw new IOException("interrupted while connecting to port " + port);
+				}
+			}
+		}
+		throw new IOException("no rank listening on port " + port);
+	}
+
+	/**
+	 * Sets up the streams and batch for a peer, and starts its reader.
+	 */
+	private void addPeer(final int peerRank, Socket peerSocket) throws IOException {
+		peerSocket.setTcpNoDelay(true);
+		this.sockets[peerRank] = peerSocket;
+		this.outStreams[peerRank] = new DataOutputStream(new BufferedOutputStream(peerSocket.getOutputStream(),
+				1 << 16));
+		this.inFrames[peerRank] = new LinkedBlockingQueue<byte[]>();
+		this.batchBytes[peerRank] = new ByteArrayOutputStream();
+		this.batchStreams[peerRank] = new DataOutputStream(this.batchBytes[peerRank]);
+
+		final DataInputStream inStream = new DataInputStream(new BufferedInputStream(peerSocket.getInputStream(),
+				1 << 16));
+		final BlockingQueue<byte[]> frameQueue = this.inFrames[peerRank];
+		Thread readThread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					while (true) {
+						byte[] frame = new byte[inStream.readInt()];
+						inStream.readFully(frame);
+						frameQueue.put(frame);
+					}
+				} catch (EOFException e) {
+					/*
+					 * the peer is done, if we're still waiting on it the
+					 * driver will never hear back, so don't wait silently
+					 */
+					frameQueue.offer(new byte[0]);
+				} catch (IOException e) {
+					if (!RankTransport.this.closing) {
+						e.printStackTrace();
+					}
+					frameQueue.offer(new byte[0]);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		});
+		readThread.setDaemon(true);
+		readThread.start();
+	}
+
+	/**
+	 * Queues a message for a router on another rank, it is sent at the end of
+	 * the window.
+	 *
+	 * @param dstRank
+	 *            - the rank running the destination router
+	 * @param transTime
+	 *            - the time the packet is first sent
+	 * @param srcASN
+	 *            - the sending router
+	 * @param dstASN
+	 *            - the destination router
+	 * @param msg
+	 *            - the message
+	 */
+	public synchronized void queueMessage(int dstRank, int transTime, int srcASN, int dstASN, BGPMessage msg) {
+		try {
+			DataOutputStream outStream = this.batchStreams[dstRank];
+			outStream.writeInt(transTime);
+			outStream.writeInt(srcASN);
+			outStream.writeInt(dstASN);
+			RankTransport.writeMessage(outStream, msg);
+		} catch (IOException e) {
+			/*
+			 * can't happen writing to memory
+			 */
+			e.printStackTrace();
+		}
+		this.batchCounts[dstRank]++;
+		this.minSent = Math.min(this.minSent, transTime);
+		this.sentCount++;
+	}
+
+	/**
+	 * Ends a window: sends every other rank its batch, hands the messages
+	 * from every other rank to the driver, and works out when the next
+	 * window starts. Must be called by the driver thread while the workers are
+	 * idle.
+	 *
+	 * @param localNext
+	 *            - the time of our next event, Integer.MAX_VALUE if we have
+	 *            none
+	 * @param localQuiet
+	 *            - true if our convergence monitor would stop the run
+	 * @return - the start of the next window, the earliest event any rank has
+	 * @throws IOException
+	 *             - if a peer can't be reached or has gone away
+	 */
+	public int exchange(int localNext, boolean localQuiet) throws IOException {
+		int globalNext = Math.min(localNext, this.minSent);
+		this.allQuiet = localQuiet;
+
+		synchronized (this) {
+			for (int counter = 0; counter < this.rankCount; counter++) {
+				if (counter == this.rank) {
+					continue;
+				}
+				DataOutputStream outStream = this.outStreams[counter];
+				outStream.writeInt(9 + this.batchBytes[counter].size());
+				outStream.writeInt(globalNext);
+				outStream.writeBoolean(localQuiet);
+				outStream.writeInt(this.batchCounts[counter]);
+				this.batchBytes[counter].writeTo(outStream);
+				outStream.flush();
+				this.batchBytes[counter].reset();
+				this.batchCounts[counter] = 0;
+			}
+			this.minSent = Integer.MAX_VALUE;
+		}
+
+		/*
+		 * Take every peer's frame in rank order, so messages are always
+		 * handed over in the same order
+		 */
+		for (int counter = 0; counter < this.rankCount; counter++) {
+			if (counter == this.rank) {
+				continue;
+			}
+			byte[] frame;
+			try {
+				frame = this.inFrames[counter].take();
+			} catch (InterruptedException e) {
+				throw new IOException("interrupted waiting on rank " + counter);
+			}
+			if (frame.length == 0) {
+				throw new IOException("lost connection to rank " + counter);
+			}
+
+			DataInputStream inStream = new DataInputStream(new ByteArrayInputStream(frame));
+			globalNext = Math.min(globalNext, inStream.readInt());
+			this.allQuiet &= inStream.readBoolean();
+			int messageCount = inStream.readInt();
+			for (int msgCounter = 0; msgCounter < messageCount; msgCounter++) {
+				int transTime = inStream.readInt();
+				int srcASN = inStream.readInt();
+				int dstASN = inStream.readInt();
+				this.theDriver.receiveRemote(srcASN, dstASN, RankTransport.readMessage(inStream), transTime);
+			}
+			this.receivedCount += messageCount;
+		}
+
+		this.windowCount++;
+		return globalNext;
+	}
+
+	/**
+	 * Tests if every rank said its convergence monitor would stop the run at
+	 * the last exchange.
+	 *
+	 * @return - true if the run should stop
+	 */
+	public boolean isAllQuiet() {
+		return this.allQuiet;
+	}
+
+	/**
+	 * Encodes a BGP message, updates carry their withdraws as CIDR strings and
+	 * their route as its serial string.
+	 */
+	private static void writeMessage(DataOutputStream outStream, BGPMessage msg) throws IOException {
+		outStream.writeByte(msg.getMessageType());
+		outStream.writeInt(msg.getTimeStamp());
+		outStream.writeInt(msg.getSrcASN());
+		if (msg.getMessageType() == Constants.BGP_UPDATE) {
+			Update tUpdate = (Update) msg;
+			outStream.writeInt(tUpdate.getSrcId());
+			outStream.writeInt(tUpdate.getWithdraws().size());
+			for (CIDR tNet : tUpdate.getWithdraws()) {
+				outStream.writeUTF(tNet.toString());
+			}
+			outStream.writeBoolean(tUpdate.getAdvertised() != null);
+			if (tUpdate.getAdvertised() != null) {
+				outStream.writeUTF(tUpdate.getAdvertised().serialString());
+			}
+		} else if (msg.getMessageType() == Constants.BGP_CONNECT) {
+			Connect tConnect = (Connect) msg;
+			if (tConnect.isSyn()) {
+				outStream.writeByte(1);
+			} else if (tConnect.isSynAck()) {
+				outStream.writeByte(2);
+			} else {
+				outStream.writeByte(3);
+			}
+		} else if (msg.getMessageType() == Constants.BGP_ERROR) {
+			outStream.writeUTF(((Error) msg).getReason());
+		}
+	}
+
+	private static BGPMessage readMessage(DataInputStream inStream) throws IOException {
+		int messageType = inStream.readByte();
+		int timeStamp = inStream.readInt();
+		int srcASN = inStream.readInt();
+		if (messageType == Constants.BGP_UPDATE) {
+			Update retUpdate = new Update(srcASN, timeStamp);
+			int srcId = inStream.readInt();
+			int withdrawCount = inStream.readInt();
+			for (int counter = 0; counter < withdrawCount; counter++) {
+				retUpdate.addWithdraw(CIDR.parse(inStream.readUTF()));
+			}
+			if (inStream.readBoolean()) {
+				retUpdate.setAdvertised(new Route(inStream.readUTF()));
+			}
+			if (srcId != srcASN) {
+				retUpdate.setSrcId(srcId);
+			}
+			return retUpdate;
+		} else if (messageType == Constants.BGP_CONNECT) {
+			return new Connect(srcASN, timeStamp, inStream.readByte());
+		} else if (messageType == Constants.BGP_ERROR) {
+			return new Error(srcASN, timeStamp, inStream.readUTF());
+		} else if (messageType == Constants.BGP_KEEPALIVE) {
+			return new KeepAlive(srcASN, timeStamp);
+		}
+		throw new IOException("bad message type from another rank: " + messageType);
+	}
+
+	/**
+	 * Builds the transport stats line printed when the sim is done.
+	 *
+	 * @return - the stats
+	 */
+	public String getReport() {
+		return "rank " + this.rank + ": windows: " + this.windowCount + " messages sent: " + this.sentCount
+				+ " received: " + this.receivedCount;
+	}
+
+	/**
+	 * Closes the connections to every other rank.
+	 */
+	public void close() {
+		this.closing = true;
+		for (int counter = 0; counter < this.rankCount; counter++) {
+			if (this.sockets[counter] != null) {
+				try {
+					this.sockets[counter].close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+}
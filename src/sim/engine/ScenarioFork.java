@@ -0,0 +1,169 @@
+package sim.engine;
+
+import java.util.*;
+
+import sim.util.ConfigFileHelper;
+
+/**
+ * Runs several attack scenarios off one converged network in a single JVM.
+ * The network is converged once: loaded from the serial file if the sim
+ * config names one, otherwise booted and run with no bot master (set a
+ * convergence quiet time so this stops once the network settles). The
+ * converged state is then kept in memory as serial strings, the same thing a
+ * serial dump writes, and every scenario gets a replica built from them with
+ * its own bot master config. The replicas run at the same time, each on its
+ * own thread with its share of the worker count.
+ *
+ * The AS graph, network to AS mapping and AS weights are never changed by a
+ * run, so every replica shares the base copy. The serial strings are shared
+ * as well, each replica only builds its own routers, BGP RIBs, traffic
+ * accountant and bot master from them, with no boot, no convergence and no
+ * serial file parse.
+ *
+ * Every replica logs to the sim's log file name with FORK_SUFFIX and its
+ * number added, and its log is analyzed as usual when it is done. Traces and
+ * timelines are not kept for replicas, telemetry (if on) is served on the
+ * following ports, one per replica.
+ *
+ * Usage: ScenarioFork (sim config file) (bot config file) [(bot config file)
+ * ...]
+ *
+ */
+public class ScenarioFork {
+
+	public static final String FORK_SUFFIX = "_fork";
+	public static final String CONVERGE_SUFFIX = "_converge";
+
+	private ConfigFileHelper baseConfig;
+
+	private SimAssembly baseAssembly;
+
+	/**
+	 * The converged network, shared by every replica
+	 */
+	private String serialStart;
+	private Map<Integer, String> routerSerials;
+
+	public static void main(String argv[]) {
+		if (argv.length < 2) {
+			System.err
+					.println("Invalid usage!\nScenarioFork <sim config file path> <bot config file path> [<bot config file path> ...]");
+			System.exit(-1);
+		}
+
+		ConfigFileHelper configFile = SimDriver.loadSimConfig(argv[0]);
+		ScenarioFork theFork = new ScenarioFork(configFile);
+		theFork.runScenarios(Arrays.asList(argv).subList(1, argv.length));
+		System.out.println("ALL DONE");
+	}
+
+	/**
+	 * Builds the base network and converges it.
+	 *
+	 * @param configFile
+	 *            - the sim config
+	 */
+	public ScenarioFork(ConfigFileHelper configFile) {
+		this.baseConfig = configFile;
+		String convergeLog = configFile.getValue(SimDriver.LOG_FILE) + ScenarioFork.CONVERGE_SUFFIX;
+		Map<String, String> overrides = new HashMap<String, String>();
+		overrides.put(SimDriver.BOT_TYPE, "null");
+		overrides.put(SimDriver.LOG_FILE, convergeLog);
+		overrides.put(SimDriver.TRACE_FILE, null);
+		overrides.put(SimDriver.TIMELINE_FILE, null);
+		ConfigFileHelper convergeConfig = configFile.deriveConfig(overrides);
+
+		long runTime = System.currentTimeMillis();
+		this.baseAssembly = SimDriver.buildAssembly(convergeConfig, convergeLog);
+		if (this.baseAssembly.getUsedSerialString()) {
+			this.serialStart = this.baseAssembly.getSerialStart();
+			this.routerSerials = new HashMap<Integer, String>();
+			for (int tASN : this.baseAssembly.getRouterMap().keySet()) {
+				this.routerSerials.put(tASN, this.baseAssembly.getRouterMap().get(tASN).serialString());
+			}
+			this.baseAssembly.getLogStream().doneLogging();
+		} else {
+			SimDriver baseDriver = new SimDriver(this.baseAssembly, convergeConfig.getIntegerValue(SimDriver.SIM_TIME),
+					convergeConfig.getIntegerValue(SimDriver.WORKER_COUNT), convergeConfig);
+			this.baseAssembly.purgeSerialState();
+			long convergeTime = System.currentTimeMillis();
+			baseDriver.runSim();
+			baseDriver.finishRun(System.currentTimeMillis() - convergeTime);
+			this.serialStart = baseDriver.serialString();
+			this.routerSerials = baseDriver.routerSerialStrings();
+		}
+		System.out.println("converged network of " + this.routerSerials.size() + " routers ready in "
+				+ (System.currentTimeMillis() - runTime) + " ms");
+	}
+
+	/**
+	 * Runs one replica per bot config, all at the same time, and waits for
+	 * them.
+	 *
+	 * @param botConfigs
+	 *            - the bot config file of each scenario
+	 */
+	public void runScenarios(List<String> botConfigs) {
+		int workerCount = Math.max(1, this.baseConfig.getIntegerValue(SimDriver.WORKER_COUNT) / botConfigs.size());
+		List<Thread> replicaThreads = new ArrayList<Thread>();
+
+		for (int counter = 0; counter < botConfigs.size(); counter++) {
+			Map<String, String> overrides = new HashMap<String, String>();
+			overrides.put(SimDriver.LOG_FILE, this.baseConfig.getValue(SimDriver.LOG_FILE) + ScenarioFork.FORK_SUFFIX
+					+ counter);
+			overrides.put(SimDriver.BOT_FILE, botConfigs.get(counter));
+			overrides.put(SimDriver.WORKER_COUNT, "" + workerCount);
+			overrides.put(SimDriver.TRACE_FILE, null);
+			overrides.put(SimDriver.TIMELINE_FILE, null);
+			if (this.baseConfig.getValue(SimDriver.TELEMETRY_PORT) != null) {
+				overrides.put(SimDriver.TELEMETRY_PORT, ""
+						+ (this.baseConfig.getIntegerValue(SimDriver.TELEMETRY_PORT) + counter + 1));
+			}
+			final ConfigFileHelper replicaConfig = this.baseConfig.deriveConfig(overrides);
+
+			Thread tThread = new Thread(new Runnable() {
+				public void run() {
+					ScenarioFork.this.runReplica(replicaConfig);
+				}
+			});
+			replicaThreads.add(tThread);
+			tThread.start();
+		}
+
+		for (Thread tThread : replicaThreads) {
+			try {
+				tThread.join();
+			} catch (InterruptedException e) {
+				/*
+				 * Nobody should be interrupting us, yell and exit with the
+				 * threading error code
+				 */
+				e.printStackTrace();
+				System.exit(-3);
+			}
+		}
+	}
+
+	/**
+	 * Builds, runs and analyzes one replica, called on the replica's own
+	 * thread.
+	 *
+	 * @param replicaConfig
+	 *            - the replica's sim config
+	 */
+	private void runReplica(ConfigFileHelper replicaConfig) {
+		String logName = replicaConfig.getValue(SimDriver.LOG_FILE);
+		SimAssembly replicaAssembly = SimDriver.buildReplicaAssembly(replicaConfig, this.baseAssembly,
+				this.serialStart, this.routerSerials);
+		SimDriver replicaDriver = new SimDriver(replicaAssembly, replicaConfig.getIntegerValue(SimDriver.SIM_TIME),
+				replicaConfig.getIntegerValue(SimDriver.WORKER_COUNT), replicaConfig);
+		replicaAssembly.purgeSerialState();
+
+		System.out.println(logName + ": starting sim");
+		long runTime = System.currentTimeMillis();
+		replicaDriver.runSim();
+		replicaDriver.finishRun(System.currentTimeMillis() - runTime);
+		SimDriver.analyzeLog(replicaConfig, replicaAssembly, logName);
+		System.out.println(logName + ": done");
+	}
+}
@@ -27,6 +27,11 @@ public class SimAssembly {
 
 	private HashMap<CIDR, Integer> cidrToASMapping;
 
+	/**
+	 * Weight of each network, shared by every router
+	 */
+	private NetworkWeights networkWeights;
+
 	/**
 	 * Storage dict for Router objects, indexed by ASN
 	 */
@@ -50,6 +55,19 @@ public class SimAssembly {
 
 	private boolean usedSerialString = false;
 
+	/**
+	 * The snapshot this assembly was built from, null if it wasn't
+	 */
+	private SimSnapshot snapshot = null;
+
+	/**
+	 * The rank running each AS when the sim is split over several processes,
+	 * by ASN, null if this process runs every AS
+	 */
+	private HashMap<Integer, Integer> rankMap = null;
+
+	private int rank = 0;
+
 	/**
 	 * Constructor that is actually a meta-constructor. The args provide this
 	 * assembly object all of the information it needs to build all objects
@@ -72,11 +90,17 @@ public class SimAssembly {
 	 *            - the number of bots in the botnet
 	 * @param botResources
 	 *            - the speed of the connection the bots have, in Kbps
+	 * @param rank
+	 *            - the rank of this process when the sim is split over
+	 *            several, 0 otherwise
+	 * @param rankCount
+	 *            - the number of processes the sim is split over, 1 if it
+	 *            isn't
 	 */
 	public SimAssembly(String logName, boolean debugMode, boolean freshConfigFiles, boolean bigLogFile,
 			int attackPacketSize, String botStyle, String botConfig, String largeRouterConfig,
 			String smallRouterConfig, int largeCutoff, String serialFile, int netProcTime, double bgpProcTime,
-			HashMap<String, String> networkLinkSize, String asDataFile) {
+			HashMap<String, String> networkLinkSize, String asDataFile, int rank, int rankCount) {
 
 		/*
 		 * build logger, exit if it doesn't get created since doing a sim w/o
@@ -94,6 +118,9 @@ public class SimAssembly {
 		 * Traffic Accountant Traffic Accountant depends on Router Map
 		 */
 		this.buildNetworks(debugMode, networkLinkSize, asDataFile);
+		if (rankCount > 1) {
+			this.buildRankMap(rank, rankCount);
+		}
 		this.buildRouters(freshConfigFiles, largeRouterConfig, smallRouterConfig, largeCutoff, serialFile, netProcTime,
 				bgpProcTime);
 		this.buildTrafficAccountant(attackPacketSize);
@@ -102,6 +129,85 @@ public class SimAssembly {
 
 	}
 
+	/**
+	 * Builds a replica of a converged simulator. The AS graph, the network to
+	 * AS mapping and the AS weights are never changed once built, so the
+	 * replica shares them with the base assembly. Everything a run changes
+	 * (routers, the traffic accountant, the bot master, the log) is built
+	 * fresh, the routers from in memory serial strings instead of a serial
+	 * file. The router config files written for the base assembly are reused.
+	 * 
+	 * @param logName
+	 *            - the log file name of the replica
+	 * @param baseAssembly
+	 *            - the assembly the network is shared with
+	 * @param serialStart
+	 *            - the session list of the converged network, see
+	 *            SimDriver.serialString()
+	 * @param routerSerials
+	 *            - each router's serial string, by ASN
+	 */
+	public SimAssembly(String logName, SimAssembly baseAssembly, String serialStart,
+			Map<Integer, String> routerSerials, boolean bigLogFile, int attackPacketSize, String botStyle,
+			String botConfig, String largeRouterConfig, String smallRouterConfig, int largeCutoff, int netProcTime,
+			double bgpProcTime) {
+		try {
+			this.logger = new SimLogger(logName, bigLogFile);
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.exit(-2);
+		}
+
+		this.asMap = baseAssembly.asMap;
+		this.cidrToASMapping = baseAssembly.cidrToASMapping;
+		this.asWeighter = baseAssembly.asWeighter;
+
+		ASConfigGenerator configGen = new ASConfigGenerator(largeRouterConfig, smallRouterConfig, largeCutoff);
+		this.routerMap = new HashMap<Integer, Router>();
+		this.usedSerialString = true;
+		this.serialStub = serialStart;
+		try {
+			for (int tASN : routerSerials.keySet()) {
+				this.routerMap.put(tASN, this.buildSerialRouter(tASN, routerSerials.get(tASN), configGen, false,
+						netProcTime, bgpProcTime));
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.exit(-1);
+		}
+
+		this.buildTrafficAccountant(attackPacketSize);
+		this.buildBotMaster(botStyle, botConfig);
+		this.doBackLinking();
+	}
+
+	/**
+	 * Builds the simulator out of a mid-run snapshot, everything a run changes
+	 * comes straight from the snapshot, as does the logger, which carries on
+	 * the snapshot's log file. The network to AS mapping and AS weights are
+	 * never changed by a run so they are rebuilt instead of being kept in the
+	 * snapshot. The driver picks up the rest of the snapshot (the event queue
+	 * and its own state) with getSnapshot().
+	 * 
+	 * @param snapshot
+	 *            - the snapshot, see SimSnapshot.read()
+	 * @param debugMode
+	 *            - if the snapshot is of a debug network
+	 */
+	public SimAssembly(SimSnapshot snapshot, boolean debugMode) {
+		this.logger = snapshot.getLogStream();
+		this.asMap = snapshot.getASMap();
+		this.routerMap = snapshot.getRouterMap();
+		this.trafficAccountant = snapshot.getTrafficAccountant();
+		this.botMaster = snapshot.getBotMaster();
+		this.usedSerialString = snapshot.getUsedSerialString();
+		this.snapshot = snapshot;
+
+		if (!debugMode) {
+			this.buildNetworkMapping();
+		}
+	}
+
 	/**
 	 * Builds the AS map, this function should be the first buildXXXXX to be
 	 * called since most of the other construction needs a ref to the AS map
@@ -121,30 +227,78 @@ public class SimAssembly {
 					networkLinkSize.get(RealTopology.T2T2LINKPARAM), networkLinkSize.get(RealTopology.T2T1LINKPARAM),
 					networkLinkSize.get(RealTopology.T1T1LINKPARAM));
 			this.asMap = builder.getASMap();
+			this.buildNetworkMapping();
+		}
+	}
 
-			/*
-			 * build the network to AS mapping
-			 */
-			this.cidrToASMapping = new HashMap<CIDR, Integer>();
-			for (Integer tASN : this.asMap.keySet()) {
-				for (CIDR tempNet : this.asMap.get(tASN).getLocalNetworks()) {
-					this.cidrToASMapping.put(tempNet, tASN);
-				}
+	/**
+	 * Builds the network to AS mapping, the AS weighter and the network
+	 * weights, needs the AS map.
+	 */
+	private void buildNetworkMapping() {
+		this.cidrToASMapping = new HashMap<CIDR, Integer>();
+		for (Integer tASN : this.asMap.keySet()) {
+			for (CIDR tempNet : this.asMap.get(tASN).getLocalNetworks()) {
+				this.cidrToASMapping.put(tempNet, tASN);
 			}
+		}
 
-			System.out.println("starting build of AS weighter");
-			try {
-				this.asWeighter = new ASIPParse(ASIPParse.RIB_FILE);
-			} catch (IOException e) {
-				e.printStackTrace();
-				System.exit(-1);
+		System.out.println("starting build of AS weighter");
+		try {
+			this.asWeighter = new ASIPParse(ASIPParse.RIB_FILE);
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.exit(-1);
+		}
+		System.out.println("done with build of AS weighter");
+		this.networkWeights = new NetworkWeights(this.cidrToASMapping, this.asWeighter.getASWeighting());
+	}
+
+	/**
+	 * Splits the ASes over the ranks, with the same partitioner the
+	 * partitioned worker pool uses, weighing each AS by its degree. The split
+	 * only depends on the AS graph, so every rank works out the same one on
+	 * its own.
+	 * 
+	 * @param rank
+	 *            - the rank of this process
+	 * @param rankCount
+	 *            - the number of ranks
+	 */
+	private void buildRankMap(int rank, int rankCount) {
+		Map<Integer, Long> loadMap = new HashMap<Integer, Long>();
+		for (int tASN : this.asMap.keySet()) {
+			loadMap.put(tASN, (long) (this.asMap.get(tASN).getDegree() + 1));
+		}
+
+		this.rank = rank;
+		this.rankMap = new HashMap<Integer, Integer>(AffinityPartitioner.partition(this.asMap, loadMap, rankCount));
+		int localCount = 0;
+		for (int tRank : this.rankMap.values()) {
+			if (tRank == rank) {
+				localCount++;
 			}
-			System.out.println("done with build of AS weighter");
 		}
+		System.out.println("rank " + rank + " of " + rankCount + " runs " + localCount + " of " + this.asMap.size()
+				+ " ASes");
 	}
 
 	/**
-	 * Builds the router map.
+	 * Predicate that tests if an AS's router is run by this process.
+	 * 
+	 * @param asn
+	 *            - the AS
+	 * @return - true if the router is run here, false if this process only
+	 *         holds a stand in for it
+	 */
+	public boolean isLocalRouter(int asn) {
+		return this.rankMap == null || this.rankMap.get(asn) == this.rank;
+	}
+
+	/**
+	 * Builds the router map. When the sim is split over several processes the
+	 * routers run by other ranks are only stand ins, and are always built
+	 * fresh, none of their state is loaded from the serial file.
 	 * 
 	 * @param freshConfigFiles
 	 *            - flag that determines if we build fresh IOS files, or if we
@@ -183,7 +337,7 @@ public class SimAssembly {
 						configFile = configGen.getConfigFileName(this.asMap.get(tASN));
 					}
 					this.routerMap.put(tASN, new Router(configFile, this.logger, netProcTime, bgpProcTime,
-							this.cidrToASMapping, this.asWeighter.getASWeighting()));
+							this.networkWeights));
 				} catch (IOException e) {
 					/*
 					 * A router missing it's config file is fatal, yell and
@@ -204,13 +358,18 @@ public class SimAssembly {
 					StringTokenizer topToken = new StringTokenizer(poll, "&");
 					int tASN = Integer.parseInt(topToken.nextToken());
 
-					if (freshConfigFiles) {
-						configFile = configGen.createConfigFile(this.asMap.get(tASN));
+					if (this.isLocalRouter(tASN)) {
+						this.routerMap.put(tASN, this.buildSerialRouter(tASN, topToken.nextToken(), configGen,
+								freshConfigFiles, netProcTime, bgpProcTime));
 					} else {
-						configFile = configGen.getConfigFileName(this.asMap.get(tASN));
+						if (freshConfigFiles) {
+							configFile = configGen.createConfigFile(this.asMap.get(tASN));
+						} else {
+							configFile = configGen.getConfigFileName(this.asMap.get(tASN));
+						}
+						this.routerMap.put(tASN, new Router(configFile, this.logger, netProcTime, bgpProcTime,
+								this.networkWeights));
 					}
-					this.routerMap.put(tASN, new Router(configFile, this.logger, topToken.nextToken(), netProcTime,
-							bgpProcTime, this.cidrToASMapping, this.asWeighter.getASWeighting()));
 				}
 
 				serialBuff.close();
@@ -223,6 +382,33 @@ public class SimAssembly {
 		configGen.printLargeCount();
 	}
 
+	/**
+	 * Builds a router from its serial string.
+	 * 
+	 * @param tASN
+	 *            - the router's ASN
+	 * @param serialString
+	 *            - the router's serial string
+	 * @param configGen
+	 *            - generator for the router's config file
+	 * @param freshConfigFiles
+	 *            - if true the config file is written again, otherwise the one
+	 *            already on disk is used
+	 * @return - the router
+	 * @throws IOException
+	 *             - if the config file can't be written or read
+	 */
+	private Router buildSerialRouter(int tASN, String serialString, ASConfigGenerator configGen,
+			boolean freshConfigFiles, int netProcTime, double bgpProcTime) throws IOException {
+		String configFile;
+		if (freshConfigFiles) {
+			configFile = configGen.createConfigFile(this.asMap.get(tASN));
+		} else {
+			configFile = configGen.getConfigFileName(this.asMap.get(tASN));
+		}
+		return new Router(configFile, this.logger, serialString, netProcTime, bgpProcTime, this.networkWeights);
+	}
+
 	/**
 	 * Builds the traffic accountant. Needs to be called after the as map and
 	 * router map are created.
@@ -268,12 +454,36 @@ public class SimAssembly {
 
 	public void purgeSerialState() {
 		this.serialStub = null;
+		this.snapshot = null;
 	}
 
 	public boolean getUsedSerialString() {
 		return this.usedSerialString;
 	}
 
+	/**
+	 * Gets the snapshot this assembly was built from.
+	 * 
+	 * @return - the snapshot, or null if the assembly was built from scratch
+	 */
+	public SimSnapshot getSnapshot() {
+		return this.snapshot;
+	}
+
+	/**
+	 * Gets the rank running each AS.
+	 * 
+	 * @return - the rank of each AS, by ASN, or null if this process runs
+	 *         every AS
+	 */
+	public HashMap<Integer, Integer> getRankMap() {
+		return this.rankMap;
+	}
+
+	public int getRank() {
+		return this.rank;
+	}
+
 	// boring getters from here down...
 	public HashMap<Integer, AS> getASMap() {
 		return this.asMap;
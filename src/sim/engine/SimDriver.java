@@ -3,6 +3,7 @@ package sim.engine;
 import java.util.*;
 import java.io.*;
 
+import bgp.messages.BGPMessage;
 import sim.agents.*;
 import sim.event.*;
 import sim.logging.*;
@@ -20,9 +21,60 @@ public class SimDriver implements Runnable, SimAgent {
 
 	private int maxTime;
 
-	private SimWorkerPool workerPool;
+	private WorkerPool workerPool;
 
-	private PriorityQueue<SimEvent> eventQueue;
+	private EventQueue eventQueue;
+
+	/**
+	 * The event queue if it is a primitive queue, null otherwise
+	 */
+	private PrimitiveEventQueue primitiveQueue;
+
+	/**
+	 * How events are run in parallel, picked by the execution mode config
+	 * param
+	 */
+	private ExecutionMode execution;
+
+	/**
+	 * The execution mode when the sim is split over several processes (see
+	 * DistributedSim), null otherwise
+	 */
+	private RankExecution ranks;
+
+	/**
+	 * Binary trace of the run, null if none is kept
+	 */
+	private TraceRecorder traceRecorder;
+
+	/**
+	 * Live telemetry and timeline, each only kept if asked for
+	 */
+	private DriverMetrics metrics;
+
+	/**
+	 * Watches for convergence and stops the run early, null if the run
+	 * always goes to the max time
+	 */
+	private ConvergenceMonitor convergenceMonitor;
+
+	private SnapshotSchedule snapshots;
+
+	private QuiescenceCheck quiescence;
+
+	/**
+	 * When the sim is split over several processes, the rank running each AS
+	 * (by ASN) and our own rank, null otherwise
+	 */
+	private HashMap<Integer, Integer> rankMap;
+	private int rank;
+
+	/**
+	 * If keep alives are modeled instead of sent
+	 */
+	private boolean analyticKeepAlives;
+
+	private boolean usedSerialString;
 
 	private HashMap<Integer, Router> routerMap;
 
@@ -38,90 +90,160 @@ public class SimDriver implements Runnable, SimAgent {
 
 	private int routerFlight;
 
+	/**
+	 * Progress counters for the "% done" console output
+	 */
+	private int watchTime;
+	private int watchCounter;
+
+	/**
+	 * Minimum time between a router sending a message and the receiver seeing
+	 * it, in ms
+	 */
+	private int linkLatency;
+
 	private static final boolean DEBUG = false;
 	
 	private static final String CONS_TIME = "time";
 	private static final String CONS_LEFT = "left";
+	private static final String CONS_SNAPSHOT = "snapshot";
 
-	public static void main(String argv[]) {
-		/*
-		 * List of required params in config file
-		 */
-		String botType = "bot type";
-		String serialFile = "serial file";
-		String simTime = "sim time";
-		String logTime = "log time";
-		String netProcessTime = "net process time";
-		String bgpProcessTime = "bgp process time";
-		String workerCount = "worker count";
-		String asFile = "as file";
-		String botFile = "bot conf file";
-		String largeRouterFile = "large router conf file";
-		String smallRouterFile = "small router conf file";
-		String largeCut = "large cutoff";
-		String logFile = "log file";
+	/**
+	 * Optional config param that picks the pending event set implementation
+	 */
+	public static final String EVENT_QUEUE = "event queue";
+	public static final String EVENT_QUEUE_HEAP = "heap";
+	public static final String EVENT_QUEUE_CALENDAR = "calendar";
+	public static final String EVENT_QUEUE_PRIMITIVE = "primitive";
 
-		/*
-		 * Setup required config set
-		 */
-		Set<String> configReqParams = new HashSet<String>();
-		configReqParams.add(botType);
-		configReqParams.add(serialFile);
-		configReqParams.add(simTime);
-		configReqParams.add(logTime);
-		configReqParams.add(netProcessTime);
-		configReqParams.add(bgpProcessTime);
-		configReqParams.add(workerCount);
-		configReqParams.add(botFile);
-		configReqParams.add(largeRouterFile);
-		configReqParams.add(smallRouterFile);
-		configReqParams.add(largeCut);
-		configReqParams.add(logFile);
-		if (!SimDriver.DEBUG) {
-			configReqParams.add(asFile);
-		}
-		ConfigFileHelper configFile = new ConfigFileHelper(configReqParams);
+	/**
+	 * Optional config param that picks the worker pool implementation
+	 */
+	public static final String WORKER_POOL = "worker pool";
+	public static final String WORKER_POOL_SEMAPHORE = "semaphore";
+	public static final String WORKER_POOL_STEALING = "stealing";
+	public static final String WORKER_POOL_VIRTUAL = "virtual";
+	public static final String WORKER_POOL_PARTITIONED = "partitioned";
+	public static final String REBALANCE_INTERVAL = "rebalance interval";
+
+	/**
+	 * Optional config params that pick how events are run in parallel
+	 */
+	public static final String EXEC_MODE = "execution mode";
+	public static final String EXEC_EPOCH = "epoch";
+	public static final String EXEC_CONSERVATIVE = "conservative";
+	public static final String EXEC_OPTIMISTIC = "optimistic";
+	public static final String LOOKAHEAD = "lookahead window";
+	public static final String LOOKAHEAD_AUTO = "auto";
+	public static final String LINK_LATENCY = "link latency";
+	public static final String EPOCH_TASKS = "epoch tasks";
+	public static final String EPOCH_TASKS_CPU = "cpu";
+	public static final String EPOCH_TASKS_GROUPED = "grouped";
+	public static final String OPT_WINDOW = "optimistic window";
+	public static final String TASK_ORDER = "task order";
+	public static final String TASK_ORDER_FIFO = "fifo";
+	public static final String TASK_ORDER_COST = "cost";
+	public static final String EPOCH_METRICS = "epoch metrics";
+	public static final String ADAPTIVE_EPOCHS = "adaptive epochs";
+	public static final String TRACE_FILE = "trace file";
+	public static final String TELEMETRY_PORT = "telemetry port";
+	public static final String TIMELINE_FILE = "timeline file";
+	public static final String CONVERGENCE_QUIET = "convergence quiet time";
+	public static final String CONVERGENCE_EARLIEST = "convergence earliest stop";
 
+	/**
+	 * Optional config params that split the sim over several processes, see
+	 * DistributedSim
+	 */
+	public static final String RANK_COUNT = "rank count";
+	public static final String RANK_PORT = "rank port";
+
+	/**
+	 * Optional config param, the sim time between mid-run snapshots, see
+	 * SimSnapshot
+	 */
+	public static final String SNAPSHOT_INTERVAL = "snapshot interval";
+
+	/**
+	 * Optional config param, the sim time between checks for a network with
+	 * nothing but periodic BGP timers going on, see QuiescenceCheck
+	 */
+	public static final String QUIESCENCE_INTERVAL = "quiescence check interval";
+
+	/**
+	 * Optional config param, if true keep alives are modeled by the routers
+	 * that would get them instead of being sent, see
+	 * BGPDaemon.setAnalyticKeepAlives()
+	 */
+	public static final String ANALYTIC_KEEPALIVES = "analytic keepalives";
+
+	/**
+	 * Optional config param that picks how routers find expired BGP timers
+	 */
+	public static final String BGP_TIMERS = "bgp timers";
+	public static final String BGP_TIMERS_SCAN = "scan";
+	public static final String BGP_TIMERS_WHEEL = "wheel";
+
+	/**
+	 * Optional config param that picks how routers store their RIBs
+	 */
+	public static final String RIB_STORAGE = "rib storage";
+	public static final String RIB_STORAGE_HASH = "hash";
+	public static final String RIB_STORAGE_TRIE = "trie";
+	public static final String RIB_STORAGE_COMPACT = "compact";
+
+	private static final int DEFAULT_REBALANCE_INTERVAL = 10000;
+
+	/**
+	 * Required params in the sim config file
+	 */
+	public static final String BOT_TYPE = "bot type";
+	public static final String SERIAL_FILE = "serial file";
+	public static final String SIM_TIME = "sim time";
+	private static final String LOG_TIME = "log time";
+	private static final String NET_PROCESS_TIME = "net process time";
+	private static final String BGP_PROCESS_TIME = "bgp process time";
+	public static final String WORKER_COUNT = "worker count";
+	private static final String AS_FILE = "as file";
+	public static final String BOT_FILE = "bot conf file";
+	private static final String LARGE_ROUTER_FILE = "large router conf file";
+	private static final String SMALL_ROUTER_FILE = "small router conf file";
+	private static final String LARGE_CUT = "large cutoff";
+	public static final String LOG_FILE = "log file";
+
+	/**
+	 * Size in bits of attack packets
+	 */
+	public static final int ATTACK_PACKET_SIZE = 128;
+
+	public static void main(String argv[]) {
 		/*
 		 * Load the config file given by the run time arg
 		 */
 		String confString;
-		if (argv.length != 1) {
-			// System.err.println("Invalid usage!\nSimDriver <sim config file path>");
+		if (argv.length < 1) {
+			// System.err.println("Invalid usage!\nSimDriver <sim config file path> [<snapshot to resume>]");
 			// System.exit(-1);
 			confString="conf/sample_sim.conf";
 		}
 		else{
 			confString=argv[0];
 		}
-		try {
-			configFile.parseFile(confString);
-		} catch (Exception e) {
-			e.printStackTrace();
-			System.exit(-1);
-		}
+		ConfigFileHelper configFile = SimDriver.loadSimConfig(confString);
 
 		/*
-		 * build a hash map out of the network size params
+		 * Build the sim data structs (or load them from the snapshot we're
+		 * resuming) and then garbage collect
 		 */
-		SimAssembly theFactory = null;
-		HashMap<String, String> networkLinkSizeMap = new HashMap<String, String>();
-		networkLinkSizeMap.put(RealTopology.T3LINKPARAM, configFile.getValue(RealTopology.T3LINKPARAM));
-		networkLinkSizeMap.put(RealTopology.T2T2LINKPARAM, configFile.getValue(RealTopology.T2T2LINKPARAM));
-		networkLinkSizeMap.put(RealTopology.T2T1LINKPARAM, configFile.getValue(RealTopology.T2T1LINKPARAM));
-		networkLinkSizeMap.put(RealTopology.T1T1LINKPARAM, configFile.getValue(RealTopology.T1T1LINKPARAM));
+		SimAssembly theFactory;
+		if (argv.length > 1) {
+			theFactory = SimDriver.buildResumeAssembly(configFile, argv[1]);
+		} else {
+			theFactory = SimDriver.buildAssembly(configFile, configFile.getValue(SimDriver.LOG_FILE));
+		}
 
-		/*
-		 * Build the sim data structs and then garbage collect
-		 */
-		theFactory = new SimAssembly(configFile.getValue(logFile), SimDriver.DEBUG, true, SimDriver.DEBUG, 128,
-				configFile.getValue(botType), configFile.getValue(botFile), configFile.getValue(largeRouterFile),
-				configFile.getValue(smallRouterFile), configFile.getIntegerValue(largeCut), configFile
-						.getValue(serialFile), configFile.getIntegerValue(netProcessTime), configFile
-						.getDoubleValue(bgpProcessTime), networkLinkSizeMap, configFile.getValue(asFile));
-
-		SimDriver theDriver = new SimDriver(theFactory, Integer.parseInt(configFile.getValue(simTime)), Integer
-				.parseInt(configFile.getValue(workerCount)));
+		SimDriver theDriver = new SimDriver(theFactory, Integer.parseInt(configFile.getValue(SimDriver.SIM_TIME)),
+				Integer.parseInt(configFile.getValue(SimDriver.WORKER_COUNT)), configFile);
 		theFactory.purgeSerialState();
 		System.gc();
 
@@ -135,56 +257,676 @@ public class SimDriver implements Runnable, SimAgent {
 		System.out.println("done w/ pre-sim, starting sim");
 		long runTime = System.currentTimeMillis();
 		theDriver.runSim();
-		runTime = System.currentTimeMillis() - runTime;
-		System.out.println("sim done at: " + runTime);
-		theDriver.logger.logMessage("sim done at: " + runTime, false);
-		theDriver.cleanUp(SimDriver.DEBUG);
+		theDriver.finishRun(System.currentTimeMillis() - runTime);
 		theDriver.dumpMemLoads();
 
 		if (!theFactory.getUsedSerialString()) {
-			theDriver.doSerialDump(configFile.getValue(logFile));
+			theDriver.doSerialDump(configFile.getValue(SimDriver.LOG_FILE));
+		}
+
+		SimDriver.analyzeLog(configFile, theFactory, configFile.getValue(SimDriver.LOG_FILE));
+		System.out.println("ALL DONE");
+	}
+
+	/**
+	 * Loads the sim config file, checking that every required param is there.
+	 * Exits with the config error code if the file can't be loaded.
+	 * 
+	 * @param confString
+	 *            - path to the config file
+	 * @return - the loaded config
+	 */
+	public static ConfigFileHelper loadSimConfig(String confString) {
+		/*
+		 * Setup required config set
+		 */
+		Set<String> configReqParams = new HashSet<String>();
+		configReqParams.add(SimDriver.BOT_TYPE);
+		configReqParams.add(SimDriver.SERIAL_FILE);
+		configReqParams.add(SimDriver.SIM_TIME);
+		configReqParams.add(SimDriver.LOG_TIME);
+		configReqParams.add(SimDriver.NET_PROCESS_TIME);
+		configReqParams.add(SimDriver.BGP_PROCESS_TIME);
+		configReqParams.add(SimDriver.WORKER_COUNT);
+		configReqParams.add(SimDriver.BOT_FILE);
+		configReqParams.add(SimDriver.LARGE_ROUTER_FILE);
+		configReqParams.add(SimDriver.SMALL_ROUTER_FILE);
+		configReqParams.add(SimDriver.LARGE_CUT);
+		configReqParams.add(SimDriver.LOG_FILE);
+		if (!SimDriver.DEBUG) {
+			configReqParams.add(SimDriver.AS_FILE);
 		}
+		ConfigFileHelper configFile = new ConfigFileHelper(configReqParams);
+
+		try {
+			configFile.parseFile(confString);
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.exit(-1);
+		}
+		return configFile;
+	}
 
+	/**
+	 * Builds the networks, routers and agents described by the config file.
+	 * 
+	 * @param configFile
+	 *            - the loaded sim config
+	 * @param logName
+	 *            - name of the log file the assembly's logger writes to
+	 * @return - the assembly
+	 */
+	public static SimAssembly buildAssembly(ConfigFileHelper configFile, String logName) {
+		return SimDriver.buildAssembly(configFile, logName, 0, 1);
+	}
+
+	/**
+	 * Builds the networks, routers and agents described by the config file,
+	 * for one rank of a sim split over several processes.
+	 * 
+	 * @param configFile
+	 *            - the loaded sim config
+	 * @param logName
+	 *            - name of the log file the assembly's logger writes to
+	 * @param rank
+	 *            - our rank
+	 * @param rankCount
+	 *            - the number of ranks, 1 if the sim isn't split
+	 * @return - the assembly
+	 */
+	public static SimAssembly buildAssembly(ConfigFileHelper configFile, String logName, int rank, int rankCount) {
+		/*
+		 * build a hash map out of the network size params
+		 */
+		HashMap<String, String> networkLinkSizeMap = new HashMap<String, String>();
+		networkLinkSizeMap.put(RealTopology.T3LINKPARAM, configFile.getValue(RealTopology.T3LINKPARAM));
+		networkLinkSizeMap.put(RealTopology.T2T2LINKPARAM, configFile.getValue(RealTopology.T2T2LINKPARAM));
+		networkLinkSizeMap.put(RealTopology.T2T1LINKPARAM, configFile.getValue(RealTopology.T2T1LINKPARAM));
+		networkLinkSizeMap.put(RealTopology.T1T1LINKPARAM, configFile.getValue(RealTopology.T1T1LINKPARAM));
+
+		return new SimAssembly(logName, SimDriver.DEBUG, true, SimDriver.DEBUG, SimDriver.ATTACK_PACKET_SIZE, configFile
+				.getValue(SimDriver.BOT_TYPE), configFile.getValue(SimDriver.BOT_FILE), configFile
+				.getValue(SimDriver.LARGE_ROUTER_FILE), configFile.getValue(SimDriver.SMALL_ROUTER_FILE), configFile
+				.getIntegerValue(SimDriver.LARGE_CUT), configFile.getValue(SimDriver.SERIAL_FILE), configFile
+				.getIntegerValue(SimDriver.NET_PROCESS_TIME), configFile.getDoubleValue(SimDriver.BGP_PROCESS_TIME),
+				networkLinkSizeMap, configFile.getValue(SimDriver.AS_FILE), rank, rankCount);
+	}
+
+	/**
+	 * Builds a replica of a converged network for the config file, sharing the
+	 * base assembly's AS graph. Only the bot master and logging parts of the
+	 * config are used.
+	 * 
+	 * @param configFile
+	 *            - the replica's sim config
+	 * @param baseAssembly
+	 *            - the assembly the network is shared with
+	 * @param serialStart
+	 *            - the session list of the converged network
+	 * @param routerSerials
+	 *            - each router's serial string, by ASN
+	 * @return - the replica's assembly
+	 */
+	public static SimAssembly buildReplicaAssembly(ConfigFileHelper configFile, SimAssembly baseAssembly,
+			String serialStart, Map<Integer, String> routerSerials) {
+		return new SimAssembly(configFile.getValue(SimDriver.LOG_FILE), baseAssembly, serialStart, routerSerials,
+				SimDriver.DEBUG, SimDriver.ATTACK_PACKET_SIZE, configFile.getValue(SimDriver.BOT_TYPE), configFile
+						.getValue(SimDriver.BOT_FILE), configFile.getValue(SimDriver.LARGE_ROUTER_FILE), configFile
+						.getValue(SimDriver.SMALL_ROUTER_FILE), configFile.getIntegerValue(SimDriver.LARGE_CUT),
+				configFile.getIntegerValue(SimDriver.NET_PROCESS_TIME), configFile
+						.getDoubleValue(SimDriver.BGP_PROCESS_TIME));
+	}
+
+	/**
+	 * Loads a mid-run snapshot to resume, the resumed run carries on the log
+	 * file named in the config file. Exits with the config error code if the
+	 * snapshot can't be loaded.
+	 * 
+	 * @param configFile
+	 *            - the loaded sim config
+	 * @param snapshotFile
+	 *            - path to the snapshot
+	 * @return - the assembly built from the snapshot
+	 */
+	public static SimAssembly buildResumeAssembly(ConfigFileHelper configFile, String snapshotFile) {
+		SimSnapshot snapshot = null;
+		try {
+			snapshot = SimSnapshot.read(snapshotFile, configFile.getValue(SimDriver.LOG_FILE), SimDriver.DEBUG);
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.exit(-1);
+		}
+		System.out.println("resuming from snapshot taken at: " + snapshot.getTime());
+		return new SimAssembly(snapshot, SimDriver.DEBUG);
+	}
+
+	/**
+	 * Runs the log analysis over a finished log file.
+	 * 
+	 * @param configFile
+	 *            - the loaded sim config
+	 * @param theFactory
+	 *            - the assembly the log was made with
+	 * @param logName
+	 *            - name of the log file
+	 */
+	public static void analyzeLog(ConfigFileHelper configFile, SimAssembly theFactory, String logName) {
 		System.out.println("starting log parse");
 
 		/*
 		 * Do the actual parse of the log file, use the weighted parser, as
 		 * we're interested in more then just networks w/ a single IP block
 		 */
-		WeightedLogParser logParse = new WeightedLogParser(configFile.getValue(logFile), theFactory.getASWeights());
+		WeightedLogParser logParse = new WeightedLogParser(logName, theFactory.getASWeights());
 		logParse.messageSweep();
-		logParse.buildCDFs(configFile.getIntegerValue(logTime));
+		logParse.buildCDFs(configFile.getIntegerValue(SimDriver.LOG_TIME));
 
 		/*
 		 * Generate the makespan data
 		 */
 		try {
-			TTPParser obj = new TTPParser(configFile.getValue(logFile), configFile.getDoubleValue(bgpProcessTime),
-					theFactory.getASMap());
+			TTPParser obj = new TTPParser(logName, configFile.getDoubleValue(SimDriver.BGP_PROCESS_TIME), theFactory
+					.getASMap());
 		} catch (IOException e) {
 			System.err.println("oh dear lord there was an issue doing the makespan parse");
 			e.printStackTrace();
 		}
-
-		System.out.println("ALL DONE");
 	}
 
-	public SimDriver(SimAssembly simFactory, int maxTime, int workerCount) {
-		this.workerPool = new SimWorkerPool(workerCount);
-		this.eventQueue = new PriorityQueue<SimEvent>();
+	public SimDriver(SimAssembly simFactory, int maxTime, int workerCount, ConfigFileHelper simConfig) {
+		this.workerPool = this.buildWorkerPool(simConfig, workerCount);
+		this.eventQueue = this.buildEventQueue(simConfig.getValue(SimDriver.EVENT_QUEUE));
+		this.primitiveQueue = null;
+		if (this.eventQueue instanceof PrimitiveEventQueue) {
+			this.primitiveQueue = (PrimitiveEventQueue) this.eventQueue;
+		}
 		this.currentTime = 0;
 		this.maxTime = maxTime;
 		this.routerFlight = 0;
+		this.watchTime = maxTime / 10;
+		this.watchCounter = 0;
+
+		/*
+		 * the latency defaults to the historic "next sim tick" TCP send
+		 */
+		this.linkLatency = 1;
+		if (simConfig.getValue(SimDriver.LINK_LATENCY) != null) {
+			this.linkLatency = SimDriver.parseConfigInt(SimDriver.LINK_LATENCY, simConfig
+					.getValue(SimDriver.LINK_LATENCY));
+		}
 
 		this.routerMap = simFactory.getRouterMap();
 		this.asMap = simFactory.getASMap();
 		this.trafficMgmt = simFactory.getTrafficAccountant();
 		this.botMaster = simFactory.getBotMaster();
 		this.logger = simFactory.getLogStream();
+		this.rankMap = simFactory.getRankMap();
+		this.rank = simFactory.getRank();
+		this.ranks = null;
+		this.usedSerialString = simFactory.getUsedSerialString();
+
+		this.metrics = new DriverMetrics(simConfig, this.maxTime, this.workerPool);
+		this.execution = this.buildExecution(simConfig, workerCount);
+		this.configureTimers(simConfig.getValue(SimDriver.BGP_TIMERS));
+		this.configureRIBs(simConfig.getValue(SimDriver.RIB_STORAGE));
+		this.startTrace(simConfig.getValue(SimDriver.TRACE_FILE));
+		this.convergenceMonitor = this.buildConvergenceMonitor(simConfig);
+		this.snapshots = new SnapshotSchedule(this, simConfig);
+		this.quiescence = new QuiescenceCheck(this, simConfig, this.snapshots,
+				this.execution instanceof EpochExecution);
+		this.analyticKeepAlives = simConfig.getBooleanValue(SimDriver.ANALYTIC_KEEPALIVES);
+		if (simFactory.getSnapshot() == null) {
+			this.doPreLogging();
+			this.registerDriver();
+			this.setupRouterConnections(simFactory.getSerialStart());
+		} else {
+			this.registerDriver();
+			this.resumeSnapshot(simFactory.getSnapshot());
+		}
+
+		/*
+		 * done once the routers are in place, a resumed run can turn analytic
+		 * keep alives on or off from what the snapshot had
+		 */
+		for (Router tRouter : this.routerMap.values()) {
+			tRouter.setAnalyticKeepAlives(this.analyticKeepAlives);
+		}
+		if (this.workerPool instanceof PartitionedWorkerPool) {
+			((PartitionedWorkerPool) this.workerPool).partition(this.routerMap, this.asMap);
+		}
+		if (this.rankMap != null) {
+			this.connectRanks(simConfig);
+		}
+	}
+
+	/**
+	 * Connects to the other ranks of a sim split over several processes, the
+	 * epochs are then run a window at a time by a RankExecution. Exits with
+	 * the config error code if the run needs something a rank can't do: bots
+	 * and the traffic accountant need every router's RIB, and the window modes
+	 * already cut the run into windows of their own.
+	 * 
+	 * @param simConfig
+	 *            - the sim config file
+	 */
+	private void connectRanks(ConfigFileHelper simConfig) {
+		if (this.botMaster != null) {
+			System.err.println("a sim split over several processes can't run bots, set bot type to NULL");
+			System.exit(-1);
+		}
+		if (!(this.execution instanceof EpochExecution)) {
+			System.err.println("a sim split over several processes only runs in epoch mode");
+			System.exit(-1);
+		}
+		if (this.snapshots.isScheduled()) {
+			System.err.println("a sim split over several processes can't take snapshots");
+			System.exit(-1);
+		}
+		if (this.quiescence.isOn()) {
+			System.err.println("a sim split over several processes can't be fast forwarded");
+			System.exit(-1);
+		}
+		if (this.analyticKeepAlives) {
+			System.err.println("a sim split over several processes can't model keep alives");
+			System.exit(-1);
+		}
+
+		this.ranks = new RankExecution(this, simConfig, (EpochExecution) this.execution, this.rank);
+		this.execution = this.ranks;
+	}
+
+	/**
+	 * Predicate that tests if a router is run by another rank.
+	 * 
+	 * @param asn
+	 *            - the router's AS
+	 * @return - true if messages to the router have to go through the rank
+	 *         transport
+	 */
+	public boolean isRemoteRouter(int asn) {
+		return this.rankMap != null && this.rankMap.get(asn) != this.rank;
+	}
+
+	/**
+	 * Sends a message to a router run by another rank, it goes out at the end
+	 * of the window.
+	 * 
+	 * @param srcASN
+	 *            - the sending router
+	 * @param dstASN
+	 *            - the destination router
+	 * @param msg
+	 *            - the message
+	 * @param transTime
+	 *            - the time the packet is first sent, at least a link
+	 *            latency from now
+	 */
+	public void sendRemote(int srcASN, int dstASN, BGPMessage msg, int transTime) {
+		this.ranks.sendRemote(this.rankMap.get(dstASN), srcASN, dstASN, msg, transTime);
+	}
+
+	/**
+	 * Hands a message from another rank to the sender's stand in, which puts
+	 * it in its TCP stack just like a message sent here. Called by the rank
+	 * transport between windows.
+	 * 
+	 * @param srcASN
+	 *            - the sending router
+	 * @param dstASN
+	 *            - the destination router, run by this rank
+	 * @param msg
+	 *            - the message
+	 * @param transTime
+	 *            - the time the packet is first sent
+	 */
+	public void receiveRemote(int srcASN, int dstASN, BGPMessage msg, int transTime) {
+		this.routerMap.get(srcASN).sendFromRemote(dstASN, msg, transTime);
+	}
+
+	/**
+	 * Builds the pending event set named in the config file, the binary heap
+	 * is used if nothing is given.
+	 * 
+	 * @param queueType
+	 *            - the value of the event queue config param, can be null
+	 * @return - an empty event queue
+	 */
+	private EventQueue buildEventQueue(String queueType) {
+		if (queueType == null || queueType.equals(SimDriver.EVENT_QUEUE_HEAP)) {
+			return new HeapEventQueue();
+		} else if (queueType.equals(SimDriver.EVENT_QUEUE_CALENDAR)) {
+			return new CalendarEventQueue();
+		} else if (queueType.equals(SimDriver.EVENT_QUEUE_PRIMITIVE)) {
+			return new PrimitiveEventQueue();
+		}
+
+		System.err.println("invalid event queue type: " + queueType);
+		System.exit(-1);
+		return null;
+	}
+
+	/**
+	 * Builds the worker pool named in the config file, the semaphore pool is
+	 * used if nothing is given.
+	 * 
+	 * @param simConfig
+	 *            - the sim config file
+	 * @param workerCount
+	 *            - the number of worker threads, ignored by the virtual thread
+	 *            pool
+	 * @return - a running worker pool
+	 */
+	private WorkerPool buildWorkerPool(ConfigFileHelper simConfig, int workerCount) {
+		String poolType = simConfig.getValue(SimDriver.WORKER_POOL);
+		if (poolType == null || poolType.equals(SimDriver.WORKER_POOL_SEMAPHORE)) {
+			return new SimWorkerPool(workerCount);
+		} else if (poolType.equals(SimDriver.WORKER_POOL_STEALING)) {
+			return new StealingWorkerPool(workerCount);
+		} else if (poolType.equals(SimDriver.WORKER_POOL_VIRTUAL)) {
+			return new VirtualThreadPool();
+		} else if (poolType.equals(SimDriver.WORKER_POOL_PARTITIONED)) {
+			int rebalanceInterval = SimDriver.DEFAULT_REBALANCE_INTERVAL;
+			if (simConfig.getValue(SimDriver.REBALANCE_INTERVAL) != null) {
+				rebalanceInterval = SimDriver.parseConfigInt(SimDriver.REBALANCE_INTERVAL, simConfig
+						.getValue(SimDriver.REBALANCE_INTERVAL));
+			}
+			return new PartitionedWorkerPool(workerCount, rebalanceInterval);
+		}
 
-		this.doPreLogging();
-		this.registerDriver();
-		this.setupRouterConnections(simFactory.getSerialStart());
+		System.err.println("invalid worker pool type: " + poolType);
+		System.exit(-1);
+		return null;
+	}
+
+	/**
+	 * Builds the execution mode named in the config file, epochs are run if
+	 * nothing is given. Settings that only apply to epoch mode are ignored by
+	 * the window modes, with a warning.
+	 * 
+	 * @param simConfig
+	 *            - the sim config file
+	 * @param workerCount
+	 *            - the number of worker threads
+	 * @return - the execution mode
+	 */
+	private ExecutionMode buildExecution(ConfigFileHelper simConfig, int workerCount) {
+		String modeStr = simConfig.getValue(SimDriver.EXEC_MODE);
+		if (modeStr == null) {
+			modeStr = SimDriver.EXEC_EPOCH;
+		} else if (!modeStr.equals(SimDriver.EXEC_EPOCH) && !modeStr.equals(SimDriver.EXEC_CONSERVATIVE)
+				&& !modeStr.equals(SimDriver.EXEC_OPTIMISTIC)) {
+			System.err.println("invalid execution mode: " + modeStr);
+			System.exit(-1);
+		}
+
+		boolean groupedEpochs = false;
+		String epochStr = simConfig.getValue(SimDriver.EPOCH_TASKS);
+		if (epochStr != null && epochStr.equals(SimDriver.EPOCH_TASKS_GROUPED)) {
+			groupedEpochs = true;
+		} else if (epochStr != null && !epochStr.equals(SimDriver.EPOCH_TASKS_CPU)) {
+			System.err.println("invalid epoch tasks: " + epochStr);
+			System.exit(-1);
+		}
+
+		if (modeStr.equals(SimDriver.EXEC_EPOCH) && groupedEpochs) {
+			return new GroupedEpochExecution(this, simConfig, workerCount);
+		} else if (modeStr.equals(SimDriver.EXEC_EPOCH)) {
+			return new EpochExecution(this, simConfig, workerCount);
+		}
+
+		if (groupedEpochs) {
+			System.err.println("epoch tasks only apply in epoch mode, ignored in " + modeStr + " mode");
+		}
+		String orderStr = simConfig.getValue(SimDriver.TASK_ORDER);
+		if (orderStr != null && orderStr.equals(SimDriver.TASK_ORDER_COST)) {
+			System.err.println("task order only applies in epoch mode, ignored in " + modeStr + " mode");
+		}
+		if (modeStr.equals(SimDriver.EXEC_CONSERVATIVE)) {
+			return new ConservativeExecution(this, simConfig);
+		}
+		return new OptimisticExecution(this, simConfig);
+	}
+
+	/**
+	 * Opens the binary trace named in the config file and hooks it up to the
+	 * logger and the traffic accountant, nothing is traced if no file is
+	 * given.
+	 * 
+	 * @param traceFile
+	 *            - the value of the trace file config param, can be null
+	 */
+	private void startTrace(String traceFile) {
+		this.traceRecorder = null;
+		if (traceFile == null) {
+			return;
+		}
+
+		try {
+			this.traceRecorder = new TraceRecorder(traceFile);
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.exit(-1);
+		}
+		this.logger.setTraceRecorder(this.traceRecorder);
+		this.trafficMgmt.setTraceRecorder(this.traceRecorder);
+	}
+
+	/**
+	 * Records an event taken off the event queue in the trace, the telemetry
+	 * counts and the convergence monitor, if they are kept.
+	 * 
+	 * @param currentEvent
+	 *            - the event
+	 */
+	void noteEvent(SimEvent currentEvent) {
+		if (this.traceRecorder != null) {
+			this.traceRecorder.recordEvent(currentEvent);
+		}
+		this.metrics.countEvent(currentEvent.getType());
+		if (this.convergenceMonitor != null) {
+			this.convergenceMonitor.eventTaken(currentEvent);
+		}
+	}
+
+	/**
+	 * Builds the convergence monitor if the config file gives a quiet time.
+	 * Needs to be built before the bot master is handed the driver, so the
+	 * attacks it schedules up front are seen.
+	 * 
+	 * @param simConfig
+	 *            - the sim config file
+	 * @return - the monitor, or null if the run always goes to the max time
+	 */
+	private ConvergenceMonitor buildConvergenceMonitor(ConfigFileHelper simConfig) {
+		if (simConfig.getValue(SimDriver.CONVERGENCE_QUIET) == null) {
+			return null;
+		}
+
+		int quietTime = SimDriver.parseConfigInt(SimDriver.CONVERGENCE_QUIET, simConfig
+				.getValue(SimDriver.CONVERGENCE_QUIET));
+		int earliestStop = 0;
+		if (simConfig.getValue(SimDriver.CONVERGENCE_EARLIEST) != null) {
+			earliestStop = SimDriver.parseConfigInt(SimDriver.CONVERGENCE_EARLIEST, simConfig
+					.getValue(SimDriver.CONVERGENCE_EARLIEST));
+		}
+		return new ConvergenceMonitor(quietTime, earliestStop);
+	}
+
+	/**
+	 * Builds a snapshot of the run as it is now, called by the snapshot
+	 * schedule between epochs with the event queue already emptied into the
+	 * given lists.
+	 * 
+	 * @param pendingEvents
+	 *            - every event in the queue, in order, apart from our own
+	 * @param bootTimes
+	 *            - the times of our own (router boot) events
+	 * @return - the snapshot, ready to be written
+	 */
+	SimSnapshot buildSnapshot(List<SimEvent> pendingEvents, List<Integer> bootTimes) {
+		return new SimSnapshot(this.currentTime, this.logger.mark(), this.asMap, this.routerMap, this.trafficMgmt,
+				this.botMaster, pendingEvents, bootTimes, this.started, this.routerFlight, this.watchTime,
+				this.watchCounter, this.convergenceMonitor, this.usedSerialString);
+	}
+
+	/**
+	 * Picks the run up from a snapshot, in place of the pre-logging and
+	 * router connections of a new run. The routers, traffic accountant and
+	 * bot master came from the snapshot already (see SimAssembly), this
+	 * restores the event queue and the driver's own state. The convergence
+	 * monitor carries on from the snapshot's if the config still asks for
+	 * one.
+	 * 
+	 * @param snapshot
+	 *            - the snapshot being resumed
+	 */
+	private void resumeSnapshot(SimSnapshot snapshot) {
+		this.currentTime = snapshot.getTime();
+		this.started = snapshot.getStarted();
+		this.routerFlight = snapshot.getRouterFlight();
+		this.watchTime = snapshot.getWatchTime();
+		this.watchCounter = snapshot.getWatchCounter();
+		if (this.convergenceMonitor != null && snapshot.getConvergenceMonitor() != null) {
+			this.convergenceMonitor = snapshot.getConvergenceMonitor();
+		}
+
+		for (SimEvent tEvent : snapshot.getPendingEvents()) {
+			this.eventQueue.add(tEvent);
+		}
+		for (int tTime : snapshot.getBootTimes()) {
+			this.eventQueue.add(new SimEvent(SimEvent.TIMEREXPIRE, tTime, this));
+		}
+		this.snapshots.resumed();
+	}
+
+	/**
+	 * Runs everything that is done between epochs (or windows), while no
+	 * worker is running: a telemetry sample, the convergence check, snapshots
+	 * and the quiescence fast forward.
+	 * 
+	 * @return - false if the run is over
+	 */
+	boolean betweenEpochs() {
+		this.sampleMetrics();
+		this.checkConvergence();
+		if (this.currentTime >= this.maxTime) {
+			return false;
+		}
+		this.snapshots.checkSnapshot();
+		this.quiescence.checkQuiescence();
+		return true;
+	}
+
+	/**
+	 * Ends the run if the convergence monitor says the network has settled,
+	 * by pulling the max time in to now. Only called between epochs.
+	 */
+	private void checkConvergence() {
+		/*
+		 * split sims stop together, see RankExecution.nextRankWindow()
+		 */
+		if (this.ranks != null) {
+			return;
+		}
+		if (this.convergenceMonitor != null && this.convergenceMonitor.isConverged(this.currentTime)) {
+			System.out.println("network converged, stopping at: " + this.currentTime);
+			this.stopAt(this.currentTime);
+		}
+	}
+
+	/**
+	 * Takes a telemetry sample if one is due. Only called between epochs, the
+	 * daemon queues can't be read while workers are running.
+	 */
+	void sampleMetrics() {
+		this.metrics.sample(this.currentTime, this.eventQueue.size(), this.routerMap);
+	}
+
+	/**
+	 * Sets up the routers' BGP timers as named in the config file, the timer
+	 * maps are scanned if nothing is given.
+	 * 
+	 * @param timerType
+	 *            - the value of the bgp timers config param, can be null
+	 */
+	private void configureTimers(String timerType) {
+		if (timerType == null || timerType.equals(SimDriver.BGP_TIMERS_SCAN)) {
+			return;
+		} else if (timerType.equals(SimDriver.BGP_TIMERS_WHEEL)) {
+			for (Router tRouter : this.routerMap.values()) {
+				tRouter.useTimerWheel();
+			}
+			return;
+		}
+
+		System.err.println("invalid bgp timers type: " + timerType);
+		System.exit(-1);
+	}
+
+	/**
+	 * Sets up the routers' RIB storage as named in the config file, RIBs are
+	 * kept in hash maps if nothing is given. A resumed run keeps the RIBs of
+	 * its snapshot if they are already of the named kind.
+	 * 
+	 * @param ribType
+	 *            - the value of the rib storage config param, can be null
+	 */
+	private void configureRIBs(String ribType) {
+		if (ribType == null || ribType.equals(SimDriver.RIB_STORAGE_HASH)) {
+			return;
+		} else if (ribType.equals(SimDriver.RIB_STORAGE_TRIE)) {
+			for (Router tRouter : this.routerMap.values()) {
+				tRouter.useTrieRIBs();
+			}
+			return;
+		} else if (ribType.equals(SimDriver.RIB_STORAGE_COMPACT)) {
+			for (Router tRouter : this.routerMap.values()) {
+				tRouter.useCompactRIBs();
+			}
+			return;
+		}
+
+		System.err.println("invalid rib storage type: " + ribType);
+		System.exit(-1);
+	}
+
+	/**
+	 * Parses a config value that must be a positive number of ms, exits with
+	 * the config error code if it isn't.
+	 * 
+	 * @param param
+	 *            - the name of the param, for the error message
+	 * @param value
+	 *            - the value from the config file
+	 * @return - the parsed value
+	 */
+	static int parseConfigInt(String param, String value) {
+		int retValue = -1;
+		try {
+			retValue = Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			e.printStackTrace();
+		}
+
+		if (retValue < 1) {
+			System.err.println("invalid " + param + ": " + value);
+			System.exit(-1);
+		}
+		return retValue;
+	}
+
+	/**
+	 * Gets the serial string of every router, the in memory version of the
+	 * router lines of a serial dump.
+	 * 
+	 * @return - each router's serial string, by ASN
+	 */
+	public HashMap<Integer, String> routerSerialStrings() {
+		HashMap<Integer, String> retMap = new HashMap<Integer, String>();
+		for (int tAS : this.routerMap.keySet()) {
+			retMap.put(tAS, this.routerMap.get(tAS).serialString());
+		}
+		return retMap;
 	}
 
 	public String serialString() {
@@ -205,6 +947,9 @@ public class SimDriver implements Runnable, SimAgent {
 			outBuff.write(this.serialString());
 
 			for (int tAS : this.routerMap.keySet()) {
+				if (this.isRemoteRouter(tAS)) {
+					continue;
+				}
 				outBuff.write("\n");
 				outBuff.write("" + tAS);
 				outBuff.write("&");
@@ -221,8 +966,117 @@ public class SimDriver implements Runnable, SimAgent {
 		return this.currentTime;
 	}
 
-	public synchronized void postEvent(SimEvent inEvent) {
-		this.eventQueue.add(inEvent);
+	/**
+	 * Gets the minimum time a message takes to cross a link.
+	 * 
+	 * @return - the link latency in ms
+	 */
+	public int getLinkLatency() {
+		return this.linkLatency;
+	}
+
+	int getMaxTime() {
+		return this.maxTime;
+	}
+
+	EventQueue getEventQueue() {
+		return this.eventQueue;
+	}
+
+	WorkerPool getWorkerPool() {
+		return this.workerPool;
+	}
+
+	DriverMetrics getMetrics() {
+		return this.metrics;
+	}
+
+	SimLogger getLogger() {
+		return this.logger;
+	}
+
+	HashMap<Integer, Router> getRouterMap() {
+		return this.routerMap;
+	}
+
+	ConvergenceMonitor getConvergenceMonitor() {
+		return this.convergenceMonitor;
+	}
+
+	/**
+	 * Posts an event to the simulation. The execution mode decides where it
+	 * goes, a window mode can hold it in a router's lane, anything else ends
+	 * up in queueEvent().
+	 * 
+	 * @param inEvent
+	 *            - the event to post
+	 */
+	public void postEvent(SimEvent inEvent) {
+		this.execution.postEvent(inEvent);
+	}
+
+	/**
+	 * Shows a posted event to the convergence monitor and puts it in the
+	 * queue, see enqueueEvent().
+	 * 
+	 * @param inEvent
+	 *            - the posted event
+	 */
+	void queueEvent(SimEvent inEvent) {
+		this.notePosted(inEvent);
+		this.enqueueEvent(inEvent);
+	}
+
+	/**
+	 * Shows a posted event to the convergence monitor, if there is one.
+	 * 
+	 * @param inEvent
+	 *            - the posted event
+	 */
+	void notePosted(SimEvent inEvent) {
+		if (this.convergenceMonitor != null) {
+			this.convergenceMonitor.eventPosted(inEvent);
+		}
+	}
+
+	/**
+	 * Puts a posted event in the queue. Events posted from worker threads are
+	 * held in that worker's buffer until the end of the epoch, everything else
+	 * (i.e. the driver thread) goes straight into the event queue. No locks
+	 * are taken as the queue is only ever touched by the driver thread.
+	 * 
+	 * @param inEvent
+	 *            - the posted event
+	 */
+	void enqueueEvent(SimEvent inEvent) {
+		if (!this.workerPool.bufferEvent(inEvent)) {
+			this.eventQueue.add(inEvent);
+		}
+	}
+
+	/**
+	 * Posts a plain router timer or cpu event. When the primitive event queue
+	 * is used and no window is running the event is packed into a key right
+	 * here, so no event object is ever built for it. Otherwise this is the
+	 * same as posting a new SimEvent.
+	 * 
+	 * @param type
+	 *            - TIMEREXPIRE or ROUTERCPUFREE
+	 * @param time
+	 *            - the time the event fires
+	 * @param theRouter
+	 *            - the router the event is for
+	 */
+	public void postRouterEvent(int type, int time, Router theRouter) {
+		if (this.primitiveQueue != null && !this.execution.isWindowOpen() && theRouter.getSimIndex() >= 0) {
+			long key = PrimitiveEventQueue.encode(time, type, theRouter.getSimIndex());
+			if (!this.workerPool.bufferEncoded(key)) {
+				this.primitiveQueue.addEncoded(key);
+			}
+			return;
+		}
+
+		this.postEvent(new SimEvent(type, time, theRouter));
 	}
 
 	/**
@@ -233,11 +1087,23 @@ public class SimDriver implements Runnable, SimAgent {
 			BufferedReader sysBuff = new BufferedReader(new InputStreamReader(System.in));
 			while (true) {
 				String consInput = sysBuff.readLine();
+				if (consInput == null) {
+					return;
+				}
 				consInput = consInput.trim().toLowerCase();
 				
 				if (consInput.equals(SimDriver.CONS_TIME)) {
 					System.out.println("current time is: " + this.currentTime + " ("
 							+ ((double) this.currentTime / (double) this.maxTime) + ")");
+				} else if (consInput.equals(SimDriver.CONS_LEFT) && this.metrics.getSimRate() > 0.0) {
+					
+					/*
+					 * telemetry already measures the rate, no need to wait
+					 */
+					double simRate = this.metrics.getSimRate();
+					double timeLeftHours = ((double) (this.maxTime - this.currentTime) / simRate) / 3600000.0;
+					System.out.println("sim rate is: " + simRate + " (sim ms/ wall ms)");
+					System.out.println("estimated time to completion: " + timeLeftHours + "(hrs)");
 				} else if(consInput.equals(SimDriver.CONS_LEFT)){
 					
 					/*
@@ -271,11 +1137,19 @@ public class SimDriver implements Runnable, SimAgent {
 					double timeLeftHours = ((double)toGo / simRate) / 3600000.0;
 					System.out.println("sim rate is: " + simRate + " (sim ms/ wall ms)");
 					System.out.println("estimated time to completion: " + timeLeftHours + "(hrs)");
+				} else if (consInput.equals(SimDriver.CONS_SNAPSHOT)) {
+					
+					/*
+					 * the driver thread takes it between epochs
+					 */
+					this.snapshots.request();
+					System.out.println("snapshot will be written to: " + this.snapshots.getFileName());
 				}
 				else{
 					System.out.println("valid options are:");
 					System.out.println("   " + SimDriver.CONS_TIME);
 					System.out.println("   " + SimDriver.CONS_LEFT);
+					System.out.println("   " + SimDriver.CONS_SNAPSHOT);
 				}
 				
 			}
@@ -285,69 +1159,115 @@ public class SimDriver implements Runnable, SimAgent {
 	}
 
 	public void runSim() {
-		SimEvent currentEvent;
-		int watchTime = this.maxTime / 10;
-		int watchCounter = 0;
-		boolean workersRunning = false;
-
-		while (this.currentTime < this.maxTime) {
-			synchronized (this) {
-				currentEvent = this.eventQueue.peek();
-			}
+		this.execution.runSim();
+		this.metrics.close(this.workerPool);
+		this.workerPool.closePool();
 
-			if (currentEvent == null) {
-				System.err.println("out of events at time: " + this.currentTime);
-				break;
-			}
+		String modeReport = this.execution.getReport();
+		if (modeReport != null) {
+			System.out.println(modeReport);
+		}
+		if (this.workerPool instanceof PartitionedWorkerPool) {
+			System.out.println(((PartitionedWorkerPool) this.workerPool).getReport());
+		}
+		if (this.quiescence.isOn()) {
+			System.out.println(this.quiescence.getReport());
+		}
+		if (this.convergenceMonitor != null) {
+			System.out.println(this.convergenceMonitor.getReport());
+		}
+	}
 
-			if (this.currentTime > currentEvent.getTime()) {
-				System.err.println("wtf: " + this.currentTime + " " + currentEvent.getTime() + " type "
-						+ currentEvent.getType());
-				System.exit(-2);
-			}
+	/**
+	 * Runs an event on the driver thread, between epochs.
+	 * 
+	 * @param currentEvent
+	 *            - the event, already taken off the queue
+	 */
+	void dispatchSerial(SimEvent currentEvent) {
+		currentEvent.dispatch();
+		this.metrics.countSerial();
+		this.recycleEvent(currentEvent);
+	}
 
-			if (!workersRunning) {
-				synchronized (this) {
-					currentEvent = this.eventQueue.poll();
-				}
+	/**
+	 * Hands a dispatched router event back to the primitive queue for reuse.
+	 * Only called in epoch mode, the window modes keep events around in lanes.
+	 * 
+	 * @param deadEvent
+	 *            - an event that was just dispatched
+	 */
+	void recycleEvent(SimEvent deadEvent) {
+		if (this.primitiveQueue != null && deadEvent.getAffinity() instanceof Router) {
+			this.primitiveQueue.recycle(deadEvent);
+		}
+	}
 
-				this.currentTime = currentEvent.getTime();
-				if (this.currentTime > watchTime) {
-					watchCounter++;
-					System.out.println("" + (watchCounter * 10) + "% done");
-					watchTime += this.maxTime / 10;
-				}
+	/**
+	 * Notes an event an optimistic window has just committed, as if it had
+	 * just been taken off the event queue. Only called by lanes committing on
+	 * the driver thread.
+	 * 
+	 * @param inEvent
+	 *            - the committed event
+	 */
+	void noteCommittedEvent(SimEvent inEvent) {
+		this.noteEvent(inEvent);
+	}
 
-				if (currentEvent.getType() == SimEvent.ROUTERCPUFREE) {
-					this.workerPool.addTask(currentEvent);
-					workersRunning = true;
-				} else {
-					currentEvent.dispatch();
-				}
-			} else {
-				/*
-				 * TODO in the future we might have to block differently, in
-				 * other words not just on time, but event type
-				 */
-				if (currentEvent.getTime() > this.currentTime) {
-					this.workerPool.blockOnEpoch();
-					workersRunning = false;
-					continue;
-				} else {
-					synchronized (this) {
-						currentEvent = this.eventQueue.poll();
-					}
-					this.workerPool.addTask(currentEvent);
-				}
-			}
-		}
+	/**
+	 * Sets the clock to the time of an event an optimistic window is
+	 * committing, so anything its held work posts (a traffic accountant
+	 * refresh say) is timed from when it happened. Only called on the driver
+	 * thread, by lanes committing and by the optimistic mode putting the
+	 * clock back when the commit is done.
+	 * 
+	 * @param time
+	 *            - the time of the event being committed
+	 */
+	void setCommitClock(int time) {
+		this.currentTime = time;
+	}
 
-		this.workerPool.closePool();
+	/**
+	 * Ends the run early, by pulling the max time in.
+	 * 
+	 * @param stopTime
+	 *            - the new max time
+	 */
+	void stopAt(int stopTime) {
+		this.maxTime = stopTime;
+	}
+
+	/**
+	 * Moves the driver's clock forward, printing progress as we pass each
+	 * tenth of the run.
+	 * 
+	 * @param newTime
+	 *            - the time of the event about to run
+	 */
+	void advanceClock(int newTime) {
+		this.currentTime = newTime;
+		while (this.currentTime > this.watchTime) {
+			this.watchCounter++;
+			System.out.println("" + (this.watchCounter * 10) + "% done");
+			this.watchTime += this.maxTime / 10;
+		}
 	}
 
 	private void registerDriver() {
+		int simIndex = 0;
 		for (Router tRouter : this.routerMap.values()) {
 			tRouter.setSimDriver(this);
+
+			/*
+			 * Hand out the dense indexes packed router events are keyed by
+			 */
+			if (this.primitiveQueue != null && simIndex < PrimitiveEventQueue.MAX_AGENTS) {
+				tRouter.setSimIndex(simIndex);
+				this.primitiveQueue.registerAgent(simIndex, tRouter);
+				simIndex++;
+			}
 		}
 		this.trafficMgmt.setSimDriver(this);
 
@@ -358,7 +1278,9 @@ public class SimDriver implements Runnable, SimAgent {
 
 	private void setupRouterConnections(String serialStart) {
 		for (int tASN : this.asMap.keySet()) {
-			this.postEvent(new SimEvent(SimEvent.TIMEREXPIRE, 1000, this.routerMap.get(tASN)));
+			if (!this.isRemoteRouter(tASN)) {
+				this.postEvent(new SimEvent(SimEvent.TIMEREXPIRE, 1000, this.routerMap.get(tASN)));
+			}
 		}
 
 		if (serialStart == null) {
@@ -387,6 +1309,19 @@ public class SimDriver implements Runnable, SimAgent {
 		}
 	}
 
+	/**
+	 * Logs how long the run took and closes the log, called once runSim()
+	 * returns.
+	 * 
+	 * @param runTime
+	 *            - wall time of the run in ms
+	 */
+	public void finishRun(long runTime) {
+		System.out.println("sim done at: " + runTime);
+		this.logger.logMessage("sim done at: " + runTime, false);
+		this.cleanUp(SimDriver.DEBUG);
+	}
+
 	private void cleanUp(boolean bgpDump) {
 		this.logger.logMessage("Done with Sim", false);
 
@@ -398,6 +1333,10 @@ public class SimDriver implements Runnable, SimAgent {
 			}
 		}
 		this.logger.doneLogging();
+		if (this.traceRecorder != null) {
+			System.out.println("trace records: " + this.traceRecorder.getRecordCount());
+			this.traceRecorder.close();
+		}
 	}
 	
 	private void dumpMemLoads(){
@@ -444,12 +1383,19 @@ public class SimDriver implements Runnable, SimAgent {
 			this.routerFlight++;
 
 			/*
-			 * connect all neighboring routers together
+			 * connect all neighboring routers together, when the sim is split
+			 * every rank boots the same router at the same time, but only the
+			 * router's own rank starts its sessions, the ranks of its
+			 * neighbours just hook up their end
 			 */
 			connectionList = this.asMap.get(currAS).getAllNeighbors();
 			for (AS tempAS : connectionList) {
-				this.routerMap.get(currAS).connectToRouter(tempAS.getASNumber(),
-						this.routerMap.get(tempAS.getASNumber()));
+				if (!this.isRemoteRouter(currAS)) {
+					this.routerMap.get(currAS).connectToRouter(tempAS.getASNumber(),
+							this.routerMap.get(tempAS.getASNumber()));
+				} else if (!this.isRemoteRouter(tempAS.getASNumber())) {
+					this.routerMap.get(tempAS.getASNumber()).connectFromRemote(currAS, this.routerMap.get(currAS));
+				}
 			}
 
 			/*
@@ -471,7 +1417,7 @@ public class SimDriver implements Runnable, SimAgent {
 		// does nothing since we are our own driver of course
 	}
 
-	public void notifyBotSessionFailHack(int lhs, int rhs, int time) {
+	public synchronized void notifyBotSessionFailHack(int lhs, int rhs, int time) {
 		this.botMaster.notifySessionFail(this.asMap.get(lhs).getLinkToNeighbor(rhs), time);
 	}
 }
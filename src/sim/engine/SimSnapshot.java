@@ -0,0 +1,368 @@
+package sim.engine;
+
+import java.io.*;
+import java.util.*;
+
+import sim.agents.BotMaster;
+import sim.agents.Router;
+import sim.agents.TrafficAccountant;
+import sim.event.SimEvent;
+import sim.logging.SimLogger;
+import sim.network.dataObjects.AS;
+
+/**
+ * A mid-run checkpoint of a sim, everything needed to carry the run on from
+ * the sim time it was taken at: the AS graph, every router (RIBs, message
+ * queues, timer maps, TCP stacks, RFD state and RNGs), the traffic
+ * accountant's flows and link state, the bot master and every event
+ * still waiting in the queue, along with the driver's own boot state and the
+ * convergence monitor.
+ *
+ * Snapshots are taken by the driver thread between epochs (or windows), when
+ * no worker is running. The file starts with a small header (MAGIC, VERSION,
+ * the sim time and the length of the log when the snapshot was taken) and
+ * then holds the state as one Java serialized object graph, so shared
+ * objects (a TCP stack held by both a router and an event, links held by
+ * ASes and flows) stay shared. The driver and the logger are never written,
+ * the logger is swapped for a marker that is bound to the resumed run's
+ * logger when read, and the driver, trace recorder, undo journals and timer
+ * wheels are transient and set up again by the resumed run's driver. Events
+ * for the driver itself (router boots) are kept as their times.
+ *
+ * A resumed run carries on exactly as the run that took the snapshot did,
+ * given the same worker count. Taking a snapshot empties and refills the
+ * event queue, which can change the order of events that tie on time and
+ * type, so a run that takes snapshots isn't bit for bit the same as one that
+ * doesn't.
+ *
+ * Every class in the written graph has a fixed serialVersionUID, so a build
+ * reads any snapshot with its VERSION no matter how it was compiled, and
+ * VERSION is the only check. A snapshot from another VERSION is refused.
+ *
+ */
+public class SimSnapshot implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	public static final String EXT = ".snapshot";
+
+	/**
+	 * Marks a snapshot file, "SCKP"
+	 */
+	private static final int MAGIC = 0x53434b50;
+
+	/**
+	 * Bump this whenever what is kept in a snapshot changes, i.e. a field is
+	 * added, removed or changes type in any class in the written graph
+	 */
+	public static final int VERSION = 6;
+
+	/**
+	 * Stack size of the thread snapshots are written and read on, the object
+	 * graph is walked recursively and the AS graph and router connections are
+	 * deep
+	 */
+	private static final long STACK_SIZE = 1L << 30;
+
+	private int time;
+
+	private HashMap<Integer, AS> asMap;
+	private HashMap<Integer, Router> routerMap;
+	private TrafficAccountant trafficAccountant;
+	private BotMaster botMaster;
+
+	/**
+	 * Every event in the queue, in order, apart from the driver's own
+	 */
+	private List<SimEvent> pendingEvents;
+
+	/**
+	 * Times of the driver's own (router boot) events
+	 */
+	private List<Integer> bootTimes;
+
+	private HashSet<Integer> started;
+	private int routerFlight;
+	private int watchTime;
+	private int watchCounter;
+
+	/**
+	 * Null if the run had no convergence monitor
+	 */
+	private ConvergenceMonitor convergenceMonitor;
+
+	/**
+	 * If the run was started from a serial file, so the resumed run knows not
+	 * to dump one
+	 */
+	private boolean usedSerialString;
+
+	/**
+	 * Length of the log file when the snapshot was taken, kept in the header
+	 */
+	private transient long logMark;
+
+	/**
+	 * The resumed run's logger, only set on a snapshot that was read
+	 */
+	private transient SimLogger logger;
+
+	/**
+	 * Stands in for the logger in the written object graph.
+	 */
+	private static class LoggerMarker implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+	}
+
+	/**
+	 * Output stream that swaps the logger for a marker.
+	 */
+	private static class SnapshotOutputStream extends ObjectOutputStream {
+
+		public SnapshotOutputStream(OutputStream out) throws IOException {
+			super(out);
+			this.enableReplaceObject(true);
+		}
+
+		protected Object replaceObject(Object obj) {
+			if (obj instanceof SimLogger) {
+				return new LoggerMarker();
+			}
+			return obj;
+		}
+	}
+
+	/**
+	 * Input stream that binds logger markers to the resumed run's logger.
+	 */
+	private static class SnapshotInputStream extends ObjectInputStream {
+
+		private SimLogger logger;
+
+		public SnapshotInputStream(InputStream in) throws IOException {
+			super(in);
+			this.logger = null;
+			this.enableResolveObject(true);
+		}
+
+		public void setLogger(SimLogger logger) {
+			this.logger = logger;
+		}
+
+		protected Object resolveObject(Object obj) {
+			if (obj instanceof LoggerMarker) {
+				return this.logger;
+			}
+			return obj;
+		}
+	}
+
+	/**
+	 * Builds a snapshot of a running sim, called by the driver with the
+	 * event queue already emptied into the given lists.
+	 */
+	SimSnapshot(int time, long logMark, HashMap<Integer, AS> asMap, HashMap<Integer, Router> routerMap,
+			TrafficAccountant trafficAccountant, BotMaster botMaster, List<SimEvent> pendingEvents,
+			List<Integer> bootTimes, HashSet<Integer> started, int routerFlight, int watchTime, int watchCounter,
+			ConvergenceMonitor convergenceMonitor, boolean usedSerialString) {
+		this.time = time;
+		this.logMark = logMark;
+		this.asMap = asMap;
+		this.routerMap = routerMap;
+		this.trafficAccountant = trafficAccountant;
+		this.botMaster = botMaster;
+		this.pendingEvents = pendingEvents;
+		this.bootTimes = bootTimes;
+		this.started = started;
+		this.routerFlight = routerFlight;
+		this.watchTime = watchTime;
+		this.watchCounter = watchCounter;
+		this.convergenceMonitor = convergenceMonitor;
+		this.usedSerialString = usedSerialString;
+		this.logger = null;
+	}
+
+	/**
+	 * Writes the snapshot, first to a temp file which is then moved into
+	 * place, so a crash while writing never leaves a broken snapshot behind.
+	 *
+	 * @param fileName
+	 *            - the snapshot file
+	 * @throws IOException
+	 *             - if there is an issue writing the file
+	 */
+	void write(String fileName) throws IOException {
+		final File tempFile = new File(fileName + ".tmp");
+		final IOException[] writeError = new IOException[1];
+
+		Thread writeThread = new Thread(null, new Runnable() {
+			public void run() {
+				try {
+					ObjectOutputStream outStream = new SnapshotOutputStream(new BufferedOutputStream(
+							new FileOutputStream(tempFile)));
+					outStream.writeInt(SimSnapshot.MAGIC);
+					outStream.writeInt(SimSnapshot.VERSION);
+					outStream.writeInt(SimSnapshot.this.time);
+					outStream.writeLong(SimSnapshot.this.logMark);
+					outStream.writeObject(SimSnapshot.this);
+					outStream.close();
+				} catch (IOException e) {
+					writeError[0] = e;
+				}
+			}
+		}, "snapshot", SimSnapshot.STACK_SIZE);
+		SimSnapshot.runToEnd(writeThread);
+
+		if (writeError[0] != null) {
+			tempFile.delete();
+			throw writeError[0];
+		}
+		if (!tempFile.renameTo(new File(fileName))) {
+			tempFile.delete();
+			throw new IOException("could not move snapshot into place: " + fileName);
+		}
+	}
+
+	/**
+	 * Reads a snapshot and opens the resumed run's logger, carrying on the
+	 * log file from where it was when the snapshot was taken.
+	 *
+	 * @param fileName
+	 *            - the snapshot file
+	 * @param logName
+	 *            - the log file name of the run
+	 * @param bigLogFile
+	 *            - if the logger logs everything
+	 * @return - the snapshot, with its logger set
+	 * @throws IOException
+	 *             - if there is an issue reading the file, or it isn't a
+	 *             snapshot this build can read
+	 */
+	public static SimSnapshot read(final String fileName, final String logName, final boolean bigLogFile)
+			throws IOException {
+		final SimSnapshot[] readSnapshot = new SimSnapshot[1];
+		final Exception[] readError = new Exception[1];
+
+		Thread readThread = new Thread(null, new Runnable() {
+			public void run() {
+				try {
+					SnapshotInputStream inStream = new SnapshotInputStream(new BufferedInputStream(
+							new FileInputStream(fileName)));
+					if (inStream.readInt() != SimSnapshot.MAGIC) {
+						throw new IOException("not a snapshot file: " + fileName);
+					}
+					int version = inStream.readInt();
+					if (version != SimSnapshot.VERSION) {
+						throw new IOException("snapshot " + fileName + " is version " + version + ", expected "
+								+ SimSnapshot.VERSION);
+					}
+					inStream.readInt();
+					long logMark = inStream.readLong();
+					SimLogger logger = new SimLogger(logName, bigLogFile, logMark);
+					inStream.setLogger(logger);
+
+					readSnapshot[0] = (SimSnapshot) inStream.readObject();
+					readSnapshot[0].logMark = logMark;
+					readSnapshot[0].logger = logger;
+					inStream.close();
+				} catch (Exception e) {
+					readError[0] = e;
+				}
+			}
+		}, "snapshot", SimSnapshot.STACK_SIZE);
+		SimSnapshot.runToEnd(readThread);
+
+		if (readError[0] instanceof IOException) {
+			throw (IOException) readError[0];
+		} else if (readError[0] != null) {
+			throw new IOException("could not read snapshot " + fileName, readError[0]);
+		}
+		return readSnapshot[0];
+	}
+
+	/**
+	 * Starts a thread and waits for it, exits with the threading error code
+	 * if interrupted.
+	 *
+	 * @param theThread
+	 *            - the thread to run
+	 */
+	private static void runToEnd(Thread theThread) {
+		theThread.start();
+		try {
+			theThread.join();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+			System.exit(-3);
+		}
+	}
+
+	/**
+	 * Gets the snapshot file name for a log file name.
+	 *
+	 * @param logName
+	 *            - the run's log file name
+	 * @return - the path of the run's snapshot file
+	 */
+	public static String getFileName(String logName) {
+		return SimLogger.DIR + logName + SimSnapshot.EXT;
+	}
+
+	// boring getters from here down...
+	public int getTime() {
+		return this.time;
+	}
+
+	public HashMap<Integer, AS> getASMap() {
+		return this.asMap;
+	}
+
+	public HashMap<Integer, Router> getRouterMap() {
+		return this.routerMap;
+	}
+
+	public TrafficAccountant getTrafficAccountant() {
+		return this.trafficAccountant;
+	}
+
+	public BotMaster getBotMaster() {
+		return this.botMaster;
+	}
+
+	public List<SimEvent> getPendingEvents() {
+		return this.pendingEvents;
+	}
+
+	public List<Integer> getBootTimes() {
+		return this.bootTimes;
+	}
+
+	public HashSet<Integer> getStarted() {
+		return this.started;
+	}
+
+	public int getRouterFlight() {
+		return this.routerFlight;
+	}
+
+	public int getWatchTime() {
+		return this.watchTime;
+	}
+
+	public int getWatchCounter() {
+		return this.watchCounter;
+	}
+
+	public ConvergenceMonitor getConvergenceMonitor() {
+		return this.convergenceMonitor;
+	}
+
+	public boolean getUsedSerialString() {
+		return this.usedSerialString;
+	}
+
+	public SimLogger getLogStream() {
+		return this.logger;
+	}
+}
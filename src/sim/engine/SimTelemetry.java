@@ -0,0 +1,287 @@
+package sim.engine;
+
+import java.io.*;
+import java.net.*;
+
+import com.sun.net.httpserver.*;
+
+import sim.event.SimEvent;
+
+/**
+ * Live view of a running sim, served as JSON over HTTP on localhost so a long
+ * run can be watched without touching the driver. The driver counts the
+ * events it takes off the queue and the epochs (or windows) it runs, which
+ * is just a few adds on its own fields. Once a second a timer thread flags
+ * that a sample is wanted, and the next time the driver is between epochs it
+ * takes one: the counters are turned into rates since the last sample and
+ * written out as a JSON document, together with the things that can only be
+ * read safely while the workers are idle (the event queue size, the BGP
+ * daemon queue depths). Requests are answered with the last document, so a
+ * request never waits on the sim and a driver stuck in a long epoch just
+ * shows up as an old sample.
+ *
+ * Reported: sim ms per wall ms and the estimated time left, events per second
+ * by type, the event queue size, epochs per second and their average width,
+ * the share of wall time the driver spent waiting on the wall and the
+ * average wait, the busy share of each worker (semaphore pool only), the
+ * total BGP daemon queue depth and the heap.
+ *
+ */
+public class SimTelemetry implements HttpHandler {
+
+	/**
+	 * Wall time between samples, in ms
+	 */
+	private static final int SAMPLE_MS = 1000;
+
+	/**
+	 * JSON name of each event type, null for unused type numbers
+	 */
+	private static final String[] TYPE_NAMES = new String[SimEvent.ROUTERCPUFREE + 1];
+	static {
+		SimTelemetry.TYPE_NAMES[SimEvent.ROUTECHANGE] = "route_change";
+		SimTelemetry.TYPE_NAMES[SimEvent.LINKUPDOWN] = "link_up_down";
+		SimTelemetry.TYPE_NAMES[SimEvent.ATTACKFLOW] = "attack_flow";
+		SimTelemetry.TYPE_NAMES[SimEvent.TCPSEND] = "tcp_send";
+		SimTelemetry.TYPE_NAMES[SimEvent.TIMEREXPIRE] = "timer_expire";
+		SimTelemetry.TYPE_NAMES[SimEvent.ROUTERCPUFREE] = "router_cpu_free";
+	}
+
+	private HttpServer server;
+
+	private Thread sampleTimer;
+
+	/**
+	 * Worker busy times come from here, null unless the pool is a semaphore
+	 * pool
+	 */
+	private SimWorkerPool timedPool;
+
+	private int maxTime;
+
+	/**
+	 * Counters, only touched by the driver thread
+	 */
+	private long[] eventCounts;
+	private long epochCount;
+	private long epochTasks;
+	private long barrierNanos;
+
+	/**
+	 * Counter values at the last sample
+	 */
+	private long lastWallNanos;
+	private int lastSimTime;
+	private long[] lastEventCounts;
+	private long lastEpochCount;
+	private long lastEpochTasks;
+	private long lastBarrierNanos;
+	private long[] lastBusyNanos;
+
+	private volatile boolean sampleWanted;
+
+	private volatile double simRate;
+
+	private volatile String lastSample;
+	private volatile long lastSampleMillis;
+
+	/**
+	 * Starts serving telemetry on the given localhost port.
+	 *
+	 * @param port
+	 *            - the port to listen on
+	 * @param maxTime
+	 *            - the end time of the sim, for the time left estimate
+	 * @param workerPool
+	 *            - the driver's pool, worker busy times are only reported for
+	 *            the semaphore pool
+	 * @throws IOException
+	 *             - if the port can't be bound
+	 */
+	public SimTelemetry(int port, int maxTime, WorkerPool workerPool) throws IOException {
+		this.maxTime = maxTime;
+		this.timedPool = null;
+		this.lastBusyNanos = null;
+		if (workerPool instanceof SimWorkerPool) {
+			this.timedPool = (SimWorkerPool) workerPool;
+			this.timedPool.enableBusyTiming();
+			this.lastBusyNanos = new long[this.timedPool.getWorkerCount()];
+		}
+
+		this.eventCounts = new long[SimTelemetry.TYPE_NAMES.length];
+		this.lastEventCounts = new long[SimTelemetry.TYPE_NAMES.length];
+		this.epochCount = 0;
+		this.epochTasks = 0;
+		this.barrierNanos = 0;
+		this.lastEpochCount = 0;
+		this.lastEpochTasks = 0;
+		this.lastBarrierNanos = 0;
+		this.lastSimTime = 0;
+		this.lastWallNanos = System.nanoTime();
+		this.sampleWanted = false;
+		this.simRate = -1.0;
+		this.lastSample = "{}";
+		this.lastSampleMillis = System.currentTimeMillis();
+
+		this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		this.server.createContext("/", this);
+		this.server.start();
+
+		this.sampleTimer = new Thread(new Runnable() {
+			public void run() {
+				try {
+					while (true) {
+						Thread.sleep(SimTelemetry.SAMPLE_MS);
+						SimTelemetry.this.sampleWanted = true;
+					}
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		});
+		this.sampleTimer.setDaemon(true);
+		this.sampleTimer.start();
+		System.out.println("telemetry at http://localhost:" + port + "/");
+	}
+
+	/**
+	 * Counts an event taken off the event queue.
+	 *
+	 * @param type
+	 *            - the event's type
+	 */
+	public void countEvent(int type) {
+		if (type >= 0 && type < this.eventCounts.length) {
+			this.eventCounts[type]++;
+		}
+	}
+
+	/**
+	 * Counts an epoch or window run on the workers.
+	 *
+	 * @param width
+	 *            - the number of tasks handed out
+	 * @param wallNanos
+	 *            - time from the first hand out to the wall opening
+	 */
+	public void countEpoch(int width, long wallNanos) {
+		this.epochCount++;
+		this.epochTasks += width;
+		this.barrierNanos += wallNanos;
+	}
+
+	/**
+	 * Checks if the sample timer has asked for a sample, a single volatile
+	 * read so it can be called every time round the driver loop.
+	 *
+	 * @return - true if the driver should call takeSample()
+	 */
+	public boolean wantsSample() {
+		return this.sampleWanted;
+	}
+
+	/**
+	 * Builds a new sample. Must be called by the driver thread while the
+	 * workers are idle.
+	 *
+	 * @param simTime
+	 *            - the current sim time
+	 * @param queueSize
+	 *            - the size of the event queue
+	 * @param daemonQueueDepth
+	 *            - the total size of the BGP daemons' message queues
+	 */
+	public void takeSample(int simTime, int queueSize, long daemonQueueDepth) {
+		this.sampleWanted = false;
+		long nowNanos = System.nanoTime();
+		double wallSecs = Math.max(1, nowNanos - this.lastWallNanos) / 1000000000.0;
+
+		double rate = (simTime - this.lastSimTime) / (wallSecs * 1000.0);
+		this.simRate = rate;
+		long epochs = this.epochCount - this.lastEpochCount;
+
+		StringBuilder jsonBuilder = new StringBuilder();
+		jsonBuilder.append("{\"sim_time\":" + simTime + ",\"max_time\":" + this.maxTime);
+		jsonBuilder.append(",\"sim_ms_per_wall_ms\":" + rate);
+		if (rate > 0.0) {
+			jsonBuilder.append(",\"hours_left\":" + ((this.maxTime - simTime) / rate / 3600000.0));
+		}
+		jsonBuilder.append(",\"events_per_sec\":{");
+		boolean first = true;
+		for (int counter = 0; counter < SimTelemetry.TYPE_NAMES.length; counter++) {
+			if (SimTelemetry.TYPE_NAMES[counter] != null) {
+				jsonBuilder.append((first ? "" : ",") + "\"" + SimTelemetry.TYPE_NAMES[counter] + "\":"
+						+ ((this.eventCounts[counter] - this.lastEventCounts[counter]) / wallSecs));
+				first = false;
+			}
+			this.lastEventCounts[counter] = this.eventCounts[counter];
+		}
+		jsonBuilder.append("},\"queue_size\":" + queueSize);
+		jsonBuilder.append(",\"epochs_per_sec\":" + (epochs / wallSecs));
+		if (epochs > 0) {
+			jsonBuilder.append(",\"avg_epoch_width\":"
+					+ ((double) (this.epochTasks - this.lastEpochTasks) / (double) epochs));
+			jsonBuilder.append(",\"avg_barrier_wait_us\":"
+					+ ((this.barrierNanos - this.lastBarrierNanos) / 1000.0 / epochs));
+		}
+		jsonBuilder.append(",\"barrier_wait_share\":"
+				+ ((this.barrierNanos - this.lastBarrierNanos) / 1000000000.0 / wallSecs));
+		if (this.timedPool != null) {
+			long[] busyNanos = this.timedPool.getBusyNanos();
+			jsonBuilder.append(",\"worker_busy\":[");
+			for (int counter = 0; counter < busyNanos.length; counter++) {
+				jsonBuilder.append((counter == 0 ? "" : ",")
+						+ ((busyNanos[counter] - this.lastBusyNanos[counter]) / 1000000000.0 / wallSecs));
+				this.lastBusyNanos[counter] = busyNanos[counter];
+			}
+			jsonBuilder.append("],\"active_workers\":" + this.timedPool.getActiveWorkers());
+		}
+		jsonBuilder.append(",\"daemon_queue_depth\":" + daemonQueueDepth);
+		Runtime rt = Runtime.getRuntime();
+		jsonBuilder.append(",\"heap_used_mb\":" + ((rt.totalMemory() - rt.freeMemory()) / 1048576));
+		jsonBuilder.append(",\"heap_max_mb\":" + (rt.maxMemory() / 1048576));
+
+		this.lastWallNanos = nowNanos;
+		this.lastSimTime = simTime;
+		this.lastEpochCount = this.epochCount;
+		this.lastEpochTasks = this.epochTasks;
+		this.lastBarrierNanos = this.barrierNanos;
+		this.lastSampleMillis = System.currentTimeMillis();
+		this.lastSample = jsonBuilder.toString();
+	}
+
+	/**
+	 * Gets the sim rate at the last sample.
+	 *
+	 * @return - sim ms per wall ms, negative if no sample was taken yet
+	 */
+	public double getSimRate() {
+		return this.simRate;
+	}
+
+	/**
+	 * Serves the last sample, along with how old it is.
+	 */
+	public void handle(HttpExchange exchange) throws IOException {
+		String sample = this.lastSample;
+		long sampleAge = System.currentTimeMillis() - this.lastSampleMillis;
+		if (sample.length() > 2) {
+			sample = sample + ",\"sample_age_ms\":" + sampleAge + "}";
+		}
+
+		byte[] body = sample.getBytes("UTF-8");
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		exchange.sendResponseHeaders(200, body.length);
+		OutputStream outStream = exchange.getResponseBody();
+		outStream.write(body);
+		outStream.close();
+	}
+
+	/**
+	 * Stops the server and the sample timer.
+	 */
+	public void close() {
+		this.sampleTimer.interrupt();
+		this.server.stop(0);
+	}
+}
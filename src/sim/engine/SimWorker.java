@@ -1,8 +1,13 @@
 package sim.engine;
 
+import java.util.*;
 import java.util.concurrent.*;
 
+import sim.event.EventQueue;
 import sim.event.SimEvent;
+import sim.event.WorkerTask;
+import sim.logging.TimelineRecorder;
+import sim.logging.TraceRecorder;
 
 public class SimWorker implements Runnable {
 
@@ -10,20 +15,151 @@ public class SimWorker implements Runnable {
 	private Semaphore doneReporter;
 	private SimWorkerPool parent;
 
-	public SimWorker(Semaphore workCount, Semaphore completeSemaphore, SimWorkerPool owningPool) {
+	/**
+	 * Position of this worker in the pool, workers at or past the pool's
+	 * active count park instead of taking tasks.
+	 */
+	private int workerIndex;
+
+	/**
+	 * Parked workers block on this, released by the pool when the active
+	 * count grows past us.
+	 */
+	private Semaphore parkGate;
+	private volatile boolean parked;
+
+	/**
+	 * Time spent running tasks, only kept once the pool turns on busy timing.
+	 * Only written by this worker.
+	 */
+	private volatile long busyNanos;
+
+	/**
+	 * Where this worker records its task spans, null if no timeline is kept.
+	 */
+	private TimelineRecorder.SpanBuffer spanBuffer;
+
+	/**
+	 * Events posted by tasks this worker ran during the current epoch, only
+	 * touched by this worker until the driver drains it at the epoch wall.
+	 */
+	private PostBuffer postBuffer;
+
+	public SimWorker(Semaphore workCount, Semaphore completeSemaphore, SimWorkerPool owningPool, int workerIndex) {
 		this.taskCount = workCount;
 		this.doneReporter = completeSemaphore;
 		this.parent = owningPool;
+		this.postBuffer = new PostBuffer();
+		this.workerIndex = workerIndex;
+		this.parkGate = new Semaphore(0);
+		this.parked = false;
+		this.busyNanos = 0;
+		this.spanBuffer = null;
+	}
+
+	/**
+	 * Starts recording task spans, must be set before the first task is
+	 * handed out.
+	 * 
+	 * @param spanBuffer
+	 *            - this worker's span buffer
+	 */
+	public void setSpanBuffer(TimelineRecorder.SpanBuffer spanBuffer) {
+		this.spanBuffer = spanBuffer;
+	}
+
+	/**
+	 * Writes out any spans still held. Must only be called while this worker
+	 * is idle.
+	 */
+	public void flushSpans() {
+		if (this.spanBuffer != null) {
+			this.spanBuffer.flush();
+		}
+	}
+
+	public long getBusyNanos() {
+		return this.busyNanos;
+	}
+
+	/**
+	 * Wakes this worker if it is parked, called by the pool after raising the
+	 * active count.
+	 */
+	public void unpark() {
+		if (this.parked) {
+			this.parkGate.release();
+		}
+	}
+
+	/**
+	 * Blocks while this worker is outside the pool's active count. A spare
+	 * permit from an unpark that raced with us just costs one more check.
+	 */
+	private void parkWhileInactive() throws InterruptedException {
+		while (this.workerIndex >= this.parent.getActiveWorkers()) {
+			this.parked = true;
+			if (this.workerIndex >= this.parent.getActiveWorkers()) {
+				this.parkGate.acquire();
+			}
+			this.parked = false;
+		}
+	}
+
+	/**
+	 * Stores an event posted by a task running on this worker's thread.
+	 * 
+	 * @param inEvent
+	 *            - the posted event
+	 */
+	public void bufferEvent(SimEvent inEvent) {
+		this.postBuffer.add(inEvent);
+	}
+
+	/**
+	 * Stores a packed router event posted by a task running on this worker's
+	 * thread.
+	 * 
+	 * @param key
+	 *            - the packed event
+	 */
+	public void bufferEncoded(long key) {
+		this.postBuffer.addEncoded(key);
+	}
+
+	/**
+	 * Moves all buffered events into the given queue. Must only be called while
+	 * this worker is idle, i.e. after the epoch wall.
+	 * 
+	 * @param mergeQueue
+	 *            - the queue to move the buffered events into
+	 */
+	public void drainBuffer(EventQueue mergeQueue) {
+		this.postBuffer.drainTo(mergeQueue);
 	}
 
 	public void run() {
-		SimEvent currentJob = null;
+		WorkerTask currentJob = null;
 
+		this.parent.bindWorker(this);
 		try {
 			while (true) {
+				this.parkWhileInactive();
 				this.taskCount.acquire();
 				currentJob = this.parent.getTask();
-				currentJob.dispatch();
+				if (this.parent.timesWorkers()) {
+					int jobType = currentJob.getType();
+					int jobAgent = TraceRecorder.agentId(currentJob.getAffinity());
+					long startNanos = System.nanoTime();
+					currentJob.dispatch();
+					long endNanos = System.nanoTime();
+					this.busyNanos += endNanos - startNanos;
+					if (this.spanBuffer != null) {
+						this.spanBuffer.addTask(startNanos, endNanos, jobAgent, jobType);
+					}
+				} else {
+					currentJob.dispatch();
+				}
 				currentJob = null;
 				this.doneReporter.release();
 			}
@@ -3,7 +3,10 @@ package sim.engine;
 import java.util.*;
 import java.util.concurrent.*;
 
+import sim.event.EventQueue;
 import sim.event.SimEvent;
+import sim.event.WorkerTask;
+import sim.logging.TimelineRecorder;
 
 /**
  * This class is used to run tasks in the simulator in parallel. It servers as a
@@ -12,7 +15,7 @@ import sim.event.SimEvent;
  * guy works.
  * 
  */
-public class SimWorkerPool {
+public class SimWorkerPool implements WorkerPool {
 
 	/**
 	 * Semaphore used to signal worker threads that work is available.
@@ -36,7 +39,7 @@ public class SimWorkerPool {
 	 * .size() is not a constant time operation. Be careful when doing stuff
 	 * with this guy.
 	 */
-	private ConcurrentLinkedQueue<SimEvent> tasks;
+	private ConcurrentLinkedQueue<WorkerTask> tasks;
 
 	/**
 	 * The list of worker threds. Currently only really used to shut the threads
@@ -44,6 +47,30 @@ public class SimWorkerPool {
 	 */
 	private LinkedList<Thread> theWorkers;
 
+	/**
+	 * The worker objects, needed to drain their posting buffers at the end of
+	 * an epoch.
+	 */
+	private LinkedList<SimWorker> workerTasks;
+
+	/**
+	 * Maps a worker thread to its worker object, null for any thread that is
+	 * not one of ours (i.e. the driver).
+	 */
+	private ThreadLocal<SimWorker> localWorker;
+
+	/**
+	 * Number of workers allowed to take tasks, the rest are parked. Workers
+	 * already waiting on a task when this shrinks only park after running
+	 * one more.
+	 */
+	private volatile int activeWorkers;
+
+	/**
+	 * If true workers time the tasks they run, set before the first epoch.
+	 */
+	private boolean busyTiming;
+
 	/**
 	 * Creates a worker pool for a simulation with the given number of worker
 	 * threads. This pool can be used to run work in a parallel manner. The
@@ -64,8 +91,12 @@ public class SimWorkerPool {
 		this.taskCount = new Semaphore(0);
 		this.outstandingTasks = new Semaphore(0);
 		this.pushedTasks = 0;
-		this.tasks = new ConcurrentLinkedQueue<SimEvent>();
+		this.tasks = new ConcurrentLinkedQueue<WorkerTask>();
 		this.theWorkers = new LinkedList<Thread>();
+		this.workerTasks = new LinkedList<SimWorker>();
+		this.localWorker = new ThreadLocal<SimWorker>();
+		this.activeWorkers = workerCount;
+		this.busyTiming = false;
 
 		/*
 		 * Create worker threads and start them. Currently workers are started
@@ -74,13 +105,91 @@ public class SimWorkerPool {
 		 * deal as this would only happen if there was an error anyway.
 		 */
 		for (int counter = 0; counter < workerCount; counter++) {
-			SimWorker temp = new SimWorker(this.taskCount, this.outstandingTasks, this);
+			SimWorker temp = new SimWorker(this.taskCount, this.outstandingTasks, this, counter);
 			Thread tempThread = new Thread(temp);
+			this.workerTasks.add(temp);
 			this.theWorkers.add(tempThread);
 			tempThread.start();
 		}
 	}
 
+	public int getWorkerCount() {
+		return this.workerTasks.size();
+	}
+
+	public int getActiveWorkers() {
+		return this.activeWorkers;
+	}
+
+	/**
+	 * Makes every worker time the tasks it runs. Must be called before the
+	 * first task is handed out, the hand out publishes the flag to the
+	 * workers.
+	 */
+	public void enableBusyTiming() {
+		this.busyTiming = true;
+	}
+
+	/**
+	 * Makes every worker record a timeline span for each task it runs. Must
+	 * be called before the first task is handed out.
+	 * 
+	 * @param timeline
+	 *            - the timeline, workers get rows 1 and up
+	 */
+	public void enableTimeline(TimelineRecorder timeline) {
+		int counter = 1;
+		for (SimWorker tWorker : this.workerTasks) {
+			tWorker.setSpanBuffer(timeline.newBuffer(counter, "worker " + counter));
+			counter++;
+		}
+		this.busyTiming = true;
+	}
+
+	/**
+	 * Writes out every worker's held timeline spans. Safe to call between
+	 * epochs only.
+	 */
+	public void flushTimeline() {
+		for (SimWorker tWorker : this.workerTasks) {
+			tWorker.flushSpans();
+		}
+	}
+
+	public boolean timesWorkers() {
+		return this.busyTiming;
+	}
+
+	/**
+	 * Gets the time each worker has spent running tasks, zeros if busy timing
+	 * is off.
+	 * 
+	 * @return - busy time in ns, by worker index
+	 */
+	public long[] getBusyNanos() {
+		long[] retNanos = new long[this.workerTasks.size()];
+		int counter = 0;
+		for (SimWorker tWorker : this.workerTasks) {
+			retNanos[counter] = tWorker.getBusyNanos();
+			counter++;
+		}
+		return retNanos;
+	}
+
+	/**
+	 * Changes how many of the workers take tasks, the others park till the
+	 * count grows again. Safe to call between epochs only.
+	 * 
+	 * @param activeCount
+	 *            - the number of active workers, from 1 to the worker count
+	 */
+	public void setActiveWorkers(int activeCount) {
+		this.activeWorkers = Math.max(1, Math.min(activeCount, this.workerTasks.size()));
+		for (SimWorker tWorker : this.workerTasks) {
+			tWorker.unpark();
+		}
+	}
+
 	/**
 	 * Interrupts all workers, which will break them out of their work loops and
 	 * trigger them to shut down. This should be called when the simulation is
@@ -96,29 +205,76 @@ public class SimWorkerPool {
 	 * Gives the pool a task that can be ran in a multi-threaded manner during
 	 * this epoch.
 	 * 
-	 * @param readyEvent
-	 *            - the event that can be handled by a worker thread.
+	 * @param readyTask
+	 *            - the task that can be handled by a worker thread.
 	 */
-	public void addTask(SimEvent readyEvent) {
+	public void addTask(WorkerTask readyTask) {
 		/*
 		 * Increment the number of tasks we've received this epoch by one, add
 		 * to the work queue, and release a semaphore so a worker thread knows a
 		 * task is avail.
 		 */
 		this.pushedTasks++;
-		this.tasks.add(readyEvent);
+		this.tasks.add(readyTask);
 		this.taskCount.release();
 	}
 
+	/**
+	 * Called by a worker thread when it starts so events it posts can be routed
+	 * to its private buffer.
+	 * 
+	 * @param theWorker
+	 *            - the worker running on the calling thread
+	 */
+	public void bindWorker(SimWorker theWorker) {
+		this.localWorker.set(theWorker);
+	}
+
+	/**
+	 * Stores an event in the posting buffer of the calling worker thread. This
+	 * takes no locks, the buffers are only merged into the driver's queue at
+	 * the epoch wall.
+	 * 
+	 * @param inEvent
+	 *            - the posted event
+	 * @return - true if the event was buffered, false if the caller is not a
+	 *         worker thread of this pool and should post the event directly
+	 */
+	public boolean bufferEvent(SimEvent inEvent) {
+		SimWorker myWorker = this.localWorker.get();
+		if (myWorker == null) {
+			return false;
+		}
+
+		myWorker.bufferEvent(inEvent);
+		return true;
+	}
+
+	public boolean bufferEncoded(long key) {
+		SimWorker myWorker = this.localWorker.get();
+		if (myWorker == null) {
+			return false;
+		}
+
+		myWorker.bufferEncoded(key);
+		return true;
+	}
+
 	/**
 	 * Creates an execution wall, forcing all work in the current epoch to get
 	 * done before the simulation is allowed to move on. Call this function when
 	 * you want ensure that all work you have given to the simulator is done
 	 * before moving on. It is important to note that the epoch is considered
 	 * closed after this function is called, and calls to addTask will place the
-	 * tasks in a new epoch.
+	 * tasks in a new epoch. Once the wall is reached every event the workers
+	 * posted during the epoch is moved into the given queue, this includes
+	 * events for the current time, which will then be picked up by the driver
+	 * as a new epoch at the same time.
+	 * 
+	 * @param mergeQueue
+	 *            - the driver's event queue
 	 */
-	public void blockOnEpoch() {
+	public void blockOnEpoch(EventQueue mergeQueue) {
 		try {
 			/*
 			 * Workers report tasks complete to a semaphore, therefore when we
@@ -138,18 +294,21 @@ public class SimWorkerPool {
 		}
 
 		/*
-		 * Reset the epoch
+		 * Reset the epoch, merge everything posted while it ran
 		 */
 		this.pushedTasks = 0;
+		for (SimWorker tWorker : this.workerTasks) {
+			tWorker.drainBuffer(mergeQueue);
+		}
 	}
 
 	/**
 	 * Interface called by worker threads to get a task out of the work queue.
 	 * This uses a fast thread safe queue so locking isn't needed.
 	 * 
-	 * @return - an event that a worker thread can run
+	 * @return - a task that a worker thread can run
 	 */
-	public SimEvent getTask() {
+	public WorkerTask getTask() {
 		return this.tasks.poll();
 	}
 }
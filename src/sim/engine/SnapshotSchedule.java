@@ -0,0 +1,174 @@
+package sim.engine;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import sim.event.EventQueue;
+import sim.event.SimEvent;
+import sim.util.ConfigFileHelper;
+
+/**
+ * Takes the mid-run snapshots of a run (see SimSnapshot), every snapshot
+ * interval of sim time and whenever the console asks for one. Only checked
+ * by the driver thread between epochs, the console thread only sets the
+ * request flag.
+ *
+ */
+public class SnapshotSchedule {
+
+	private SimDriver theDriver;
+
+	/**
+	 * The run's snapshot file, next to its log
+	 */
+	private String fileName;
+
+	/**
+	 * Sim time between snapshots (-1 if none are taken on a schedule), the
+	 * sim time the next one is due at (Integer.MAX_VALUE if none are) and the
+	 * console's request for one as soon as possible
+	 */
+	private int snapshotInterval;
+	private int nextSnapshot;
+	private volatile boolean snapshotRequested;
+
+	/**
+	 * Reads the snapshot interval from the config file, no snapshots are taken
+	 * on a schedule if it isn't given (the console can still ask for one).
+	 *
+	 * @param theDriver
+	 *            - the driver of the run
+	 * @param simConfig
+	 *            - the sim config file
+	 */
+	public SnapshotSchedule(SimDriver theDriver, ConfigFileHelper simConfig) {
+		this.theDriver = theDriver;
+		this.fileName = SimSnapshot.getFileName(simConfig.getValue(SimDriver.LOG_FILE));
+		this.snapshotInterval = -1;
+		this.nextSnapshot = Integer.MAX_VALUE;
+		this.snapshotRequested = false;
+		if (simConfig.getValue(SimDriver.SNAPSHOT_INTERVAL) != null) {
+			this.snapshotInterval = SimDriver.parseConfigInt(SimDriver.SNAPSHOT_INTERVAL, simConfig
+					.getValue(SimDriver.SNAPSHOT_INTERVAL));
+			this.nextSnapshot = this.snapshotInterval;
+		}
+	}
+
+	/**
+	 * Asks for a snapshot as soon as the driver is between epochs, called by
+	 * the console thread.
+	 */
+	public void request() {
+		this.snapshotRequested = true;
+	}
+
+	/**
+	 * Predicate that tests if snapshots are taken on a schedule.
+	 *
+	 * @return - true if a snapshot interval was given
+	 */
+	public boolean isScheduled() {
+		return this.snapshotInterval > 0;
+	}
+
+	public String getFileName() {
+		return this.fileName;
+	}
+
+	/**
+	 * Gets the sim time the next scheduled snapshot is due at.
+	 *
+	 * @return - the time, Integer.MAX_VALUE if none are taken on a schedule
+	 */
+	public int getNextSnapshot() {
+		return this.nextSnapshot;
+	}
+
+	/**
+	 * Takes a snapshot if one is due before the next event, or the console
+	 * asked for one. Only called between epochs, and never while the sim is
+	 * split over several processes.
+	 */
+	public void checkSnapshot() {
+		if (!this.snapshotRequested && this.snapshotInterval < 0) {
+			return;
+		}
+
+		SimEvent nextEvent = this.theDriver.getEventQueue().peek();
+		if (nextEvent == null || (!this.snapshotRequested && nextEvent.getTime() < this.nextSnapshot)) {
+			return;
+		}
+
+		this.snapshotRequested = false;
+		this.takeSnapshot();
+		this.scheduleAfter(nextEvent);
+	}
+
+	/**
+	 * Works out when the next snapshot is due for a run that was just resumed,
+	 * the snapshot it came from was the one due before its first event.
+	 */
+	public void resumed() {
+		SimEvent nextEvent = this.theDriver.getEventQueue().peek();
+		if (nextEvent != null) {
+			this.scheduleAfter(nextEvent);
+		}
+	}
+
+	/**
+	 * Moves the next snapshot to the first interval boundary after an event.
+	 *
+	 * @param nextEvent
+	 *            - the next event of the run
+	 */
+	private void scheduleAfter(SimEvent nextEvent) {
+		if (this.snapshotInterval > 0) {
+			this.nextSnapshot = (nextEvent.getTime() / this.snapshotInterval + 1) * this.snapshotInterval;
+		}
+	}
+
+	/**
+	 * Writes everything needed to carry the run on from now to the run's
+	 * snapshot file. The event queue is emptied into the snapshot and then
+	 * filled back up with the same events. A snapshot that can't be written
+	 * doesn't stop the run.
+	 */
+	private void takeSnapshot() {
+		long startTime = System.currentTimeMillis();
+		EventQueue eventQueue = this.theDriver.getEventQueue();
+		List<SimEvent> queuedEvents = new ArrayList<SimEvent>(eventQueue.size());
+		SimEvent tEvent;
+		while ((tEvent = eventQueue.poll()) != null) {
+			queuedEvents.add(tEvent);
+		}
+
+		/*
+		 * the driver's own events are kept as times, the driver is never
+		 * written
+		 */
+		List<SimEvent> pendingEvents = new ArrayList<SimEvent>(queuedEvents.size());
+		List<Integer> bootTimes = new ArrayList<Integer>();
+		for (SimEvent queuedEvent : queuedEvents) {
+			if (queuedEvent.getAffinity() == this.theDriver) {
+				bootTimes.add(queuedEvent.getTime());
+			} else {
+				pendingEvents.add(queuedEvent);
+			}
+		}
+
+		SimSnapshot snapshot = this.theDriver.buildSnapshot(pendingEvents, bootTimes);
+		try {
+			snapshot.write(this.fileName);
+			System.out.println("snapshot taken at: " + snapshot.getTime() + " (" + queuedEvents.size()
+					+ " events) in " + (System.currentTimeMillis() - startTime) + " ms");
+		} catch (IOException e) {
+			System.err.println("could not write snapshot at: " + snapshot.getTime());
+			e.printStackTrace();
+		}
+
+		for (SimEvent queuedEvent : queuedEvents) {
+			eventQueue.add(queuedEvent);
+		}
+	}
+}
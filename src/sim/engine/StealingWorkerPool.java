@@ -0,0 +1,194 @@
+package sim.engine;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import sim.event.EventQueue;
+import sim.event.SimEvent;
+import sim.event.WorkerTask;
+
+/**
+ * Worker pool built on a fork/join pool. The semaphore pool pays for a
+ * release/acquire pair per task, which is about the same cost as a
+ * ROUTERCPUFREE event itself. Here tasks added during an epoch are only
+ * collected, at the epoch wall the whole batch is handed to the fork/join pool
+ * as one task that splits itself in halves down to small chunks. Idle workers
+ * steal chunks off the back of busy workers' deques, and the driver waits on
+ * the single root task, so there is no per task signalling at all. The cost is
+ * that nothing starts running until the driver reaches the wall, which the
+ * driver does as soon as the epoch is built anyway.
+ *
+ */
+public class StealingWorkerPool implements WorkerPool {
+
+	/**
+	 * Worker thread that carries its own posting buffer.
+	 */
+	private static class PostingThread extends ForkJoinWorkerThread {
+
+		private StealingWorkerPool owner;
+
+		/**
+		 * Events posted by tasks this thread ran during the current epoch.
+		 */
+		private PostBuffer postBuffer;
+
+		protected PostingThread(ForkJoinPool pool, StealingWorkerPool owner) {
+			super(pool);
+			this.owner = owner;
+			this.postBuffer = new PostBuffer();
+		}
+
+		/**
+		 * The fork/join pool retires threads that sit idle too long, the
+		 * thread stops being walked at the epoch wall and its buffer is left
+		 * for the driver to drain once at the next wall.
+		 */
+		protected void onTermination(Throwable exception) {
+			this.owner.postingThreads.remove(this);
+			this.owner.retiredBuffers.add(this.postBuffer);
+			super.onTermination(exception);
+		}
+	}
+
+	/**
+	 * Runs a slice of the epoch's tasks, splitting it in half until it is
+	 * small enough to just run.
+	 */
+	private static class BatchTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private WorkerTask[] batch;
+		private int start;
+		private int end;
+		private int grain;
+
+		private BatchTask(WorkerTask[] batch, int start, int end, int grain) {
+			this.batch = batch;
+			this.start = start;
+			this.end = end;
+			this.grain = grain;
+		}
+
+		protected void compute() {
+			if (this.end - this.start <= this.grain) {
+				for (int counter = this.start; counter < this.end; counter++) {
+					this.batch[counter].dispatch();
+				}
+				return;
+			}
+
+			int mid = (this.start + this.end) >>> 1;
+			ForkJoinTask.invokeAll(new BatchTask(this.batch, this.start, mid, this.grain), new BatchTask(this.batch,
+					mid, this.end, this.grain));
+		}
+	}
+
+	private ForkJoinPool forkPool;
+
+	private int workerCount;
+
+	/**
+	 * Tasks added this epoch, only touched by the driver thread.
+	 */
+	private ArrayList<WorkerTask> batch;
+
+	/**
+	 * Every live worker thread of this pool, needed to drain their posting
+	 * buffers at the epoch wall.
+	 */
+	private ConcurrentLinkedQueue<PostingThread> postingThreads;
+
+	/**
+	 * Buffers of threads the fork/join pool retired since the last wall, only
+	 * ever drained by the driver thread.
+	 */
+	private ConcurrentLinkedQueue<PostBuffer> retiredBuffers;
+
+	/**
+	 * The number of chunks to cut each worker's share of an epoch into, more
+	 * chunks give more to steal when events are uneven.
+	 */
+	private static final int CHUNKS_PER_WORKER = 4;
+
+	/**
+	 * Creates a work stealing pool with the given number of worker threads.
+	 *
+	 * @param workerCount
+	 *            - the number of worker threads that will be executing tasks in
+	 *            parallel
+	 */
+	public StealingWorkerPool(int workerCount) {
+		this.workerCount = workerCount;
+		this.batch = new ArrayList<WorkerTask>();
+		this.postingThreads = new ConcurrentLinkedQueue<PostingThread>();
+		this.retiredBuffers = new ConcurrentLinkedQueue<PostBuffer>();
+
+		final StealingWorkerPool self = this;
+		this.forkPool = new ForkJoinPool(workerCount, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+			public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+				PostingThread retThread = new PostingThread(pool, self);
+				self.postingThreads.add(retThread);
+				return retThread;
+			}
+		}, null, false);
+	}
+
+	public void addTask(WorkerTask readyTask) {
+		this.batch.add(readyTask);
+	}
+
+	public boolean bufferEvent(SimEvent inEvent) {
+		Thread myThread = Thread.currentThread();
+		if (!(myThread instanceof PostingThread) || ((PostingThread) myThread).owner != this) {
+			return false;
+		}
+
+		((PostingThread) myThread).postBuffer.add(inEvent);
+		return true;
+	}
+
+	public boolean bufferEncoded(long key) {
+		Thread myThread = Thread.currentThread();
+		if (!(myThread instanceof PostingThread) || ((PostingThread) myThread).owner != this) {
+			return false;
+		}
+
+		((PostingThread) myThread).postBuffer.addEncoded(key);
+		return true;
+	}
+
+	/**
+	 * Runs every task added this epoch and waits for them, then merges
+	 * everything the workers posted into the given queue. A single task is
+	 * just run on the driver thread, there is nothing to gain from a hand off,
+	 * anything it posts goes straight into the queue.
+	 *
+	 * @param mergeQueue
+	 *            - the driver's event queue
+	 */
+	public void blockOnEpoch(EventQueue mergeQueue) {
+		int taskCount = this.batch.size();
+		if (taskCount == 1) {
+			this.batch.get(0).dispatch();
+		} else if (taskCount > 1) {
+			WorkerTask[] taskArray = this.batch.toArray(new WorkerTask[taskCount]);
+			int grain = Math.max(1, taskCount / (this.workerCount * StealingWorkerPool.CHUNKS_PER_WORKER));
+			this.forkPool.invoke(new BatchTask(taskArray, 0, taskCount, grain));
+		}
+		this.batch.clear();
+
+		for (PostingThread tThread : this.postingThreads) {
+			tThread.postBuffer.drainTo(mergeQueue);
+		}
+		PostBuffer retiredBuffer;
+		while ((retiredBuffer = this.retiredBuffers.poll()) != null) {
+			retiredBuffer.drainTo(mergeQueue);
+		}
+	}
+
+	public void closePool() {
+		this.forkPool.shutdownNow();
+	}
+}
@@ -0,0 +1,416 @@
+package sim.engine;
+
+import java.util.*;
+
+import sim.agents.Router;
+import sim.agents.SimAgent;
+import sim.event.SimEvent;
+import sim.event.WorkerTask;
+import sim.logging.SimLogger;
+
+/**
+ * The events of one router inside an optimistic window. Unlike an EventLane
+ * the router doesn't wait to be sure nothing earlier can still show up, it
+ * just runs everything it has. A checkpoint is taken before every event, so
+ * when a message from another router turns up with a time stamp we have
+ * already run past (a straggler) the router is rolled back to just before it
+ * and the undone events are run again. Anything the undone events did outside
+ * of the router is held by the lane until it can no longer be rolled back:
+ * log lines, posted events, and notifications to the traffic accountant and
+ * bots are simply dropped, and messages already handed to other routers are
+ * returned as anti-messages so the driver can cancel them at the receiver.
+ *
+ * Everything but dispatch() is only ever called by the driver thread while no
+ * lanes are running.
+ *
+ */
+public class TimeWarpLane implements WorkerTask {
+
+	/**
+	 * One handled event, along with the state needed to undo it and whatever
+	 * it did that isn't committed yet.
+	 */
+	private static class Record {
+		private SimEvent event;
+		private Router.Checkpoint savedState;
+		private List<SimEvent> outEvents;
+		private List<SimEvent> crossEvents;
+		private List<String> logLines;
+		private boolean routeChange;
+		private List<int[]> sessionFails;
+		private boolean undone;
+
+		private Record(SimEvent event, Router.Checkpoint savedState) {
+			this.event = event;
+			this.savedState = savedState;
+			this.outEvents = new LinkedList<SimEvent>();
+			this.crossEvents = new LinkedList<SimEvent>();
+			this.logLines = new LinkedList<String>();
+			this.routeChange = false;
+			this.sessionFails = new LinkedList<int[]>();
+			this.undone = false;
+		}
+	}
+
+	private Router router;
+
+	private SimDriver theDriver;
+
+	private SimLogger logger;
+
+	/**
+	 * End (exclusive) of the window, anything we post after this is not our
+	 * problem till the window is committed.
+	 */
+	private int windowEnd;
+
+	/**
+	 * Events still to be run, never earlier then anything in processed.
+	 */
+	private PriorityQueue<SimEvent> pending;
+
+	/**
+	 * Events that were handed to us from outside (the event queue or another
+	 * router) as opposed to events we posted for ourselves. Only these are put
+	 * back in pending when rolled back, self posted events will simply be
+	 * posted again, unless the event that posted them is not being undone.
+	 */
+	private Set<SimEvent> inputs;
+
+	/**
+	 * The record of the event that posted each self posted event.
+	 */
+	private Map<SimEvent, Record> posters;
+
+	/**
+	 * Handled events that are not committed yet, in the order they ran.
+	 */
+	private ArrayList<Record> processed;
+
+	/**
+	 * Record of the event running right now.
+	 */
+	private Record current;
+
+	/**
+	 * Number of records at the front of processed committed so far by
+	 * commitNext(), they are thrown away by finishCommit()
+	 */
+	private int commitCount;
+
+	/**
+	 * Messages we sent to other routers inside the window since the driver
+	 * last looked.
+	 */
+	private List<SimEvent> newCrossEvents;
+
+	/**
+	 * Messages to other routers that were undone since the driver last looked.
+	 */
+	private List<SimEvent> antiMessages;
+
+	private long dispatchCount;
+	private long rollbackCount;
+
+	private static final ThreadLocal<TimeWarpLane> runningLane = new ThreadLocal<TimeWarpLane>();
+
+	/**
+	 * Builds an empty lane for a router.
+	 *
+	 * @param theRouter
+	 *            - the router, must have had rollback enabled
+	 * @param theDriver
+	 *            - the driver, committed events are posted to him
+	 * @param logger
+	 *            - the log held log lines are written to
+	 * @param windowEnd
+	 *            - end (exclusive) of the window
+	 */
+	public TimeWarpLane(Router theRouter, SimDriver theDriver, SimLogger logger, int windowEnd) {
+		this.router = theRouter;
+		this.theDriver = theDriver;
+		this.logger = logger;
+		this.windowEnd = windowEnd;
+		this.pending = new PriorityQueue<SimEvent>();
+		this.inputs = Collections.newSetFromMap(new IdentityHashMap<SimEvent, Boolean>());
+		this.posters = new IdentityHashMap<SimEvent, Record>();
+		this.processed = new ArrayList<Record>();
+		this.current = null;
+		this.commitCount = 0;
+		this.newCrossEvents = new LinkedList<SimEvent>();
+		this.antiMessages = new LinkedList<SimEvent>();
+		this.dispatchCount = 0;
+		this.rollbackCount = 0;
+	}
+
+	/**
+	 * Lanes are tagged as CPU work in worker traces.
+	 */
+	public int getType() {
+		return SimEvent.ROUTERCPUFREE;
+	}
+
+	public SimAgent getAffinity() {
+		return this.router;
+	}
+
+	/**
+	 * Gets the lane being run on the calling thread.
+	 *
+	 * @return - the running lane, or null if the thread is not inside a lane
+	 */
+	public static TimeWarpLane getRunningLane() {
+		return TimeWarpLane.runningLane.get();
+	}
+
+	/**
+	 * Runs everything that is pending.
+	 */
+	public void dispatch() {
+		TimeWarpLane.runningLane.set(this);
+		try {
+			SimEvent tEvent;
+			while ((tEvent = this.pending.poll()) != null) {
+				this.current = new Record(tEvent, this.router.checkpoint());
+				this.processed.add(this.current);
+				this.logger.holdMessages(this.current.logLines);
+				tEvent.dispatch();
+				this.dispatchCount++;
+			}
+		} finally {
+			this.logger.holdMessages(null);
+			this.current = null;
+			TimeWarpLane.runningLane.set(null);
+		}
+	}
+
+	/**
+	 * Called (through the driver) when the running router posts an event.
+	 *
+	 * @param inEvent
+	 *            - the posted event
+	 */
+	public void postEvent(SimEvent inEvent) {
+		if (inEvent.getTime() < this.windowEnd) {
+			if (inEvent.getAffinity() == this.router) {
+				this.posters.put(inEvent, this.current);
+				this.pending.add(inEvent);
+				return;
+			}
+			if (inEvent.getAffinity() instanceof Router) {
+				this.current.crossEvents.add(inEvent);
+				this.newCrossEvents.add(inEvent);
+				return;
+			}
+		}
+
+		this.current.outEvents.add(inEvent);
+	}
+
+	public void holdRouteChange() {
+		this.current.routeChange = true;
+	}
+
+	public void holdSessionFail(int rhs, int time) {
+		this.current.sessionFails.add(new int[] { rhs, time });
+	}
+
+	/**
+	 * Hands us an event from the event queue or another router, rolling back
+	 * if we've already run past it.
+	 *
+	 * @param inEvent
+	 *            - the new event
+	 */
+	public void addInput(SimEvent inEvent) {
+		this.inputs.add(inEvent);
+
+		int rollIndex = this.processed.size();
+		while (rollIndex > 0 && this.processed.get(rollIndex - 1).event.compareTo(inEvent) > 0) {
+			rollIndex--;
+		}
+		if (rollIndex < this.processed.size()) {
+			this.rollBack(rollIndex);
+		}
+
+		this.pending.add(inEvent);
+	}
+
+	/**
+	 * Takes back an event handed to us by another router, rolling back if we
+	 * already ran it.
+	 *
+	 * @param inEvent
+	 *            - the cancelled event
+	 */
+	public void cancelInput(SimEvent inEvent) {
+		this.inputs.remove(inEvent);
+		if (this.pending.remove(inEvent)) {
+			return;
+		}
+
+		for (int counter = this.processed.size() - 1; counter >= 0; counter--) {
+			if (this.processed.get(counter).event == inEvent) {
+				this.rollBack(counter);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Undoes every processed event from the given index on. Inputs, and self
+	 * posted events whose poster survives, go back into pending, any self
+	 * posted event whose poster was undone is dropped.
+	 *
+	 * @param index
+	 *            - index in processed of the first event to undo
+	 */
+	private void rollBack(int index) {
+		this.router.restore(this.processed.get(index).savedState);
+
+		List<Record> undoneList = new ArrayList<Record>(this.processed.subList(index, this.processed.size()));
+		this.processed.subList(index, this.processed.size()).clear();
+		for (Record tRecord : undoneList) {
+			tRecord.undone = true;
+			this.antiMessages.addAll(tRecord.crossEvents);
+			this.rollbackCount++;
+		}
+
+		for (Record tRecord : undoneList) {
+			Record poster = this.posters.get(tRecord.event);
+			if (this.inputs.contains(tRecord.event) || (poster != null && !poster.undone)) {
+				this.pending.add(tRecord.event);
+			} else {
+				this.posters.remove(tRecord.event);
+			}
+		}
+
+		Iterator<SimEvent> pendIter = this.pending.iterator();
+		while (pendIter.hasNext()) {
+			SimEvent tEvent = pendIter.next();
+			Record poster = this.posters.get(tEvent);
+			if (poster != null && poster.undone) {
+				pendIter.remove();
+				this.posters.remove(tEvent);
+			}
+		}
+	}
+
+	/**
+	 * Gets the time of the oldest processed event not yet committed, if it is
+	 * earlier then the given time.
+	 *
+	 * @param gvt
+	 *            - global virtual time, the earliest time any router could
+	 *            still roll back to
+	 * @return - the time, or Integer.MAX_VALUE if nothing before gvt is left
+	 *         to commit
+	 */
+	public int getNextCommitTime(int gvt) {
+		if (this.commitCount < this.processed.size()) {
+			int time = this.processed.get(this.commitCount).event.getTime();
+			if (time < gvt) {
+				return time;
+			}
+		}
+		return Integer.MAX_VALUE;
+	}
+
+	/**
+	 * Commits the oldest processed event not yet committed, nothing can roll
+	 * it back any more. Held events are posted, held log lines written and
+	 * held notifications delivered, with the driver's clock set to the
+	 * committed event's time. This is run by the driver with no window set,
+	 * so nothing posted here is pushed back to the end of the window. The
+	 * journal is only thrown away by finishCommit().
+	 */
+	public void commitNext() {
+		Record tRecord = this.processed.get(this.commitCount);
+		this.theDriver.setCommitClock(tRecord.event.getTime());
+		this.theDriver.noteCommittedEvent(tRecord.event);
+		for (SimEvent tEvent : tRecord.outEvents) {
+			this.theDriver.postEvent(tEvent);
+		}
+		this.logger.writeHeldMessages(tRecord.logLines);
+		if (tRecord.routeChange) {
+			this.router.notifyRouteChange();
+		}
+		for (int[] tFail : tRecord.sessionFails) {
+			this.router.notifySessionFail(tFail[0], tFail[1]);
+		}
+
+		this.inputs.remove(tRecord.event);
+		this.posters.remove(tRecord.event);
+		this.commitCount++;
+	}
+
+	/**
+	 * Throws away the records and journal of everything committed by
+	 * commitNext().
+	 */
+	public void finishCommit() {
+		if (this.commitCount == 0) {
+			return;
+		}
+		this.processed.subList(0, this.commitCount).clear();
+		this.commitCount = 0;
+		if (this.processed.size() > 0) {
+			this.router.discardHistory(this.processed.get(0).savedState);
+		} else {
+			this.router.discardHistory(null);
+		}
+	}
+
+	public Router getRouter() {
+		return this.router;
+	}
+
+	/**
+	 * Gets the time of the next event we still have to run.
+	 *
+	 * @return - the time, or Integer.MAX_VALUE if there is nothing to run
+	 */
+	public int getNextTime() {
+		SimEvent nextEvent = this.pending.peek();
+		if (nextEvent == null) {
+			return Integer.MAX_VALUE;
+		}
+		return nextEvent.getTime();
+	}
+
+	public boolean hasPending() {
+		return this.pending.size() > 0;
+	}
+
+	/**
+	 * Gets, and forgets, the messages to other routers sent since the last
+	 * call.
+	 *
+	 * @return - the new messages
+	 */
+	public List<SimEvent> takeNewCrossEvents() {
+		List<SimEvent> retList = this.newCrossEvents;
+		this.newCrossEvents = new LinkedList<SimEvent>();
+		return retList;
+	}
+
+	/**
+	 * Gets, and forgets, the messages to other routers undone since the last
+	 * call.
+	 *
+	 * @return - the undone messages
+	 */
+	public List<SimEvent> takeAntiMessages() {
+		List<SimEvent> retList = this.antiMessages;
+		this.antiMessages = new LinkedList<SimEvent>();
+		return retList;
+	}
+
+	public long getDispatchCount() {
+		return this.dispatchCount;
+	}
+
+	public long getRollbackCount() {
+		return this.rollbackCount;
+	}
+}
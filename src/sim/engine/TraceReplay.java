@@ -0,0 +1,305 @@
+package sim.engine;
+
+import java.io.*;
+import java.util.*;
+
+import bgp.dataStructures.CIDR;
+import bgp.messages.Constants;
+import sim.agents.TrafficAccountant;
+import sim.event.*;
+import sim.logging.SimLogger;
+import sim.logging.TraceRecorder;
+import sim.network.dataObjects.Link;
+import sim.network.dataObjects.TrafficFlow;
+import sim.util.ConfigFileHelper;
+
+/**
+ * Replays a binary trace written by TraceRecorder. Nothing is simulated, the
+ * routers are built (the traffic accountant and log parsers need the
+ * topology) but their daemons never run. Instead:
+ *
+ * The traffic accountant is handed every attack flow, link up/down and route
+ * change event from the trace, and answers its route lookups from the
+ * answers recorded during the run. For every BGP message send in the trace
+ * the accountant's current chance of the message getting through is
+ * summed, giving the number of messages it expects to lose.
+ *
+ * Every log line is written to a new log file, the sim's log file name with
+ * REPLAY_SUFFIX added, and the normal log analysis is run over it.
+ *
+ * Changes to the accountant or to the parsers can be tried against a trace
+ * at disk speed instead of re-running the sim. A lookup the run never made
+ * (the accountant now walks a path it didn't before) is answered with "no
+ * route" and counted.
+ *
+ * Usage: TraceReplay (sim config file) (trace file)
+ *
+ */
+public class TraceReplay {
+
+	/**
+	 * Answers the traffic accountant's route lookups from the trace.
+	 */
+	private static class ReplayLookup implements TrafficAccountant.RouteLookup {
+
+		private HashMap<String, Integer> routes;
+		private HashMap<String, Boolean> accepts;
+		private long unknownLookups;
+
+		private ReplayLookup() {
+			this.routes = new HashMap<String, Integer>();
+			this.accepts = new HashMap<String, Boolean>();
+			this.unknownLookups = 0;
+		}
+
+		public int lookupNextHop(int asn, CIDR destNetwork) {
+			Integer retHop = this.routes.get(asn + " " + destNetwork);
+			if (retHop == null) {
+				this.unknownLookups++;
+				return -1;
+			}
+			return retHop;
+		}
+
+		public boolean lookupAccept(int asn, CIDR destNetwork, int srcASN) {
+			Boolean retAccept = this.accepts.get(asn + " " + destNetwork + " " + srcASN);
+			if (retAccept == null) {
+				this.unknownLookups++;
+				return false;
+			}
+			return retAccept;
+		}
+	}
+
+	public static final String REPLAY_SUFFIX = "_replay";
+
+	private DataInputStream inStream;
+
+	private TrafficAccountant replayAccountant;
+
+	private ReplayLookup replayLookup;
+
+	private SimLogger logger;
+
+	private HashMap<Integer, CIDR> networks;
+
+	/**
+	 * Replay stats
+	 */
+	private long[] eventCounts;
+	private long bgpMessages;
+	private long updateMessages;
+	private double expectedLosses;
+	private long logLines;
+	private int lastTime;
+
+	public static void main(String argv[]) {
+		if (argv.length != 2) {
+			System.err.println("Invalid usage!\nTraceReplay <sim config file path> <trace file path>");
+			System.exit(-1);
+		}
+
+		ConfigFileHelper configFile = SimDriver.loadSimConfig(argv[0]);
+		String replayLog = configFile.getValue(SimDriver.LOG_FILE) + TraceReplay.REPLAY_SUFFIX;
+		SimAssembly theFactory = SimDriver.buildAssembly(configFile, replayLog);
+		theFactory.purgeSerialState();
+
+		long runTime = System.currentTimeMillis();
+		try {
+			TraceReplay theReplay = new TraceReplay(argv[1], theFactory);
+			theReplay.replay();
+			theReplay.printReport();
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.exit(-1);
+		}
+		theFactory.getLogStream().doneLogging();
+		System.out.println("replay done at: " + (System.currentTimeMillis() - runTime));
+
+		SimDriver.analyzeLog(configFile, theFactory, replayLog);
+		System.out.println("ALL DONE");
+	}
+
+	/**
+	 * Opens a trace, checking the header.
+	 *
+	 * @param traceFile
+	 *            - path to the trace
+	 * @param theFactory
+	 *            - the assembly built from the sim config the trace was made
+	 *            with
+	 * @throws IOException
+	 *             - if the trace can't be read or isn't a trace
+	 */
+	public TraceReplay(String traceFile, SimAssembly theFactory) throws IOException {
+		this.inStream = new DataInputStream(new BufferedInputStream(new FileInputStream(traceFile), 1 << 16));
+		if (this.inStream.readInt() != TraceRecorder.MAGIC) {
+			throw new IOException("not a trace file: " + traceFile);
+		}
+		int version = this.inStream.readInt();
+		if (version != TraceRecorder.VERSION) {
+			throw new IOException("unsupported trace version: " + version);
+		}
+
+		this.replayAccountant = new TrafficAccountant(theFactory.getASMap(), theFactory.getRouterMap(),
+				SimDriver.ATTACK_PACKET_SIZE);
+		this.replayLookup = new ReplayLookup();
+		this.replayAccountant.setRouteLookup(this.replayLookup);
+		this.logger = theFactory.getLogStream();
+		this.networks = new HashMap<Integer, CIDR>();
+		this.eventCounts = new long[SimEvent.ROUTERCPUFREE + 1];
+		this.bgpMessages = 0;
+		this.updateMessages = 0;
+		this.expectedLosses = 0.0;
+		this.logLines = 0;
+		this.lastTime = 0;
+	}
+
+	/**
+	 * Runs through the whole trace.
+	 *
+	 * @throws IOException
+	 *             - if the trace can't be read
+	 */
+	public void replay() throws IOException {
+		while (true) {
+			int tag = this.inStream.read();
+			if (tag == -1) {
+				break;
+			}
+
+			if (tag == TraceRecorder.TAG_EVENT) {
+				this.replayEvent();
+			} else if (tag == TraceRecorder.TAG_ROUTE) {
+				int asn = this.inStream.readInt();
+				CIDR network = this.networks.get(this.inStream.readInt());
+				this.replayLookup.routes.put(asn + " " + network, this.inStream.readInt());
+			} else if (tag == TraceRecorder.TAG_ACCEPT) {
+				int asn = this.inStream.readInt();
+				CIDR network = this.networks.get(this.inStream.readInt());
+				int srcASN = this.inStream.readInt();
+				this.replayLookup.accepts.put(asn + " " + network + " " + srcASN, this.inStream.readBoolean());
+			} else if (tag == TraceRecorder.TAG_LOG) {
+				byte[] lineBytes = new byte[this.inStream.readInt()];
+				this.inStream.readFully(lineBytes);
+				this.logger.logMessage(new String(lineBytes, "UTF-8"), false);
+				this.logLines++;
+			} else if (tag == TraceRecorder.TAG_NETWORK) {
+				int netId = this.inStream.readInt();
+				this.networks.put(netId, CIDR.parse(this.inStream.readUTF()));
+			} else {
+				throw new IOException("corrupt trace, unknown record tag: " + tag);
+			}
+		}
+		this.inStream.close();
+	}
+
+	/**
+	 * Replays one EVENT record. The accountant's route answers for an event
+	 * come after the event in the trace, so they are read before the event is
+	 * handed to the accountant.
+	 */
+	private void replayEvent() throws IOException {
+		int time = this.inStream.readInt();
+		int type = this.inStream.readByte();
+		this.inStream.readInt();
+		this.lastTime = time;
+		if (type >= 0 && type < this.eventCounts.length) {
+			this.eventCounts[type]++;
+		}
+
+		if (type == SimEvent.TCPSEND) {
+			int messageType = this.inStream.readByte();
+			int srcASN = this.inStream.readInt();
+			int dstASN = this.inStream.readInt();
+			this.inStream.readInt();
+
+			this.bgpMessages++;
+			if (messageType == Constants.BGP_UPDATE) {
+				this.updateMessages++;
+			}
+			this.expectedLosses += 1.0 - this.replayAccountant.getMessageChance(srcASN, dstASN);
+		} else if (type == SimEvent.ATTACKFLOW) {
+			List<TrafficFlow> newFlows = this.readFlows();
+			List<TrafficFlow> oldFlows = this.readFlows();
+			this.readLookups();
+			this.replayAccountant.giveEvent(new AttackEvent(time, this.replayAccountant, newFlows, oldFlows));
+		} else if (type == SimEvent.LINKUPDOWN) {
+			List<Link> upLinks = this.readLinks();
+			List<Link> downLinks = this.readLinks();
+			this.readLookups();
+			this.replayAccountant.giveEvent(new LinkUpDown(time, this.replayAccountant, upLinks, downLinks));
+		} else if (type == SimEvent.ROUTECHANGE) {
+			this.readLookups();
+			this.replayAccountant.giveEvent(new SimEvent(SimEvent.ROUTECHANGE, time, this.replayAccountant));
+		}
+	}
+
+	/**
+	 * Applies the ROUTE and ACCEPT records (and any NETWORK records among
+	 * them) that directly follow, stopping at the first other record.
+	 */
+	private void readLookups() throws IOException {
+		while (true) {
+			this.inStream.mark(1);
+			int tag = this.inStream.read();
+			if (tag == TraceRecorder.TAG_ROUTE) {
+				int asn = this.inStream.readInt();
+				CIDR network = this.networks.get(this.inStream.readInt());
+				this.replayLookup.routes.put(asn + " " + network, this.inStream.readInt());
+			} else if (tag == TraceRecorder.TAG_ACCEPT) {
+				int asn = this.inStream.readInt();
+				CIDR network = this.networks.get(this.inStream.readInt());
+				int srcASN = this.inStream.readInt();
+				this.replayLookup.accepts.put(asn + " " + network + " " + srcASN, this.inStream.readBoolean());
+			} else if (tag == TraceRecorder.TAG_NETWORK) {
+				int netId = this.inStream.readInt();
+				this.networks.put(netId, CIDR.parse(this.inStream.readUTF()));
+			} else {
+				this.inStream.reset();
+				return;
+			}
+		}
+	}
+
+	private List<TrafficFlow> readFlows() throws IOException {
+		int flowCount = this.inStream.readInt();
+		if (flowCount < 0) {
+			return null;
+		}
+
+		List<TrafficFlow> retList = new ArrayList<TrafficFlow>(flowCount);
+		for (int counter = 0; counter < flowCount; counter++) {
+			int srcAS = this.inStream.readInt();
+			int dstAS = this.inStream.readInt();
+			CIDR dstNetwork = this.networks.get(this.inStream.readInt());
+			retList.add(new TrafficFlow(srcAS, dstAS, dstNetwork, this.inStream.readInt()));
+		}
+		return retList;
+	}
+
+	private List<Link> readLinks() throws IOException {
+		int linkCount = this.inStream.readInt();
+		if (linkCount < 0) {
+			return null;
+		}
+
+		List<Link> retList = new ArrayList<Link>(linkCount);
+		for (int counter = 0; counter < linkCount; counter++) {
+			int lhs = this.inStream.readInt();
+			retList.add(LinkUpDown.buildCorrectLink(lhs, this.inStream.readInt()));
+		}
+		return retList;
+	}
+
+	public void printReport() {
+		System.out.println("replayed to sim time: " + this.lastTime + " log lines: " + this.logLines);
+		System.out.println("events: route change " + this.eventCounts[SimEvent.ROUTECHANGE] + " link up/down "
+				+ this.eventCounts[SimEvent.LINKUPDOWN] + " attack flow " + this.eventCounts[SimEvent.ATTACKFLOW]
+				+ " tcp send " + this.eventCounts[SimEvent.TCPSEND] + " timer " + this.eventCounts[SimEvent.TIMEREXPIRE]
+				+ " cpu " + this.eventCounts[SimEvent.ROUTERCPUFREE]);
+		System.out.println("bgp messages: " + this.bgpMessages + " (" + this.updateMessages
+				+ " updates) expected lost to traffic: " + this.expectedLosses + " lookups not in trace: "
+				+ this.replayLookup.unknownLookups);
+	}
+}
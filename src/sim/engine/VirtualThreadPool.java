@@ -0,0 +1,151 @@
+package sim.engine;
+
+import java.lang.reflect.Method;
+import java.util.*;
+import java.util.concurrent.*;
+
+import sim.event.EventQueue;
+import sim.event.SimEvent;
+import sim.event.WorkerTask;
+
+/**
+ * Worker pool that gives every task of an epoch its own thread instead of
+ * feeding them to a fixed set of workers. Every task in an epoch belongs to a
+ * different router (a ROUTERCPUFREE event in epoch mode, a router's lane in
+ * the window modes), so this is a thread per busy router per epoch. On a JVM
+ * with virtual threads (21+) these are virtual threads, which are cheap to
+ * make and to park, so the number of threads in flight is bounded only by the
+ * number of busy routers and the JVM maps them onto one carrier per core. On
+ * older JVMs we fall back to a cached pool of platform threads, which still
+ * works but mostly measures the cost of not having virtual threads.
+ *
+ * The epoch wall is a single latch counted down by each task. This plays the
+ * part of a structured concurrency scope, which is still a preview API.
+ *
+ */
+public class VirtualThreadPool implements WorkerPool {
+
+	/**
+	 * Wraps a task, giving it a posting buffer and counting down the epoch
+	 * latch when it's done.
+	 */
+	private class TaskRunner implements Runnable {
+
+		private WorkerTask task;
+		private PostBuffer postBuffer;
+		private CountDownLatch epochLatch;
+
+		private TaskRunner(WorkerTask task, CountDownLatch epochLatch) {
+			this.task = task;
+			this.postBuffer = new PostBuffer();
+			this.epochLatch = epochLatch;
+		}
+
+		public void run() {
+			VirtualThreadPool.this.localBuffer.set(this.postBuffer);
+			try {
+				this.task.dispatch();
+			} finally {
+				VirtualThreadPool.this.localBuffer.remove();
+				this.epochLatch.countDown();
+			}
+		}
+	}
+
+	private ExecutorService executor;
+
+	/**
+	 * Tasks added this epoch, only touched by the driver thread.
+	 */
+	private ArrayList<WorkerTask> batch;
+
+	/**
+	 * The posting buffer of the task running on the calling thread, null if
+	 * the thread isn't running one of our tasks.
+	 */
+	private ThreadLocal<PostBuffer> localBuffer;
+
+	public VirtualThreadPool() {
+		this.batch = new ArrayList<WorkerTask>();
+		this.localBuffer = new ThreadLocal<PostBuffer>();
+
+		/*
+		 * Executors.newVirtualThreadPerTaskExecutor() only exists on 21+, look
+		 * it up by reflection so we still build and run on older JVMs
+		 */
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			this.executor = (ExecutorService) factory.invoke(null);
+		} catch (Exception e) {
+			System.err.println("virtual threads are not supported by this JVM, using platform threads");
+			this.executor = Executors.newCachedThreadPool();
+		}
+	}
+
+	public void addTask(WorkerTask readyTask) {
+		this.batch.add(readyTask);
+	}
+
+	public boolean bufferEvent(SimEvent inEvent) {
+		PostBuffer myBuffer = this.localBuffer.get();
+		if (myBuffer == null) {
+			return false;
+		}
+
+		myBuffer.add(inEvent);
+		return true;
+	}
+
+	public boolean bufferEncoded(long key) {
+		PostBuffer myBuffer = this.localBuffer.get();
+		if (myBuffer == null) {
+			return false;
+		}
+
+		myBuffer.addEncoded(key);
+		return true;
+	}
+
+	/**
+	 * Starts a thread for every task added this epoch and waits for them all,
+	 * then merges everything they posted into the given queue. A single task
+	 * is just run on the driver thread.
+	 *
+	 * @param mergeQueue
+	 *            - the driver's event queue
+	 */
+	public void blockOnEpoch(EventQueue mergeQueue) {
+		int taskCount = this.batch.size();
+		if (taskCount == 1) {
+			this.batch.get(0).dispatch();
+		} else if (taskCount > 1) {
+			CountDownLatch epochLatch = new CountDownLatch(taskCount);
+			List<TaskRunner> runners = new ArrayList<TaskRunner>(taskCount);
+			for (WorkerTask tTask : this.batch) {
+				TaskRunner tRunner = new TaskRunner(tTask, epochLatch);
+				runners.add(tRunner);
+				this.executor.execute(tRunner);
+			}
+
+			try {
+				epochLatch.await();
+			} catch (InterruptedException e) {
+				/*
+				 * If we are interrupted (should never happen) we should yell a
+				 * lot and exit with the threading error exit code (-3).
+				 */
+				e.printStackTrace();
+				System.exit(-3);
+			}
+
+			for (TaskRunner tRunner : runners) {
+				tRunner.postBuffer.drainTo(mergeQueue);
+			}
+		}
+		this.batch.clear();
+	}
+
+	public void closePool() {
+		this.executor.shutdownNow();
+	}
+}
@@ -0,0 +1,151 @@
+package sim.engine;
+
+import java.util.List;
+
+import sim.agents.Router;
+import sim.event.EventQueue;
+import sim.event.SimEvent;
+
+/**
+ * Base of the window modes, which run every router event in [t, t + width)
+ * at once in a lane per router. Events for anything that isn't a router (the
+ * traffic accountant, bots, router boot up) can touch many routers, so they
+ * are run by the driver thread and cut the window short. Routers that post to
+ * these guys during a window have the events pushed back to the end of the
+ * window.
+ *
+ */
+public abstract class WindowExecution implements ExecutionMode {
+
+	protected SimDriver theDriver;
+	protected EventQueue eventQueue;
+	protected WorkerPool workerPool;
+	protected DriverMetrics metrics;
+
+	/**
+	 * End (exclusive) of the window currently being run by the workers,
+	 * Integer.MIN_VALUE while no window is open
+	 */
+	protected int windowEnd;
+
+	/**
+	 * If true router events are noted (traced, counted and shown to the
+	 * convergence monitor) by the lanes as they are committed, rather then as
+	 * they come off the event queue
+	 */
+	private boolean noteOnCommit;
+
+	/**
+	 * Window stats, reported when the sim finishes
+	 */
+	protected long windowCount;
+	protected long windowLanes;
+	protected long windowEvents;
+
+	protected WindowExecution(SimDriver theDriver, boolean noteOnCommit) {
+		this.theDriver = theDriver;
+		this.eventQueue = theDriver.getEventQueue();
+		this.workerPool = theDriver.getWorkerPool();
+		this.metrics = theDriver.getMetrics();
+		this.noteOnCommit = noteOnCommit;
+		this.windowEnd = Integer.MIN_VALUE;
+		this.windowCount = 0;
+		this.windowLanes = 0;
+		this.windowEvents = 0;
+	}
+
+	/**
+	 * While a window is running, an event a router posts for itself that still
+	 * falls in the window is handed straight to its lane, any other event that
+	 * would land inside the window is pushed back to the end of it.
+	 */
+	public void postEvent(SimEvent inEvent) {
+		this.theDriver.notePosted(inEvent);
+
+		if (inEvent.getTime() < this.windowEnd) {
+			EventLane myLane = EventLane.getRunningLane();
+			if (myLane != null && myLane.getAffinity() == inEvent.getAffinity()) {
+				myLane.addEvent(inEvent);
+				return;
+			}
+			inEvent.deferTo(this.windowEnd);
+		}
+
+		this.theDriver.enqueueEvent(inEvent);
+	}
+
+	public boolean isWindowOpen() {
+		return this.windowEnd != Integer.MIN_VALUE;
+	}
+
+	/**
+	 * Pulls events off the queue until one for a router shows up, running
+	 * anything else on the driver thread.
+	 *
+	 * @return - the first router event of the next window, or null if the sim
+	 *         is over
+	 */
+	protected SimEvent nextWindowStart() {
+		while (this.theDriver.getCurrentTime() < this.theDriver.getMaxTime()) {
+			if (!this.theDriver.betweenEpochs()) {
+				break;
+			}
+			SimEvent currentEvent = this.eventQueue.poll();
+
+			if (currentEvent == null) {
+				System.err.println("out of events at time: " + this.theDriver.getCurrentTime());
+				return null;
+			}
+
+			if (this.theDriver.getCurrentTime() > currentEvent.getTime()) {
+				System.err.println("wtf: " + this.theDriver.getCurrentTime() + " " + currentEvent.getTime()
+						+ " type " + currentEvent.getType());
+				System.exit(-2);
+			}
+
+			this.theDriver.advanceClock(currentEvent.getTime());
+			if (currentEvent.getAffinity() instanceof Router) {
+				if (!this.noteOnCommit) {
+					this.theDriver.noteEvent(currentEvent);
+				}
+				return currentEvent;
+			}
+			this.theDriver.noteEvent(currentEvent);
+			this.theDriver.dispatchSerial(currentEvent);
+		}
+
+		return null;
+	}
+
+	/**
+	 * Collects every router event in a window, stopping early if something
+	 * that isn't a router needs to run.
+	 *
+	 * @param firstEvent
+	 *            - the already polled first event of the window
+	 * @param width
+	 *            - the width of the window in ms
+	 * @param windowList
+	 *            - cleared and filled with the events of the window, in order
+	 * @return - the end (exclusive) of the window
+	 */
+	protected int gatherWindow(SimEvent firstEvent, int width, List<SimEvent> windowList) {
+		SimEvent currentEvent;
+		int endTime = this.theDriver.getCurrentTime() + width;
+
+		windowList.clear();
+		windowList.add(firstEvent);
+		while ((currentEvent = this.eventQueue.peek()) != null && currentEvent.getTime() < endTime) {
+			if (!(currentEvent.getAffinity() instanceof Router)) {
+				endTime = currentEvent.getTime();
+				break;
+			}
+			windowList.add(this.eventQueue.poll());
+			if (!this.noteOnCommit) {
+				this.theDriver.noteEvent(currentEvent);
+			}
+		}
+
+		return endTime;
+	}
+}
@@ -0,0 +1,63 @@
+package sim.engine;
+
+import sim.event.EventQueue;
+import sim.event.SimEvent;
+import sim.event.WorkerTask;
+
+/**
+ * Interface for the pool of threads the driver hands parallel work to. The
+ * driver adds the tasks of an epoch one at a time and then blocks on the epoch
+ * wall, no task may be assumed to have finished (or even started) before the
+ * wall. Events posted by tasks are buffered by the worker that ran them and
+ * only merged into the driver's queue at the wall. Only the driver thread
+ * calls addTask(), blockOnEpoch() and closePool().
+ *
+ */
+public interface WorkerPool {
+
+	/**
+	 * Gives the pool a task that can be ran in a multi-threaded manner during
+	 * this epoch.
+	 *
+	 * @param readyTask
+	 *            - the task (an event or a lane of events) that can be
+	 *            handled by a worker thread.
+	 */
+	public void addTask(WorkerTask readyTask);
+
+	/**
+	 * Blocks until every task added this epoch is done, then moves everything
+	 * the workers posted into the given queue. The next addTask() starts a new
+	 * epoch.
+	 *
+	 * @param mergeQueue
+	 *            - the driver's event queue
+	 */
+	public void blockOnEpoch(EventQueue mergeQueue);
+
+	/**
+	 * Stores an event in the posting buffer of the calling worker thread.
+	 *
+	 * @param inEvent
+	 *            - the posted event
+	 * @return - true if the event was buffered, false if the caller is not a
+	 *         worker thread of this pool and should post the event directly
+	 */
+	public boolean bufferEvent(SimEvent inEvent);
+
+	/**
+	 * Stores a packed router event (see PrimitiveEventQueue) in the posting
+	 * buffer of the calling worker thread.
+	 *
+	 * @param key
+	 *            - the packed event
+	 * @return - true if the event was buffered, false if the caller is not a
+	 *         worker thread of this pool and should post the event directly
+	 */
+	public boolean bufferEncoded(long key);
+
+	/**
+	 * Shuts the worker threads down, called when the simulation is done.
+	 */
+	public void closePool();
+}
@@ -5,6 +5,8 @@ import sim.agents.SimAgent;
 import sim.network.dataObjects.TrafficFlow;
 
 public class AttackEvent extends SimEvent {
+
+	private static final long serialVersionUID = 1L;
 	
 	private List<TrafficFlow> newAttackFlows;
 	private List<TrafficFlow> oldAttackFlows;
@@ -0,0 +1,233 @@
+package sim.event;
+
+import java.util.*;
+
+/**
+ * Calendar (bucketed) pending event set. Sim time is integral milliseconds and
+ * the vast majority of events are posted only a few milliseconds to a few
+ * seconds ahead of the current time, so we keep a ring of one millisecond wide
+ * buckets that covers a window of time starting at the last event handed out.
+ * Inside of a bucket every event shares the same time, so ordering only needs
+ * to be done by type, which is done by keeping a FIFO lane per type. Events
+ * that land outside of the window (far future attack/bot events, or long TCP
+ * backoffs) are kept in an overflow heap and migrated into the ring as the
+ * window slides forward.
+ *
+ * Adds and polls inside the window are O(1), the cost of skipping empty buckets
+ * is amortized over the forward movement of time.
+ *
+ */
+public class CalendarEventQueue implements EventQueue {
+
+	/**
+	 * The ring of buckets, indexed by (time & bucketMask). Each bucket is an
+	 * array of FIFO lanes indexed by event type, both are built lazily.
+	 */
+	private ArrayDeque<SimEvent>[][] buckets;
+
+	/**
+	 * The number of events stored in each bucket, used to skip empty buckets
+	 * without looking at the lanes.
+	 */
+	private int[] bucketSizes;
+
+	private int bucketMask;
+
+	/**
+	 * The first time covered by the ring, this is always the time of the last
+	 * event polled out of the queue.
+	 */
+	private int windowBase;
+
+	/**
+	 * Time at which the next scan for a non-empty bucket should start, always
+	 * at or after windowBase.
+	 */
+	private int scanTime;
+
+	/**
+	 * Number of events currently stored in the ring.
+	 */
+	private int ringCount;
+
+	/**
+	 * Events that fall outside of the current window.
+	 */
+	private PriorityQueue<SimEvent> overflow;
+
+	/**
+	 * Default window of a bit over 8 seconds of sim time, this covers the 5
+	 * second router timer cap, the one ms TCP sends and the first few TCP
+	 * retransmits.
+	 */
+	public static final int DEFAULT_BUCKETS = 8192;
+
+	/**
+	 * Largest event type we size lanes for up front, larger types simply grow
+	 * the lane array of a bucket.
+	 */
+	private static final int LANE_COUNT = SimEvent.ROUTERCPUFREE + 1;
+
+	public CalendarEventQueue() {
+		this(CalendarEventQueue.DEFAULT_BUCKETS);
+	}
+
+	/**
+	 * Builds a calendar queue with a window of the given number of
+	 * milliseconds.
+	 *
+	 * @param bucketCount
+	 *            - the number of one ms buckets in the ring, rounded up to a
+	 *            power of two
+	 */
+	public CalendarEventQueue(int bucketCount) {
+		int size = 1;
+		while (size < bucketCount) {
+			size = size << 1;
+		}
+
+		this.buckets = CalendarEventQueue.buildBuckets(size);
+		this.bucketSizes = new int[size];
+		this.bucketMask = size - 1;
+		this.windowBase = 0;
+		this.scanTime = 0;
+		this.ringCount = 0;
+		this.overflow = new PriorityQueue<SimEvent>();
+	}
+
+	public void add(SimEvent inEvent) {
+		int time = inEvent.getTime();
+
+		if (this.inWindow(time)) {
+			this.addToRing(inEvent);
+		} else {
+			this.overflow.add(inEvent);
+		}
+	}
+
+	public SimEvent peek() {
+		SimEvent near = this.findRingHead();
+		SimEvent far = this.overflow.peek();
+
+		if (near == null) {
+			return far;
+		}
+		if (far == null || near.compareTo(far) <= 0) {
+			return near;
+		}
+		return far;
+	}
+
+	public SimEvent poll() {
+		SimEvent near = this.findRingHead();
+		SimEvent far = this.overflow.peek();
+		SimEvent retEvent;
+
+		if (near == null && far == null) {
+			return null;
+		}
+
+		if (far == null || (near != null && near.compareTo(far) <= 0)) {
+			int slot = near.getTime() & this.bucketMask;
+			retEvent = this.buckets[slot][near.getType()].poll();
+			this.bucketSizes[slot]--;
+			this.ringCount--;
+		} else {
+			retEvent = this.overflow.poll();
+		}
+
+		/*
+		 * Slide the window forward if time moved, anything in the overflow
+		 * that is now inside the window gets moved into the ring
+		 */
+		if (retEvent.getTime() > this.windowBase) {
+			this.windowBase = retEvent.getTime();
+			if (this.scanTime < this.windowBase) {
+				this.scanTime = this.windowBase;
+			}
+
+			while (this.overflow.size() > 0 && this.inWindow(this.overflow.peek().getTime())) {
+				this.addToRing(this.overflow.poll());
+			}
+		}
+
+		return retEvent;
+	}
+
+	public int size() {
+		return this.ringCount + this.overflow.size();
+	}
+
+	private boolean inWindow(int time) {
+		return time >= this.windowBase && time - this.windowBase <= this.bucketMask;
+	}
+
+	private void addToRing(SimEvent inEvent) {
+		int time = inEvent.getTime();
+		int slot = time & this.bucketMask;
+		int type = inEvent.getType();
+
+		ArrayDeque<SimEvent>[] lanes = this.buckets[slot];
+		if (lanes == null) {
+			lanes = this.buildLanes(Math.max(CalendarEventQueue.LANE_COUNT, type + 1));
+			this.buckets[slot] = lanes;
+		} else if (type >= lanes.length) {
+			ArrayDeque<SimEvent>[] bigger = this.buildLanes(type + 1);
+			System.arraycopy(lanes, 0, bigger, 0, lanes.length);
+			lanes = bigger;
+			this.buckets[slot] = lanes;
+		}
+		if (lanes[type] == null) {
+			lanes[type] = new ArrayDeque<SimEvent>();
+		}
+
+		lanes[type].add(inEvent);
+		this.bucketSizes[slot]++;
+		this.ringCount++;
+
+		if (time < this.scanTime) {
+			this.scanTime = time;
+		}
+	}
+
+	/**
+	 * Builds an empty bucket ring, generic arrays can't be made directly.
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private static ArrayDeque<SimEvent>[][] buildBuckets(int bucketCount) {
+		return new ArrayDeque[bucketCount][];
+	}
+
+	/**
+	 * Builds an empty set of type lanes for a bucket.
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private ArrayDeque<SimEvent>[] buildLanes(int laneCount) {
+		return new ArrayDeque[laneCount];
+	}
+
+	/**
+	 * Finds the first event in the ring without removing it. Moves scanTime up
+	 * past any empty buckets so they are not looked at again.
+	 *
+	 * @return - the earliest event in the ring, or null if the ring is empty
+	 */
+	private SimEvent findRingHead() {
+		if (this.ringCount == 0) {
+			return null;
+		}
+
+		while (this.bucketSizes[this.scanTime & this.bucketMask] == 0) {
+			this.scanTime++;
+		}
+
+		ArrayDeque<SimEvent>[] lanes = this.buckets[this.scanTime & this.bucketMask];
+		for (int counter = 0; counter < lanes.length; counter++) {
+			if (lanes[counter] != null && lanes[counter].size() > 0) {
+				return lanes[counter].peek();
+			}
+		}
+
+		throw new IllegalStateException("calendar bucket count out of sync at time " + this.scanTime);
+	}
+}
@@ -0,0 +1,42 @@
+package sim.event;
+
+/**
+ * Interface for the pending event set used by the simulation driver. Any
+ * implementation must hand events back in the order defined by
+ * SimEvent.compareTo, that is by time first and then by the type priority.
+ * Events that tie on both time and type may come back in any order.
+ * Implementations are NOT expected to be thread safe, the driver is in charge
+ * of any locking.
+ *
+ */
+public interface EventQueue {
+
+	/**
+	 * Adds an event to the pending set.
+	 *
+	 * @param inEvent
+	 *            - the event to store
+	 */
+	public void add(SimEvent inEvent);
+
+	/**
+	 * Fetches, without removing, the next event that should fire.
+	 *
+	 * @return - the next event, or null if there are no pending events
+	 */
+	public SimEvent peek();
+
+	/**
+	 * Removes and returns the next event that should fire.
+	 *
+	 * @return - the next event, or null if there are no pending events
+	 */
+	public SimEvent poll();
+
+	/**
+	 * Gets the number of pending events.
+	 *
+	 * @return - the number of events currently stored
+	 */
+	public int size();
+}
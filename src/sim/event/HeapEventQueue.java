@@ -0,0 +1,33 @@
+package sim.event;
+
+import java.util.PriorityQueue;
+
+/**
+ * The original pending event set, a binary heap backed by a PriorityQueue. All
+ * operations are O(log n) in the number of pending events.
+ *
+ */
+public class HeapEventQueue implements EventQueue {
+
+	private PriorityQueue<SimEvent> theHeap;
+
+	public HeapEventQueue() {
+		this.theHeap = new PriorityQueue<SimEvent>();
+	}
+
+	public void add(SimEvent inEvent) {
+		this.theHeap.add(inEvent);
+	}
+
+	public SimEvent peek() {
+		return this.theHeap.peek();
+	}
+
+	public SimEvent poll() {
+		return this.theHeap.poll();
+	}
+
+	public int size() {
+		return this.theHeap.size();
+	}
+}
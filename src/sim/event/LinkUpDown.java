@@ -6,6 +6,8 @@ import sim.agents.SimAgent;
 import sim.network.dataObjects.*;
 
 public class LinkUpDown extends SimEvent{
+
+	private static final long serialVersionUID = 1L;
 	
 	private List<Link> upLinks;
 	private List<Link> downLinks;
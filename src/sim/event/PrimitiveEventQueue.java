@@ -0,0 +1,255 @@
+package sim.event;
+
+import java.util.*;
+
+import sim.agents.SimAgent;
+
+/**
+ * Pending event set that stores the two hot router events, TIMEREXPIRE and
+ * ROUTERCPUFREE, as plain longs instead of objects. These make up the vast
+ * majority of all events, carry nothing but (time, type, router) and the
+ * router posts a new one every time it handles one, so a long run builds
+ * billions of tiny event objects for them. Here they are packed into a key of
+ * the form [time:32][type:8][agent index:24] which sorts in the same order as
+ * SimEvent.compareTo, and kept in a binary heap of longs. Agents are resolved
+ * through a dense index handed out by the driver.
+ *
+ * Every other event (TCP sends, attacks, link failures, the driver's own
+ * timers) is kept as an object in a normal heap. When a packed event reaches
+ * the front it is turned back into a SimEvent, taken from a free list that
+ * the driver fills by handing events back with recycle() once it is sure
+ * nothing holds on to them. Plain router SimEvents given to add() are packed
+ * and their object recycled straight away.
+ *
+ */
+public class PrimitiveEventQueue implements EventQueue {
+
+	/**
+	 * Heap of packed events, keys[0] is the smallest.
+	 */
+	private long[] keys;
+	private int keyCount;
+
+	/**
+	 * Events that couldn't be packed, plus packed events that were unpacked by
+	 * peek().
+	 */
+	private PriorityQueue<SimEvent> objectHeap;
+
+	/**
+	 * Agents by their dense index.
+	 */
+	private SimAgent[] agents;
+
+	/**
+	 * Dense index of each agent, the reverse of agents.
+	 */
+	private Map<SimAgent, Integer> agentIndices;
+
+	/**
+	 * Spare event objects used to unpack events.
+	 */
+	private ArrayDeque<SimEvent> freeEvents;
+
+	private static final int TIME_SHIFT = 32;
+	private static final int TYPE_SHIFT = 24;
+	private static final long TYPE_MASK = 0xff;
+	private static final long INDEX_MASK = 0xffffff;
+
+	/**
+	 * Largest number of agents that can be packed.
+	 */
+	public static final int MAX_AGENTS = 1 << PrimitiveEventQueue.TYPE_SHIFT;
+
+	/**
+	 * Cap on the free list, anything past it is left to the GC.
+	 */
+	private static final int MAX_FREE = 65536;
+
+	public PrimitiveEventQueue() {
+		this.keys = new long[1024];
+		this.keyCount = 0;
+		this.objectHeap = new PriorityQueue<SimEvent>();
+		this.agents = new SimAgent[0];
+		this.agentIndices = new IdentityHashMap<SimAgent, Integer>();
+		this.freeEvents = new ArrayDeque<SimEvent>();
+	}
+
+	/**
+	 * Packs a router event into a key.
+	 *
+	 * @param time
+	 *            - the sim time of the event, must not be negative
+	 * @param type
+	 *            - the event type
+	 * @param agentIndex
+	 *            - the dense index of the agent, see registerAgent()
+	 * @return - the packed key
+	 */
+	public static long encode(int time, int type, int agentIndex) {
+		return ((long) time << PrimitiveEventQueue.TIME_SHIFT) | ((long) type << PrimitiveEventQueue.TYPE_SHIFT)
+				| agentIndex;
+	}
+
+	/**
+	 * Tells us which agent a dense index refers to.
+	 *
+	 * @param agentIndex
+	 *            - the index, less then MAX_AGENTS
+	 * @param agent
+	 *            - the agent
+	 */
+	public void registerAgent(int agentIndex, SimAgent agent) {
+		if (agentIndex >= this.agents.length) {
+			this.agents = Arrays.copyOf(this.agents, Math.max(agentIndex + 1, this.agents.length * 2));
+		}
+		this.agents[agentIndex] = agent;
+		this.agentIndices.put(agent, agentIndex);
+	}
+
+	/**
+	 * Checks if an event can be packed, i.e. it is a plain timer or cpu event
+	 * for an agent we have an index for.
+	 *
+	 * @param inEvent
+	 *            - the event
+	 * @param agentIndex
+	 *            - the index of the event's agent, null if it has none
+	 * @return - true if the event can be stored as a key
+	 */
+	private boolean canPack(SimEvent inEvent, Integer agentIndex) {
+		if (inEvent.getClass() != SimEvent.class || agentIndex == null || inEvent.getTime() < 0) {
+			return false;
+		}
+		return inEvent.getType() == SimEvent.TIMEREXPIRE || inEvent.getType() == SimEvent.ROUTERCPUFREE;
+	}
+
+	public void add(SimEvent inEvent) {
+		Integer agentIndex = this.agentIndices.get(inEvent.getAffinity());
+		if (this.canPack(inEvent, agentIndex)) {
+			this.addEncoded(PrimitiveEventQueue.encode(inEvent.getTime(), inEvent.getType(), agentIndex));
+			this.recycle(inEvent);
+		} else {
+			this.objectHeap.add(inEvent);
+		}
+	}
+
+	/**
+	 * Adds an already packed event, no objects are built.
+	 *
+	 * @param key
+	 *            - the packed event from encode()
+	 */
+	public void addEncoded(long key) {
+		if (this.keyCount == this.keys.length) {
+			this.keys = Arrays.copyOf(this.keys, this.keys.length * 2);
+		}
+
+		/*
+		 * Sift up
+		 */
+		int pos = this.keyCount++;
+		while (pos > 0) {
+			int parentPos = (pos - 1) >>> 1;
+			if (this.keys[parentPos] <= key) {
+				break;
+			}
+			this.keys[pos] = this.keys[parentPos];
+			pos = parentPos;
+		}
+		this.keys[pos] = key;
+	}
+
+	public SimEvent peek() {
+		if (this.keyCount > 0 && this.keyFirst()) {
+			this.objectHeap.add(this.unpack(this.pollKey()));
+		}
+		return this.objectHeap.peek();
+	}
+
+	public SimEvent poll() {
+		if (this.keyCount > 0 && this.keyFirst()) {
+			return this.unpack(this.pollKey());
+		}
+		return this.objectHeap.poll();
+	}
+
+	public int size() {
+		return this.keyCount + this.objectHeap.size();
+	}
+
+	/**
+	 * Hands back an event that was handed out by this queue (or added to it)
+	 * once nobody holds a reference to it anymore, so it can be used to unpack
+	 * a later event. Anything but a plain SimEvent is ignored.
+	 *
+	 * @param oldEvent
+	 *            - the dead event
+	 */
+	public void recycle(SimEvent oldEvent) {
+		if (oldEvent.getClass() == SimEvent.class && this.freeEvents.size() < PrimitiveEventQueue.MAX_FREE) {
+			this.freeEvents.add(oldEvent);
+		}
+	}
+
+	/**
+	 * Checks if the smallest key comes before the head of the object heap.
+	 * Ties go to the object heap, which also holds unpacked keys.
+	 *
+	 * @return - true if the next event is a packed one
+	 */
+	private boolean keyFirst() {
+		SimEvent objectHead = this.objectHeap.peek();
+		if (objectHead == null) {
+			return true;
+		}
+
+		long headKey = this.keys[0];
+		int timeDif = (int) (headKey >>> PrimitiveEventQueue.TIME_SHIFT) - objectHead.getTime();
+		if (timeDif != 0) {
+			return timeDif < 0;
+		}
+		return (int) ((headKey >>> PrimitiveEventQueue.TYPE_SHIFT) & PrimitiveEventQueue.TYPE_MASK) < objectHead
+				.getType();
+	}
+
+	private long pollKey() {
+		long retKey = this.keys[0];
+		long lastKey = this.keys[--this.keyCount];
+
+		/*
+		 * Sift the last key down from the root
+		 */
+		int pos = 0;
+		int half = this.keyCount >>> 1;
+		while (pos < half) {
+			int child = 2 * pos + 1;
+			if (child + 1 < this.keyCount && this.keys[child + 1] < this.keys[child]) {
+				child++;
+			}
+			if (lastKey <= this.keys[child]) {
+				break;
+			}
+			this.keys[pos] = this.keys[child];
+			pos = child;
+		}
+		if (this.keyCount > 0) {
+			this.keys[pos] = lastKey;
+		}
+
+		return retKey;
+	}
+
+	private SimEvent unpack(long key) {
+		int time = (int) (key >>> PrimitiveEventQueue.TIME_SHIFT);
+		int type = (int) ((key >>> PrimitiveEventQueue.TYPE_SHIFT) & PrimitiveEventQueue.TYPE_MASK);
+		SimAgent agent = this.agents[(int) (key & PrimitiveEventQueue.INDEX_MASK)];
+
+		SimEvent retEvent = this.freeEvents.poll();
+		if (retEvent == null) {
+			return new SimEvent(type, time, agent);
+		}
+		retEvent.reuse(type, time, agent);
+		return retEvent;
+	}
+}
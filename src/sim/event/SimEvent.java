@@ -1,5 +1,6 @@
 package sim.event;
 
+import java.io.Serializable;
 import sim.agents.SimAgent;
 
 /**
@@ -8,7 +9,9 @@ import sim.agents.SimAgent;
  * should deal with it.
  * 
  */
-public class SimEvent implements Comparable<SimEvent> {
+public class SimEvent implements Comparable<SimEvent>, WorkerTask, Serializable {
+
+	private static final long serialVersionUID = 1L;
 
 	/*
 	 * These event types have the concept of priority attatched, if two events
@@ -125,6 +128,49 @@ public class SimEvent implements Comparable<SimEvent> {
 		return this.time;
 	}
 
+	/**
+	 * Gets the agent whose state is changed when this event is dispatched.
+	 * Events with the same affinity must never be dispatched concurrently. For
+	 * most events this is simply the parent.
+	 * 
+	 * @return - the agent this event is bound to for scheduling purposes
+	 */
+	public SimAgent getAffinity() {
+		return this.parent;
+	}
+
+	/**
+	 * Pushes the firing time of this event back. This is only used by the
+	 * driver, before the event is queued, to keep events from landing inside a
+	 * parallel window that is already executing. Events are never moved
+	 * earlier.
+	 * 
+	 * @param laterTime
+	 *            - the new time, ignored if not after the current time
+	 */
+	public void deferTo(int laterTime) {
+		if (laterTime > this.time) {
+			this.time = laterTime;
+		}
+	}
+
+	/**
+	 * Turns this event into a new one, only used by the primitive event queue
+	 * to unpack events into recycled objects.
+	 * 
+	 * @param type
+	 *            - the new type
+	 * @param time
+	 *            - the new time
+	 * @param parent
+	 *            - the new parent
+	 */
+	void reuse(int type, int time, SimAgent parent) {
+		this.type = type;
+		this.time = time;
+		this.parent = parent;
+	}
+
 	/**
 	 * Returns the event to it's parent via the callback function. The parent
 	 * must have the callback function as it has to implement the SimAgent
@@ -5,14 +5,31 @@ import sim.agents.SimAgent;
 import sim.network.dataObjects.TCPPacket;
 
 public class TCPEvent extends SimEvent {
+
+	private static final long serialVersionUID = 1L;
 	
 	private TCPPacket packet;
 	private List<TCPPacket> tcpQueue;
 	
+	/**
+	 * The router the packet is headed to, a successful send hands messages to
+	 * this guy, so the event is scheduled with him instead of the sender.
+	 */
+	private SimAgent receiver;
+	
 	public TCPEvent(int time, SimAgent parent, TCPPacket packet, List<TCPPacket> tcpQueue){
+		this(time, parent, parent, packet, tcpQueue);
+	}
+	
+	public TCPEvent(int time, SimAgent parent, SimAgent receiver, TCPPacket packet, List<TCPPacket> tcpQueue){
 		super(SimEvent.TCPSEND, time, parent);
 		this.packet = packet;
 		this.tcpQueue = tcpQueue;
+		this.receiver = receiver;
+	}
+
+	public SimAgent getAffinity(){
+		return this.receiver;
 	}
 
 	public TCPPacket getPacket(){
@@ -0,0 +1,35 @@
+package sim.event;
+
+import sim.agents.SimAgent;
+
+/**
+ * Interface for a unit of work handed to the worker pool. A plain event is
+ * the usual task, but the driver also hands out batches of events (lanes) and
+ * wrappers around other tasks, which are engine bookkeeping and never end up
+ * in the event queue or a snapshot.
+ *
+ */
+public interface WorkerTask {
+
+	/**
+	 * Gets the event type of the task, for lanes and wrappers the type of the
+	 * first event they run. Only used to tag the task in worker traces.
+	 *
+	 * @return - the type "enum" of the task
+	 */
+	public int getType();
+
+	/**
+	 * Gets the agent whose state is changed when this task is run. Tasks with
+	 * the same affinity must never be run concurrently.
+	 *
+	 * @return - the agent this task is bound to for scheduling purposes
+	 */
+	public SimAgent getAffinity();
+
+	/**
+	 * Runs the task, called on a worker thread (or the driver thread if the
+	 * epoch is ran inline).
+	 */
+	public void dispatch();
+}
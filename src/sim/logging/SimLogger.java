@@ -1,6 +1,7 @@
 package sim.logging;
 
 import java.io.*;
+import java.util.List;
 
 /**
  * Really basic logger, in general just a BufferedWriter that eats IOExceptions
@@ -20,6 +21,22 @@ public class SimLogger {
 	 */
 	private BufferedWriter outStream;
 
+	/**
+	 * The file we're writing to
+	 */
+	private File logFile;
+
+	/**
+	 * Per thread list that messages are held in instead of being written, used
+	 * when the work doing the logging might still be rolled back.
+	 */
+	private ThreadLocal<List<String>> heldMessages;
+
+	/**
+	 * Trace every written line is copied to, null if no trace is kept.
+	 */
+	private TraceRecorder traceRecorder;
+
 	/*
 	 * The directory and extension we want to use
 	 */
@@ -38,7 +55,38 @@ public class SimLogger {
 	 */
 	public SimLogger(String fileName, boolean logVerbose) throws IOException {
 		this.logVerbose = logVerbose;
-		this.outStream = new BufferedWriter(new FileWriter(SimLogger.DIR + fileName + SimLogger.EXT));
+		this.heldMessages = new ThreadLocal<List<String>>();
+		this.traceRecorder = null;
+		this.logFile = new File(SimLogger.DIR + fileName + SimLogger.EXT);
+		this.outStream = new BufferedWriter(new FileWriter(this.logFile));
+	}
+
+	/**
+	 * Creates a logger that carries on an existing log file from a mark taken
+	 * with mark(), used when a run is resumed from a snapshot. Anything logged
+	 * after the mark (by the run that died) is cut off first.
+	 * 
+	 * @param logVerbose
+	 *            - if true we log EVERYTHING
+	 * @param resumeMark
+	 *            - the length of the log when the snapshot was taken
+	 * @throws IOException
+	 *             - if there is an issue opening or cutting the file
+	 */
+	public SimLogger(String fileName, boolean logVerbose, long resumeMark) throws IOException {
+		this.logVerbose = logVerbose;
+		this.heldMessages = new ThreadLocal<List<String>>();
+		this.traceRecorder = null;
+		this.logFile = new File(SimLogger.DIR + fileName + SimLogger.EXT);
+
+		if (this.logFile.length() < resumeMark) {
+			System.err.println("log file " + this.logFile + " is shorter than when the snapshot was taken, appending");
+		} else {
+			RandomAccessFile cutFile = new RandomAccessFile(this.logFile, "rw");
+			cutFile.setLength(resumeMark);
+			cutFile.close();
+		}
+		this.outStream = new BufferedWriter(new FileWriter(this.logFile, true));
 	}
 
 	/**
@@ -60,11 +108,87 @@ public class SimLogger {
 			return;
 		}
 
+		List<String> holdList = this.heldMessages.get();
+		if (holdList != null) {
+			holdList.add(message);
+			return;
+		}
+
 		try {
 			this.outStream.write(message + "\n");
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
+		if (this.traceRecorder != null) {
+			this.traceRecorder.recordLog(message);
+		}
+	}
+
+	/**
+	 * Copies every line written from now on into a trace.
+	 * 
+	 * @param traceRecorder
+	 *            - the trace
+	 */
+	public void setTraceRecorder(TraceRecorder traceRecorder) {
+		this.traceRecorder = traceRecorder;
+	}
+
+	/**
+	 * Makes the calling thread hold on to the messages it logs in the given
+	 * list instead of writing them. They can be written later with
+	 * writeHeldMessages() or thrown away.
+	 * 
+	 * @param holdList
+	 *            - the list to hold messages in, null to go back to writing
+	 *            messages straight out
+	 */
+	public void holdMessages(List<String> holdList) {
+		this.heldMessages.set(holdList);
+	}
+
+	/**
+	 * Writes out messages that were held by holdMessages().
+	 * 
+	 * @param holdList
+	 *            - the held messages
+	 */
+	public void writeHeldMessages(List<String> holdList) {
+		try {
+			for (String tMessage : holdList) {
+				this.outStream.write(tMessage + "\n");
+				if (this.traceRecorder != null) {
+					this.traceRecorder.recordLog(tMessage);
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Flushes everything logged so far out to the file and gets the length of
+	 * the file, a run resumed from a snapshot taken now carries on the log
+	 * from here.
+	 * 
+	 * @return - the length of the log file in bytes
+	 */
+	public long mark() {
+		try {
+			this.outStream.flush();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return this.logFile.length();
+	}
+
+	/**
+	 * Predicate to test if verbose messages are written to the log.
+	 * 
+	 * @return - true if everything is logged
+	 */
+	public boolean isVerbose() {
+		return this.logVerbose;
 	}
 
 	/**
@@ -0,0 +1,252 @@
+package sim.logging;
+
+import java.io.*;
+
+import sim.event.SimEvent;
+
+/**
+ * Writes a timeline of a run in the Chrome trace event format, which can be
+ * opened in chrome://tracing or Perfetto. The driver gets one row, with a
+ * span for every epoch (first task handed out to the wall opening, with its
+ * width and sim time) and a span for every serial section between epochs
+ * (with the number of events the driver ran itself). Each worker gets a row
+ * with a span for every task it ran, tagged with the router's ASN and the
+ * event type. Barrier idle time shows up as the gaps in the worker rows
+ * under an epoch, stragglers as the last span to end.
+ *
+ * Every thread records into its own SpanBuffer, a fixed block of primitive
+ * arrays, so recording a span is a few array stores and no locks. A full
+ * buffer is written out by the thread that filled it, under the recorder's
+ * lock, and then reused, so memory use is bounded no matter how long the
+ * run. Buffers are only read by another thread (for the final flush) once
+ * their owner is idle.
+ *
+ */
+public class TimelineRecorder {
+
+	/**
+	 * Span kinds
+	 */
+	private static final byte KIND_TASK = 0;
+	private static final byte KIND_EPOCH = 1;
+	private static final byte KIND_SERIAL = 2;
+
+	/**
+	 * Spans held by each thread before they are written out
+	 */
+	private static final int BUFFER_SPANS = 8192;
+
+	/**
+	 * Per thread span store. Only the owning thread adds to it.
+	 */
+	public static class SpanBuffer {
+
+		private TimelineRecorder parent;
+		private int threadId;
+
+		private long[] starts;
+		private long[] ends;
+		private byte[] kinds;
+		private int[] firstArgs;
+		private int[] secondArgs;
+		private int count;
+
+		private SpanBuffer(TimelineRecorder parent, int threadId) {
+			this.parent = parent;
+			this.threadId = threadId;
+			this.starts = new long[TimelineRecorder.BUFFER_SPANS];
+			this.ends = new long[TimelineRecorder.BUFFER_SPANS];
+			this.kinds = new byte[TimelineRecorder.BUFFER_SPANS];
+			this.firstArgs = new int[TimelineRecorder.BUFFER_SPANS];
+			this.secondArgs = new int[TimelineRecorder.BUFFER_SPANS];
+			this.count = 0;
+		}
+
+		/**
+		 * Records a task run by a worker.
+		 *
+		 * @param startNanos
+		 *            - System.nanoTime() at the start of the task
+		 * @param endNanos
+		 *            - System.nanoTime() at the end of the task
+		 * @param agentId
+		 *            - the ASN of the task's router, see
+		 *            TraceRecorder.agentId()
+		 * @param type
+		 *            - the event type
+		 */
+		public void addTask(long startNanos, long endNanos, int agentId, int type) {
+			this.add(TimelineRecorder.KIND_TASK, startNanos, endNanos, agentId, type);
+		}
+
+		/**
+		 * Records an epoch, from the first task handed out to the wall.
+		 *
+		 * @param startNanos
+		 *            - System.nanoTime() at the first hand out
+		 * @param endNanos
+		 *            - System.nanoTime() once the wall opened
+		 * @param width
+		 *            - the number of tasks in the epoch
+		 * @param simTime
+		 *            - the sim time of the epoch
+		 */
+		public void addEpoch(long startNanos, long endNanos, int width, int simTime) {
+			this.add(TimelineRecorder.KIND_EPOCH, startNanos, endNanos, width, simTime);
+		}
+
+		/**
+		 * Records a stretch of the driver running events itself.
+		 *
+		 * @param startNanos
+		 *            - System.nanoTime() when the last epoch ended
+		 * @param endNanos
+		 *            - System.nanoTime() when the next epoch started
+		 * @param eventCount
+		 *            - the number of events run by the driver
+		 */
+		public void addSerial(long startNanos, long endNanos, int eventCount) {
+			this.add(TimelineRecorder.KIND_SERIAL, startNanos, endNanos, eventCount, 0);
+		}
+
+		private void add(byte kind, long startNanos, long endNanos, int firstArg, int secondArg) {
+			this.starts[this.count] = startNanos;
+			this.ends[this.count] = endNanos;
+			this.kinds[this.count] = kind;
+			this.firstArgs[this.count] = firstArg;
+			this.secondArgs[this.count] = secondArg;
+			this.count++;
+			if (this.count == TimelineRecorder.BUFFER_SPANS) {
+				this.flush();
+			}
+		}
+
+		/**
+		 * Writes out everything held and empties the buffer.
+		 */
+		public void flush() {
+			this.parent.writeSpans(this);
+			this.count = 0;
+		}
+	}
+
+	private BufferedWriter outBuff;
+
+	/**
+	 * All timestamps are relative to this
+	 */
+	private long baseNanos;
+
+	private boolean firstRecord;
+
+	private long spanCount;
+
+	/**
+	 * Opens the timeline file and writes the header.
+	 *
+	 * @param fileName
+	 *            - path of the timeline file
+	 * @throws IOException
+	 *             - if the file can't be created
+	 */
+	public TimelineRecorder(String fileName) throws IOException {
+		this.outBuff = new BufferedWriter(new FileWriter(fileName), 1 << 16);
+		this.outBuff.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[\n");
+		this.baseNanos = System.nanoTime();
+		this.firstRecord = true;
+		this.spanCount = 0;
+	}
+
+	/**
+	 * Builds the span buffer for a thread and names the thread's row.
+	 *
+	 * @param threadId
+	 *            - the row id, 0 for the driver, workers from 1
+	 * @param threadName
+	 *            - the row name shown in the viewer
+	 * @return - the thread's span buffer
+	 */
+	public synchronized SpanBuffer newBuffer(int threadId, String threadName) {
+		this.writeRecord("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":" + threadId
+				+ ",\"args\":{\"name\":\"" + threadName + "\"}}");
+		return new SpanBuffer(this, threadId);
+	}
+
+	private synchronized void writeSpans(SpanBuffer spans) {
+		for (int counter = 0; counter < spans.count; counter++) {
+			StringBuilder recordBuilder = new StringBuilder(160);
+			byte kind = spans.kinds[counter];
+			if (kind == TimelineRecorder.KIND_TASK) {
+				recordBuilder.append("{\"name\":\"" + TimelineRecorder.typeName(spans.secondArgs[counter])
+						+ "\",\"cat\":\"task\"");
+			} else if (kind == TimelineRecorder.KIND_EPOCH) {
+				recordBuilder.append("{\"name\":\"epoch\",\"cat\":\"driver\"");
+			} else {
+				recordBuilder.append("{\"name\":\"serial\",\"cat\":\"driver\"");
+			}
+			recordBuilder.append(",\"ph\":\"X\",\"pid\":1,\"tid\":" + spans.threadId + ",\"ts\":"
+					+ this.micros(spans.starts[counter]) + ",\"dur\":"
+					+ ((spans.ends[counter] - spans.starts[counter]) / 1000.0));
+			if (kind == TimelineRecorder.KIND_TASK) {
+				recordBuilder.append(",\"args\":{\"asn\":" + spans.firstArgs[counter] + "}}");
+			} else if (kind == TimelineRecorder.KIND_EPOCH) {
+				recordBuilder.append(",\"args\":{\"width\":" + spans.firstArgs[counter] + ",\"sim_time\":"
+						+ spans.secondArgs[counter] + "}}");
+			} else {
+				recordBuilder.append(",\"args\":{\"events\":" + spans.firstArgs[counter] + "}}");
+			}
+			this.writeRecord(recordBuilder.toString());
+		}
+		this.spanCount += spans.count;
+	}
+
+	private void writeRecord(String record) {
+		try {
+			if (!this.firstRecord) {
+				this.outBuff.write(",\n");
+			}
+			this.outBuff.write(record);
+			this.firstRecord = false;
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private double micros(long nanos) {
+		return (nanos - this.baseNanos) / 1000.0;
+	}
+
+	private static String typeName(int type) {
+		if (type == SimEvent.ROUTECHANGE) {
+			return "ROUTECHANGE";
+		} else if (type == SimEvent.LINKUPDOWN) {
+			return "LINKUPDOWN";
+		} else if (type == SimEvent.ATTACKFLOW) {
+			return "ATTACKFLOW";
+		} else if (type == SimEvent.TCPSEND) {
+			return "TCPSEND";
+		} else if (type == SimEvent.TIMEREXPIRE) {
+			return "TIMEREXPIRE";
+		} else if (type == SimEvent.ROUTERCPUFREE) {
+			return "ROUTERCPUFREE";
+		}
+		return "type " + type;
+	}
+
+	public synchronized long getSpanCount() {
+		return this.spanCount;
+	}
+
+	/**
+	 * Writes the footer and closes the file. Every buffer must have been
+	 * flushed first.
+	 */
+	public synchronized void close() {
+		try {
+			this.outBuff.write("\n]}\n");
+			this.outBuff.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,333 @@
+package sim.logging;
+
+import java.io.*;
+import java.util.*;
+
+import bgp.dataStructures.CIDR;
+import bgp.messages.BGPMessage;
+import bgp.messages.Constants;
+import bgp.messages.Update;
+import sim.agents.*;
+import sim.engine.SimDriver;
+import sim.event.*;
+import sim.network.dataObjects.Link;
+import sim.network.dataObjects.TCPPacket;
+import sim.network.dataObjects.TrafficFlow;
+
+/**
+ * Streams a binary trace of a sim run, enough to replay everything downstream
+ * of the BGP daemons (see sim.engine.TraceReplay) without running them again.
+ * The trace is a header followed by tagged records:
+ *
+ * EVENT: every event taken off the driver's event queue, its time, type and
+ * agent (a router's ASN, or one of the AGENT_ constants), then a summary of
+ * what it carries: the message type, source, destination and advertised
+ * network of a BGP message for a TCP send, the flows for an attack flow
+ * event, the links for a link up/down event.
+ *
+ * ROUTE and ACCEPT: answers to the route lookups the traffic accountant made,
+ * only written when the answer differs from the last one recorded for the
+ * same question. They come right after the event the accountant was running.
+ *
+ * LOG: every line written to the log.
+ *
+ * NETWORK: binds a network to a dense id the first time it shows up, records
+ * refer to networks by id.
+ *
+ * Events and lookups are only recorded by the driver thread, log lines come
+ * from any thread, so every record is written under the recorder's lock.
+ *
+ */
+public class TraceRecorder {
+
+	public static final int MAGIC = 0x53435452;
+	public static final int VERSION = 1;
+
+	public static final byte TAG_EVENT = 'E';
+	public static final byte TAG_ROUTE = 'R';
+	public static final byte TAG_ACCEPT = 'A';
+	public static final byte TAG_LOG = 'L';
+	public static final byte TAG_NETWORK = 'N';
+
+	/**
+	 * Agent ids for anything that isn't a router
+	 */
+	public static final int AGENT_DRIVER = -1;
+	public static final int AGENT_ACCOUNTANT = -2;
+	public static final int AGENT_BOTMASTER = -3;
+	public static final int AGENT_OTHER = -4;
+
+	/**
+	 * Network id written for "no network"
+	 */
+	public static final int NO_NETWORK = -1;
+
+	private DataOutputStream outStream;
+
+	/**
+	 * Dense id of every network written so far
+	 */
+	private HashMap<CIDR, Integer> networkIds;
+
+	/**
+	 * Last answer recorded for each lookup, keyed by "asn net" for routes and
+	 * "asn net src" for accepts
+	 */
+	private HashMap<String, Integer> lastRoutes;
+	private HashMap<String, Boolean> lastAccepts;
+
+	private long recordCount;
+
+	/**
+	 * Opens a trace file and writes the header.
+	 *
+	 * @param fileName
+	 *            - path of the trace file
+	 * @throws IOException
+	 *             - if the file can't be created
+	 */
+	public TraceRecorder(String fileName) throws IOException {
+		this.outStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileName), 1 << 16));
+		this.outStream.writeInt(TraceRecorder.MAGIC);
+		this.outStream.writeInt(TraceRecorder.VERSION);
+		this.networkIds = new HashMap<CIDR, Integer>();
+		this.lastRoutes = new HashMap<String, Integer>();
+		this.lastAccepts = new HashMap<String, Boolean>();
+		this.recordCount = 0;
+	}
+
+	/**
+	 * Maps an agent to the id used for it in the trace.
+	 *
+	 * @param agent
+	 *            - the agent
+	 * @return - the agent id
+	 */
+	public static int agentId(SimAgent agent) {
+		if (agent instanceof Router) {
+			return ((Router) agent).getASN();
+		} else if (agent instanceof TrafficAccountant) {
+			return TraceRecorder.AGENT_ACCOUNTANT;
+		} else if (agent instanceof BotMaster) {
+			return TraceRecorder.AGENT_BOTMASTER;
+		} else if (agent instanceof SimDriver) {
+			return TraceRecorder.AGENT_DRIVER;
+		}
+		return TraceRecorder.AGENT_OTHER;
+	}
+
+	public synchronized void recordEvent(SimEvent inEvent) {
+		try {
+			/*
+			 * Networks the event refers to are bound first, so no NETWORK
+			 * record lands in the middle of the EVENT record
+			 */
+			if (inEvent.getType() == SimEvent.TCPSEND) {
+				this.networkId(TraceRecorder.messageNetwork(((TCPEvent) inEvent).getPacket().getMessage()));
+			} else if (inEvent.getType() == SimEvent.ATTACKFLOW) {
+				AttackEvent attackEvent = (AttackEvent) inEvent;
+				this.writeFlowNetworks(attackEvent.getNewAttackFlows());
+				this.writeFlowNetworks(attackEvent.getExpiredAttackFlows());
+			}
+
+			this.outStream.writeByte(TraceRecorder.TAG_EVENT);
+			this.outStream.writeInt(inEvent.getTime());
+			this.outStream.writeByte(inEvent.getType());
+			this.outStream.writeInt(TraceRecorder.agentId(inEvent.getAffinity()));
+
+			if (inEvent.getType() == SimEvent.TCPSEND) {
+				TCPPacket tPacket = ((TCPEvent) inEvent).getPacket();
+				BGPMessage tMessage = tPacket.getMessage();
+				this.outStream.writeByte(tMessage.getMessageType());
+				this.outStream.writeInt(tMessage.getSrcASN());
+				this.outStream.writeInt(tPacket.getDst());
+				this.outStream.writeInt(this.networkId(TraceRecorder.messageNetwork(tMessage)));
+			} else if (inEvent.getType() == SimEvent.ATTACKFLOW) {
+				AttackEvent attackEvent = (AttackEvent) inEvent;
+				this.writeFlows(attackEvent.getNewAttackFlows());
+				this.writeFlows(attackEvent.getExpiredAttackFlows());
+			} else if (inEvent.getType() == SimEvent.LINKUPDOWN) {
+				LinkUpDown linkEvent = (LinkUpDown) inEvent;
+				this.writeLinks(linkEvent.getUpLinks());
+				this.writeLinks(linkEvent.getDownLinks());
+			}
+			this.recordCount++;
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Records the route a router gave the traffic accountant, if it changed.
+	 *
+	 * @param asn
+	 *            - the router asked
+	 * @param network
+	 *            - the destination network
+	 * @param nextHop
+	 *            - the next hop, -1 if the router has no route
+	 */
+	public synchronized void recordRoute(int asn, CIDR network, int nextHop) {
+		String key = asn + " " + network;
+		Integer lastHop = this.lastRoutes.get(key);
+		if (lastHop != null && lastHop == nextHop) {
+			return;
+		}
+		this.lastRoutes.put(key, nextHop);
+
+		try {
+			int netId = this.networkId(network);
+			this.outStream.writeByte(TraceRecorder.TAG_ROUTE);
+			this.outStream.writeInt(asn);
+			this.outStream.writeInt(netId);
+			this.outStream.writeInt(nextHop);
+			this.recordCount++;
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Records if a router let the traffic accountant's traffic through, if it
+	 * changed.
+	 *
+	 * @param asn
+	 *            - the router asked
+	 * @param network
+	 *            - the destination network
+	 * @param srcASN
+	 *            - the neighbor the traffic came from
+	 * @param accept
+	 *            - the answer
+	 */
+	public synchronized void recordAccept(int asn, CIDR network, int srcASN, boolean accept) {
+		String key = asn + " " + network + " " + srcASN;
+		Boolean lastAccept = this.lastAccepts.get(key);
+		if (lastAccept != null && lastAccept == accept) {
+			return;
+		}
+		this.lastAccepts.put(key, accept);
+
+		try {
+			int netId = this.networkId(network);
+			this.outStream.writeByte(TraceRecorder.TAG_ACCEPT);
+			this.outStream.writeInt(asn);
+			this.outStream.writeInt(netId);
+			this.outStream.writeInt(srcASN);
+			this.outStream.writeBoolean(accept);
+			this.recordCount++;
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Records a line written to the log. Lines can be longer then writeUTF()
+	 * allows (daemon dumps) so they are written as a length and UTF-8 bytes.
+	 *
+	 * @param message
+	 *            - the line, without the newline
+	 */
+	public synchronized void recordLog(String message) {
+		try {
+			byte[] lineBytes = message.getBytes("UTF-8");
+			this.outStream.writeByte(TraceRecorder.TAG_LOG);
+			this.outStream.writeInt(lineBytes.length);
+			this.outStream.write(lineBytes);
+			this.recordCount++;
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	public synchronized long getRecordCount() {
+		return this.recordCount;
+	}
+
+	/**
+	 * Flushes and closes the trace, eating any exception.
+	 */
+	public synchronized void close() {
+		try {
+			this.outStream.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Gets the id of a network, writing a NETWORK record first if it hasn't
+	 * been seen before.
+	 */
+	private int networkId(CIDR network) throws IOException {
+		if (network == null) {
+			return TraceRecorder.NO_NETWORK;
+		}
+
+		Integer retId = this.networkIds.get(network);
+		if (retId == null) {
+			retId = this.networkIds.size();
+			this.networkIds.put(network, retId);
+			this.outStream.writeByte(TraceRecorder.TAG_NETWORK);
+			this.outStream.writeInt(retId);
+			this.outStream.writeUTF(network.toString());
+		}
+		return retId;
+	}
+
+	/**
+	 * Gets the network a message advertises, null for anything but an update
+	 * with an advertised route.
+	 */
+	private static CIDR messageNetwork(BGPMessage inMessage) {
+		if (inMessage.getMessageType() != Constants.BGP_UPDATE || ((Update) inMessage).getAdvertised() == null) {
+			return null;
+		}
+		return ((Update) inMessage).getAdvertised().getNlri();
+	}
+
+	/**
+	 * Binds the destination networks of a flow list.
+	 */
+	private void writeFlowNetworks(List<TrafficFlow> flowList) throws IOException {
+		if (flowList != null) {
+			for (TrafficFlow tFlow : flowList) {
+				this.networkId(tFlow.getDstNetwork());
+			}
+		}
+	}
+
+	/**
+	 * Writes a flow list as a count (-1 for null) and the flows.
+	 */
+	private void writeFlows(List<TrafficFlow> flowList) throws IOException {
+		if (flowList == null) {
+			this.outStream.writeInt(-1);
+			return;
+		}
+
+		this.outStream.writeInt(flowList.size());
+		for (TrafficFlow tFlow : flowList) {
+			this.outStream.writeInt(tFlow.getSrcAS());
+			this.outStream.writeInt(tFlow.getDstAS());
+			this.outStream.writeInt(this.networkId(tFlow.getDstNetwork()));
+			this.outStream.writeInt(tFlow.getSize());
+		}
+	}
+
+	/**
+	 * Writes a link list as a count (-1 for null) and the ASN pairs.
+	 */
+	private void writeLinks(List<Link> linkList) throws IOException {
+		if (linkList == null) {
+			this.outStream.writeInt(-1);
+			return;
+		}
+
+		this.outStream.writeInt(linkList.size());
+		for (Link tLink : linkList) {
+			this.outStream.writeInt(tLink.getASes()[0].getASNumber());
+			this.outStream.writeInt(tLink.getASes()[1].getASNumber());
+		}
+	}
+}
@@ -80,7 +80,7 @@ public class WeightedLogParser {
 						value = 1;
 						nonWeightedCount++;
 					} else {
-						CIDR tCIDR = new CIDR(search.group(5));
+						CIDR tCIDR = CIDR.parse(search.group(5));
 						Integer objValue = this.weights.getASWeighting().get(netToASMap.get(tCIDR));
 						if (objValue == null) {
 							value = 1;
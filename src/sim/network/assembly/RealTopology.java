@@ -517,7 +517,7 @@ public class RealTopology {
 			first = this.rng.nextInt(253) + 1;
 			second = this.rng.nextInt(256);
 			third = this.rng.nextInt(256);
-			addCIDR = new CIDR("" + first + "." + second + "." + third + ".0/24");
+			addCIDR = CIDR.parse("" + first + "." + second + "." + third + ".0/24");
 
 			/*
 			 * make sure we have not already handed that network out, if so MAKE
@@ -1,5 +1,6 @@
 package sim.network.dataObjects;
 
+import java.io.*;
 import java.security.InvalidParameterException;
 import java.util.*;
 
@@ -10,7 +11,9 @@ import bgp.dataStructures.CIDR;
  * little more then a data container, but a damn handy data container.
  * 
  */
-public class AS {
+public class AS implements Serializable {
+
+	private static final long serialVersionUID = 1L;
 
 	/**
 	 * Various "grades" of AS, T1 is larger then T2 is larger then T3
@@ -42,13 +45,14 @@ public class AS {
 
 	/**
 	 * Maps of all neighboring ASes split up by our relation to them and the
-	 * links to them. i.e. Our providers will be in the provider map, etc
+	 * links to them. i.e. Our providers will be in the provider map, etc.
+	 * These are serialized by hand after our ASN, see writeObject().
 	 */
-	private HashMap<AS, Link> customers;
+	private transient HashMap<AS, Link> customers;
 
-	private HashMap<AS, Link> peers;
+	private transient HashMap<AS, Link> peers;
 
-	private HashMap<AS, Link> providers;
+	private transient HashMap<AS, Link> providers;
 
 	/**
 	 * Set of local networks.
@@ -76,6 +80,27 @@ public class AS {
 		this.localNetworks = new HashSet<CIDR>();
 	}
 
+	/**
+	 * Writes the neighbor maps after everything else. Neighbors are keyed by
+	 * AS and hashed by ASN, and the AS graph is full of cycles, so when a
+	 * snapshot is read back our ASN has to be set before any neighbor map
+	 * that holds us is filled.
+	 */
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		out.defaultWriteObject();
+		out.writeObject(this.customers);
+		out.writeObject(this.peers);
+		out.writeObject(this.providers);
+	}
+
+	@SuppressWarnings("unchecked")
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		this.customers = (HashMap<AS, Link>) in.readObject();
+		this.peers = (HashMap<AS, Link>) in.readObject();
+		this.providers = (HashMap<AS, Link>) in.readObject();
+	}
+
 	/**
 	 * hashCode overridden to simply return the hash code of the AS number. This
 	 * actually just returns the AS number, but needed for Hash sets & tables.
@@ -1,6 +1,10 @@
 package sim.network.dataObjects;
 
-public class Link {
+import java.io.Serializable;
+
+public class Link implements Serializable {
+
+	private static final long serialVersionUID = 1L;
 
 	/**
 	 * The two ASes this link connects, left and right side has zero meaning.
@@ -0,0 +1,96 @@
+package sim.network.dataObjects;
+
+import java.io.Serializable;
+import java.util.*;
+
+import bgp.dataStructures.CIDR;
+
+/**
+ * The weight of every network in the sim, that is the number of "real" IP
+ * blocks it stands for, which is the AS weight of the AS the network is bound
+ * to. One of these is shared by every router.
+ *
+ * The weights are looked up in an array indexed by CIDR id (see CIDR.getId()),
+ * built from the network to AS and AS weight maps the first time a weight is
+ * asked for. Ids are only good within one JVM, so only the maps are kept in
+ * snapshots and the array is built again after one is read.
+ *
+ */
+public class NetworkWeights implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Weight of a network that isn't bound to an AS
+	 */
+	public static final int UNBOUND = -1;
+
+	/**
+	 * Weight of a network bound to an AS with no AS weight
+	 */
+	public static final int NO_WEIGHT = -2;
+
+	private HashMap<CIDR, Integer> netToASMappings;
+	private HashMap<Integer, Integer> asWeights;
+
+	private transient volatile int[] weightsById = null;
+
+	/**
+	 * Builds the network weights, the maps are not copied and must not
+	 * change once a weight has been asked for.
+	 *
+	 * @param netMap
+	 *            - the AS each network is bound to
+	 * @param asWeights
+	 *            - the weight of each AS, ASes without one are left out
+	 */
+	public NetworkWeights(HashMap<CIDR, Integer> netMap, HashMap<Integer, Integer> asWeights) {
+		this.netToASMappings = netMap;
+		this.asWeights = asWeights;
+	}
+
+	/**
+	 * Gets the weight of a network.
+	 *
+	 * @param network
+	 *            - the network
+	 * @return - the weight, NO_WEIGHT if the network's AS has none, or UNBOUND
+	 *         if the network isn't bound to an AS
+	 */
+	public int getWeight(CIDR network) {
+		int[] weights = this.weightsById;
+		if (weights == null) {
+			weights = this.buildWeights();
+		}
+
+		if (network.getId() >= weights.length) {
+			return NetworkWeights.UNBOUND;
+		}
+		return weights[network.getId()];
+	}
+
+	/**
+	 * Builds the weight array, only once however many routers ask at the same
+	 * time.
+	 *
+	 * @return - the weight array
+	 */
+	private synchronized int[] buildWeights() {
+		if (this.weightsById != null) {
+			return this.weightsById;
+		}
+
+		int[] weights = new int[CIDR.getCount()];
+		Arrays.fill(weights, NetworkWeights.UNBOUND);
+		for (Map.Entry<CIDR, Integer> tEntry : this.netToASMappings.entrySet()) {
+			Integer weight = this.asWeights.get(tEntry.getValue());
+			if (weight == null) {
+				weights[tEntry.getKey().getId()] = NetworkWeights.NO_WEIGHT;
+			} else {
+				weights[tEntry.getKey().getId()] = weight;
+			}
+		}
+		this.weightsById = weights;
+		return weights;
+	}
+}
@@ -1,8 +1,12 @@
 package sim.network.dataObjects;
 
+import java.io.Serializable;
+
 import bgp.messages.BGPMessage;
 
-public class TCPPacket {
+public class TCPPacket implements Serializable {
+
+	private static final long serialVersionUID = 1L;
 
 	private BGPMessage message;
 	private int retransInterval;
@@ -11,7 +15,19 @@ public class TCPPacket {
 	
 	private int dstASN;
 	
-	private static final int TCPSTARTRETRANS = 1000;
+	/**
+	 * Order this packet was added to its stack in, only used to put packets
+	 * back in the right spot when a send is rolled back
+	 */
+	private long sequence;
+	
+	/**
+	 * Set when the send of this packet has been rolled back, a cancelled packet
+	 * must never be put back in a stack
+	 */
+	private boolean cancelled;
+	
+	public static final int TCPSTARTRETRANS = 1000;
 	
 	public TCPPacket(BGPMessage message, int firstSendTime, int dstASN){
 		this.retransInterval = TCPPacket.TCPSTARTRETRANS;
@@ -19,6 +35,8 @@ public class TCPPacket {
 		this.message = message;
 		this.retransTime = firstSendTime;
 		this.dstASN = dstASN;
+		this.sequence = 0;
+		this.cancelled = false;
 	}
 	
 	public int getTransTime(){
@@ -48,4 +66,34 @@ public class TCPPacket {
 	public int getDst(){
 		return this.dstASN;
 	}
+	
+	public void setSequence(long sequence){
+		this.sequence = sequence;
+	}
+	
+	public long getSequence(){
+		return this.sequence;
+	}
+	
+	public void cancel(){
+		this.cancelled = true;
+	}
+	
+	public boolean isCancelled(){
+		return this.cancelled;
+	}
+	
+	public int getRetransInterval(){
+		return this.retransInterval;
+	}
+	
+	/**
+	 * Puts the retransmit state back to what it was before a send attempt,
+	 * used when the attempt is rolled back.
+	 */
+	public void restoreState(int retransTime, int retransInterval, boolean arrived){
+		this.retransTime = retransTime;
+		this.retransInterval = retransInterval;
+		this.arrived = arrived;
+	}
 }
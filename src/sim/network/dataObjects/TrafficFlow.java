@@ -1,8 +1,11 @@
 package sim.network.dataObjects;
 
+import java.io.Serializable;
 import bgp.dataStructures.CIDR;
 
-public class TrafficFlow {
+public class TrafficFlow implements Serializable {
+
+	private static final long serialVersionUID = 1L;
 	
 	private int srcAS;
 	private int dstAS;
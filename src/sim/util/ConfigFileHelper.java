@@ -9,7 +9,9 @@ import java.util.*;
  * This class throws a lot of defensive exceptions, be warned.
  * 
  */
-public class ConfigFileHelper {
+public class ConfigFileHelper implements Serializable {
+
+	private static final long serialVersionUID = 1L;
 
 	private Set<String> requiredParams;
 	private HashMap<String, String> vals;
@@ -143,6 +145,30 @@ public class ConfigFileHelper {
 		return this.vals.get(param.trim().toLowerCase());
 	}
 
+	/**
+	 * Builds a copy of this config with some params changed, used to derive
+	 * the config of one run from a shared file. The copy has the same
+	 * required params.
+	 * 
+	 * @param overrides -
+	 *            params to change, a null value removes the param, values are
+	 *            trimmed but kept in their case (they are often paths)
+	 * @return - the changed copy, this config is left alone
+	 */
+	public ConfigFileHelper deriveConfig(Map<String, String> overrides) {
+		ConfigFileHelper retConfig = new ConfigFileHelper(this.requiredParams);
+		retConfig.vals.putAll(this.vals);
+		for (String tParam : overrides.keySet()) {
+			String cleanParam = tParam.trim().toLowerCase();
+			if (overrides.get(tParam) == null) {
+				retConfig.vals.remove(cleanParam);
+			} else {
+				retConfig.vals.put(cleanParam, overrides.get(tParam).trim());
+			}
+		}
+		return retConfig;
+	}
+
 	/**
 	 * Wrapper function for fetching a boolean value. This will automatically
 	 * parse the mapped string, if the key does not exist FALSE will be assumed.
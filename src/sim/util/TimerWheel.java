@@ -0,0 +1,410 @@
+package sim.util;
+
+import java.util.*;
+
+/**
+ * Hierarchical timing wheel. Each timer is identified by a (kind, key) pair,
+ * and there is at most one timer per pair, scheduling a pair again just moves
+ * the timer. Time is in integral ms, the wheel has four levels: 256 one ms
+ * slots, then three levels of 64 slots each 64 times wider then the level
+ * below, covering a bit over 18 hours, anything further out is kept in an
+ * overflow list. A timer sits in the lowest level whose current rotation
+ * contains its deadline, when the clock reaches the start of a higher level
+ * slot its timers are cascaded down. Occupancy bitmaps are used to jump
+ * straight to the next non-empty slot, so moving the clock costs time in
+ * proportion to the number of timers that fire (and cascade), not to the
+ * amount of time skipped.
+ *
+ * Moving a timer is O(1), finding the next deadline is O(1) plus a scan of a
+ * single slot if the next timer is not in the lowest level.
+ *
+ */
+public class TimerWheel {
+
+	/**
+	 * One scheduled timer, slots are intrusive doubly linked lists.
+	 */
+	public static class Timer {
+		private int kind;
+		private int key;
+		private int deadline;
+
+		/**
+		 * Where the timer lives, level is LEVEL_DUE for the due list and
+		 * LEVEL_OVERFLOW for the overflow list.
+		 */
+		private int level;
+		private int slot;
+
+		private Timer prev;
+		private Timer next;
+
+		private Timer(int kind, int key) {
+			this.kind = kind;
+			this.key = key;
+		}
+
+		public int getKind() {
+			return this.kind;
+		}
+
+		public int getKey() {
+			return this.key;
+		}
+
+		public int getDeadline() {
+			return this.deadline;
+		}
+	}
+
+	private static final int LEVEL_COUNT = 4;
+	private static final int[] SHIFTS = { 0, 8, 14, 20 };
+	private static final int[] BITS = { 8, 6, 6, 6 };
+
+	/**
+	 * Bits of time covered by a full rotation of the top level.
+	 */
+	private static final int TOP_SPAN = 26;
+
+	private static final int LEVEL_DUE = -1;
+	private static final int LEVEL_OVERFLOW = -2;
+	private static final int LEVEL_NONE = -3;
+
+	/**
+	 * Heads of the slot lists, by level then slot.
+	 */
+	private Timer[][] slots;
+
+	/**
+	 * Occupancy bitmaps, by level then 64 slot word.
+	 */
+	private long[][] occupied;
+
+	/**
+	 * Timers whose deadline is at or before the clock.
+	 */
+	private Timer dueHead;
+
+	/**
+	 * Timers past the top level's current rotation.
+	 */
+	private Timer overflowHead;
+
+	/**
+	 * The clock, no timer on a level is due at or before this.
+	 */
+	private int cursor;
+
+	/**
+	 * Timers by kind, then by key.
+	 */
+	private HashMap<Integer, Timer>[] timerMaps;
+
+	private int size;
+
+	/**
+	 * Builds an empty wheel.
+	 *
+	 * @param startTime
+	 *            - the time the clock starts at
+	 * @param kindCount
+	 *            - the number of kinds of timer, kinds are 0 to kindCount - 1
+	 */
+	public TimerWheel(int startTime, int kindCount) {
+		this.slots = new Timer[TimerWheel.LEVEL_COUNT][];
+		this.occupied = new long[TimerWheel.LEVEL_COUNT][];
+		for (int level = 0; level < TimerWheel.LEVEL_COUNT; level++) {
+			int slotCount = 1 << TimerWheel.BITS[level];
+			this.slots[level] = new Timer[slotCount];
+			this.occupied[level] = new long[Math.max(1, slotCount / 64)];
+		}
+		this.dueHead = null;
+		this.overflowHead = null;
+		this.cursor = startTime;
+		this.timerMaps = TimerWheel.buildTimerMaps(kindCount);
+		for (int counter = 0; counter < kindCount; counter++) {
+			this.timerMaps[counter] = new HashMap<Integer, Timer>();
+		}
+		this.size = 0;
+	}
+
+	/**
+	 * Builds the array of per kind timer maps, generic arrays can't be made
+	 * directly.
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private static HashMap<Integer, Timer>[] buildTimerMaps(int kindCount) {
+		return new HashMap[kindCount];
+	}
+
+	/**
+	 * Sets (or moves) the timer for a kind and key.
+	 *
+	 * @param kind
+	 *            - the kind of timer
+	 * @param key
+	 *            - the key of the timer, unique inside a kind
+	 * @param deadline
+	 *            - when the timer fires, can be in the past, in which case it
+	 *            fires on the next call to expire()
+	 */
+	public void schedule(int kind, int key, int deadline) {
+		Timer theTimer = this.timerMaps[kind].get(key);
+		if (theTimer == null) {
+			theTimer = new Timer(kind, key);
+			theTimer.level = TimerWheel.LEVEL_NONE;
+			this.timerMaps[kind].put(key, theTimer);
+			this.size++;
+		} else {
+			this.unlink(theTimer);
+		}
+
+		theTimer.deadline = deadline;
+		this.place(theTimer);
+	}
+
+	/**
+	 * Removes the timer for a kind and key, if there is one.
+	 *
+	 * @param kind
+	 *            - the kind of timer
+	 * @param key
+	 *            - the key of the timer
+	 */
+	public void cancel(int kind, int key) {
+		Timer theTimer = this.timerMaps[kind].remove(key);
+		if (theTimer != null) {
+			this.unlink(theTimer);
+			this.size--;
+		}
+	}
+
+	/**
+	 * Removes every timer.
+	 */
+	public void clear() {
+		for (int level = 0; level < TimerWheel.LEVEL_COUNT; level++) {
+			Arrays.fill(this.slots[level], null);
+			Arrays.fill(this.occupied[level], 0L);
+		}
+		this.dueHead = null;
+		this.overflowHead = null;
+		for (HashMap<Integer, Timer> tMap : this.timerMaps) {
+			tMap.clear();
+		}
+		this.size = 0;
+	}
+
+	public int size() {
+		return this.size;
+	}
+
+	/**
+	 * Gets the earliest deadline of any timer.
+	 *
+	 * @return - the deadline, or Integer.MAX_VALUE if there are no timers
+	 */
+	public int getNextExpiration() {
+		if (this.dueHead != null) {
+			return TimerWheel.minDeadline(this.dueHead);
+		}
+
+		/*
+		 * Every timer on a level is later then every timer on the levels
+		 * below it, so the first non-empty slot on the lowest non-empty level
+		 * holds the earliest deadline
+		 */
+		for (int level = 0; level < TimerWheel.LEVEL_COUNT; level++) {
+			int slot = this.firstOccupied(level);
+			if (slot >= 0) {
+				return TimerWheel.minDeadline(this.slots[level][slot]);
+			}
+		}
+
+		if (this.overflowHead != null) {
+			return TimerWheel.minDeadline(this.overflowHead);
+		}
+		return Integer.MAX_VALUE;
+	}
+
+	/**
+	 * Moves the clock up to the given time and removes every timer due at or
+	 * before it. The caller may schedule the returned timers' pairs again.
+	 *
+	 * @param now
+	 *            - the current time, can be before the last call (i.e. after
+	 *            a roll back), the clock then stays put and only due timers
+	 *            up to now fire
+	 * @return - the timers that fired, in no particular order
+	 */
+	public List<Timer> expire(int now) {
+		List<Timer> retList = new ArrayList<Timer>();
+		Timer dueList = this.dueHead;
+		this.dueHead = null;
+		this.takeAll(dueList, now, retList);
+
+		while (true) {
+			/*
+			 * Find the next slot to open up, the lowest start time across all
+			 * levels, stop once it's in the future
+			 */
+			int nextLevel = TimerWheel.LEVEL_NONE;
+			int nextSlot = -1;
+			long nextStart = Long.MAX_VALUE;
+			for (int level = 0; level < TimerWheel.LEVEL_COUNT; level++) {
+				int slot = this.firstOccupied(level);
+				if (slot >= 0) {
+					long start = this.slotStart(level, slot);
+					if (start < nextStart) {
+						nextStart = start;
+						nextLevel = level;
+						nextSlot = slot;
+					}
+				}
+			}
+			long rotationEnd = this.rotationBase(TimerWheel.LEVEL_COUNT - 1) + (1L << TimerWheel.TOP_SPAN);
+			if (this.overflowHead != null && rotationEnd < nextStart) {
+				nextStart = rotationEnd;
+				nextLevel = TimerWheel.LEVEL_OVERFLOW;
+			}
+
+			if (nextStart > now) {
+				break;
+			}
+
+			/*
+			 * Move the clock to the slot and cascade its timers, anything due
+			 * by now is handed back
+			 */
+			this.cursor = (int) nextStart;
+			Timer head;
+			if (nextLevel == TimerWheel.LEVEL_OVERFLOW) {
+				head = this.overflowHead;
+				this.overflowHead = null;
+			} else {
+				head = this.slots[nextLevel][nextSlot];
+				this.slots[nextLevel][nextSlot] = null;
+				this.occupied[nextLevel][nextSlot >>> 6] &= ~(1L << (nextSlot & 63));
+			}
+			this.takeAll(head, now, retList);
+		}
+
+		this.cursor = Math.max(this.cursor, now);
+		return retList;
+	}
+
+	/**
+	 * Walks a detached list, handing back timers due by now and placing the
+	 * rest again.
+	 */
+	private void takeAll(Timer head, int now, List<Timer> retList) {
+		Timer tTimer = head;
+		while (tTimer != null) {
+			Timer nextTimer = tTimer.next;
+			tTimer.prev = null;
+			tTimer.next = null;
+			if (tTimer.deadline <= now) {
+				tTimer.level = TimerWheel.LEVEL_NONE;
+				this.timerMaps[tTimer.kind].remove(tTimer.key);
+				this.size--;
+				retList.add(tTimer);
+			} else {
+				this.place(tTimer);
+			}
+			tTimer = nextTimer;
+		}
+	}
+
+	/**
+	 * Puts an unlinked timer in the list it belongs in given the clock.
+	 */
+	private void place(Timer theTimer) {
+		if (theTimer.deadline <= this.cursor) {
+			theTimer.level = TimerWheel.LEVEL_DUE;
+			this.dueHead = TimerWheel.push(this.dueHead, theTimer);
+			return;
+		}
+
+		for (int level = 0; level < TimerWheel.LEVEL_COUNT; level++) {
+			int span = TimerWheel.SHIFTS[level] + TimerWheel.BITS[level];
+			if ((theTimer.deadline >>> span) == (this.cursor >>> span)) {
+				int slot = (theTimer.deadline >>> TimerWheel.SHIFTS[level]) & ((1 << TimerWheel.BITS[level]) - 1);
+				theTimer.level = level;
+				theTimer.slot = slot;
+				this.slots[level][slot] = TimerWheel.push(this.slots[level][slot], theTimer);
+				this.occupied[level][slot >>> 6] |= 1L << (slot & 63);
+				return;
+			}
+		}
+
+		theTimer.level = TimerWheel.LEVEL_OVERFLOW;
+		this.overflowHead = TimerWheel.push(this.overflowHead, theTimer);
+	}
+
+	private void unlink(Timer theTimer) {
+		if (theTimer.prev != null) {
+			theTimer.prev.next = theTimer.next;
+		} else if (theTimer.level == TimerWheel.LEVEL_DUE) {
+			this.dueHead = theTimer.next;
+		} else if (theTimer.level == TimerWheel.LEVEL_OVERFLOW) {
+			this.overflowHead = theTimer.next;
+		} else if (theTimer.level >= 0) {
+			this.slots[theTimer.level][theTimer.slot] = theTimer.next;
+			if (theTimer.next == null) {
+				this.occupied[theTimer.level][theTimer.slot >>> 6] &= ~(1L << (theTimer.slot & 63));
+			}
+		}
+		if (theTimer.next != null) {
+			theTimer.next.prev = theTimer.prev;
+		}
+
+		theTimer.prev = null;
+		theTimer.next = null;
+		theTimer.level = TimerWheel.LEVEL_NONE;
+	}
+
+	private static Timer push(Timer head, Timer theTimer) {
+		theTimer.prev = null;
+		theTimer.next = head;
+		if (head != null) {
+			head.prev = theTimer;
+		}
+		return theTimer;
+	}
+
+	private static int minDeadline(Timer head) {
+		int retMin = Integer.MAX_VALUE;
+		for (Timer tTimer = head; tTimer != null; tTimer = tTimer.next) {
+			retMin = Math.min(retMin, tTimer.deadline);
+		}
+		return retMin;
+	}
+
+	/**
+	 * Finds the first occupied slot on a level, every occupied slot is after
+	 * the clock's own slot on that level.
+	 *
+	 * @return - the slot, or -1 if the level is empty
+	 */
+	private int firstOccupied(int level) {
+		long[] bitmap = this.occupied[level];
+		for (int word = 0; word < bitmap.length; word++) {
+			if (bitmap[word] != 0) {
+				return (word << 6) + Long.numberOfTrailingZeros(bitmap[word]);
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Gets the time the current rotation of a level started.
+	 */
+	private long rotationBase(int level) {
+		int span = TimerWheel.SHIFTS[level] + TimerWheel.BITS[level];
+		return ((long) this.cursor >>> span) << span;
+	}
+
+	private long slotStart(int level, int slot) {
+		return this.rotationBase(level) + ((long) slot << TimerWheel.SHIFTS[level]);
+	}
+}
@@ -0,0 +1,233 @@
+package sim.util;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Journal of changes made to an object graph that can be played backwards.
+ * Code that mutates state records an entry BEFORE it changes anything, the
+ * entry remembers what was there and knows how to put it back. Positions in
+ * the log are absolute, i.e. they keep counting up even after old entries are
+ * thrown away, so a mark taken at any point stays valid until it is
+ * discarded. This is NOT thread safe, a log should only be written to by one
+ * thread at a time.
+ *
+ */
+public class UndoLog {
+
+	/**
+	 * A single undoable change.
+	 */
+	public static abstract class Entry {
+		/**
+		 * Reverts the change this entry was recorded for.
+		 */
+		public abstract void undo();
+	}
+
+	private ArrayList<Entry> entries;
+
+	/**
+	 * The absolute position of the first entry still stored.
+	 */
+	private long base;
+
+	public UndoLog() {
+		this.entries = new ArrayList<Entry>();
+		this.base = 0;
+	}
+
+	/**
+	 * Adds an entry to the end of the log.
+	 *
+	 * @param undoEntry
+	 *            - the entry that reverts the change about to be made
+	 */
+	public void record(Entry undoEntry) {
+		this.entries.add(undoEntry);
+	}
+
+	/**
+	 * Gets the current end of the log, used as a mark to roll back to.
+	 *
+	 * @return - the absolute position of the next entry
+	 */
+	public long getMark() {
+		return this.base + this.entries.size();
+	}
+
+	/**
+	 * Undoes, newest first, every entry recorded since the given mark.
+	 *
+	 * @param mark
+	 *            - a mark from getMark(), must not have been discarded
+	 */
+	public void rollBack(long mark) {
+		if (mark < this.base) {
+			throw new IllegalStateException("rolling back to discarded mark " + mark + " (base " + this.base + ")");
+		}
+
+		for (int counter = this.entries.size() - 1; counter >= mark - this.base; counter--) {
+			this.entries.remove(counter).undo();
+		}
+	}
+
+	/**
+	 * Throws away all entries before the given mark, those changes can no
+	 * longer be undone.
+	 *
+	 * @param mark
+	 *            - the oldest mark that still needs to be rolled back to
+	 */
+	public void discardTo(long mark) {
+		int dropCount = (int) Math.min(mark - this.base, this.entries.size());
+		if (dropCount <= 0) {
+			return;
+		}
+
+		if (dropCount == this.entries.size()) {
+			this.entries.clear();
+		} else {
+			this.entries.subList(0, dropCount).clear();
+		}
+		this.base += dropCount;
+	}
+
+	/**
+	 * Records the current mapping of a key so it can be restored.
+	 *
+	 * @param map
+	 *            - the map that is about to change
+	 * @param key
+	 *            - the key that is about to be put or removed
+	 */
+	public <K, V> void recordMapChange(final Map<K, V> map, final K key) {
+		final boolean hadKey = map.containsKey(key);
+		final V oldValue = map.get(key);
+		this.record(new Entry() {
+			public void undo() {
+				if (hadKey) {
+					map.put(key, oldValue);
+				} else {
+					map.remove(key);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Records if an element is in a set so that an add/remove can be undone.
+	 *
+	 * @param set
+	 *            - the set that is about to change
+	 * @param element
+	 *            - the element about to be added or removed
+	 */
+	public <E> void recordSetChange(final Set<E> set, final E element) {
+		final boolean hadElement = set.contains(element);
+		this.record(new Entry() {
+			public void undo() {
+				if (hadElement) {
+					set.add(element);
+				} else {
+					set.remove(element);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Records an element being added to a collection, the undo removes that
+	 * exact element again.
+	 *
+	 * @param collection
+	 *            - the collection the element is added to
+	 * @param element
+	 *            - the element being added
+	 */
+	public <E> void recordAdd(final Collection<E> collection, final E element) {
+		this.record(new Entry() {
+			public void undo() {
+				collection.remove(element);
+			}
+		});
+	}
+
+	/**
+	 * Records an element being taken out of a collection, the undo adds it back
+	 * in. Only use this on collections where the position is implied by the
+	 * element (i.e. priority queues).
+	 *
+	 * @param collection
+	 *            - the collection the element was removed from
+	 * @param element
+	 *            - the removed element
+	 */
+	public <E> void recordRemove(final Collection<E> collection, final E element) {
+		this.record(new Entry() {
+			public void undo() {
+				collection.add(element);
+			}
+		});
+	}
+
+	/**
+	 * Records an element being appended to a list, the undo drops the tail.
+	 *
+	 * @param list
+	 *            - the list appended to
+	 */
+	public <E> void recordAppend(final LinkedList<E> list) {
+		this.record(new Entry() {
+			public void undo() {
+				list.removeLast();
+			}
+		});
+	}
+
+	/**
+	 * Records the head of a list being polled, the undo puts it back.
+	 *
+	 * @param list
+	 *            - the list polled from
+	 * @param element
+	 *            - the element that was at the head
+	 */
+	public <E> void recordPoll(final LinkedList<E> list, final E element) {
+		this.record(new Entry() {
+			public void undo() {
+				list.addFirst(element);
+			}
+		});
+	}
+
+	/**
+	 * Builds an independent copy of a random number generator, the copy will
+	 * produce exactly the same sequence the original would from this point.
+	 *
+	 * @param original
+	 *            - the generator to copy
+	 * @return - a generator in the same state
+	 */
+	public static Random copyRandom(Random original) {
+		try {
+			ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
+			ObjectOutputStream objOut = new ObjectOutputStream(byteOut);
+			objOut.writeObject(original);
+			objOut.close();
+
+			ObjectInputStream objIn = new ObjectInputStream(new ByteArrayInputStream(byteOut.toByteArray()));
+			Random retRandom = (Random) objIn.readObject();
+			objIn.close();
+			return retRandom;
+		} catch (Exception e) {
+			/*
+			 * Random is serializable and this is all in memory, so this should
+			 * never happen
+			 */
+			e.printStackTrace();
+			System.exit(-2);
+			return null;
+		}
+	}
+}